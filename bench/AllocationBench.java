@@ -0,0 +1,131 @@
+import Runtime.IO.OutputChannel;
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import Runtime.Machine.Interface.Bytecode;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import Runtime.Machine.StaticMemory;
+import Runtime.Machine.VirtualCPU;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the heap allocated by the interpreter while running integer
+ * arithmetic loops that also save a register on the stack, using the JVM's
+ * per-thread allocation counter. Both the generic and the Int4-specialized
+ * opcodes are expected to execute without allocating.
+ *
+ * Build the project first, then run from the project root:
+ *   javac -cp build/classes -d build/bench bench/AllocationBench.java
+ *   java -cp build/classes:build/bench AllocationBench [iterations]
+ * @author Joshua Boley
+ */
+public class AllocationBench
+{
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    public static void main(String[] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        StaticMemory.initialize();
+        int i = StaticMemory.allocate(DataType.Int4),
+            a = StaticMemory.allocate(DataType.Int4);
+
+        VirtualCPU cpu = new VirtualCPU();
+        cpu.initializeIO(new NullOutputChannel());
+        boolean allocationFree = true;
+        for (boolean typed : new boolean[] { false, true }) {
+            Bytecode program = Bytecode.encode(loop(iterations, i, a, typed));
+            for (int round = 0; round < WARMUP_ROUNDS; ++round)
+                run(cpu, program);
+            long tid = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(tid);
+            for (int round = 0; round < MEASURED_ROUNDS; ++round)
+                run(cpu, program);
+            long bytes = threads.getThreadAllocatedBytes(tid) - before;
+            long executed = (long) MEASURED_ROUNDS * iterations * (program.size() - 2);
+            System.out.printf(
+                "%-8s %d bytes allocated over %d instructions (%.4f bytes/instruction)%n",
+                typed ? "Int4:" : "Generic:", bytes, executed, (double) bytes / executed
+            );
+            allocationFree &= bytes < executed / 1000;
+        }
+        System.out.println(allocationFree ? "Allocation-free" : "Allocating");
+    }
+
+    private static void run(VirtualCPU cpu, Bytecode program)
+    {
+        cpu.load(program);
+        cpu.execute();
+    }
+
+    /**
+     * Builds i <- 0; do { i <- i + 1; a <- (a * 3 - i) / 2; a <- a ^ 2 } while (i < n),
+     * keeping i on the stack while a is computed
+     */
+    private static List<Instruction> loop(int n, int i, int a, boolean typed)
+    {
+        RegId r1 = RegId.R1, r2 = RegId.R2;
+        return Arrays.asList(
+            instr(Opcodes.MOV, reg(r1), imm(0)),
+            instr(Opcodes.MOV, var(i), reg(r1)),
+            instr(Opcodes.MOV, reg(r1), var(i)),
+            instr(typed ? Opcodes.ADD_I4 : Opcodes.ADD, reg(r1), imm(1)),
+            instr(Opcodes.MOV, var(i), reg(r1)),
+            instr(Opcodes.PUSH, reg(r1)),
+            instr(Opcodes.MOV, reg(r2), var(a)),
+            instr(typed ? Opcodes.MULT_I4 : Opcodes.MULT, reg(r2), imm(3)),
+            instr(typed ? Opcodes.SUB_I4 : Opcodes.SUB, reg(r2), reg(r1)),
+            instr(typed ? Opcodes.DIV_I4 : Opcodes.DIV, reg(r2), imm(2)),
+            instr(typed ? Opcodes.EXP_I4 : Opcodes.EXP, reg(r2), imm(2)),
+            instr(Opcodes.MOV, var(a), reg(r2)),
+            instr(Opcodes.POP, reg(r1)),
+            instr(typed ? Opcodes.CMP_I4 : Opcodes.CMP, reg(r1), imm(n)),
+            instr(Opcodes.JL, imm(-12))
+        );
+    }
+
+    private static Instruction instr(Opcodes opcode, Operand... operands)
+    {
+        return new Instruction(opcode, new ArrayList<>(Arrays.asList(operands)));
+    }
+
+    private static Operand reg(RegId reg)
+    {
+        return new Operand(reg);
+    }
+
+    private static Operand imm(int value)
+    {
+        return new Operand(value);
+    }
+
+    private static Operand var(int offset)
+    {
+        return new Operand(DataType.Int4, offset);
+    }
+
+    private static class NullOutputChannel
+        extends OutputChannel<Void>
+    {
+        NullOutputChannel()
+        {
+            super(-1, null);
+        }
+
+        @Override
+        public void sendClear()
+        {
+        }
+
+        @Override
+        public void send(Type otype, Object output)
+        {
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import Runtime.IO.OutputChannel;
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import Runtime.Machine.Interface.Bytecode;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import Runtime.Machine.StaticMemory;
+import Runtime.Machine.VirtualCPU;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reports interpreter throughput in millions of instructions per second on
+ * a register-only arithmetic loop and on a loop that loads and stores
+ * variables.
+ *
+ * Build the project first, then run from the project root:
+ *   javac -cp build/classes -d build/bench bench/InterpreterBench.java
+ *   java -cp build/classes:build/bench InterpreterBench [iterations]
+ * @author Joshua Boley
+ */
+public class InterpreterBench
+{
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int MEASURED_ROUNDS = 20;
+
+    public static void main(String[] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        StaticMemory.initialize();
+        int i = StaticMemory.allocate(DataType.Int4),
+            a = StaticMemory.allocate(DataType.Int4);
+
+        VirtualCPU cpu = new VirtualCPU();
+        cpu.initializeIO(new NullOutputChannel());
+        measure(cpu, "Registers:", registerLoop(iterations), iterations);
+        measure(cpu, "Variables:", variableLoop(iterations, i, a), iterations);
+    }
+
+    /**
+     * Prints the best of the measured rounds; the loop body is the program
+     * less its two initializing instructions
+     */
+    private static void measure(VirtualCPU cpu, String name, List<Instruction> loop, int iterations)
+    {
+        Bytecode program = Bytecode.encode(loop);
+        for (int round = 0; round < WARMUP_ROUNDS; ++round)
+            run(cpu, program);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < MEASURED_ROUNDS; ++round)
+            best = Math.min(best, run(cpu, program));
+        long executed = (long) iterations * (program.size() - 2);
+        System.out.printf("%-11s %.1f MIPS%n", name, executed * 1e3 / best);
+    }
+
+    private static long run(VirtualCPU cpu, Bytecode program)
+    {
+        cpu.load(program);
+        long start = System.nanoTime();
+        cpu.execute();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Builds r1 <- 0; r2 <- 1; do { r1 <- r1 + 1; r2 <- r2 * 3 - r1; r3 <- (r3 + r2) & 255 } while (r1 < n)
+     */
+    private static List<Instruction> registerLoop(int n)
+    {
+        RegId r1 = RegId.R1, r2 = RegId.R2, r3 = RegId.R3;
+        return Arrays.asList(
+            instr(Opcodes.MOV, reg(r1), imm(0)),
+            instr(Opcodes.MOV, reg(r2), imm(1)),
+            instr(Opcodes.ADD_I4, reg(r1), imm(1)),
+            instr(Opcodes.MULT_I4, reg(r2), imm(3)),
+            instr(Opcodes.SUB_I4, reg(r2), reg(r1)),
+            instr(Opcodes.MOV, reg(r3), reg(r2)),
+            instr(Opcodes.AND, reg(r3), imm(255)),
+            instr(Opcodes.CMP_I4, reg(r1), imm(n)),
+            instr(Opcodes.JL, imm(-6))
+        );
+    }
+
+    /**
+     * Builds i <- 0; do { i <- i + 1; a <- a * 3 - i } while (i < n)
+     */
+    private static List<Instruction> variableLoop(int n, int i, int a)
+    {
+        RegId r1 = RegId.R1, r2 = RegId.R2;
+        return Arrays.asList(
+            instr(Opcodes.MOV, reg(r1), imm(0)),
+            instr(Opcodes.MOV, var(i), reg(r1)),
+            instr(Opcodes.MOV, reg(r1), var(i)),
+            instr(Opcodes.ADD_I4, reg(r1), imm(1)),
+            instr(Opcodes.MOV, var(i), reg(r1)),
+            instr(Opcodes.MOV, reg(r2), var(a)),
+            instr(Opcodes.MULT_I4, reg(r2), imm(3)),
+            instr(Opcodes.SUB_I4, reg(r2), var(i)),
+            instr(Opcodes.MOV, var(a), reg(r2)),
+            instr(Opcodes.CMP_I4, reg(r1), imm(n)),
+            instr(Opcodes.JL, imm(-8))
+        );
+    }
+
+    private static Instruction instr(Opcodes opcode, Operand... operands)
+    {
+        return new Instruction(opcode, new ArrayList<>(Arrays.asList(operands)));
+    }
+
+    private static Operand reg(RegId reg)
+    {
+        return new Operand(reg);
+    }
+
+    private static Operand imm(int value)
+    {
+        return new Operand(value);
+    }
+
+    private static Operand var(int offset)
+    {
+        return new Operand(DataType.Int4, offset);
+    }
+
+    private static class NullOutputChannel
+        extends OutputChannel<Void>
+    {
+        NullOutputChannel()
+        {
+            super(-1, null);
+        }
+
+        @Override
+        public void sendClear()
+        {
+        }
+
+        @Override
+        public void send(Type otype, Object output)
+        {
+        }
+    }
+}
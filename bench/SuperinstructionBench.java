@@ -0,0 +1,139 @@
+import Runtime.IO.OutputChannel;
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import Runtime.JIT.SuperinstructionFusion;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import Runtime.Machine.StaticMemory;
+import Runtime.Machine.VirtualCPU;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares interpreter throughput on a loop shaped like generated formula
+ * code (loads, arithmetic and stores to variables) with and without
+ * superinstruction fusion.
+ *
+ * Build the project first, then run from the project root:
+ *   javac -cp build/classes -d build/bench bench/SuperinstructionBench.java
+ *   java -cp build/classes:build/bench SuperinstructionBench [iterations]
+ * @author Joshua Boley
+ */
+public class SuperinstructionBench
+{
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    public static void main(String[] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        StaticMemory.initialize();
+        int i = StaticMemory.allocate(DataType.Int4),
+            a = StaticMemory.allocate(DataType.Int4),
+            b = StaticMemory.allocate(DataType.Int4),
+            c = StaticMemory.allocate(DataType.Int4);
+
+        List<Instruction> plain = loop(iterations, i, a, b, c);
+        SuperinstructionFusion fusion = new SuperinstructionFusion();
+        List<Instruction> fused = fusion.run(plain);
+        System.out.println(
+            "Program: " + plain.size() + " instructions unfused, " +
+            fused.size() + " fused (" + fusion.getFusedCount() + " pairs)"
+        );
+
+        VirtualCPU cpu = new VirtualCPU();
+        cpu.initializeIO(new NullOutputChannel());
+        for (int round = 0; round < WARMUP_ROUNDS; ++round) {
+            time(cpu, plain);
+            time(cpu, fused);
+        }
+        long plainNanos = 0, fusedNanos = 0;
+        for (int round = 0; round < MEASURED_ROUNDS; ++round) {
+            plainNanos += time(cpu, plain);
+            fusedNanos += time(cpu, fused);
+        }
+        System.out.printf("Unfused: %.1f ms/run%n", plainNanos / 1e6 / MEASURED_ROUNDS);
+        System.out.printf("Fused:   %.1f ms/run%n", fusedNanos / 1e6 / MEASURED_ROUNDS);
+        System.out.printf("Speedup: %.2fx%n", (double) plainNanos / fusedNanos);
+    }
+
+    private static long time(VirtualCPU cpu, List<Instruction> program)
+    {
+        cpu.load(program);
+        long start = System.nanoTime();
+        cpu.execute();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Builds i <- 0; do { i <- i + 1; b <- a * 3; a <- b - i; c <- 7 } while (i < n)
+     * the way the code generator lowers it
+     */
+    private static List<Instruction> loop(int n, int i, int a, int b, int c)
+    {
+        RegId r1 = RegId.R1, r2 = RegId.R2, r3 = RegId.R3, r5 = RegId.R5;
+        return Arrays.asList(
+            instr(Opcodes.MOV, reg(r1), imm(0)),
+            instr(Opcodes.MOV, var(i), reg(r1)),
+            instr(Opcodes.MOV, reg(r1), var(i)),
+            instr(Opcodes.MOV, reg(r2), imm(1)),
+            instr(Opcodes.ADD_I4, reg(r1), reg(r2)),
+            instr(Opcodes.MOV, var(i), reg(r1)),
+            instr(Opcodes.MOV, reg(r2), var(a)),
+            instr(Opcodes.MOV, reg(r3), imm(3)),
+            instr(Opcodes.MULT_I4, reg(r2), reg(r3)),
+            instr(Opcodes.MOV, var(b), reg(r2)),
+            instr(Opcodes.MOV, reg(r3), var(b)),
+            instr(Opcodes.MOV, reg(r5), var(i)),
+            instr(Opcodes.SUB_I4, reg(r3), reg(r5)),
+            instr(Opcodes.MOV, var(a), reg(r3)),
+            instr(Opcodes.MOV, reg(r5), imm(7)),
+            instr(Opcodes.MOV, var(c), reg(r5)),
+            instr(Opcodes.MOV, reg(r1), var(i)),
+            instr(Opcodes.MOV, reg(r2), imm(n)),
+            instr(Opcodes.CMP_I4, reg(r1), reg(r2)),
+            instr(Opcodes.JL, imm(-17))
+        );
+    }
+
+    private static Instruction instr(Opcodes opcode, Operand... operands)
+    {
+        return new Instruction(opcode, new ArrayList<>(Arrays.asList(operands)));
+    }
+
+    private static Operand reg(RegId reg)
+    {
+        return new Operand(reg);
+    }
+
+    private static Operand imm(int value)
+    {
+        return new Operand(value);
+    }
+
+    private static Operand var(int offset)
+    {
+        return new Operand(DataType.Int4, offset);
+    }
+
+    private static class NullOutputChannel
+        extends OutputChannel<Void>
+    {
+        NullOutputChannel()
+        {
+            super(-1, null);
+        }
+
+        @Override
+        public void sendClear()
+        {
+        }
+
+        @Override
+        public void send(Type otype, Object output)
+        {
+        }
+    }
+}
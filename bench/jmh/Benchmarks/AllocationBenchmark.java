@@ -0,0 +1,142 @@
+package Benchmarks;
+
+import Runtime.IO.OutputChannel;
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import Runtime.Machine.Interface.Bytecode;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import Runtime.Machine.StaticMemory;
+import Runtime.Machine.VirtualCPU;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH counterpart of bench/AllocationBench: interprets an integer loop that
+ * also saves a register on the stack, with generic or Int4-specialized
+ * opcodes. One operation is one interpreted instruction, so with the GC
+ * profiler gc.alloc.rate.norm reads as bytes allocated per instruction and
+ * should be about zero.
+ *
+ * Needs the JMH jars (jmh-core, jmh-generator-annprocess and their
+ * dependencies) in lib/jmh. Build the project first, then from the project root:
+ *   javac -cp "build/classes:lib/jmh/*" -d build/jmh bench/jmh/Benchmarks/*.java
+ *   java -cp "build/classes:build/jmh:lib/jmh/*" org.openjdk.jmh.Main AllocationBenchmark -prof gc
+ * @author Joshua Boley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class AllocationBenchmark
+{
+    private static final int ITERATIONS = 10000;
+    private static final int LOOP_BODY = 13;
+
+    @Param({ "false", "true" })
+    public boolean typed;
+
+    private VirtualCPU m_cpu;
+    private Bytecode m_program;
+
+    @Setup
+    public void setup()
+    {
+        StaticMemory.initialize();
+        int i = StaticMemory.allocate(DataType.Int4),
+            a = StaticMemory.allocate(DataType.Int4);
+        m_cpu = new VirtualCPU();
+        m_cpu.initializeIO(new NullOutputChannel());
+        m_program = Bytecode.encode(loop(ITERATIONS, i, a, typed));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITERATIONS * LOOP_BODY)
+    public void interpret()
+    {
+        m_cpu.load(m_program);
+        m_cpu.execute();
+    }
+
+    /**
+     * Builds i <- 0; do { i <- i + 1; a <- (a * 3 - i) / 2; a <- a ^ 2 } while (i < n),
+     * keeping i on the stack while a is computed
+     */
+    private static List<Instruction> loop(int n, int i, int a, boolean typed)
+    {
+        RegId r1 = RegId.R1, r2 = RegId.R2;
+        return Arrays.asList(
+            instr(Opcodes.MOV, reg(r1), imm(0)),
+            instr(Opcodes.MOV, var(i), reg(r1)),
+            instr(Opcodes.MOV, reg(r1), var(i)),
+            instr(typed ? Opcodes.ADD_I4 : Opcodes.ADD, reg(r1), imm(1)),
+            instr(Opcodes.MOV, var(i), reg(r1)),
+            instr(Opcodes.PUSH, reg(r1)),
+            instr(Opcodes.MOV, reg(r2), var(a)),
+            instr(typed ? Opcodes.MULT_I4 : Opcodes.MULT, reg(r2), imm(3)),
+            instr(typed ? Opcodes.SUB_I4 : Opcodes.SUB, reg(r2), reg(r1)),
+            instr(typed ? Opcodes.DIV_I4 : Opcodes.DIV, reg(r2), imm(2)),
+            instr(typed ? Opcodes.EXP_I4 : Opcodes.EXP, reg(r2), imm(2)),
+            instr(Opcodes.MOV, var(a), reg(r2)),
+            instr(Opcodes.POP, reg(r1)),
+            instr(typed ? Opcodes.CMP_I4 : Opcodes.CMP, reg(r1), imm(n)),
+            instr(Opcodes.JL, imm(-12))
+        );
+    }
+
+    private static Instruction instr(Opcodes opcode, Operand... operands)
+    {
+        return new Instruction(opcode, new ArrayList<>(Arrays.asList(operands)));
+    }
+
+    private static Operand reg(RegId reg)
+    {
+        return new Operand(reg);
+    }
+
+    private static Operand imm(int value)
+    {
+        return new Operand(value);
+    }
+
+    private static Operand var(int offset)
+    {
+        return new Operand(DataType.Int4, offset);
+    }
+
+    private static class NullOutputChannel
+        extends OutputChannel<Void>
+    {
+        NullOutputChannel()
+        {
+            super(-1, null);
+        }
+
+        @Override
+        public void sendClear()
+        {
+        }
+
+        @Override
+        public void send(Type otype, Object output)
+        {
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package Benchmarks;
+
+import Runtime.IO.OutputChannel;
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import Runtime.Machine.Interface.Bytecode;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import Runtime.Machine.StaticMemory;
+import Runtime.Machine.VirtualCPU;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH counterpart of bench/InterpreterBench. One operation is one
+ * interpreted instruction and scores are in operations per microsecond,
+ * so they read directly as MIPS. To compare dispatch strategies, run it
+ * against build/classes built from each revision.
+ *
+ * Needs the JMH jars (jmh-core, jmh-generator-annprocess and their
+ * dependencies) in lib/jmh. Build the project first, then from the project root:
+ *   javac -cp "build/classes:lib/jmh/*" -d build/jmh bench/jmh/Benchmarks/*.java
+ *   java -cp "build/classes:build/jmh:lib/jmh/*" org.openjdk.jmh.Main InterpreterBenchmark
+ * @author Joshua Boley
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class InterpreterBenchmark
+{
+    private static final int ITERATIONS = 100000;
+    private static final int REGISTER_LOOP_BODY = 7;
+    private static final int VARIABLE_LOOP_BODY = 9;
+
+    private VirtualCPU m_cpu;
+    private Bytecode m_registerLoop;
+    private Bytecode m_variableLoop;
+
+    @Setup
+    public void setup()
+    {
+        StaticMemory.initialize();
+        int i = StaticMemory.allocate(DataType.Int4),
+            a = StaticMemory.allocate(DataType.Int4);
+        m_cpu = new VirtualCPU();
+        m_cpu.initializeIO(new NullOutputChannel());
+        m_registerLoop = Bytecode.encode(registerLoop(ITERATIONS));
+        m_variableLoop = Bytecode.encode(variableLoop(ITERATIONS, i, a));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITERATIONS * REGISTER_LOOP_BODY)
+    public void registers()
+    {
+        m_cpu.load(m_registerLoop);
+        m_cpu.execute();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITERATIONS * VARIABLE_LOOP_BODY)
+    public void variables()
+    {
+        m_cpu.load(m_variableLoop);
+        m_cpu.execute();
+    }
+
+    /**
+     * Builds r1 <- 0; r2 <- 1; do { r1 <- r1 + 1; r2 <- r2 * 3 - r1; r3 <- (r3 + r2) & 255 } while (r1 < n)
+     */
+    private static List<Instruction> registerLoop(int n)
+    {
+        RegId r1 = RegId.R1, r2 = RegId.R2, r3 = RegId.R3;
+        return Arrays.asList(
+            instr(Opcodes.MOV, reg(r1), imm(0)),
+            instr(Opcodes.MOV, reg(r2), imm(1)),
+            instr(Opcodes.ADD_I4, reg(r1), imm(1)),
+            instr(Opcodes.MULT_I4, reg(r2), imm(3)),
+            instr(Opcodes.SUB_I4, reg(r2), reg(r1)),
+            instr(Opcodes.MOV, reg(r3), reg(r2)),
+            instr(Opcodes.AND, reg(r3), imm(255)),
+            instr(Opcodes.CMP_I4, reg(r1), imm(n)),
+            instr(Opcodes.JL, imm(-6))
+        );
+    }
+
+    /**
+     * Builds i <- 0; do { i <- i + 1; a <- a * 3 - i } while (i < n)
+     */
+    private static List<Instruction> variableLoop(int n, int i, int a)
+    {
+        RegId r1 = RegId.R1, r2 = RegId.R2;
+        return Arrays.asList(
+            instr(Opcodes.MOV, reg(r1), imm(0)),
+            instr(Opcodes.MOV, var(i), reg(r1)),
+            instr(Opcodes.MOV, reg(r1), var(i)),
+            instr(Opcodes.ADD_I4, reg(r1), imm(1)),
+            instr(Opcodes.MOV, var(i), reg(r1)),
+            instr(Opcodes.MOV, reg(r2), var(a)),
+            instr(Opcodes.MULT_I4, reg(r2), imm(3)),
+            instr(Opcodes.SUB_I4, reg(r2), var(i)),
+            instr(Opcodes.MOV, var(a), reg(r2)),
+            instr(Opcodes.CMP_I4, reg(r1), imm(n)),
+            instr(Opcodes.JL, imm(-8))
+        );
+    }
+
+    private static Instruction instr(Opcodes opcode, Operand... operands)
+    {
+        return new Instruction(opcode, new ArrayList<>(Arrays.asList(operands)));
+    }
+
+    private static Operand reg(RegId reg)
+    {
+        return new Operand(reg);
+    }
+
+    private static Operand imm(int value)
+    {
+        return new Operand(value);
+    }
+
+    private static Operand var(int offset)
+    {
+        return new Operand(DataType.Int4, offset);
+    }
+
+    private static class NullOutputChannel
+        extends OutputChannel<Void>
+    {
+        NullOutputChannel()
+        {
+            super(-1, null);
+        }
+
+        @Override
+        public void sendClear()
+        {
+        }
+
+        @Override
+        public void send(Type otype, Object output)
+        {
+        }
+    }
+}
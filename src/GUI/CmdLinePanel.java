@@ -8,12 +8,16 @@ package GUI;
 import Runtime.IO.InputChannel;
 import Runtime.VirtualMachine;
 import java.awt.Color;
+import java.awt.Cursor;
 import java.awt.Font;
 import java.awt.Label;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
 import javax.swing.BorderFactory;
 import javax.swing.GroupLayout;
 import javax.swing.GroupLayout.Alignment;
@@ -21,6 +25,7 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
 /**
  * Command line interface panel
@@ -38,6 +43,7 @@ public class CmdLinePanel
     
     private final VirtualMachine m_jit;
     private final InputChannel m_cmdlineIn;
+    private final Deque<CompletableFuture<?>> m_pending;    // Commands and directives not finished, oldest first
 
     static {
         STD_FONT_CLR = new Color(245, 245, 245);
@@ -52,6 +58,7 @@ public class CmdLinePanel
         this.m_jit = core;
         m_cmdlineIn = m_jit.initLocalInputChannel(tfConsoleIn);
         m_jit.initLocalOutputChannel(txtConsoleOut);
+        m_pending = new ArrayDeque<>();
     }
     
     private void initComponents()
@@ -127,11 +134,55 @@ public class CmdLinePanel
         if (e.getKeyCode() == KeyEvent.VK_ENTER) {
             String cmd = tfConsoleIn.getText();
             txtConsoleOut.append("> " + cmd + "\n");
-            m_cmdlineIn.inputReady();
-            m_jit.run();
-            txtConsoleOut.setForeground(STD_FONT_CLR);
+            CompletableFuture<?> request;
+            if (cmd.startsWith(":"))
+                request = m_jit.submitDirective(m_cmdlineIn, cmd.substring(1));
+            else
+                request = m_jit.submit(m_cmdlineIn);
+            m_pending.add(request);
+            setBusy(true);
+            // A cancelled request may still be stopping, so wait for the VM
+            // to report its end rather than for its future
+            m_jit.whenEnded(request).thenRun(
+                () -> SwingUtilities.invokeLater(() -> commandFinished(request))
+            );
             tfConsoleIn.setText("");
         }
+        else if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
+            // Cancel this panel's oldest request; other clients' runs are
+            // not affected
+            for (CompletableFuture<?> request : m_pending) {
+                if (!request.isDone()) {
+                    request.cancel(true);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Displays a directive's output, if it ran, and leaves the busy state
+     * once no request is left
+     * @param request Ended request
+     */
+    private void commandFinished(CompletableFuture<?> request)
+    {
+        Object result = request.isCompletedExceptionally() ? null : request.join();
+        if (result != null)
+            txtConsoleOut.append(result + "\n");
+        txtConsoleOut.setForeground(STD_FONT_CLR);
+        m_pending.remove(request);
+        setBusy(!m_pending.isEmpty());
+    }
+
+    /**
+     * Shows whether commands are running; further commands are queued behind
+     * them, and Escape cancels the oldest
+     */
+    private void setBusy(boolean busy)
+    {
+        lblPrompt.setText(busy ? "*" : ">");
+        setCursor(Cursor.getPredefinedCursor(busy ? Cursor.WAIT_CURSOR : Cursor.DEFAULT_CURSOR));
     }
 
     @Override
@@ -14,6 +14,7 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.GroupLayout;
@@ -28,6 +29,7 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextPane;
 import javax.swing.JToolBar;
 import javax.swing.LayoutStyle.ComponentPlacement;
+import javax.swing.SwingUtilities;
 
 /**
  *
@@ -39,6 +41,7 @@ public class TextEditorForm extends javax.swing.JInternalFrame {
     private final InputChannel m_editorIn;
     private String m_filePath;
     private boolean m_changed;
+    private CompletableFuture<Void> m_run;  // Script run in progress, null if none
     
     /**
      * Creates new form TextEditorForm
@@ -50,6 +53,7 @@ public class TextEditorForm extends javax.swing.JInternalFrame {
         
         m_filePath = null;
         m_changed = false;
+        m_run = null;
         
         // Initialize JIT environment
         m_jit = jitEnv;
@@ -320,8 +324,23 @@ public class TextEditorForm extends javax.swing.JInternalFrame {
     
     private void runBttnActionPerformed(ActionEvent evt)
     {
-        m_editorIn.inputReady();
-        m_jit.run();
+        // The script runs on the VM thread; until it has ended, the button
+        // stops it. A stopped script may run up to its next checkpoint, so
+        // the button stays disabled until the VM reports the end.
+        if (m_run != null) {
+            m_run.cancel(true);
+            bttnRun.setEnabled(false);
+            return;
+        }
+        m_run = m_jit.submit(m_editorIn);
+        bttnRun.setText("Stop");
+        m_jit.whenEnded(m_run).thenRun(
+            () -> SwingUtilities.invokeLater(() -> {
+                m_run = null;
+                bttnRun.setText("Run");
+                bttnRun.setEnabled(true);
+            })
+        );
     }
     
     private boolean queryAndSaveIf(ActionEvent evt)
@@ -1,6 +1,7 @@
 package Lexical;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PushbackInputStream;
 import java.util.List;
 import Runtime.IO.InputChannel;
@@ -32,10 +33,20 @@ public class Analyzer
     }
     
     public void init(InputChannel<?> inChannel) throws IOException
+    {
+        init(inChannel.getInputStream());
+    }
+    
+    /**
+     * Initializes the lexical analyzer on source already read from a channel
+     * @param in Source input stream
+     * @throws IOException 
+     */
+    public void init(InputStream in) throws IOException
     {
         if (m_ifs != null)
             m_ifs.close();
-        m_ifs = new PushbackInputStream(inChannel.getInputStream());
+        m_ifs = new PushbackInputStream(in);
         startLineNo = 0;
         startColNo = 0;
         currLineNo = 0;
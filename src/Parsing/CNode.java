@@ -2,6 +2,7 @@ package Parsing;
 
 import Runtime.JIT.API.InstructionBuilder;
 import Runtime.JIT.API.DataType;
+import Lexical.TSCode;
 import Lexical.Token;
 import java.util.ArrayList;
 import java.util.List;
@@ -185,6 +186,22 @@ public class CNode
     public String   getCapture()    { return m_capture; }
     public int      getId()         { return m_id; }
 
+    /**
+     * Generates the node's code within a source scope at its token, so the
+     * code can be traced back to this subtree. Tokens made up by the parser
+     * have no position and open no scope.
+     * @param builder Instruction builder
+     * @return Active code segment ID
+     */
     public int execInstrGen (InstructionBuilder builder)
-            { return m_injected.apply(this, builder); }
+    {
+        if (m_token.getId() == TSCode.NONE)
+            return m_injected.apply(this, builder);
+        builder.enterScope(m_token.getValue(), m_token.getLineNo(), m_token.getColNo());
+        try {
+            return m_injected.apply(this, builder);
+        } finally {
+            builder.exitScope();
+        }
+    }
 }
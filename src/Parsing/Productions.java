@@ -197,9 +197,15 @@ abstract public class Productions
      */
     public static CNode statementBlock(BufferedTokenStream tokenStream, ParseObserver observer)
     {
+        // First token of each statement, gives the line of its scope
+        List<Token> statementStarts = new ArrayList<>();
         BiFunction<CNode, InstructionBuilder, Integer> injected = (CNode thisNode, InstructionBuilder builder) -> {
-            for (int i = 0; i < CNode.numChildren (thisNode); ++i)
+            for (int i = 0; i < CNode.numChildren (thisNode); ++i) {
+                int line = statementStarts.get(i).getLineNo();
+                builder.enterScope("line " + (line + 1), line, -1);
                 CNode.getChild (thisNode, i).execInstrGen (builder);
+                builder.exitScope();
+            }
             return builder.getActiveCodeSegmentId ();
         };
         Token blockToken = new Token(TSCode.NONE);
@@ -236,6 +242,7 @@ abstract public class Productions
                 break;
             statementNode.setParent(statementBlockRoot);
             CNode.addChild(statementBlockRoot, statementNode);
+            statementStarts.add(nextToken);
         }
 
         return statementBlockRoot;
@@ -5,9 +5,12 @@ import java.awt.Color;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 
 /**
- * Output channel encapsulating the GUI application's built-in console.
+ * Output channel encapsulating the GUI application's built-in console. Output
+ * is sent from the virtual machine's thread and posted to the event dispatch
+ * thread, in order.
  * @author Joshua Boley
  */
 public class ConsoleOutputChannel
@@ -24,7 +27,7 @@ public class ConsoleOutputChannel
     @Override
     public void sendClear()
     {
-        m_output.setText("");
+        SwingUtilities.invokeLater(() -> m_output.setText(""));
     }
     
     /**
@@ -35,22 +38,27 @@ public class ConsoleOutputChannel
     @Override
     public void send(Type otype, Object output)
     {
+        Color color;
         switch (otype) {
             case StdOut:
-                m_output.setForeground(new Color(245, 245, 245));
+                color = new Color(245, 245, 245);
                 break;
             case StdErr:
-                m_output.setForeground(Color.RED);
+                color = Color.RED;
                 break;
             default:
                 Logger.getLogger(ConsoleOutputChannel.class.getName()).log(Level.SEVERE, null, "Unsupported output type " + otype.name());
                 throw new RuntimeException("");
         }
-        m_output.append((String) output);
+        String text = (String) output;
+        SwingUtilities.invokeLater(() -> {
+            m_output.setForeground(color);
+            m_output.append(text);
+        });
     }
     
     public void resetFontColor()
     {
-        m_output.setForeground(CmdLinePanel.STD_FONT_CLR);
+        SwingUtilities.invokeLater(() -> m_output.setForeground(CmdLinePanel.STD_FONT_CLR));
     }
 }
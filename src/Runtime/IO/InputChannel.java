@@ -1,5 +1,7 @@
 package Runtime.IO;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
@@ -49,4 +51,32 @@ public abstract class InputChannel<_InputT>
      * @return
      */
     public abstract InputStream getInputStream();
+
+    /**
+     * Reads the channel's input in full
+     * @return Input bytes
+     * @throws IOException 
+     */
+    public byte[] readAll() throws IOException
+    {
+        return readAll(getInputStream());
+    }
+
+    /**
+     * Reads an input stream returned by getInputStream in full. Streams of
+     * text components hold the text as it was when the stream was created,
+     * so they may be read on another thread while the component changes.
+     * @param in Input stream
+     * @return Input bytes
+     * @throws IOException 
+     */
+    public static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream source = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int len;
+        while ((len = in.read(buf)) != -1)
+            source.write(buf, 0, len);
+        return source.toByteArray();
+    }
 }
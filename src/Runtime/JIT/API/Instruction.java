@@ -12,11 +12,15 @@ public class Instruction
     
     private final Opcodes m_opcode;
     private final List<Operand> m_operands;
+    private int m_line;                         // Source position, -1 if unknown
+    private int m_col;
     
     public Instruction(Opcodes opcode, List<Operand> operands)
     {
         m_opcode = opcode;
         m_operands = operands;
+        m_line = -1;
+        m_col = -1;
     }
     
     public Opcodes getCode()
@@ -28,4 +32,34 @@ public class Instruction
     {
         return m_operands;
     }
+
+    /**
+     * Returns the target of a jump relative to the jump
+     * @return Offset in instructions
+     */
+    public int getJumpOffset()
+    {
+        return (int) m_operands.get(0).getEnclosed();
+    }
+
+    public int getLine()
+    {
+        return m_line;
+    }
+
+    public int getColumn()
+    {
+        return m_col;
+    }
+
+    /**
+     * Sets the source position the instruction was compiled from
+     * @param line Line number, -1 if unknown
+     * @param col  Column number, -1 if unknown
+     */
+    public void setSourcePosition(int line, int col)
+    {
+        m_line = line;
+        m_col = col;
+    }
 }
@@ -6,8 +6,13 @@ import Runtime.JIT.API.Operand;
 import Runtime.JIT.SymbolTable;
 import Runtime.Machine.Interface.Opcodes;
 import Runtime.Machine.Interface.RegId;
+import Runtime.Machine.Interface.ScopeTable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -17,12 +22,26 @@ public class InstructionBuilder
 {
 	private final List<List<Instruction>> m_codeSegments;
 	private int m_activeSegment;    // Active instruction segment
+	private int m_line;             // Source position of subsequent instructions
+	private int m_col;
+	private int m_scope;            // Innermost open source scope, -1 if none
+	private final Deque<int[]> m_outerScopes;       // Position and scope to restore on exit
+	private final List<int[]> m_scopes;             // Line, column and parent of each scope
+	private final List<String> m_scopeLabels;
+	private final Map<Long, Integer> m_scopeIndex;  // Scopes by position
 
 	public InstructionBuilder()
         {
             m_codeSegments = new ArrayList<>();
             m_codeSegments.add(new ArrayList<>());
             m_activeSegment = 0;
+            m_line = -1;
+            m_col = -1;
+            m_scope = -1;
+            m_outerScopes = new ArrayDeque<>();
+            m_scopes = new ArrayList<>();
+            m_scopeLabels = new ArrayList<>();
+            m_scopeIndex = new HashMap<>();
         }
 
         /**
@@ -45,12 +64,13 @@ public class InstructionBuilder
         }
         
         /**
-         * 
-         * @param idx 
+         * Sets the active instruction segment. Subsequent instructions are
+         * appended to this segment.
+         * @param idx Code segment ID
          */
 	public void setActiveCodeSegment(int idx)
         {
-            if (idx > 0)
+            if (idx >= 0 && idx < m_codeSegments.size())
                 m_activeSegment = idx;
             else
                 throw new IllegalArgumentException("");
@@ -65,6 +85,78 @@ public class InstructionBuilder
             return m_codeSegments.size() - 1;
         }
 
+        /**
+         * Sets the source position recorded with subsequent instructions,
+         * which ends up in the program's line table
+         * @param line Line number, -1 if unknown
+         * @param col  Column number, -1 if unknown
+         */
+        public void setSourcePosition(int line, int col)
+        {
+            m_line = line;
+            m_col = col;
+        }
+
+        public int getSourceLine()
+        {
+            return m_line;
+        }
+
+        public int getSourceColumn()
+        {
+            return m_col;
+        }
+
+        /**
+         * Opens a source scope, a statement or expression subtree nested in
+         * the current scope, and moves the source position to it. A scope
+         * entered again at the same position is the same scope.
+         * @param label Display name
+         * @param line  Line number
+         * @param col   Column number
+         */
+        public void enterScope(String label, int line, int col)
+        {
+            m_outerScopes.push(new int[] { m_line, m_col, m_scope });
+            Long key = ((long) line << 32) | (col & 0xFFFFFFFFL);
+            Integer scope = m_scopeIndex.get(key);
+            if (scope == null) {
+                scope = m_scopes.size();
+                m_scopes.add(new int[] { line, col, m_scope });
+                m_scopeLabels.add(label);
+                m_scopeIndex.put(key, scope);
+            }
+            m_scope = scope;
+            setSourcePosition(line, col);
+        }
+
+        /**
+         * Closes the current source scope, restoring the source position it
+         * was entered at
+         */
+        public void exitScope()
+        {
+            int[] outer = m_outerScopes.pop();
+            setSourcePosition(outer[0], outer[1]);
+            m_scope = outer[2];
+        }
+
+        /**
+         * Returns the source scopes entered so far
+         * @return Scope table
+         */
+        public ScopeTable getScopes()
+        {
+            int count = m_scopes.size();
+            int[] lines = new int[count], cols = new int[count], parents = new int[count];
+            for (int i = 0; i < count; ++i) {
+                lines[i] = m_scopes.get(i)[0];
+                cols[i] = m_scopes.get(i)[1];
+                parents[i] = m_scopes.get(i)[2];
+            }
+            return new ScopeTable(lines, cols, parents, m_scopeLabels.toArray(new String[count]));
+        }
+
 	public void createSymbol(String name, DataType datatype)
         {
             SymbolTable.registerVariable(name, datatype);
@@ -92,9 +184,7 @@ public class InstructionBuilder
             operands.add(dst);
             operands.add(src);
             Instruction instr = new Instruction(Opcodes.MOV, operands);
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(instr);
+            emit(instr);
             return this;
         }
         
@@ -104,35 +194,57 @@ public class InstructionBuilder
             operands.add(new Operand(op1));
             operands.add(new Operand(op2));
             Instruction instr = new Instruction(Opcodes.ADD, operands);
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(instr);
+            emit(instr);
             return this;
         }
 
+        /**
+         * ADD with a register, integer immediate or integer variable source
+         * operand
+         * @param dst Destination register
+         * @param src Source operand
+         * @return
+         */
+	public InstructionBuilder ADD(RegId dst, Operand src)
+        {
+            return binary(Opcodes.ADD, dst, src);
+        }
+
 	public InstructionBuilder SUB(RegId op1, RegId op2)
         {
             List<Operand> operands = new ArrayList<>();
             operands.add(new Operand(op1));
             operands.add(new Operand(op2));
             Instruction instr = new Instruction(Opcodes.SUB, operands);
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(instr);
+            emit(instr);
             return this;
         }
 
+        /**
+         * SUB with an immediate or variable source operand, see ADD
+         */
+	public InstructionBuilder SUB(RegId dst, Operand src)
+        {
+            return binary(Opcodes.SUB, dst, src);
+        }
+
 	public InstructionBuilder MUL(RegId op1, RegId op2)
         {
             List<Operand> operands = new ArrayList<>();
             operands.add(new Operand(op1));
             operands.add(new Operand(op2));
             Instruction instr = new Instruction(Opcodes.MULT, operands);
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(instr);
+            emit(instr);
             return this;
         }
+
+        /**
+         * MULT with an immediate or variable source operand, see ADD
+         */
+	public InstructionBuilder MUL(RegId dst, Operand src)
+        {
+            return binary(Opcodes.MULT, dst, src);
+        }
         
 	public InstructionBuilder DIV(RegId op1, RegId op2)
         {
@@ -140,32 +252,40 @@ public class InstructionBuilder
             operands.add(new Operand(op1));
             operands.add(new Operand(op2));
             Instruction instr = new Instruction(Opcodes.DIV, operands);
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(instr);
+            emit(instr);
             return this;
         }
+
+        /**
+         * DIV with an immediate or variable source operand, see ADD
+         */
+	public InstructionBuilder DIV(RegId dst, Operand src)
+        {
+            return binary(Opcodes.DIV, dst, src);
+        }
         
         public InstructionBuilder EXP(RegId dst, RegId src)
         {
             List<Operand> operands = new ArrayList<>();
             operands.add(new Operand(dst));
             operands.add(new Operand(src));
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(new Instruction(Opcodes.EXP, operands)
-                );
+            emit(new Instruction(Opcodes.EXP, operands));
             return this;
         }
 
+        /**
+         * EXP with an immediate or variable source operand, see ADD
+         */
+	public InstructionBuilder EXP(RegId dst, Operand src)
+        {
+            return binary(Opcodes.EXP, dst, src);
+        }
+
 	public InstructionBuilder NEG(RegId dst)
         {
             List<Operand> operands = new ArrayList<>();
             operands.add(new Operand(dst));
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(new Instruction(Opcodes.NEG, operands)
-                );
+            emit(new Instruction(Opcodes.NEG, operands));
             return this;
         }
 
@@ -174,9 +294,7 @@ public class InstructionBuilder
             List<Operand> operands = new ArrayList<>();
             operands.add(new Operand(src));
             Instruction instr = new Instruction(Opcodes.PUSH, operands);
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(instr);
+            emit(instr);
             return this;
         }
         
@@ -185,9 +303,141 @@ public class InstructionBuilder
             List<Operand> operands = new ArrayList<>();
             operands.add(new Operand(dst));
             Instruction instr = new Instruction(Opcodes.POP, operands);
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(instr);
+            emit(instr);
+            return this;
+        }
+
+	public InstructionBuilder CMP(RegId op1, RegId op2)
+        {
+            List<Operand> operands = new ArrayList<>();
+            operands.add(new Operand(op1));
+            operands.add(new Operand(op2));
+            Instruction instr = new Instruction(Opcodes.CMP, operands);
+            emit(instr);
+            return this;
+        }
+
+        /**
+         * CMP with an immediate or variable source operand, see ADD
+         */
+	public InstructionBuilder CMP(RegId dst, Operand src)
+        {
+            return binary(Opcodes.CMP, dst, src);
+        }
+
+        /**
+         * Integer addition; the destination and any source register must be
+         * known to hold Int4 values, the VCPU does not check their types
+         * @param dst Destination register
+         * @param src Source operand, as for ADD
+         * @return
+         */
+	public InstructionBuilder ADD_I4(RegId dst, Operand src)
+        {
+            return binary(Opcodes.ADD_I4, dst, src);
+        }
+
+        /**
+         * Integer subtraction, see ADD_I4
+         */
+	public InstructionBuilder SUB_I4(RegId dst, Operand src)
+        {
+            return binary(Opcodes.SUB_I4, dst, src);
+        }
+
+        /**
+         * Integer multiplication, see ADD_I4
+         */
+	public InstructionBuilder MUL_I4(RegId dst, Operand src)
+        {
+            return binary(Opcodes.MULT_I4, dst, src);
+        }
+
+        /**
+         * Integer division, see ADD_I4
+         */
+	public InstructionBuilder DIV_I4(RegId dst, Operand src)
+        {
+            return binary(Opcodes.DIV_I4, dst, src);
+        }
+
+        /**
+         * Integer exponentiation, see ADD_I4
+         */
+	public InstructionBuilder EXP_I4(RegId dst, Operand src)
+        {
+            return binary(Opcodes.EXP_I4, dst, src);
+        }
+
+        /**
+         * Integer comparison, see ADD_I4
+         */
+	public InstructionBuilder CMP_I4(RegId dst, Operand src)
+        {
+            return binary(Opcodes.CMP_I4, dst, src);
+        }
+
+        /**
+         * Integer negation, see ADD_I4
+         */
+	public InstructionBuilder NEG_I4(RegId dst)
+        {
+            List<Operand> operands = new ArrayList<>();
+            operands.add(new Operand(dst));
+            emit(new Instruction(Opcodes.NEG_I4, operands));
+            return this;
+        }
+
+        private InstructionBuilder binary(Opcodes opcode, RegId dst, Operand src)
+        {
+            boolean isSource = src.isReference()
+                ? src.getType() == DataType.Int4
+                : src.getType() == DataType.Register || src.getType() == DataType.Imm_Int4;
+            if (!isSource)
+                throw new IllegalArgumentException(opcode + ": Unsupported source operand type " + src.getType());
+            List<Operand> operands = new ArrayList<>();
+            operands.add(new Operand(dst));
+            operands.add(src);
+            emit(new Instruction(opcode, operands));
+            return this;
+        }
+
+        /**
+         * Unconditional jump. The offset is relative to the address of the
+         * jump instruction itself.
+         * @param offset Relative jump offset
+         * @return
+         */
+	public InstructionBuilder JMP(int offset)
+        {
+            return JCC(Opcodes.JMP, offset);
+        }
+
+        /**
+         * Conditional jump (JL, JLE, JG, JGE, JE or JNE). The offset is relative
+         * to the address of the jump instruction itself.
+         * @param condition Jump opcode
+         * @param offset    Relative jump offset
+         * @return
+         */
+	public InstructionBuilder JCC(Opcodes condition, int offset)
+        {
+            switch (condition) {
+                case JMP:
+                case JL:
+                case JLE:
+                case JG:
+                case JGE:
+                case JE:
+                case JNE:
+                    break;
+                default:
+                    throw new IllegalArgumentException("JCC: " + condition + " is not a jump opcode");
+            }
+            List<Operand> operands = new ArrayList<>();
+            operands.add(new Operand(offset));
+            Instruction instr = new Instruction(condition, operands);
+            emit(instr);
             return this;
         }
 
@@ -198,17 +448,13 @@ public class InstructionBuilder
             List<Operand> operands = new ArrayList<>();
             operands.add(src);
             Instruction instr = new Instruction(Opcodes.PRNT, operands);
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(instr);
+            emit(instr);
             return this;
         }
         
         public InstructionBuilder CLEAR()
         {
-            m_codeSegments
-                .get(m_activeSegment)
-                .add(new Instruction(Opcodes.CLR, null));
+            emit(new Instruction(Opcodes.CLR, null));
             return this;
         }
         
@@ -216,4 +462,16 @@ public class InstructionBuilder
         {
             return this;
         }
+
+        /**
+         * Appends an instruction to the active segment at the current source
+         * position. Every instruction form is emitted through here.
+         */
+        protected void emit(Instruction instr)
+        {
+            instr.setSourcePosition(m_line, m_col);
+            m_codeSegments
+                .get(m_activeSegment)
+                .add(instr);
+        }
 }
@@ -26,6 +26,13 @@ public class Operand
         m_isRef = false;
     }
     
+    public Operand(byte immByte)
+    {
+        m_dataType = DataType.Imm_Byte;
+        m_refTargetVal = immByte;
+        m_isRef = false;
+    }
+    
     public Operand(boolean immBoolean)
     {
         m_dataType = DataType.Imm_Bool;
@@ -7,11 +7,20 @@ import Parsing.ParseObserver;
 import Parsing.Productions;
 import Runtime.IO.ConsoleOutputChannel;
 import Runtime.JIT.API.Instruction;
-import Runtime.JIT.API.InstructionBuilder;
+import Runtime.JIT.CompilerErrors.ErrType;
+import Runtime.JIT.CompilerErrors.Level;
+import Runtime.JIT.IR.DeadCodeElimination;
+import Runtime.JIT.IR.IRFunction;
+import Runtime.JIT.IR.IRPass;
+import Runtime.JIT.IR.Lowering;
+import Runtime.JIT.IR.SSABuilder;
 import Runtime.IO.InputChannel;
 import Runtime.IO.OutputChannel;
+import Runtime.Machine.Interface.Bytecode;
 import Runtime.Machine.StaticMemory;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -20,18 +29,34 @@ import java.util.List;
  */
 public class Compiler
 {
+    public static final int VERSION = 5;             // Code generation version, bump to invalidate cached programs
+    
     private final Analyzer m_tokenizer;              // Lexical analyzer (tokenizer)
     private final BufferedTokenStream m_tokenStream; // Token stream output end, used by tokenizer
     private InputChannel m_chIn;                     // Code input channel
     private ConsoleOutputChannel m_consoleOut;              // Console output channel
+    private final List<IRPass> m_passes;             // SSA optimization passes, in run order
+    private final ProgramCache m_cache;              // Compiled script cache, null if disabled
     
     public Compiler()
+    {
+        this(null);
+    }
+    
+    /**
+     * Creates a compiler which caches compiled scripts
+     * @param cache Compiled program cache, may be null
+     */
+    public Compiler(ProgramCache cache)
     {
         StaticMemory.initialize();
         m_tokenizer = new Analyzer();
         m_tokenStream = new BufferedTokenStream(m_tokenizer);
         m_chIn = null;
         m_consoleOut = null;
+        m_passes = new ArrayList<>();
+        m_passes.add(new DeadCodeElimination());
+        m_cache = cache;
     }
 
     public void setInputChannel(InputChannel in)
@@ -47,15 +72,45 @@ public class Compiler
     /**
      * Executes the JIT compiler on a ready input source.
      * @param isCommand Flag, indicates if source is command (affects parsing)
-     * @return Compiled program
+     * @return Compiled program, or null if compilation failed
+     * @throws IOException 
+     */
+    public Bytecode run(boolean isCommand) throws IOException
+    {
+        return run(m_chIn.readAll(), isCommand);
+    }
+    
+    /**
+     * Executes the JIT compiler on source read from an input channel beforehand.
+     * @param source    Source bytes, see InputChannel.readAll
+     * @param isCommand Flag, indicates if source is command (affects parsing)
+     * @return Compiled program, or null if compilation failed
      * @throws IOException 
      */
-    public List<Instruction> run(boolean isCommand) throws IOException
+    public Bytecode run(byte[] source, boolean isCommand) throws IOException
     {
         // Reinitialize tokenizer and token input stream buffer
         m_tokenizer.reset();
         m_tokenStream.clear();
-        m_tokenizer.init(m_chIn);
+        
+        // Scripts are looked up in the program cache before compiling
+        if (isCommand || m_cache == null) {
+            m_tokenizer.init(new ByteArrayInputStream(source));
+            return compile(isCommand, null);
+        }
+        String key = m_cache.key(source);
+        ProgramCache.Entry cached = m_cache.load(key);
+        if (cached != null && restoreSymbols(cached)) {
+            notifyEliminated(cached.eliminated);
+            return cached.program;
+        }
+        m_tokenizer.init(new ByteArrayInputStream(source));
+        return compile(false, key);
+    }
+    
+    private Bytecode compile(boolean isCommand, String cacheKey) throws IOException
+    {
+        int symbolCount = SymbolTable.getSymbolCount();
         
         /*// Compile in-memory executable //*/
         
@@ -73,9 +128,60 @@ public class Compiler
         
         // Perform code (tree) optimizations
         
-        // Execute machine instruction generation and return compiled program
-        InstructionBuilder builder = new InstructionBuilder();
+        // Generate SSA form
+        SSABuilder builder = new SSABuilder();
         codeTree.execInstrGen(builder);
-        return builder.commit();
+        IRFunction function = builder.getFunction();
+        
+        // Run SSA optimization passes
+        int eliminated = 0;
+        for (IRPass pass : m_passes)
+            eliminated += pass.run(function);
+        
+        // Lower to machine instructions, drop unreachable code and return compiled program
+        UnreachableCodeElimination uce = new UnreachableCodeElimination();
+        List<Instruction> instructions = uce.run(new Lowering(function).run());
+        eliminated += uce.getEliminatedCount();
+        if (!isCommand)
+            notifyEliminated(eliminated);
+        
+        // Fuse common instruction pairs into superinstructions, then schedule
+        // the fused code
+        instructions = new InstructionScheduler().run(new SuperinstructionFusion().run(instructions));
+        Bytecode program = Bytecode.encode(instructions, builder.getScopes());
+        if (cacheKey != null)
+            m_cache.store(cacheKey, program, eliminated, SymbolTable.getSymbolsSince(symbolCount));
+        return program;
+    }
+    
+    /**
+     * Registers the symbols a cached program was compiled with. Since the
+     * cache key covers the symbol layout, the symbols are allocated at the
+     * offsets the program refers to.
+     * @return false if the layout did not reproduce, in which case the
+     * program must be recompiled
+     */
+    private static boolean restoreSymbols(ProgramCache.Entry cached)
+    {
+        for (int i = 0; i < cached.symbolNames.size(); ++i) {
+            String name = cached.symbolNames.get(i);
+            if (!SymbolTable.isRegistered(name))
+                SymbolTable.registerVariable(name, cached.symbolTypes.get(i));
+            if (SymbolTable.getVariableParams(name).getOffset() != cached.symbolOffsets.get(i))
+                return false;
+        }
+        return true;
+    }
+    
+    private void notifyEliminated(int eliminated)
+    {
+        if (eliminated > 0)
+            m_consoleOut.send(
+                OutputChannel.Type.StdOut,
+                CompilerErrors.formatErrorMessage(
+                    null, Level.NOTE, ErrType.OPTIMIZATION,
+                    eliminated + " dead instruction(s) eliminated"
+                ) + "\n"
+            );
     }
 }
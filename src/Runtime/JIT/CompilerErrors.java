@@ -13,7 +13,8 @@ public abstract class CompilerErrors
     public static enum Level
     {
         ERROR("Error"),
-        WARNING("Warning");
+        WARNING("Warning"),
+        NOTE("Note");
         
         private final String val;
         private Level(String val)
@@ -35,7 +36,8 @@ public abstract class CompilerErrors
         SYMBOL_REF("Symbol reference"),
         ASSIGNMENT("Assignment"),
         COMP_U("Input"),
-        ILLEGAL_EXPR("Illegal expression");
+        ILLEGAL_EXPR("Illegal expression"),
+        OPTIMIZATION("Optimization");
 
         private final String val;
         private ErrType(String val)
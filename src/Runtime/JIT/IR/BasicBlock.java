@@ -0,0 +1,173 @@
+package Runtime.JIT.IR;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Basic block: a straight-line instruction sequence with a single entry point
+ * and a single terminator (JUMP, BRANCH or RET). Phi nodes are held at the head
+ * of the block, ahead of the ordinary instructions.
+ * @author Joshua Boley
+ */
+public class BasicBlock
+{
+    private final int m_id;
+    private final List<Phi> m_phis;
+    private final List<IRInstruction> m_instructions;
+    private final List<BasicBlock> m_preds, m_succs;
+
+    BasicBlock(int id)
+    {
+        m_id = id;
+        m_phis = new ArrayList<>();
+        m_instructions = new ArrayList<>();
+        m_preds = new ArrayList<>();
+        m_succs = new ArrayList<>();
+    }
+
+    public int getId()
+    {
+        return m_id;
+    }
+
+    public String getName()
+    {
+        return "B" + m_id;
+    }
+
+    public List<Phi> getPhis()
+    {
+        return Collections.unmodifiableList(m_phis);
+    }
+
+    /**
+     * Returns the block's (non-phi) instructions, terminator last
+     * @return Instruction list (read-only)
+     */
+    public List<IRInstruction> getInstructions()
+    {
+        return Collections.unmodifiableList(m_instructions);
+    }
+
+    public List<BasicBlock> getPredecessors()
+    {
+        return Collections.unmodifiableList(m_preds);
+    }
+
+    /**
+     * Returns the successor blocks. For a BRANCH terminator the taken target
+     * is first and the fall-through target second.
+     * @return Successor list (read-only)
+     */
+    public List<BasicBlock> getSuccessors()
+    {
+        return Collections.unmodifiableList(m_succs);
+    }
+
+    /**
+     * Returns the block's terminator, or null if the block is still open
+     * @return Terminator instruction
+     */
+    public IRInstruction getTerminator()
+    {
+        if (m_instructions.isEmpty())
+            return null;
+        IRInstruction last = m_instructions.get(m_instructions.size() - 1);
+        return last.getOp().isTerminator() ? last : null;
+    }
+
+    void addPhi(Phi phi)
+    {
+        phi.setBlock(this);
+        m_phis.add(phi);
+    }
+
+    void append(IRInstruction instr)
+    {
+        if (getTerminator() != null)
+            throw new IllegalStateException(getName() + ": Block already terminated");
+        instr.setBlock(this);
+        m_instructions.add(instr);
+    }
+
+    void insert(int idx, IRInstruction instr)
+    {
+        instr.setBlock(this);
+        m_instructions.add(idx, instr);
+    }
+
+    /**
+     * Removes an unused instruction from the block
+     * @param instr Instruction to remove
+     */
+    public void remove(IRInstruction instr)
+    {
+        if (instr.isUsed())
+            throw new IllegalStateException(instr.getName() + ": Removing a value that is still in use");
+        instr.dropOperands();
+        if (instr instanceof Phi)
+            m_phis.remove((Phi) instr);
+        else
+            m_instructions.remove(instr);
+        instr.setBlock(null);
+    }
+
+    void addSuccessor(BasicBlock succ)
+    {
+        m_succs.add(succ);
+        succ.m_preds.add(this);
+    }
+
+    /**
+     * Removes a predecessor edge, dropping the matching incoming value of
+     * each phi node
+     * @param pred Predecessor block
+     */
+    void removePredecessor(BasicBlock pred)
+    {
+        for (Phi phi : m_phis)
+            phi.removeIncoming(pred);
+        m_preds.remove(pred);
+    }
+
+    /**
+     * Detaches every instruction in the block from the def-use chains and
+     * empties it. Used when deleting unreachable blocks.
+     */
+    void clear()
+    {
+        for (Phi phi : m_phis)
+            phi.dropOperands();
+        for (IRInstruction instr : m_instructions)
+            instr.dropOperands();
+        m_phis.clear();
+        m_instructions.clear();
+        m_succs.clear();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getName()).append(":");
+        if (!m_preds.isEmpty()) {
+            sb.append("    ; preds =");
+            for (BasicBlock pred : m_preds)
+                sb.append(" ").append(pred.getName());
+        }
+        sb.append("\n");
+        for (Phi phi : m_phis)
+            sb.append("    ").append(phi).append("\n");
+        for (IRInstruction instr : m_instructions) {
+            sb.append("    ").append(instr);
+            if (instr.getOp() == IROp.JUMP || instr.getOp() == IROp.BRANCH) {
+                sb.append(" ->");
+                for (int i = 0; i < m_succs.size(); ++i)
+                    sb.append(i == 0 ? " " : ", ").append(m_succs.get(i).getName());
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
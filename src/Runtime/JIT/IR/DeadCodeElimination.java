@@ -0,0 +1,237 @@
+package Runtime.JIT.IR;
+
+import Runtime.JIT.API.DataType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dead code and dead store elimination:
+ *
+ *  - Blocks unreachable from the entry block are removed.
+ *  - Stores to a variable that is overwritten on every path before being read
+ *    are removed. Variables stay visible to later commands, so every variable
+ *    is live on program exit and the last store to each one is kept. The run
+ *    can also end at an instruction that faults or at a loop back-edge, where
+ *    it may be stopped, so a store is only superseded by one that follows it
+ *    without such a point in between.
+ *  - Instructions without side effects whose result is unused are removed.
+ *    Printed values and the accumulator result stay in use through PRINT and
+ *    RET. Instructions that may fault at run time are kept, so removing them
+ *    does not hide the error.
+ * @author Joshua Boley
+ */
+public class DeadCodeElimination
+    implements IRPass
+{
+    @Override
+    public String getName()
+    {
+        return "Dead code elimination";
+    }
+
+    @Override
+    public int run(IRFunction function)
+    {
+        int eliminated = removeUnreachableBlocks(function);
+        eliminated += removeDeadStores(function);
+        eliminated += removeUnusedValues(function);
+        return eliminated;
+    }
+
+    private int removeUnreachableBlocks(IRFunction function)
+    {
+        Set<BasicBlock> reachable = new HashSet<>();
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        worklist.push(function.getEntryBlock());
+        while (!worklist.isEmpty()) {
+            BasicBlock block = worklist.pop();
+            if (reachable.add(block))
+                block.getSuccessors().forEach(worklist::push);
+        }
+
+        // Unreachable blocks are only reached from each other; cut their
+        // outgoing edges first so none of them keeps a predecessor
+        List<BasicBlock> unreachable = new ArrayList<>();
+        for (BasicBlock block : function.getBlocks()) {
+            if (!reachable.contains(block))
+                unreachable.add(block);
+        }
+        for (BasicBlock block : unreachable) {
+            for (BasicBlock succ : block.getSuccessors())
+                succ.removePredecessor(block);
+        }
+        int eliminated = 0;
+        for (BasicBlock block : unreachable) {
+            eliminated += block.getPhis().size() + block.getInstructions().size();
+            function.removeBlock(block);
+        }
+        return eliminated;
+    }
+
+    /**
+     * Backward must-analysis over the variables (static memory offsets)
+     * that are overwritten before being read. At program exit no variable is
+     * overwritten, so a store is only dead if a later store on every path
+     * supersedes it.
+     */
+    private int removeDeadStores(IRFunction function)
+    {
+        Set<Object> universe = new HashSet<>();
+        for (BasicBlock block : function.getBlocks()) {
+            for (IRInstruction instr : block.getInstructions()) {
+                if (instr.getOp() == IROp.STORE || instr.getOp() == IROp.LOAD)
+                    universe.add(instr.getImmediate());
+            }
+        }
+
+        // Iterate to a fixed point, starting optimistically from the full set
+        Map<BasicBlock, Set<Object>> overwrittenIn = new HashMap<>();
+        for (BasicBlock block : function.getBlocks())
+            overwrittenIn.put(block, new HashSet<>(universe));
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            List<BasicBlock> blocks = function.getBlocks();
+            for (int i = blocks.size() - 1; i >= 0; --i) {
+                BasicBlock block = blocks.get(i);
+                Set<Object> overwritten = transfer(block, overwrittenOut(blocks, block, overwrittenIn), null);
+                if (!overwritten.equals(overwrittenIn.get(block))) {
+                    overwrittenIn.put(block, overwritten);
+                    changed = true;
+                }
+            }
+        }
+
+        // Remove stores superseded before any read
+        List<IRInstruction> dead = new ArrayList<>();
+        List<BasicBlock> blocks = function.getBlocks();
+        for (BasicBlock block : blocks)
+            transfer(block, overwrittenOut(blocks, block, overwrittenIn), dead);
+        for (IRInstruction store : dead)
+            store.getBlock().remove(store);
+        return dead.size();
+    }
+
+    /**
+     * Joins the successors' states; nothing is overwritten at program exit
+     * or across a back-edge, where a quota or cancel may stop the run
+     */
+    private static Set<Object> overwrittenOut(List<BasicBlock> blocks, BasicBlock block, Map<BasicBlock, Set<Object>> overwrittenIn)
+    {
+        if (block.getSuccessors().isEmpty())
+            return new HashSet<>();
+        int pos = blocks.indexOf(block);
+        Set<Object> out = null;
+        for (BasicBlock succ : block.getSuccessors()) {
+            if (blocks.indexOf(succ) <= pos)
+                return new HashSet<>();
+            if (out == null)
+                out = new HashSet<>(overwrittenIn.get(succ));
+            else
+                out.retainAll(overwrittenIn.get(succ));
+        }
+        return out;
+    }
+
+    /**
+     * Walks a block backwards from its exit state, collecting dead stores if
+     * a list is supplied
+     */
+    private static Set<Object> transfer(BasicBlock block, Set<Object> overwritten, List<IRInstruction> dead)
+    {
+        List<IRInstruction> instrs = block.getInstructions();
+        for (int i = instrs.size() - 1; i >= 0; --i) {
+            IRInstruction instr = instrs.get(i);
+            // Stores before a fault stay visible to later commands
+            if (mayFault(instr))
+                overwritten.clear();
+            switch (instr.getOp()) {
+                case STORE:
+                    if (!overwritten.add(instr.getImmediate()) && dead != null)
+                        dead.add(instr);
+                    break;
+                case LOAD:
+                    overwritten.remove(instr.getImmediate());
+                    break;
+                default:;
+            }
+        }
+        return overwritten;
+    }
+
+    private int removeUnusedValues(IRFunction function)
+    {
+        int eliminated = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block : function.getBlocks()) {
+                List<IRInstruction> candidates = new ArrayList<>(block.getPhis());
+                candidates.addAll(block.getInstructions());
+                for (IRInstruction instr : candidates) {
+                    // Entry register values have no code to eliminate
+                    if (instr.isUsed() || instr.getOp().hasSideEffects() || instr.getOp() == IROp.REG_IN || mayFault(instr))
+                        continue;
+                    block.remove(instr);
+                    if (instr.getOp() != IROp.CONST)
+                        ++eliminated;
+                    changed = true;
+                }
+            }
+        }
+        return eliminated;
+    }
+
+    /**
+     * Returns whether an instruction may raise a run-time error: arithmetic
+     * fails its type check on values not known to be integers, and DIV and
+     * MOD fault on a zero divisor unless the divisor is a nonzero constant.
+     * A DIV or MOD next to a live one of the same operands faults with it, so
+     * only the live one needs to stay.
+     */
+    private static boolean mayFault(IRInstruction instr)
+    {
+        switch (instr.getOp()) {
+            case DIV:
+            case MOD:
+            {
+                IRInstruction divisor = instr.getOperand(1);
+                boolean nonzero = divisor.getOp() == IROp.CONST && !Integer.valueOf(0).equals(divisor.getImmediate());
+                if (!nonzero && !hasLiveTwin(instr))
+                    return true;
+            }
+            // fall through
+            case ADD:
+            case SUB:
+            case MUL:
+            case EXP:
+            case NEG:
+                for (IRInstruction operand : instr.getOperands()) {
+                    if (operand.getType() != DataType.Int4 || operand.getOp() == IROp.REG_IN)
+                        return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean hasLiveTwin(IRInstruction instr)
+    {
+        List<IRInstruction> instrs = instr.getBlock().getInstructions();
+        int pos = instrs.indexOf(instr);
+        for (int i = Math.max(pos - 1, 0); i <= pos + 1 && i < instrs.size(); ++i) {
+            IRInstruction other = instrs.get(i);
+            if (other != instr && other.isUsed() && (other.getOp() == IROp.DIV || other.getOp() == IROp.MOD)
+                    && other.getOperands().equals(instr.getOperands()))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,249 @@
+package Runtime.JIT.IR;
+
+import Runtime.JIT.API.DataType;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SSA form of a compiled program: a list of basic blocks, the first of which
+ * is the entry block. Blocks are kept in layout order, which is also the order
+ * they are lowered in. All instructions are created through this class so
+ * value numbers are unique within the program.
+ * @author Joshua Boley
+ */
+public class IRFunction
+{
+    private final List<BasicBlock> m_blocks;
+    private int m_nextValueId;
+    private int m_nextBlockId;
+
+    public IRFunction()
+    {
+        m_blocks = new ArrayList<>();
+        m_nextValueId = 0;
+        m_nextBlockId = 0;
+        createBlock();
+    }
+
+    public BasicBlock getEntryBlock()
+    {
+        return m_blocks.get(0);
+    }
+
+    /**
+     * Returns the program's basic blocks in layout order
+     * @return Block list (read-only)
+     */
+    public List<BasicBlock> getBlocks()
+    {
+        return Collections.unmodifiableList(m_blocks);
+    }
+
+    /**
+     * Creates a new, empty basic block at the end of the layout
+     * @return New block
+     */
+    public BasicBlock createBlock()
+    {
+        BasicBlock block = new BasicBlock(m_nextBlockId++);
+        m_blocks.add(block);
+        return block;
+    }
+
+    /**
+     * Removes a basic block with no predecessors from the layout, along with
+     * its instructions. Successor edges and phi operands referring to the
+     * removed block are dropped.
+     * @param block Unreachable block
+     */
+    public void removeBlock(BasicBlock block)
+    {
+        if (block == getEntryBlock() || !block.getPredecessors().isEmpty())
+            throw new IllegalStateException(block.getName() + ": Only unreachable blocks may be removed");
+        for (BasicBlock succ : block.getSuccessors())
+            succ.removePredecessor(block);
+        block.clear();
+        m_blocks.remove(block);
+    }
+
+    /**
+     * Appends a value-producing or side-effecting instruction to a block
+     * @param block     Target block
+     * @param op        Operation
+     * @param type      Result type (Empty if the operation has no result)
+     * @param immediate Constant, memory offset or register (may be null)
+     * @param operands  Used values
+     * @return New instruction
+     */
+    public IRInstruction append(BasicBlock block, IROp op, DataType type, Object immediate, IRInstruction... operands)
+    {
+        if (op.isTerminator() || op == IROp.PHI)
+            throw new IllegalArgumentException(op + ": Use the dedicated factory method");
+        IRInstruction instr = new IRInstruction(m_nextValueId++, op, type, immediate, operands);
+        block.append(instr);
+        return instr;
+    }
+
+    /**
+     * Creates a constant in the entry block. Constants carry no position
+     * dependence and are materialized where they are used.
+     * @param value Integer or string value
+     * @return Constant value
+     */
+    public IRInstruction constant(Object value)
+    {
+        DataType type;
+        if (value instanceof Integer)
+            type = DataType.Int4;
+        else if (value instanceof String)
+            type = DataType.Imm_Str;
+        else
+            throw new IllegalArgumentException("Unsupported constant " + value);
+        IRInstruction instr = new IRInstruction(m_nextValueId++, IROp.CONST, type, value);
+        BasicBlock entry = getEntryBlock();
+        entry.insert(countLeading(entry, IROp.REG_IN), instr);
+        return instr;
+    }
+
+    /**
+     * Creates a value for the contents of a register on program entry
+     * @param reg  Register
+     * @param type Assumed type of the register contents
+     * @return Entry value
+     */
+    public IRInstruction registerIn(RegId reg, DataType type)
+    {
+        IRInstruction instr = new IRInstruction(m_nextValueId++, IROp.REG_IN, type, reg);
+        getEntryBlock().insert(0, instr);
+        return instr;
+    }
+
+    /**
+     * Creates a phi node at the head of a block
+     * @param block Target block
+     * @param type  Value type
+     * @return New phi
+     */
+    public Phi createPhi(BasicBlock block, DataType type)
+    {
+        Phi phi = new Phi(m_nextValueId++, type);
+        block.addPhi(phi);
+        return phi;
+    }
+
+    /**
+     * Terminates a block with an unconditional branch
+     * @param from   Terminated block
+     * @param target Branch target
+     */
+    public void jump(BasicBlock from, BasicBlock target)
+    {
+        terminate(from, IROp.JUMP, null);
+        from.addSuccessor(target);
+    }
+
+    /**
+     * Terminates a block with a conditional branch taken when the comparison
+     * of lhs to rhs satisfies the condition
+     * @param from        Terminated block
+     * @param condition   Jump opcode naming the condition (JL, JLE, JG, JGE, JE, JNE)
+     * @param lhs         Left-hand comparison operand
+     * @param rhs         Right-hand comparison operand
+     * @param taken       Target if the condition holds
+     * @param fallThrough Target otherwise
+     */
+    public void branch(BasicBlock from, Opcodes condition, IRInstruction lhs, IRInstruction rhs,
+                       BasicBlock taken, BasicBlock fallThrough)
+    {
+        terminate(from, IROp.BRANCH, condition, lhs, rhs);
+        from.addSuccessor(taken);
+        from.addSuccessor(fallThrough);
+    }
+
+    /**
+     * Terminates a block with a program exit
+     * @param from   Terminated block
+     * @param result Accumulator (R1) value on exit, may be null
+     */
+    public void ret(BasicBlock from, IRInstruction result)
+    {
+        if (result == null)
+            terminate(from, IROp.RET, null);
+        else
+            terminate(from, IROp.RET, null, result);
+    }
+
+    /**
+     * Terminates a block without adding successor edges, for builders that
+     * connect blocks before filling them
+     * @param from      Terminated block
+     * @param op        JUMP, BRANCH or RET
+     * @param immediate Branch condition (may be null)
+     * @param operands  Used values
+     * @return Terminator instruction
+     */
+    IRInstruction terminate(BasicBlock from, IROp op, Object immediate, IRInstruction... operands)
+    {
+        if (!op.isTerminator())
+            throw new IllegalArgumentException(op + ": Not a terminator");
+        IRInstruction instr = new IRInstruction(m_nextValueId++, op, DataType.Empty, immediate, operands);
+        from.append(instr);
+        return instr;
+    }
+
+    /**
+     * Checks structural well-formedness: every block is terminated, terminators
+     * only appear last, and every operand is defined in this function.
+     * @throws IllegalStateException
+     */
+    public void verify() throws IllegalStateException
+    {
+        for (BasicBlock block : m_blocks) {
+            if (block.getTerminator() == null)
+                throw new IllegalStateException(block.getName() + ": Missing terminator");
+            List<IRInstruction> instrs = block.getInstructions();
+            for (int i = 0; i < instrs.size(); ++i) {
+                IRInstruction instr = instrs.get(i);
+                if (instr.getOp().isTerminator() && i != instrs.size() - 1)
+                    throw new IllegalStateException(block.getName() + ": Terminator before end of block");
+                verifyOperands(instr);
+            }
+            for (Phi phi : block.getPhis()) {
+                if (phi.getIncomingBlocks().size() != block.getPredecessors().size())
+                    throw new IllegalStateException(phi.getName() + ": Incoming value count does not match predecessors");
+                verifyOperands(phi);
+            }
+        }
+    }
+
+    private void verifyOperands(IRInstruction instr)
+    {
+        for (IRInstruction operand : instr.getOperands()) {
+            if (operand.getBlock() == null || !m_blocks.contains(operand.getBlock()))
+                throw new IllegalStateException(instr.getName() + ": Operand " + operand.getName() + " is not defined");
+            if (!operand.getOp().hasResult())
+                throw new IllegalStateException(instr.getName() + ": Operand " + operand.getName() + " has no result");
+        }
+    }
+
+    private static int countLeading(BasicBlock block, IROp op)
+    {
+        int n = 0;
+        List<IRInstruction> instrs = block.getInstructions();
+        while (n < instrs.size() && instrs.get(n).getOp() == op)
+            ++n;
+        return n;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (BasicBlock block : m_blocks)
+            sb.append(block);
+        return sb.toString();
+    }
+}
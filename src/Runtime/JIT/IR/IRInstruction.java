@@ -0,0 +1,174 @@
+package Runtime.JIT.IR;
+
+import Runtime.JIT.API.DataType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SSA instruction. Every instruction that produces a result is also the value
+ * it defines, so operands reference their defining instructions directly.
+ * Def-use chains are maintained in both directions: each instruction lists
+ * its operands (uses) and the instructions using its result (users).
+ * @author Joshua Boley
+ */
+public class IRInstruction
+{
+    private final int m_id;                         // Value number
+    private final IROp m_op;                        // Operation
+    private final DataType m_type;                  // Result type (Empty if no result)
+    private final Object m_immediate;               // Constant, memory offset, register or condition
+    private final List<IRInstruction> m_operands;   // Used values
+    private final List<IRInstruction> m_users;      // Instructions using this value
+    private BasicBlock m_block;                     // Parent basic block
+    private int m_line;                             // Source position, -1 if unknown
+    private int m_col;
+
+    IRInstruction(int id, IROp op, DataType type, Object immediate, IRInstruction... operands)
+    {
+        m_id = id;
+        m_op = op;
+        m_type = type;
+        m_immediate = immediate;
+        m_operands = new ArrayList<>();
+        m_users = new ArrayList<>();
+        m_block = null;
+        m_line = -1;
+        m_col = -1;
+        for (IRInstruction operand : operands)
+            addOperand(operand);
+    }
+
+    public int        getId()        { return m_id; }
+    public IROp       getOp()        { return m_op; }
+    public DataType   getType()      { return m_type; }
+    public Object     getImmediate() { return m_immediate; }
+    public BasicBlock getBlock()     { return m_block; }
+    public int        getLine()      { return m_line; }
+    public int        getColumn()    { return m_col; }
+
+    void setBlock(BasicBlock block)  { m_block = block; }
+
+    void setSourcePosition(int line, int col)
+    {
+        m_line = line;
+        m_col = col;
+    }
+
+    /**
+     * Returns the values used by this instruction
+     * @return Operand list (read-only)
+     */
+    public List<IRInstruction> getOperands()
+    {
+        return Collections.unmodifiableList(m_operands);
+    }
+
+    /**
+     * Returns the i-th operand
+     * @param i Operand index
+     * @return Operand value
+     */
+    public IRInstruction getOperand(int i)
+    {
+        return m_operands.get(i);
+    }
+
+    /**
+     * Returns the instructions using this value. A user appears once for each
+     * operand slot referencing this value.
+     * @return User list (read-only)
+     */
+    public List<IRInstruction> getUsers()
+    {
+        return Collections.unmodifiableList(m_users);
+    }
+
+    /**
+     * Returns whether or not any instruction uses this value
+     * @return True or false
+     */
+    public boolean isUsed()
+    {
+        return !m_users.isEmpty();
+    }
+
+    /**
+     * Replaces the i-th operand, updating def-use chains
+     * @param i     Operand index
+     * @param value New operand value
+     */
+    public void setOperand(int i, IRInstruction value)
+    {
+        m_operands.get(i).m_users.remove(this);
+        m_operands.set(i, value);
+        value.m_users.add(this);
+    }
+
+    /**
+     * Redirects every use of this value to another value
+     * @param value Replacement value
+     */
+    public void replaceAllUsesWith(IRInstruction value)
+    {
+        while (!m_users.isEmpty()) {
+            IRInstruction user = m_users.get(0);
+            for (int i = 0; i < user.m_operands.size(); ++i) {
+                if (user.m_operands.get(i) == this)
+                    user.setOperand(i, value);
+            }
+        }
+    }
+
+    /**
+     * Drops all operand references, detaching this instruction from the
+     * def-use chains of the values it uses
+     */
+    void dropOperands()
+    {
+        for (IRInstruction operand : m_operands)
+            operand.m_users.remove(this);
+        m_operands.clear();
+    }
+
+    void removeOperand(int i)
+    {
+        IRInstruction operand = m_operands.remove(i);
+        operand.m_users.remove(this);
+    }
+
+    final void addOperand(IRInstruction operand)
+    {
+        m_operands.add(operand);
+        operand.m_users.add(this);
+    }
+
+    /**
+     * Returns the printed value name (%id)
+     * @return Value name
+     */
+    public String getName()
+    {
+        return "%" + m_id;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        if (m_op.hasResult())
+            sb.append(getName()).append(":").append(m_type).append(" = ");
+        sb.append(m_op);
+        if (m_immediate != null) {
+            if (m_immediate instanceof String)
+                sb.append(" \"").append(((String) m_immediate).replace("\n", "\\n")).append("\"");
+            else if (m_op == IROp.LOAD || m_op == IROp.STORE)
+                sb.append(" [").append(m_immediate).append("]");
+            else
+                sb.append(" ").append(m_immediate);
+        }
+        for (int i = 0; i < m_operands.size(); ++i)
+            sb.append(i == 0 ? " " : ", ").append(m_operands.get(i).getName());
+        return sb.toString();
+    }
+}
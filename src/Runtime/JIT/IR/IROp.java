@@ -0,0 +1,71 @@
+package Runtime.JIT.IR;
+
+/**
+ * SSA intermediate representation operation codes.
+ * @author Joshua Boley
+ */
+public enum IROp
+{
+    REG_IN(true),   // Register contents live on program entry
+    CONST(true),    // Integer or string constant
+    LOAD(true),     // Load variable from static memory
+    STORE(false),   // Store value to static memory
+
+    ADD(true),      // Addition
+    SUB(true),      // Subtraction
+    MUL(true),      // Multiplication
+    DIV(true),      // Division (quotient)
+    MOD(true),      // Division (remainder)
+    EXP(true),      // Exponentiation (x^y)
+    NEG(true),      // Negation
+
+    PHI(true),      // SSA phi node, selects a value by predecessor block
+
+    PRINT(false),   // Print value to output channel
+    CLEAR(false),   // Clear output channel
+
+    JUMP(false),    // Unconditional branch (terminator)
+    BRANCH(false),  // Conditional branch on comparison (terminator)
+    RET(false);     // Program exit, operand is the accumulator result (terminator)
+
+    private final boolean m_hasResult;
+    private IROp(boolean hasResult) { m_hasResult = hasResult; }
+
+    /**
+     * Returns whether or not the operation defines a value
+     * @return True or false
+     */
+    public boolean hasResult()
+    {
+        return m_hasResult;
+    }
+
+    /**
+     * Returns whether or not the operation ends a basic block
+     * @return True or false
+     */
+    public boolean isTerminator()
+    {
+        return this == JUMP || this == BRANCH || this == RET;
+    }
+
+    /**
+     * Returns whether or not the operation has an effect beyond defining its
+     * result (memory, output or control flow)
+     * @return True or false
+     */
+    public boolean hasSideEffects()
+    {
+        switch (this) {
+            case STORE:
+            case PRINT:
+            case CLEAR:
+            case JUMP:
+            case BRANCH:
+            case RET:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
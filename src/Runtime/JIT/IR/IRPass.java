@@ -0,0 +1,21 @@
+package Runtime.JIT.IR;
+
+/**
+ * Transformation pass over a program in SSA form.
+ * @author Joshua Boley
+ */
+public interface IRPass
+{
+    /**
+     * Returns the pass name, used in compiler diagnostics
+     * @return Pass name
+     */
+    String getName();
+
+    /**
+     * Runs the pass
+     * @param function Program in SSA form
+     * @return Number of instructions eliminated by the pass
+     */
+    int run(IRFunction function);
+}
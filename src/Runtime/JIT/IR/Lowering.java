@@ -0,0 +1,658 @@
+package Runtime.JIT.IR;
+
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.InstructionBuilder;
+import Runtime.JIT.API.Operand;
+import Runtime.JIT.SymbolTable;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lowers SSA form to VCPU instructions through an InstructionBuilder, with
+ * local register allocation. Each basic block is lowered into its own code
+ * segment:
+ *
+ *  - Registers are allocated per block from the general purpose registers,
+ *    R4 excepted, which DIV reserves for the remainder. When registers run
+ *    out, the value with the most distant next use is evicted; constants are
+ *    rematerialized, anything else is spilled to a static memory slot.
+ *  - Values used outside the block that defines them are stored to a memory
+ *    slot when defined and reloaded where used.
+ *  - Phi nodes live in memory slots written by each predecessor before its
+ *    terminator.
+ *  - Source operands of arithmetic and compare instructions that are not in
+ *    a register are used in place: integer constants as immediates, and
+ *    variables or slots as memory operands. A variable load whose only use
+ *    is such an operand is not emitted at all.
+ *  - Arithmetic on values statically known to be integers uses the Int4
+ *    specialized opcodes; the generic opcodes remain for the rest.
+ *
+ * Jump offsets are resolved once every block body has been lowered and the
+ * code segment sizes are known. Emitted instructions take the source
+ * position of the SSA instruction they are lowered from.
+ * @author Joshua Boley
+ */
+public class Lowering
+{
+    private static final RegId[] ALLOCATABLE = {
+        RegId.R1, RegId.R2, RegId.R3, RegId.R5, RegId.R6, RegId.R7, RegId.R8
+    };
+    private static final String SLOT_PREFIX = "$slot";  // Memory slot symbol names (not legal identifiers)
+
+    private final IRFunction m_function;
+    private final InstructionBuilder m_builder;
+    private final Map<IRInstruction, Integer> m_slots;          // Memory slot offsets
+    private final Set<IRInstruction> m_stored;                  // Values whose slot holds their value
+    private final Set<IRInstruction> m_folded;                  // Loads read in place by their user
+    private int m_slotCount;
+
+    // Per-block allocation state
+    private final EnumMap<RegId, IRInstruction> m_regContents;
+    private final Map<IRInstruction, RegId> m_locations;
+    private final Map<IRInstruction, Integer> m_lastUse;
+    private final EnumSet<RegId> m_pinned;
+    private BasicBlock m_block;
+    private List<IRInstruction> m_instrs;
+    private int m_pos;
+
+    public Lowering(IRFunction function)
+    {
+        m_function = function;
+        m_builder = new InstructionBuilder();
+        m_slots = new HashMap<>();
+        m_stored = new HashSet<>();
+        m_folded = new HashSet<>();
+        m_slotCount = 0;
+        m_regContents = new EnumMap<>(RegId.class);
+        m_locations = new HashMap<>();
+        m_lastUse = new HashMap<>();
+        m_pinned = EnumSet.noneOf(RegId.class);
+    }
+
+    /**
+     * Lowers the program and returns the committed instruction list
+     * @return Compiled program
+     */
+    public List<Instruction> run()
+    {
+        List<BasicBlock> blocks = m_function.getBlocks();
+        int[] segments = new int[blocks.size()];
+        int[] bodySizes = new int[blocks.size()];
+
+        // Phis are assigned memory slots up front, predecessors may be lowered first
+        for (BasicBlock block : blocks)
+            for (Phi phi : block.getPhis())
+                slotOf(phi);
+
+        // Lower block bodies, one code segment per block
+        for (int i = 0; i < blocks.size(); ++i) {
+            segments[i] = (i == 0) ? m_builder.getActiveCodeSegmentId() : m_builder.createCodeSegment();
+            m_builder.setActiveCodeSegment(segments[i]);
+            lowerBody(blocks.get(i));
+            bodySizes[i] = m_builder.getActiveCodeSegment().size();
+        }
+
+        // Lay out blocks and resolve jump offsets
+        int[] starts = new int[blocks.size() + 1];
+        for (int i = 0; i < blocks.size(); ++i)
+            starts[i + 1] = starts[i] + bodySizes[i] + terminatorSize(blocks, i);
+        for (int i = 0; i < blocks.size(); ++i) {
+            m_builder.setActiveCodeSegment(segments[i]);
+            emitTerminator(blocks, i, starts, starts[i] + bodySizes[i]);
+        }
+
+        return m_builder.commit();
+    }
+
+    private int terminatorSize(List<BasicBlock> blocks, int i)
+    {
+        BasicBlock block = blocks.get(i);
+        BasicBlock next = (i + 1 < blocks.size()) ? blocks.get(i + 1) : null;
+        switch (block.getTerminator().getOp()) {
+            case JUMP:
+                return block.getSuccessors().get(0) == next ? 0 : 1;
+            case BRANCH:
+                return block.getSuccessors().get(1) == next ? 1 : 2;
+            default:    // RET
+                return next == null ? 0 : 1;
+        }
+    }
+
+    private void emitTerminator(List<BasicBlock> blocks, int i, int[] starts, int addr)
+    {
+        BasicBlock block = blocks.get(i);
+        BasicBlock next = (i + 1 < blocks.size()) ? blocks.get(i + 1) : null;
+        IRInstruction term = block.getTerminator();
+        m_builder.setSourcePosition(term.getLine(), term.getColumn());
+        switch (term.getOp()) {
+            case JUMP:
+            {
+                BasicBlock target = block.getSuccessors().get(0);
+                if (target != next)
+                    m_builder.JMP(starts[blocks.indexOf(target)] - addr);
+                break;
+            }
+            case BRANCH:
+            {
+                BasicBlock taken = block.getSuccessors().get(0),
+                           fallThrough = block.getSuccessors().get(1);
+                m_builder.JCC((Opcodes) term.getImmediate(), starts[blocks.indexOf(taken)] - addr);
+                if (fallThrough != next)
+                    m_builder.JMP(starts[blocks.indexOf(fallThrough)] - (addr + 1));
+                break;
+            }
+            default:    // RET, jump past the end of the program
+                if (next != null)
+                    m_builder.JMP(starts[blocks.size()] - addr);
+        }
+    }
+
+    private void lowerBody(BasicBlock block)
+    {
+        m_block = block;
+        m_instrs = block.getInstructions();
+        m_regContents.clear();
+        m_locations.clear();
+        m_pinned.clear();
+        computeLastUses();
+
+        // Values live in registers on entry
+        if (block == m_function.getEntryBlock()) {
+            for (IRInstruction instr : m_instrs) {
+                if (instr.getOp() == IROp.REG_IN)
+                    bind(instr, (RegId) instr.getImmediate());
+            }
+            for (IRInstruction instr : m_instrs) {
+                if (instr.getOp() == IROp.REG_IN)
+                    defined(instr);
+            }
+        }
+
+        for (m_pos = 0; m_pos < m_instrs.size(); ++m_pos) {
+            IRInstruction instr = m_instrs.get(m_pos);
+            m_builder.setSourcePosition(instr.getLine(), instr.getColumn());
+            switch (instr.getOp()) {
+                case REG_IN:
+                case CONST:
+                    // Bound on entry/materialized where used
+                    break;
+                case LOAD:
+                {
+                    if (isFoldable(instr)) {
+                        m_folded.add(instr);
+                        break;
+                    }
+                    RegId dst = allocate();
+                    m_builder.MOV(new Operand(dst), new Operand(instr.getType(), (int) instr.getImmediate()));
+                    bind(instr, dst);
+                    defined(instr);
+                    break;
+                }
+                case STORE:
+                {
+                    IRInstruction val = instr.getOperand(0);
+                    RegId src = ensureInRegister(val);
+                    m_builder.MOV(new Operand(val.getType(), (int) instr.getImmediate()), new Operand(src));
+                    break;
+                }
+                case ADD:
+                case SUB:
+                case MUL:
+                case EXP:
+                    lowerBinary(instr);
+                    break;
+                case DIV:
+                case MOD:
+                    lowerDivMod(instr);
+                    break;
+                case NEG:
+                {
+                    RegId dst = takeOrCopy(instr.getOperand(0), m_pos);
+                    if (isInt(instr.getOperand(0)))
+                        m_builder.NEG_I4(dst);
+                    else
+                        m_builder.NEG(dst);
+                    bind(instr, dst);
+                    defined(instr);
+                    break;
+                }
+                case PRINT:
+                    m_builder.PRINT(new Operand(ensureInRegister(instr.getOperand(0))));
+                    break;
+                case CLEAR:
+                    // CLR resets the accumulator
+                    evict(RegId.R1, true);
+                    m_builder.CLEAR();
+                    break;
+                case JUMP:
+                    storePhiInputs();
+                    break;
+                case BRANCH:
+                {
+                    RegId lhs = ensureInRegister(instr.getOperand(0));
+                    m_pinned.add(lhs);
+                    Operand rhs = sourceOperand(instr.getOperand(1));
+                    if (rhs.getType() == DataType.Register)
+                        m_pinned.add((RegId) rhs.getEnclosed());
+                    storePhiInputs();
+                    if (isInt(instr.getOperand(0)) && isInt(instr.getOperand(1)))
+                        m_builder.CMP_I4(lhs, rhs);
+                    else
+                        m_builder.CMP(lhs, rhs);
+                    m_pinned.clear();
+                    break;
+                }
+                case RET:
+                    if (instr.getOperands().size() > 0)
+                        materialize(instr.getOperand(0), RegId.R1);
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Lowering: Unsupported operation " + instr.getOp());
+            }
+            releaseDead(instr);
+        }
+    }
+
+    private void lowerBinary(IRInstruction instr)
+    {
+        IRInstruction lhs = instr.getOperand(0),
+                      rhs = instr.getOperand(1);
+        Operand src = sourceOperand(rhs);
+        RegId dst = takeOrCopyPinned(lhs, m_pos, src);
+        boolean typed = isInt(lhs) && isInt(rhs);
+        switch (instr.getOp()) {
+            case ADD:
+                if (typed)
+                    m_builder.ADD_I4(dst, src);
+                else
+                    m_builder.ADD(dst, src);
+                break;
+            case SUB:
+                if (typed)
+                    m_builder.SUB_I4(dst, src);
+                else
+                    m_builder.SUB(dst, src);
+                break;
+            case MUL:
+                if (typed)
+                    m_builder.MUL_I4(dst, src);
+                else
+                    m_builder.MUL(dst, src);
+                break;
+            default:
+                if (typed)
+                    m_builder.EXP_I4(dst, src);
+                else
+                    m_builder.EXP(dst, src);
+        }
+        bind(instr, dst);
+        defined(instr);
+    }
+
+    /**
+     * DIV computes both the quotient (destination register) and the remainder
+     * (R4). A DIV immediately followed by the MOD of the same operands is
+     * lowered to a single instruction.
+     */
+    private void lowerDivMod(IRInstruction instr)
+    {
+        IRInstruction lhs = instr.getOperand(0),
+                      rhs = instr.getOperand(1),
+                      quot = null,
+                      rem = null;
+        int lastPos = m_pos;
+        if (instr.getOp() == IROp.DIV) {
+            quot = instr;
+            if (m_pos + 1 < m_instrs.size()) {
+                IRInstruction next = m_instrs.get(m_pos + 1);
+                if (next.getOp() == IROp.MOD && next.getOperand(0) == lhs && next.getOperand(1) == rhs) {
+                    rem = next;
+                    lastPos = m_pos + 1;
+                }
+            }
+        }
+        else
+            rem = instr;
+
+        evict(RegId.R4, true);
+        Operand src = sourceOperand(rhs);
+        RegId dst = takeOrCopyPinned(lhs, lastPos, src);
+        if (isInt(lhs) && isInt(rhs))
+            m_builder.DIV_I4(dst, src);
+        else
+            m_builder.DIV(dst, src);
+
+        if (quot != null) {
+            bind(quot, dst);
+            defined(quot);
+        }
+        if (rem != null) {
+            bind(rem, RegId.R4);
+            defined(rem);
+        }
+        // Skip the fused MOD, its operands are released with the DIV's
+        m_pos = lastPos;
+    }
+
+    /**
+     * Returns a register holding a copy of the value that may be overwritten.
+     * The value's own register is reused if this is its last use.
+     * @param val       Value
+     * @param usePos    Position of the last instruction consuming the copy
+     * @return Destination register
+     */
+    private RegId takeOrCopy(IRInstruction val, int usePos)
+    {
+        RegId reg = m_locations.get(val);
+        if (reg != null && !m_pinned.contains(reg) && lastUse(val) <= usePos) {
+            unbind(val);
+            return reg;
+        }
+        RegId dst = allocate();
+        materialize(val, dst);
+        return dst;
+    }
+
+    /**
+     * Returns whether a value is statically known to be an integer. Register
+     * contents on entry only have an assumed type.
+     */
+    private static boolean isInt(IRInstruction val)
+    {
+        return val.getType() == DataType.Int4 && val.getOp() != IROp.REG_IN;
+    }
+
+    /**
+     * takeOrCopy, leaving a register source operand untouched
+     */
+    private RegId takeOrCopyPinned(IRInstruction val, int usePos, Operand src)
+    {
+        if (src.getType() != DataType.Register)
+            return takeOrCopy(val, usePos);
+        RegId srcReg = (RegId) src.getEnclosed();
+        m_pinned.add(srcReg);
+        RegId dst = takeOrCopy(val, usePos);
+        m_pinned.remove(srcReg);
+        return dst;
+    }
+
+    /**
+     * Returns the source operand of an arithmetic or compare instruction:
+     * the value's register if it has one, otherwise an immediate or memory
+     * operand where possible
+     */
+    private Operand sourceOperand(IRInstruction val)
+    {
+        RegId reg = m_locations.get(val);
+        if (reg != null)
+            return new Operand(reg);
+        if (val.getOp() == IROp.CONST && !(val.getImmediate() instanceof String))
+            return new Operand((int) val.getImmediate());
+        if (m_folded.contains(val))
+            return new Operand(val.getType(), (int) val.getImmediate());
+        if (m_stored.contains(val))
+            return new Operand(val.getType(), slotOf(val));
+        return new Operand(ensureInRegister(val));
+    }
+
+    /**
+     * Returns whether a variable load can be left to its user: it must have
+     * a single use as the source operand of an arithmetic or compare
+     * instruction later in the block, with no store to the variable between
+     * the two
+     */
+    private boolean isFoldable(IRInstruction load)
+    {
+        if (load.getType() != DataType.Int4 || load.getUsers().size() != 1)
+            return false;
+        IRInstruction user = load.getUsers().get(0);
+        if (user instanceof Phi || user.getBlock() != m_block || user.getOperand(0) == load)
+            return false;
+        switch (user.getOp()) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case EXP:
+            case DIV:
+            case MOD:
+            case BRANCH:
+                break;
+            default:
+                return false;
+        }
+        for (int i = m_pos + 1; i < m_instrs.size(); ++i) {
+            IRInstruction instr = m_instrs.get(i);
+            if (instr == user)
+                return true;
+            if (instr.getOp() == IROp.STORE && instr.getImmediate().equals(load.getImmediate()))
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a register holding the value, loading or materializing it as
+     * needed
+     */
+    private RegId ensureInRegister(IRInstruction val)
+    {
+        RegId reg = m_locations.get(val);
+        if (reg != null)
+            return reg;
+        reg = allocate();
+        materialize(val, reg);
+        bind(val, reg);
+        return reg;
+    }
+
+    /**
+     * Emits code placing a value in a specific register
+     */
+    private void materialize(IRInstruction val, RegId dst)
+    {
+        RegId reg = m_locations.get(val);
+        if (reg == dst)
+            return;
+        if (reg != null)
+            m_builder.MOV(new Operand(dst), new Operand(reg));
+        else if (val.getOp() == IROp.CONST) {
+            Object imm = val.getImmediate();
+            m_builder.MOV(new Operand(dst), (imm instanceof String) ? new Operand((String) imm) : new Operand((int) imm));
+        }
+        else if (m_stored.contains(val) || val instanceof Phi)
+            m_builder.MOV(new Operand(dst), new Operand(val.getType(), slotOf(val)));
+        else
+            throw new IllegalStateException("Lowering: Value " + val.getName() + " is not available in " + m_block.getName());
+    }
+
+    /**
+     * Returns a free register, evicting the register whose value is needed
+     * furthest in the future if none are free
+     */
+    private RegId allocate()
+    {
+        for (RegId reg : ALLOCATABLE) {
+            if (!m_regContents.containsKey(reg) && !m_pinned.contains(reg))
+                return reg;
+        }
+        RegId victim = null;
+        int victimNextUse = -1;
+        for (RegId reg : ALLOCATABLE) {
+            if (m_pinned.contains(reg))
+                continue;
+            int nextUse = nextUse(m_regContents.get(reg));
+            if (nextUse > victimNextUse) {
+                victim = reg;
+                victimNextUse = nextUse;
+            }
+        }
+        if (victim == null)
+            throw new IllegalStateException("Lowering: Out of registers");
+        evict(victim, false);
+        return victim;
+    }
+
+    /**
+     * Frees a register. A value that is still needed is either moved to another
+     * register or spilled to memory.
+     * @param reg   Register to free
+     * @param move  Move the value to another register rather than spilling it
+     */
+    private void evict(RegId reg, boolean move)
+    {
+        IRInstruction val = m_regContents.get(reg);
+        if (val == null)
+            return;
+        if (move) {
+            m_pinned.add(reg);
+            RegId dst = allocate();
+            m_pinned.remove(reg);
+            m_builder.MOV(new Operand(dst), new Operand(reg));
+            unbind(val);
+            bind(val, dst);
+            return;
+        }
+        if (val.getOp() != IROp.CONST && !m_stored.contains(val) && !(val instanceof Phi))
+            store(val, reg);
+        unbind(val);
+    }
+
+    /**
+     * Stores the incoming values of successor phi nodes to the phis' slots.
+     * All incoming values are loaded before any slot is written, so phis
+     * reading each other's previous values are not clobbered.
+     */
+    private void storePhiInputs()
+    {
+        List<Phi> phis = new ArrayList<>();
+        List<RegId> srcs = new ArrayList<>();
+        for (BasicBlock succ : m_block.getSuccessors()) {
+            for (Phi phi : succ.getPhis()) {
+                RegId src = ensureInRegister(phi.getIncomingValue(m_block));
+                m_pinned.add(src);
+                phis.add(phi);
+                srcs.add(src);
+            }
+        }
+        for (int i = 0; i < phis.size(); ++i)
+            m_builder.MOV(new Operand(phis.get(i).getType(), slotOf(phis.get(i))), new Operand(srcs.get(i)));
+        m_pinned.removeAll(srcs);
+    }
+
+    /**
+     * Bookkeeping after a value has been defined: unused values are released
+     * immediately and values needed in other blocks are stored to their slot.
+     */
+    private void defined(IRInstruction val)
+    {
+        if (!val.isUsed())
+            unbind(val);
+        else if (usedOutsideBlock(val))
+            store(val, m_locations.get(val));
+    }
+
+    private void releaseDead(IRInstruction instr)
+    {
+        for (IRInstruction operand : instr.getOperands()) {
+            if (m_locations.containsKey(operand) && lastUse(operand) <= m_pos)
+                unbind(operand);
+        }
+    }
+
+    private void store(IRInstruction val, RegId reg)
+    {
+        if (val.getType() != DataType.Int4)
+            throw new UnsupportedOperationException("Lowering: Unable to spill value of type " + val.getType());
+        m_builder.MOV(new Operand(val.getType(), slotOf(val)), new Operand(reg));
+        m_stored.add(val);
+    }
+
+    private void bind(IRInstruction val, RegId reg)
+    {
+        m_regContents.put(reg, val);
+        m_locations.put(val, reg);
+    }
+
+    private void unbind(IRInstruction val)
+    {
+        RegId reg = m_locations.remove(val);
+        if (reg != null)
+            m_regContents.remove(reg);
+    }
+
+    private boolean usedOutsideBlock(IRInstruction val)
+    {
+        for (IRInstruction user : val.getUsers()) {
+            if (user instanceof Phi) {
+                Phi phi = (Phi) user;
+                for (int i = 0; i < phi.getOperands().size(); ++i) {
+                    if (phi.getOperand(i) == val && phi.getIncomingBlocks().get(i) != val.getBlock())
+                        return true;
+                }
+            }
+            else if (user.getBlock() != val.getBlock())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records, for every value used in the current block, the position of its
+     * last use. Incoming values of successor phis are used by the terminator.
+     */
+    private void computeLastUses()
+    {
+        m_lastUse.clear();
+        for (int i = 0; i < m_instrs.size(); ++i) {
+            for (IRInstruction operand : m_instrs.get(i).getOperands())
+                m_lastUse.put(operand, i);
+        }
+        int term = m_instrs.size() - 1;
+        for (BasicBlock succ : m_block.getSuccessors()) {
+            for (Phi phi : succ.getPhis())
+                m_lastUse.put(phi.getIncomingValue(m_block), term);
+        }
+    }
+
+    private int lastUse(IRInstruction val)
+    {
+        Integer pos = m_lastUse.get(val);
+        return pos == null ? -1 : pos;
+    }
+
+    private int nextUse(IRInstruction val)
+    {
+        for (int i = m_pos; i < m_instrs.size(); ++i) {
+            if (m_instrs.get(i).getOperands().contains(val))
+                return i;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the memory slot assigned to a value, allocating one if needed.
+     * Slots are registered in the symbol table under names that cannot clash
+     * with script variables and are reused by later compilations.
+     */
+    private int slotOf(IRInstruction val)
+    {
+        Integer offset = m_slots.get(val);
+        if (offset == null) {
+            String name = SLOT_PREFIX + m_slotCount++;
+            if (!SymbolTable.isRegistered(name))
+                SymbolTable.registerVariable(name, DataType.Int4);
+            offset = SymbolTable.getVariableParams(name).getOffset();
+            m_slots.put(val, offset);
+        }
+        return offset;
+    }
+}
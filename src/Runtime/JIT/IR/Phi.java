@@ -0,0 +1,77 @@
+package Runtime.JIT.IR;
+
+import Runtime.JIT.API.DataType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SSA phi node. Selects one of its operands according to the predecessor
+ * block control arrived from; the i-th operand is the value flowing in from
+ * the i-th incoming block.
+ * @author Joshua Boley
+ */
+public class Phi
+    extends IRInstruction
+{
+    private final List<BasicBlock> m_incomingBlocks;
+
+    Phi(int id, DataType type)
+    {
+        super(id, IROp.PHI, type, null);
+        m_incomingBlocks = new ArrayList<>();
+    }
+
+    /**
+     * Adds an incoming value
+     * @param value Value flowing in from the predecessor
+     * @param pred  Predecessor block
+     */
+    public void addIncoming(IRInstruction value, BasicBlock pred)
+    {
+        addOperand(value);
+        m_incomingBlocks.add(pred);
+    }
+
+    /**
+     * Removes the incoming value for a predecessor block
+     * @param pred Predecessor block
+     */
+    void removeIncoming(BasicBlock pred)
+    {
+        int i = m_incomingBlocks.indexOf(pred);
+        if (i < 0)
+            return;
+        removeOperand(i);
+        m_incomingBlocks.remove(i);
+    }
+
+    /**
+     * Returns the value flowing in from a predecessor block
+     * @param pred Predecessor block
+     * @return Incoming value, or null if the block is not a predecessor
+     */
+    public IRInstruction getIncomingValue(BasicBlock pred)
+    {
+        int i = m_incomingBlocks.indexOf(pred);
+        return i < 0 ? null : getOperand(i);
+    }
+
+    public List<BasicBlock> getIncomingBlocks()
+    {
+        return Collections.unmodifiableList(m_incomingBlocks);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getName()).append(":").append(getType()).append(" = PHI");
+        for (int i = 0; i < m_incomingBlocks.size(); ++i)
+            sb
+                .append(i == 0 ? " " : ", ")
+                .append("[").append(getOperand(i).getName())
+                .append(", ").append(m_incomingBlocks.get(i).getName()).append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,525 @@
+package Runtime.JIT.IR;
+
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.InstructionBuilder;
+import Runtime.JIT.API.Operand;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Instruction builder that constructs SSA form instead of VCPU instructions.
+ * Code generation tree nodes emit through the regular InstructionBuilder
+ * interface, so every instruction form is recorded exactly as a plain builder
+ * would record it. The recorded program is translated when the SSA form is
+ * requested:
+ *
+ *  - Jump targets and the instructions following jumps start basic blocks;
+ *    JMP and Jcc become JUMP and BRANCH terminators. A Jcc takes its operands
+ *    from the CMP preceding it in the same block. Code not reachable from the
+ *    program entry is not translated.
+ *  - Register and hardware stack traffic is resolved symbolically, so moves,
+ *    pushes and pops become plain value references. Values merging at join
+ *    points get phi nodes, which are created on demand and dropped again if
+ *    they turn out to be trivial (Braun et al., "Simple and Efficient
+ *    Construction of Static Single Assignment Form").
+ *  - The remainder DIV leaves in R4 is a MOD of the same operands, which is
+ *    dropped again if R4 is never read. Only remainders the program uses
+ *    reach the optimization passes, so dead code counts reflect the source.
+ *
+ * Instructions without an SSA equivalent are rejected when the SSA form is
+ * built rather than dropped.
+ * @author Joshua Boley
+ */
+public class SSABuilder
+    extends InstructionBuilder
+{
+    private final IRFunction m_function;
+    private final Map<BasicBlock, Map<Object, IRInstruction>> m_defs;  // Register/stack slot values by block
+    private final Map<BasicBlock, Map<Object, Phi>> m_incompletePhis;  // Phis of blocks with unfilled predecessors
+    private final Set<BasicBlock> m_sealed;
+    private final List<IRInstruction> m_remainders;                    // MODs created for DIVs
+    private IRInstruction m_cmpLhs, m_cmpRhs;                          // Operands of the current block's CMP
+    private boolean m_finished;
+
+    public SSABuilder()
+    {
+        m_function = new IRFunction();
+        m_defs = new HashMap<>();
+        m_incompletePhis = new HashMap<>();
+        m_sealed = new HashSet<>();
+        m_remainders = new ArrayList<>();
+        m_finished = false;
+    }
+
+    /**
+     * Terminates the program and returns its SSA form. The value held in the
+     * accumulator (R1) on exit becomes the program result.
+     * @return Program in SSA form
+     */
+    public IRFunction getFunction()
+    {
+        if (!m_finished) {
+            build(super.commit());
+            m_finished = true;
+        }
+        return m_function;
+    }
+
+    /**
+     * Lowers the SSA form directly, without running optimization passes.
+     * @return Compiled program
+     */
+    @Override
+    public List<Instruction> commit()
+    {
+        return new Lowering(getFunction()).run();
+    }
+
+    /**
+     * Console input has no SSA equivalent
+     */
+    @Override
+    public InstructionBuilder READ(Operand dst)
+    {
+        throw new UnsupportedOperationException("READ: Console input is not supported in SSA form");
+    }
+
+    @Override
+    protected void emit(Instruction instr)
+    {
+        if (m_finished)
+            throw new IllegalStateException("SSA form already finalized");
+        super.emit(instr);
+    }
+
+    private void build(List<Instruction> code)
+    {
+        int exitLine = getSourceLine(), exitCol = getSourceColumn();
+
+        // Find block boundaries; address code.size() is the program exit
+        int count = code.size();
+        boolean[] leaders = new boolean[count + 1];
+        leaders[0] = true;
+        leaders[count] = true;
+        for (int addr = 0; addr < count; ++addr) {
+            if (code.get(addr).getCode().isJump()) {
+                leaders[jumpTarget(code, addr)] = true;
+                leaders[addr + 1] = true;
+            }
+        }
+
+        // Create the blocks reachable from the entry in layout order. The
+        // entry block is kept free of incoming edges, so a jump back to the
+        // first instruction gets a block of its own. The program exit only
+        // gets a block if control can reach it other than by falling off the
+        // last block.
+        Set<Integer> reachable = new HashSet<>();
+        Deque<Integer> worklist = new ArrayDeque<>();
+        worklist.push(0);
+        while (!worklist.isEmpty()) {
+            int start = worklist.pop();
+            if (reachable.add(start) && start < count)
+                successors(code, leaders, start).forEach(worklist::push);
+        }
+        boolean exitBlock = count == 0 || isJumpTarget(code, count) || isConditionalJump(code.get(count - 1));
+        Map<Integer, BasicBlock> blocks = new HashMap<>();
+        BasicBlock entry = m_function.getEntryBlock();
+        for (int addr = 0; addr <= count; ++addr) {
+            if (reachable.contains(addr) && (addr < count || exitBlock))
+                blocks.put(addr, (addr == 0 && !isJumpTarget(code, 0)) ? entry : m_function.createBlock());
+        }
+
+        // Connect blocks before filling them, so every block knows its
+        // predecessors up front
+        if (blocks.get(0) != entry)
+            entry.addSuccessor(blocks.get(0));
+        for (int start : blocks.keySet()) {
+            for (int succ : (start < count) ? successors(code, leaders, start) : new ArrayList<Integer>()) {
+                if (blocks.containsKey(succ))
+                    blocks.get(start).addSuccessor(blocks.get(succ));
+            }
+        }
+
+        // Fill blocks in layout order, sealing each block once all of its
+        // predecessors are filled
+        Map<BasicBlock, Integer> depths = stackDepths(code, leaders, blocks);
+        Set<BasicBlock> filled = new HashSet<>();
+        trySeal(entry, filled);
+        if (blocks.get(0) != entry) {
+            m_function.terminate(entry, IROp.JUMP, null);
+            filled.add(entry);
+            trySeal(blocks.get(0), filled);
+        }
+        for (int addr = 0; addr <= count; ++addr) {
+            BasicBlock block = blocks.get(addr);
+            if (block == null)
+                continue;
+            if (addr < count)
+                translate(code, addr, blockEnd(leaders, addr), block, depths.get(block));
+            if (block.getTerminator() == null)
+                m_function.terminate(block, IROp.RET, null, readVariable(RegId.R1, block));
+            if (block.getTerminator().getOp() == IROp.RET)
+                block.getTerminator().setSourcePosition(exitLine, exitCol);
+            filled.add(block);
+            for (BasicBlock succ : block.getSuccessors())
+                trySeal(succ, filled);
+        }
+        setSourcePosition(exitLine, exitCol);
+
+        for (IRInstruction mod : m_remainders) {
+            if (!mod.isUsed())
+                mod.getBlock().remove(mod);
+        }
+
+        for (BasicBlock block : m_function.getBlocks()) {
+            for (Phi phi : block.getPhis())
+                checkPhi(phi);
+        }
+    }
+
+    /**
+     * Translates the instructions of one block and terminates it, unless it
+     * ends the program
+     */
+    private void translate(List<Instruction> code, int start, int end, BasicBlock block, int depth)
+    {
+        m_cmpLhs = null;
+        m_cmpRhs = null;
+        for (int addr = start; addr < end; ++addr) {
+            Instruction instr = code.get(addr);
+            List<Operand> operands = instr.getOperands();
+            setSourcePosition(instr.getLine(), instr.getColumn());
+            switch (instr.getCode()) {
+                case MOV:
+                {
+                    Operand dst = operands.get(0), src = operands.get(1);
+                    if (dst.getType() == DataType.Register)
+                        writeVariable(dst.getEnclosed(), block, value(block, src));
+                    else {
+                        if (!dst.isReference() || src.getType() != DataType.Register)
+                            throw new UnsupportedOperationException("MOV: Only register to memory stores supported");
+                        append(block, IROp.STORE, DataType.Empty, dst.getEnclosed(), value(block, src));
+                    }
+                    break;
+                }
+                case ADD:
+                case ADD_I4:
+                    binary(block, IROp.ADD, operands);
+                    break;
+                case SUB:
+                case SUB_I4:
+                    binary(block, IROp.SUB, operands);
+                    break;
+                case MULT:
+                case MULT_I4:
+                    binary(block, IROp.MUL, operands);
+                    break;
+                case EXP:
+                case EXP_I4:
+                    binary(block, IROp.EXP, operands);
+                    break;
+                case DIV:
+                case DIV_I4:
+                {
+                    // DIV leaves the remainder in R4, written after the quotient
+                    IRInstruction div = binary(block, IROp.DIV, operands);
+                    IRInstruction mod = append(block, IROp.MOD, div.getType(), null, div.getOperand(0), div.getOperand(1));
+                    m_remainders.add(mod);
+                    writeVariable(RegId.R4, block, mod);
+                    break;
+                }
+                case NEG:
+                case NEG_I4:
+                {
+                    RegId dst = (RegId) operands.get(0).getEnclosed();
+                    IRInstruction val = readVariable(dst, block);
+                    writeVariable(dst, block, append(block, IROp.NEG, val.getType(), null, val));
+                    m_cmpLhs = null;
+                    break;
+                }
+                case CMP:
+                case CMP_I4:
+                    m_cmpLhs = readVariable(operands.get(0).getEnclosed(), block);
+                    m_cmpRhs = value(block, operands.get(1));
+                    break;
+                case PUSH:
+                    writeVariable(depth++, block, value(block, operands.get(0)));
+                    break;
+                case POP:
+                    writeVariable(operands.get(0).getEnclosed(), block, readVariable(--depth, block));
+                    break;
+                case JMP:
+                case JL:
+                case JLE:
+                case JG:
+                case JGE:
+                case JE:
+                case JNE:
+                    // Always last in the block
+                    break;
+                case PRNT:
+                    append(block, IROp.PRINT, DataType.Empty, null, value(block, operands.get(0)));
+                    break;
+                case CLR:
+                    // Clearing the console also resets the accumulator
+                    append(block, IROp.CLEAR, DataType.Empty, null);
+                    writeVariable(RegId.R1, block, m_function.constant(""));
+                    break;
+                default:
+                    throw new UnsupportedOperationException(instr.getCode() + ": Not supported in SSA form");
+            }
+        }
+
+        Instruction last = code.get(end - 1);
+        IRInstruction term;
+        switch (block.getSuccessors().size()) {
+            case 0:
+                return;
+            case 1:
+                term = m_function.terminate(block, IROp.JUMP, null);
+                break;
+            default:
+                if (m_cmpLhs == null)
+                    throw new UnsupportedOperationException(last.getCode() + ": Conditional jumps must follow a CMP in the same block");
+                term = m_function.terminate(block, IROp.BRANCH, last.getCode(), m_cmpLhs, m_cmpRhs);
+        }
+        term.setSourcePosition(last.getLine(), last.getColumn());
+    }
+
+    /**
+     * Translates a two-operand arithmetic instruction; the result replaces
+     * the destination register and the comparison flags
+     */
+    private IRInstruction binary(BasicBlock block, IROp op, List<Operand> operands)
+    {
+        RegId dst = (RegId) operands.get(0).getEnclosed();
+        IRInstruction lhs = readVariable(dst, block), rhs = value(block, operands.get(1));
+        IRInstruction result = append(block, op, lhs.getType(), null, lhs, rhs);
+        writeVariable(dst, block, result);
+        m_cmpLhs = null;
+        return result;
+    }
+
+    /**
+     * Returns the value of a source operand: a register's current value,
+     * a constant or a variable load
+     */
+    private IRInstruction value(BasicBlock block, Operand src)
+    {
+        switch (src.getType()) {
+            case Register:
+                return readVariable(src.getEnclosed(), block);
+            case Imm_Int4:
+            case Imm_Str:
+                return m_function.constant(src.getEnclosed());
+            default:
+                if (!src.isReference())
+                    throw new UnsupportedOperationException("Unsupported source operand type " + src.getType());
+                return append(block, IROp.LOAD, src.getType(), src.getEnclosed());
+        }
+    }
+
+    private IRInstruction append(BasicBlock block, IROp op, DataType type, Object immediate, IRInstruction... operands)
+    {
+        IRInstruction instr = m_function.append(block, op, type, immediate, operands);
+        instr.setSourcePosition(getSourceLine(), getSourceColumn());
+        return instr;
+    }
+
+    private void writeVariable(Object variable, BasicBlock block, IRInstruction value)
+    {
+        m_defs.computeIfAbsent(block, b -> new HashMap<>()).put(variable, value);
+    }
+
+    /**
+     * Returns the value a register or stack slot holds at the current end of
+     * a block
+     */
+    private IRInstruction readVariable(Object variable, BasicBlock block)
+    {
+        IRInstruction val = m_defs.computeIfAbsent(block, b -> new HashMap<>()).get(variable);
+        if (val == null)
+            val = readVariableRecursive(variable, block);
+        return val;
+    }
+
+    private IRInstruction readVariableRecursive(Object variable, BasicBlock block)
+    {
+        IRInstruction val;
+        List<BasicBlock> preds = block.getPredecessors();
+        if (!m_sealed.contains(block)) {
+            Phi phi = m_function.createPhi(block, DataType.Int4);
+            m_incompletePhis.computeIfAbsent(block, b -> new HashMap<>()).put(variable, phi);
+            val = phi;
+        }
+        else if (preds.isEmpty()) {
+            // Registers read before being written yield their contents on
+            // program entry
+            if (!(variable instanceof RegId))
+                throw new IllegalStateException("Stack underflow in SSA construction");
+            val = m_function.registerIn((RegId) variable, DataType.Int4);
+        }
+        else if (preds.size() == 1)
+            val = readVariable(variable, preds.get(0));
+        else {
+            Phi phi = m_function.createPhi(block, DataType.Int4);
+            writeVariable(variable, block, phi);
+            val = addPhiOperands(variable, phi);
+        }
+        writeVariable(variable, block, val);
+        return val;
+    }
+
+    private IRInstruction addPhiOperands(Object variable, Phi phi)
+    {
+        for (BasicBlock pred : phi.getBlock().getPredecessors())
+            phi.addIncoming(readVariable(variable, pred), pred);
+        return tryRemoveTrivialPhi(phi);
+    }
+
+    /**
+     * Replaces a phi merging a single value (besides itself) by that value,
+     * then retries the phis that used it
+     */
+    private IRInstruction tryRemoveTrivialPhi(Phi phi)
+    {
+        IRInstruction same = null;
+        for (IRInstruction operand : phi.getOperands()) {
+            if (operand == same || operand == phi)
+                continue;
+            if (same != null)
+                return phi;
+            same = operand;
+        }
+        if (same == null)
+            throw new IllegalStateException(phi.getName() + ": Phi without incoming values");
+
+        IRInstruction value = same;
+        List<IRInstruction> users = new ArrayList<>(phi.getUsers());
+        phi.replaceAllUsesWith(value);
+        phi.getBlock().remove(phi);
+        for (Map<Object, IRInstruction> defs : m_defs.values())
+            defs.replaceAll((variable, val) -> val == phi ? value : val);
+        for (IRInstruction user : users) {
+            if (user != phi && user instanceof Phi && user.getBlock() != null)
+                tryRemoveTrivialPhi((Phi) user);
+        }
+        return value;
+    }
+
+    private void trySeal(BasicBlock block, Set<BasicBlock> filled)
+    {
+        if (m_sealed.contains(block) || !filled.containsAll(block.getPredecessors()))
+            return;
+        Map<Object, Phi> phis = m_incompletePhis.remove(block);
+        if (phis != null)
+            phis.forEach(this::addPhiOperands);
+        m_sealed.add(block);
+    }
+
+    /**
+     * Phi values live in integer memory slots once lowered, so every merged
+     * value must be statically known to be an integer
+     */
+    private static void checkPhi(Phi phi)
+    {
+        for (IRInstruction operand : phi.getOperands()) {
+            if (operand.getType() != DataType.Int4 || operand.getOp() == IROp.REG_IN)
+                throw new UnsupportedOperationException(phi.getName() + ": Only integer values may be merged at join points");
+        }
+    }
+
+    /**
+     * Computes the hardware stack depth on entry to each block, which must
+     * agree on every path into the block
+     */
+    private static Map<BasicBlock, Integer> stackDepths(List<Instruction> code, boolean[] leaders,
+                                                        Map<Integer, BasicBlock> blocks)
+    {
+        Map<BasicBlock, Integer> depths = new HashMap<>();
+        Map<BasicBlock, Integer> starts = new HashMap<>();
+        blocks.forEach((start, block) -> starts.put(block, start));
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        depths.put(blocks.get(0), 0);
+        worklist.push(blocks.get(0));
+        while (!worklist.isEmpty()) {
+            BasicBlock block = worklist.pop();
+            int start = starts.get(block), depth = depths.get(block);
+            int end = (start < code.size()) ? blockEnd(leaders, start) : start;
+            for (int addr = start; addr < end; ++addr) {
+                Opcodes opcode = code.get(addr).getCode();
+                if (opcode == Opcodes.PUSH)
+                    ++depth;
+                else if (opcode == Opcodes.POP && --depth < 0)
+                    throw new UnsupportedOperationException("POP: Stack underflow in SSA construction");
+            }
+            for (BasicBlock succ : block.getSuccessors()) {
+                Integer known = depths.putIfAbsent(succ, depth);
+                if (known == null)
+                    worklist.push(succ);
+                else if (known != depth)
+                    throw new UnsupportedOperationException(succ.getName() + ": Stack depth differs between incoming paths");
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * Returns the start addresses of a block's successors, the taken target
+     * of a conditional jump first
+     */
+    private static List<Integer> successors(List<Instruction> code, boolean[] leaders, int start)
+    {
+        int end = blockEnd(leaders, start);
+        Instruction last = code.get(end - 1);
+        List<Integer> succs = new ArrayList<>();
+        if (last.getCode().isJump() && jumpTarget(code, end - 1) != end)
+            succs.add(jumpTarget(code, end - 1));
+        if (last.getCode() != Opcodes.JMP || jumpTarget(code, end - 1) == end)
+            succs.add(end);
+        return succs;
+    }
+
+    private static int blockEnd(boolean[] leaders, int start)
+    {
+        int end = start + 1;
+        while (!leaders[end])
+            ++end;
+        return end;
+    }
+
+    private static boolean isConditionalJump(Instruction instr)
+    {
+        return instr.getCode().isJump() && instr.getCode() != Opcodes.JMP;
+    }
+
+    private static boolean isJumpTarget(List<Instruction> code, int addr)
+    {
+        for (int i = 0; i < code.size(); ++i) {
+            if (code.get(i).getCode().isJump() && jumpTarget(code, i) == addr)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the absolute target of a relative jump
+     */
+    private static int jumpTarget(List<Instruction> code, int addr)
+    {
+        Instruction instr = code.get(addr);
+        int target = addr + instr.getJumpOffset();
+        if (target < 0 || target > code.size())
+            throw new UnsupportedOperationException(instr.getCode() + ": Jump target " + target + " outside of the program");
+        return target;
+    }
+}
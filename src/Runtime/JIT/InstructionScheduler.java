@@ -0,0 +1,408 @@
+package Runtime.JIT;
+
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import Runtime.Machine.LatencyTable;
+import Runtime.Machine.PipelineModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * List scheduler reordering the instructions of each basic block so that
+ * independent instructions fill the delay between a long-latency operation or
+ * a load and the instruction consuming its result. Blocks keep their
+ * addresses, so jump offsets stay valid, and jumps stay last in their block.
+ *
+ * Instructions are ordered by register, flag and variable dependences.
+ * Instructions with an effect beyond their results (output, stores, stack
+ * operations and operations that may fault at run time) also keep their
+ * relative order, so a failing script prints and stores exactly what it did
+ * before. Flag writes nobody reads may move past each other.
+ *
+ * A block is only rewritten if the schedule is estimated to take fewer
+ * cycles on the virtual CPU's pipeline than the original order.
+ * @author Joshua Boley
+ */
+public class InstructionScheduler
+{
+    private static final int FLAGS = RegId.values().length;    // Dependence slot of the flags
+
+    private final LatencyTable m_latencies;
+    private final int m_memoryCycles;
+    private int m_reordered;
+
+    public InstructionScheduler()
+    {
+        this(new LatencyTable(), PipelineModel.DEFAULT_MEMORY_CYCLES);
+    }
+
+    /**
+     * @param latencies    Execute latency per opcode
+     * @param memoryCycles Cycles a variable or stack access takes
+     */
+    public InstructionScheduler(LatencyTable latencies, int memoryCycles)
+    {
+        m_latencies = latencies;
+        m_memoryCycles = memoryCycles;
+        m_reordered = 0;
+    }
+
+    /**
+     * Returns the number of blocks reordered by the last run
+     * @return Reordered block count
+     */
+    public int getReorderedCount()
+    {
+        return m_reordered;
+    }
+
+    /**
+     * Returns a copy of the program with its blocks scheduled
+     * @param program Compiled program
+     * @return Scheduled program
+     */
+    public List<Instruction> run(List<Instruction> program)
+    {
+        int size = program.size();
+
+        // Blocks start at jump targets and after jumps
+        boolean[] isLeader = new boolean[size + 1];
+        isLeader[0] = true;
+        for (int i = 0; i < size; ++i) {
+            Instruction instr = program.get(i);
+            if (instr.getCode().isJump()) {
+                int target = i + instr.getJumpOffset();
+                if (target < 0 || target > size)
+                    throw new IllegalArgumentException(instr.getCode() + ": Jump target out of range at " + i);
+                isLeader[target] = true;
+                isLeader[i + 1] = true;
+            }
+        }
+
+        List<Instruction> result = new ArrayList<>(program);
+        m_reordered = 0;
+        for (int start = 0, end; start < size; start = end) {
+            for (end = start + 1; end < size && !isLeader[end]; ++end);
+            if (end - start > 2 && schedule(result.subList(start, end)))
+                ++m_reordered;
+        }
+        return result;
+    }
+
+    /**
+     * Schedules a block in place
+     * @return True if the block was reordered
+     */
+    private boolean schedule(List<Instruction> block)
+    {
+        Node[] nodes = buildGraph(block);
+
+        // A block-ending jump is not scheduled; everything precedes it
+        int count = block.get(block.size() - 1).getCode().isJump() ? nodes.length - 1 : nodes.length;
+
+        // Priority is the latency-weighted path length to the end of the
+        // block
+        for (int i = nodes.length - 1; i >= 0; --i) {
+            nodes[i].height = nodes[i].delay;
+            for (Edge edge : nodes[i].successors)
+                nodes[i].height = Math.max(nodes[i].height, edge.delay + nodes[edge.to].height);
+        }
+
+        PriorityQueue<Node> pending = new PriorityQueue<>(
+            (Node a, Node b) -> a.earliest != b.earliest ? Long.compare(a.earliest, b.earliest) : Integer.compare(a.index, b.index)
+        );
+        PriorityQueue<Node> available = new PriorityQueue<>(
+            (Node a, Node b) -> a.height != b.height ? Long.compare(b.height, a.height) : Integer.compare(a.index, b.index)
+        );
+        for (int i = 0; i < count; ++i) {
+            if (nodes[i].predecessors == 0)
+                pending.add(nodes[i]);
+        }
+        int[] order = new int[nodes.length];
+        long cycle = 0;
+        for (int n = 0; n < count; ++n, ++cycle) {
+            if (available.isEmpty())
+                cycle = Math.max(cycle, pending.peek().earliest);
+            while (!pending.isEmpty() && pending.peek().earliest <= cycle)
+                available.add(pending.poll());
+            Node next = available.poll();
+            order[n] = next.index;
+            for (Edge edge : next.successors) {
+                Node successor = nodes[edge.to];
+                successor.earliest = Math.max(successor.earliest, cycle + edge.delay);
+                if (--successor.predecessors == 0 && edge.to < count)
+                    pending.add(successor);
+            }
+        }
+        for (int i = count; i < nodes.length; ++i)
+            order[i] = i;
+
+        int[] original = new int[nodes.length];
+        for (int i = 0; i < original.length; ++i)
+            original[i] = i;
+        if (estimate(nodes, order) >= estimate(nodes, original))
+            return false;
+
+        Instruction[] scheduled = new Instruction[order.length];
+        for (int i = 0; i < order.length; ++i)
+            scheduled[i] = block.get(order[i]);
+        for (int i = 0; i < scheduled.length; ++i)
+            block.set(i, scheduled[i]);
+        return true;
+    }
+
+    /**
+     * Estimates the cycles a block takes to issue in a given order and
+     * complete, with multi-cycle operations sharing one unpipelined unit
+     */
+    private long estimate(Node[] nodes, int[] order)
+    {
+        long[] earliest = new long[nodes.length];
+        long issue = -1, unitFree = 0, done = 0;
+        for (int index : order) {
+            Node node = nodes[index];
+            issue = Math.max(issue + 1, earliest[index]);
+            if (node.unit) {
+                issue = Math.max(issue, unitFree);
+                unitFree = issue + node.delay;
+            }
+            for (Edge edge : node.successors)
+                earliest[edge.to] = Math.max(earliest[edge.to], issue + edge.delay);
+            done = Math.max(done, issue + node.delay);
+        }
+        return done;
+    }
+
+    /**
+     * Builds the dependence graph of a block. Edges run from an instruction
+     * to a later one and carry the cycles that must separate them: the
+     * producer's delay for a true dependence, one cycle for ordering.
+     */
+    private Node[] buildGraph(List<Instruction> block)
+    {
+        Node[] nodes = new Node[block.size()];
+        for (int i = 0; i < nodes.length; ++i)
+            nodes[i] = new Node(i, block.get(i));
+
+        // Flags are only tracked for writes that are read, or may be read
+        // after the block; other writes just stay between them
+        boolean[] flagsLive = new boolean[nodes.length];
+        boolean read = true;
+        for (int i = nodes.length - 1; i >= 0; --i) {
+            Opcodes opcode = nodes[i].instr.getCode();
+            if (opcode.readsFlags())
+                read = true;
+            else if (opcode.setsFlags()) {
+                flagsLive[i] = read;
+                read = false;
+            }
+        }
+
+        int[] lastDef = new int[FLAGS];
+        Arrays.fill(lastDef, -1);
+        List<List<Integer>> usesSinceDef = new ArrayList<>();
+        for (int r = 0; r < FLAGS; ++r)
+            usesSinceDef.add(new ArrayList<>());
+        Map<Integer, Integer> lastStore = new HashMap<>();
+        Map<Integer, List<Integer>> loadsSinceStore = new HashMap<>();
+        int lastEffect = -1, lastFlagPoint = -1;
+        List<Integer> deadFlagWrites = new ArrayList<>();
+
+        for (int i = 0; i < nodes.length; ++i) {
+            Node node = nodes[i];
+            Opcodes opcode = node.instr.getCode();
+
+            // Registers
+            for (int reg : node.uses) {
+                if (lastDef[reg] >= 0)
+                    link(nodes, lastDef[reg], i, nodes[lastDef[reg]].delay);
+                usesSinceDef.get(reg).add(i);
+            }
+            for (int reg : node.defs) {
+                if (lastDef[reg] >= 0)
+                    link(nodes, lastDef[reg], i, 1);
+                for (int use : usesSinceDef.get(reg)) {
+                    if (use != i)
+                        link(nodes, use, i, 1);
+                }
+                usesSinceDef.get(reg).clear();
+                lastDef[reg] = i;
+            }
+
+            // Variables
+            for (int offset : node.loads) {
+                Integer store = lastStore.get(offset);
+                if (store != null)
+                    link(nodes, store, i, 1);
+                loadsSinceStore.computeIfAbsent(offset, (Integer key) -> new ArrayList<>()).add(i);
+            }
+            for (int offset : node.stores) {
+                Integer store = lastStore.get(offset);
+                if (store != null)
+                    link(nodes, store, i, 1);
+                for (int load : loadsSinceStore.getOrDefault(offset, new ArrayList<>())) {
+                    if (load != i)
+                        link(nodes, load, i, 1);
+                }
+                loadsSinceStore.remove(offset);
+                lastStore.put(offset, i);
+            }
+
+            // Flags
+            if (opcode.setsFlags() && !flagsLive[i]) {
+                if (lastFlagPoint >= 0)
+                    link(nodes, lastFlagPoint, i, 1);
+                deadFlagWrites.add(i);
+            }
+            else if (opcode.setsFlags() || opcode.readsFlags()) {
+                if (lastFlagPoint >= 0) {
+                    boolean consumes = opcode.readsFlags() && nodes[lastFlagPoint].instr.getCode().setsFlags();
+                    link(nodes, lastFlagPoint, i, consumes ? nodes[lastFlagPoint].delay : 1);
+                }
+                for (int write : deadFlagWrites)
+                    link(nodes, write, i, 1);
+                deadFlagWrites.clear();
+                lastFlagPoint = i;
+            }
+
+            // Effects
+            if (node.effect) {
+                if (lastEffect >= 0)
+                    link(nodes, lastEffect, i, 1);
+                lastEffect = i;
+            }
+        }
+
+        // Everything precedes a block-ending jump
+        int last = nodes.length - 1;
+        if (nodes[last].instr.getCode().isJump()) {
+            for (int i = 0; i < last; ++i)
+                link(nodes, i, last, 1);
+        }
+        return nodes;
+    }
+
+    private static void link(Node[] nodes, int from, int to, int delay)
+    {
+        nodes[from].successors.add(new Edge(to, delay));
+        ++nodes[to].predecessors;
+    }
+
+    /**
+     * Returns whether an opcode may fail at run time: operations whose
+     * operand types are checked, division by zero and stack overflow
+     */
+    private static boolean mayFault(Opcodes opcode)
+    {
+        switch (opcode) {
+            case MOV:
+            case SETL:
+            case SETLE:
+            case SETG:
+            case SETGE:
+            case SETE:
+            case SETNE:
+            case JMP:
+            case JL:
+            case JLE:
+            case JG:
+            case JGE:
+            case JE:
+            case JNE:
+            case LDPRNT:
+            case MOVST:
+            case ADDST:
+            case SUBST:
+            case MULTST:
+                return false;
+            default:
+                return !opcode.isTyped() || opcode == Opcodes.DIV_I4;
+        }
+    }
+
+    /**
+     * Block instruction with its dependence information
+     */
+    private class Node
+    {
+        final int index;
+        final Instruction instr;
+        final List<Integer> defs;       // Registers written
+        final List<Integer> uses;       // Registers read
+        final List<Integer> loads;      // Variable offsets read
+        final List<Integer> stores;     // Variable offsets written
+        final boolean effect;           // Must keep its order relative to other effects
+        final boolean unit;             // Runs in the long-latency unit
+        final int delay;                // Cycles from issue until the results can be used
+        final List<Edge> successors;
+        int predecessors;
+        long height;
+        long earliest;
+
+        Node(int index, Instruction instr)
+        {
+            this.index = index;
+            this.instr = instr;
+            defs = new ArrayList<>(2);
+            uses = new ArrayList<>(2);
+            loads = new ArrayList<>(1);
+            stores = new ArrayList<>(1);
+            successors = new ArrayList<>();
+            predecessors = 0;
+            height = 0;
+            earliest = 0;
+
+            Opcodes opcode = instr.getCode();
+            List<Operand> operands = instr.getOperands() == null ? new ArrayList<>() : instr.getOperands();
+            for (int n = 0; n < operands.size(); ++n) {
+                Operand op = operands.get(n);
+                if (op.isReference()) {
+                    // The destination of MOV and the third operand of a
+                    // store superinstruction are written
+                    if (n == 2 || (n == 0 && opcode == Opcodes.MOV))
+                        stores.add((int) op.getEnclosed());
+                    else
+                        loads.add((int) op.getEnclosed());
+                }
+                else if (op.getType() == DataType.Register) {
+                    int reg = ((RegId) op.getEnclosed()).ordinal();
+                    if (n > 0 || opcode.readsFirst())
+                        uses.add(reg);
+                    if (n == 0 && opcode.writesFirst())
+                        defs.add(reg);
+                }
+            }
+            if (opcode.implicitResult() != null)
+                defs.add(opcode.implicitResult().ordinal());
+            if (opcode == Opcodes.PUSH || opcode == Opcodes.POP) {
+                uses.add(RegId.SP.ordinal());
+                defs.add(RegId.SP.ordinal());
+            }
+
+            boolean io = opcode == Opcodes.PRNT || opcode == Opcodes.LDPRNT || opcode == Opcodes.CLR;
+            effect = io || !stores.isEmpty() || mayFault(opcode);
+            int latency = m_latencies.get(opcode);
+            unit = latency > 1;
+            delay = latency + (loads.isEmpty() && opcode != Opcodes.POP ? 0 : m_memoryCycles);
+        }
+    }
+
+    private static class Edge
+    {
+        final int to;
+        final int delay;
+
+        Edge(int to, int delay)
+        {
+            this.to = to;
+            this.delay = delay;
+        }
+    }
+}
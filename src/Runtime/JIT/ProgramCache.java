@@ -0,0 +1,300 @@
+package Runtime.JIT;
+
+import Runtime.JIT.API.DataType;
+import Runtime.Machine.Interface.Bytecode;
+import Runtime.Machine.Interface.LineTable;
+import Runtime.Machine.Interface.ScopeTable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Content-addressed on-disk cache of compiled scripts. Entries are keyed by a
+ * hash of the compiler version, the symbol layout the script was compiled
+ * against and the script source, and hold the encoded program together with
+ * the symbols its compilation registered.
+ *
+ * Entry file layout (big-endian):
+ *   int     magic
+ *   int     format version
+ *   int     compiler version
+ *   int     eliminated instruction count (for the optimization note)
+ *   int     symbol count, then per symbol: string name, int type, int offset
+ *   int     code length, then the instruction words
+ *   int     constant count, then the string constants
+ *   int     line table entry count, then per entry: int start address,
+ *           int line, int column
+ *   int     scope count, then per scope: int line, int column, int parent,
+ *           string label
+ *   int     CRC-32 of all preceding bytes
+ * Strings are stored as a length followed by UTF-8 bytes.
+ * @author Joshua Boley
+ */
+public class ProgramCache
+{
+    private static final int MAGIC = 0x4C4F4D43;            // "LOMC"
+    private static final int FORMAT_VERSION = 3;
+    private static final String SUFFIX = ".lpc";
+    private static final DataType[] TYPES = DataType.values();
+
+    /**
+     * Cache hit. Holds the cached program and the symbols to re-register
+     * before it runs.
+     */
+    static final class Entry
+    {
+        final Bytecode program;
+        final int eliminated;
+        final List<String> symbolNames;
+        final List<DataType> symbolTypes;
+        final List<Integer> symbolOffsets;
+
+        private Entry(Bytecode program, int eliminated, List<String> names, List<DataType> types, List<Integer> offsets)
+        {
+            this.program = program;
+            this.eliminated = eliminated;
+            symbolNames = names;
+            symbolTypes = types;
+            symbolOffsets = offsets;
+        }
+    }
+
+    private final Path m_dir;
+
+    /**
+     * Opens a cache in the given directory, creating it if required
+     * @param dir Cache directory
+     * @throws IOException
+     */
+    public ProgramCache(Path dir) throws IOException
+    {
+        m_dir = Files.createDirectories(dir);
+    }
+
+    /**
+     * Opens the default cache. Caching is opt-in: the cache is located in the
+     * directory named by the labomath.cache.dir system property, and nothing
+     * is written to disk unless the property is set to a non-empty path.
+     * @return Cache or null if caching is disabled or unavailable
+     */
+    public static ProgramCache openDefault()
+    {
+        String dir = System.getProperty("labomath.cache.dir", "");
+        if (dir.isEmpty())
+            return null;
+        try {
+            return new ProgramCache(Paths.get(dir));
+        } catch (IOException | SecurityException ex) {
+            Logger.getLogger(ProgramCache.class.getName()).log(Level.WARNING, "Program cache unavailable", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cache key of the source under the current symbol layout
+     * @param source Script source
+     * @return Cache key
+     */
+    String key(byte[] source)
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        digest.update(toBytes(FORMAT_VERSION));
+        digest.update(toBytes(Compiler.VERSION));
+        SymbolTable.digestLayout(digest);
+        digest.update(toBytes(source.length));
+        digest.update(source);
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest())
+            key.append(String.format("%02x", b));
+        return key.toString();
+    }
+
+    /**
+     * Looks up a compiled program. Entries that are truncated, corrupt or
+     * from another compiler version are treated as misses.
+     * @param key Cache key
+     * @return Cached entry or null on a miss
+     */
+    Entry load(String key)
+    {
+        // Read into memory rather than mapping the file; a mapping holds the
+        // file open until it is garbage collected, which on Windows keeps
+        // store() from replacing the entry
+        Path file = m_dir.resolve(key + SUFFIX);
+        try {
+            return read(ByteBuffer.wrap(Files.readAllBytes(file)));
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(ProgramCache.class.getName()).log(Level.WARNING, "Discarding unreadable cache entry " + file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a compiled program. Failures are logged and otherwise ignored.
+     * @param key        Cache key
+     * @param program    Compiled program
+     * @param eliminated Number of instructions eliminated by optimization
+     * @param symbols    Symbols registered while compiling the program
+     */
+    void store(String key, Bytecode program, int eliminated, List<SymbolTable.Entry> symbols)
+    {
+        Path file = m_dir.resolve(key + SUFFIX);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(Compiler.VERSION);
+            out.writeInt(eliminated);
+            out.writeInt(symbols.size());
+            for (SymbolTable.Entry symbol : symbols) {
+                writeString(out, symbol.getName());
+                out.writeInt(symbol.getType().ordinal());
+                out.writeInt(symbol.getOffset());
+            }
+            int[] code = program.getCode();
+            out.writeInt(code.length);
+            for (int word : code)
+                out.writeInt(word);
+            String[] constants = program.getConstants();
+            out.writeInt(constants.length);
+            for (String constant : constants)
+                writeString(out, constant);
+            LineTable lines = program.getLineTable();
+            out.writeInt(lines.getEntryCount());
+            for (int i = 0; i < lines.getEntryCount(); ++i) {
+                out.writeInt(lines.getStart(i));
+                out.writeInt(lines.getLine(i));
+                out.writeInt(lines.getColumn(i));
+            }
+            ScopeTable scopes = program.getScopeTable();
+            out.writeInt(scopes.size());
+            for (int i = 0; i < scopes.size(); ++i) {
+                out.writeInt(scopes.getLine(i));
+                out.writeInt(scopes.getColumn(i));
+                out.writeInt(scopes.getParent(i));
+                writeString(out, scopes.getLabel(i));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+            out.flush();
+
+            // Write to a temporary file first so readers never see a partial entry
+            Path tmp = Files.createTempFile(m_dir, key, ".tmp");
+            try {
+                Files.write(tmp, bytes.toByteArray());
+                try {
+                    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ProgramCache.class.getName()).log(Level.WARNING, "Unable to write cache entry " + file, ex);
+        }
+    }
+
+    private static Entry read(ByteBuffer data) throws IOException
+    {
+        // Verify the checksum before trusting any of the contents
+        if (data.remaining() < 8)
+            throw new IOException("Truncated cache entry");
+        int end = data.limit() - 4;
+        ByteBuffer body = data.duplicate();
+        body.limit(end);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != data.getInt(end))
+            throw new IOException("Cache entry checksum mismatch");
+        data.limit(end);
+
+        if (data.getInt() != MAGIC)
+            throw new IOException("Not a cache entry");
+        if (data.getInt() != FORMAT_VERSION || data.getInt() != Compiler.VERSION)
+            return null;
+        int eliminated = data.getInt();
+        int symbolCount = data.getInt();
+        List<String> names = new ArrayList<>();
+        List<DataType> types = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i < symbolCount; ++i) {
+            names.add(readString(data));
+            types.add(TYPES[data.getInt()]);
+            offsets.add(data.getInt());
+        }
+        int[] code = new int[data.getInt()];
+        data.asIntBuffer().get(code);
+        data.position(data.position() + code.length * 4);
+        String[] constants = new String[data.getInt()];
+        for (int i = 0; i < constants.length; ++i)
+            constants[i] = readString(data);
+        int lineEntries = data.getInt();
+        int[] starts = new int[lineEntries], lines = new int[lineEntries], cols = new int[lineEntries];
+        for (int i = 0; i < lineEntries; ++i) {
+            starts[i] = data.getInt();
+            lines[i] = data.getInt();
+            cols[i] = data.getInt();
+        }
+        int scopeCount = data.getInt();
+        int[] scopeLines = new int[scopeCount], scopeCols = new int[scopeCount], parents = new int[scopeCount];
+        String[] labels = new String[scopeCount];
+        for (int i = 0; i < scopeCount; ++i) {
+            scopeLines[i] = data.getInt();
+            scopeCols[i] = data.getInt();
+            parents[i] = data.getInt();
+            labels[i] = readString(data);
+        }
+        if (data.hasRemaining())
+            throw new IOException("Trailing data in cache entry");
+
+        Bytecode program = new Bytecode(
+            code, constants, new LineTable(starts, lines, cols),
+            new ScopeTable(scopeLines, scopeCols, parents, labels)
+        );
+        return new Entry(program, eliminated, names, types, offsets);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer data)
+    {
+        byte[] utf8 = new byte[data.getInt()];
+        data.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] toBytes(int value)
+    {
+        return new byte[] { (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value };
+    }
+}
@@ -0,0 +1,94 @@
+package Runtime.JIT;
+
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.Superinstructions;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Peephole pass replacing adjacent instruction pairs with superinstructions
+ * from the built-in table, halving the number of dispatches the interpreter
+ * performs for them. A pair is not fused if a jump targets its second
+ * instruction. Relative jump offsets are rewritten to account for the merged
+ * instructions.
+ * @author Joshua Boley
+ */
+public class SuperinstructionFusion
+{
+    private int m_fused;
+
+    public SuperinstructionFusion()
+    {
+        m_fused = 0;
+    }
+
+    /**
+     * Returns the number of instruction pairs fused by the last run
+     * @return Fused pair count
+     */
+    public int getFusedCount()
+    {
+        return m_fused;
+    }
+
+    /**
+     * Returns a copy of the program with fusible pairs replaced
+     * @param program Compiled program
+     * @return Program using superinstructions
+     */
+    public List<Instruction> run(List<Instruction> program)
+    {
+        int size = program.size();
+
+        // Instructions that are jump targets must remain separate
+        boolean[] isTarget = new boolean[size + 1];
+        for (int i = 0; i < size; ++i) {
+            Instruction instr = program.get(i);
+            if (instr.getCode().isJump()) {
+                int target = i + instr.getJumpOffset();
+                if (target < 0 || target > size)
+                    throw new IllegalArgumentException(instr.getCode() + ": Jump target out of range at " + i);
+                isTarget[target] = true;
+            }
+        }
+
+        // Select pairs left to right, mapping old addresses to new ones
+        Instruction[] fused = new Instruction[size];
+        int[] newAddr = new int[size + 1];
+        int next = 0;
+        for (int i = 0; i < size; ++i) {
+            newAddr[i] = next++;
+            if (i + 1 < size && !isTarget[i + 1]) {
+                fused[i] = Superinstructions.fuse(program.get(i), program.get(i + 1));
+                if (fused[i] != null) {
+                    fused[i].setSourcePosition(program.get(i).getLine(), program.get(i).getColumn());
+                    newAddr[i + 1] = newAddr[i];
+                    ++i;
+                }
+            }
+        }
+        newAddr[size] = next;
+
+        List<Instruction> result = new ArrayList<>(next);
+        for (int i = 0; i < size; ++i) {
+            if (fused[i] != null) {
+                result.add(fused[i]);
+                ++i;
+                continue;
+            }
+            Instruction instr = program.get(i);
+            if (instr.getCode().isJump()) {
+                List<Operand> operands = new ArrayList<>();
+                operands.add(new Operand(newAddr[i + instr.getJumpOffset()] - newAddr[i]));
+                Instruction jump = new Instruction(instr.getCode(), operands);
+                jump.setSourcePosition(instr.getLine(), instr.getColumn());
+                instr = jump;
+            }
+            result.add(instr);
+        }
+        m_fused = size - result.size();
+        return result;
+    }
+}
@@ -2,7 +2,12 @@ package Runtime.JIT;
 
 import Runtime.JIT.API.DataType;
 import Runtime.Machine.StaticMemory;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -69,11 +74,70 @@ public class SymbolTable
     {
         return symbolTable.hasSymbolDefinition(name);
     }
+
+    /**
+     * Returns the variable stored at an offset
+     * @param offset Offset into the variable store
+     * @return Variable's identifier, null if no variable starts at the offset
+     */
+    public static String getVariableName(int offset)
+    {
+        for (Entry entry : symbolTable.m_catalog.values()) {
+            if (entry.getOffset() == offset)
+                return entry.getName();
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the number of registered symbols
+     * @return Symbol count
+     */
+    static int getSymbolCount()
+    {
+        return symbolTable.m_catalog.size();
+    }
+    
+    /**
+     * Returns the symbols registered after the first skip symbols, in
+     * registration order
+     * @param skip Number of symbols to skip
+     * @return Symbol entries
+     */
+    static List<Entry> getSymbolsSince(int skip)
+    {
+        List<Entry> entries = new ArrayList<>();
+        Iterator<Entry> it = symbolTable.m_catalog.values().iterator();
+        for (int i = 0; it.hasNext(); ++i) {
+            Entry entry = it.next();
+            if (i >= skip)
+                entries.add(entry);
+        }
+        return entries;
+    }
+    
+    /**
+     * Feeds the symbol layout (names, types and storage offsets in
+     * registration order) to the digest
+     * @param digest Message digest
+     */
+    static void digestLayout(MessageDigest digest)
+    {
+        for (Entry entry : symbolTable.m_catalog.values()) {
+            digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update((byte) entry.getType().ordinal());
+            digest.update(new byte[] {
+                (byte) (entry.getOffset() >> 24), (byte) (entry.getOffset() >> 16),
+                (byte) (entry.getOffset() >> 8), (byte) entry.getOffset()
+            });
+        }
+    }
     
-    private final Map<String, Entry> m_catalog;
+    private final Map<String, Entry> m_catalog;         // Entries in registration (allocation) order
     public SymbolTable()
     {
-        m_catalog = new HashMap<>();
+        m_catalog = new LinkedHashMap<>();
     }
     
     private void createSymbolEntry(String name, DataType type)
@@ -0,0 +1,86 @@
+package Runtime.JIT;
+
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import Runtime.Machine.Interface.Opcodes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Removes instructions that can never execute from a compiled program, such
+ * as code following an unconditional JMP that no jump targets. Relative jump
+ * offsets are rewritten to account for the removed instructions.
+ * @author Joshua Boley
+ */
+public class UnreachableCodeElimination
+{
+    private int m_eliminated;
+
+    public UnreachableCodeElimination()
+    {
+        m_eliminated = 0;
+    }
+
+    /**
+     * Returns the number of instructions removed by the last run
+     * @return Eliminated instruction count
+     */
+    public int getEliminatedCount()
+    {
+        return m_eliminated;
+    }
+
+    /**
+     * Returns a copy of the program without unreachable instructions
+     * @param program Compiled program
+     * @return Program with unreachable instructions removed
+     */
+    public List<Instruction> run(List<Instruction> program)
+    {
+        int size = program.size();
+
+        // Mark instructions reachable from the program entry point
+        boolean[] reachable = new boolean[size];
+        Deque<Integer> worklist = new ArrayDeque<>();
+        if (size > 0)
+            worklist.push(0);
+        while (!worklist.isEmpty()) {
+            int addr = worklist.pop();
+            if (addr < 0 || addr >= size || reachable[addr])
+                continue;
+            reachable[addr] = true;
+            Instruction instr = program.get(addr);
+            if (instr.getCode().isJump())
+                worklist.push(addr + instr.getJumpOffset());
+            if (instr.getCode() != Opcodes.JMP)
+                worklist.push(addr + 1);
+        }
+
+        // Map old addresses to new ones; the address past the end stays the exit
+        int[] newAddr = new int[size + 1];
+        for (int i = 0; i < size; ++i)
+            newAddr[i + 1] = newAddr[i] + (reachable[i] ? 1 : 0);
+
+        List<Instruction> result = new ArrayList<>(newAddr[size]);
+        for (int i = 0; i < size; ++i) {
+            if (!reachable[i])
+                continue;
+            Instruction instr = program.get(i);
+            if (instr.getCode().isJump()) {
+                int target = i + instr.getJumpOffset();
+                if (target < 0 || target > size)
+                    throw new IllegalArgumentException(instr.getCode() + ": Jump target out of range at " + i);
+                List<Operand> operands = new ArrayList<>();
+                operands.add(new Operand(newAddr[target] - newAddr[i]));
+                Instruction jump = new Instruction(instr.getCode(), operands);
+                jump.setSourcePosition(instr.getLine(), instr.getColumn());
+                instr = jump;
+            }
+            result.add(instr);
+        }
+        m_eliminated = size - result.size();
+        return result;
+    }
+}
@@ -0,0 +1,34 @@
+package Runtime.Machine;
+
+/**
+ * Branch direction predictor model. The branch simulator asks for a
+ * prediction for every conditional jump the interpreter executes, then
+ * reports the actual outcome. Branch sites are identified by instruction
+ * address, so sites of different programs may share predictor state, as
+ * aliasing branches would in hardware.
+ * @author Joshua Boley
+ */
+public interface BranchPredictor
+{
+    String getName();
+
+    /**
+     * Predicts whether a conditional jump is taken
+     * @param addr   Address of the jump
+     * @param offset Relative jump offset
+     * @return True if predicted taken
+     */
+    boolean predict(int addr, int offset);
+
+    /**
+     * Trains the predictor with the outcome of the jump just predicted
+     * @param addr  Address of the jump
+     * @param taken True if the jump was taken
+     */
+    void update(int addr, boolean taken);
+
+    /**
+     * Returns the predictor to its initial state
+     */
+    void reset();
+}
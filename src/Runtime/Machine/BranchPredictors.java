@@ -0,0 +1,299 @@
+package Runtime.Machine;
+
+import java.util.Arrays;
+
+/**
+ * Branch predictor models, from a static heuristic to a simplified TAGE.
+ * @author Joshua Boley
+ */
+public final class BranchPredictors
+{
+    private BranchPredictors()
+    {
+    }
+
+    /**
+     * Creates a predictor with default table sizes
+     * @param name static, bimodal, gshare or tage
+     * @return Predictor, null if the name is unknown
+     */
+    public static BranchPredictor create(String name)
+    {
+        switch (name) {
+            case "static":
+                return new Static();
+            case "bimodal":
+                return new Bimodal(12);
+            case "gshare":
+                return new GShare(12);
+            case "tage":
+                return new TageLite(10, 10);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Backward taken, forward not taken: loops are predicted to repeat and
+     * forward jumps, which skip code, to fall through
+     */
+    public static final class Static
+        implements BranchPredictor
+    {
+        @Override
+        public String getName()
+        {
+            return "static";
+        }
+
+        @Override
+        public boolean predict(int addr, int offset)
+        {
+            return offset <= 0;
+        }
+
+        @Override
+        public void update(int addr, boolean taken)
+        {
+        }
+
+        @Override
+        public void reset()
+        {
+        }
+    }
+
+    /**
+     * Table of 2-bit saturating counters indexed by branch address. Counters
+     * of 2 and 3 predict taken; they start out weakly not taken.
+     */
+    public static final class Bimodal
+        implements BranchPredictor
+    {
+        private final byte[] m_counters;
+        private final int m_mask;
+
+        /**
+         * @param indexBits Log2 of the number of counters
+         */
+        public Bimodal(int indexBits)
+        {
+            m_counters = new byte[1 << indexBits];
+            m_mask = m_counters.length - 1;
+            reset();
+        }
+
+        @Override
+        public String getName()
+        {
+            return "bimodal";
+        }
+
+        @Override
+        public boolean predict(int addr, int offset)
+        {
+            return m_counters[addr & m_mask] >= 2;
+        }
+
+        @Override
+        public void update(int addr, boolean taken)
+        {
+            int i = addr & m_mask;
+            m_counters[i] = saturate(m_counters[i], taken, 0, 3);
+        }
+
+        @Override
+        public void reset()
+        {
+            Arrays.fill(m_counters, (byte) 1);
+        }
+    }
+
+    /**
+     * 2-bit counters indexed by the branch address XORed with the global
+     * history of recent branch outcomes, so a branch can be predicted from
+     * the path that led to it
+     */
+    public static final class GShare
+        implements BranchPredictor
+    {
+        private final byte[] m_counters;
+        private final int m_mask;
+        private int m_history;      // Most recent outcome in bit 0
+
+        /**
+         * @param indexBits Log2 of the number of counters, also the history
+         *                  length
+         */
+        public GShare(int indexBits)
+        {
+            m_counters = new byte[1 << indexBits];
+            m_mask = m_counters.length - 1;
+            reset();
+        }
+
+        @Override
+        public String getName()
+        {
+            return "gshare";
+        }
+
+        @Override
+        public boolean predict(int addr, int offset)
+        {
+            return m_counters[(addr ^ m_history) & m_mask] >= 2;
+        }
+
+        @Override
+        public void update(int addr, boolean taken)
+        {
+            int i = (addr ^ m_history) & m_mask;
+            m_counters[i] = saturate(m_counters[i], taken, 0, 3);
+            m_history = ((m_history << 1) | (taken ? 1 : 0)) & m_mask;
+        }
+
+        @Override
+        public void reset()
+        {
+            Arrays.fill(m_counters, (byte) 1);
+            m_history = 0;
+        }
+    }
+
+    /**
+     * Simplified TAGE: a bimodal base predictor backed by tagged tables
+     * indexed with geometrically increasing lengths of global history. The
+     * matching table with the longest history provides the prediction. On a
+     * misprediction an entry is allocated in a longer-history table whose
+     * victim is no longer useful; usefulness is tracked where the provider
+     * and the next shorter match disagree.
+     */
+    public static final class TageLite
+        implements BranchPredictor
+    {
+        private static final int[] HISTORY_LENGTHS = { 4, 8, 16, 32, 64 };
+        private static final int TAG_BITS = 9;
+
+        private final Bimodal m_base;
+        private final int m_indexBits;
+        private final int m_mask;
+        private final short[][] m_tags;
+        private final byte[][] m_counters;      // 3-bit signed, -4 to 3, taken if >= 0
+        private final byte[][] m_useful;        // 0 to 3
+        private long m_history;                 // Most recent outcome in bit 0
+
+        // Lookup state of the branch being predicted
+        private final int[] m_index;
+        private final int[] m_tag;
+        private int m_provider;                 // Providing table, -1 for the base predictor
+        private int m_alternate;                // Next shorter matching table, -1 for the base predictor
+        private boolean m_prediction;
+        private boolean m_altPrediction;
+
+        /**
+         * @param baseBits  Log2 of the number of base predictor counters
+         * @param indexBits Log2 of the number of entries of each tagged table
+         */
+        public TageLite(int baseBits, int indexBits)
+        {
+            m_base = new Bimodal(baseBits);
+            m_indexBits = indexBits;
+            m_mask = (1 << indexBits) - 1;
+            int tables = HISTORY_LENGTHS.length;
+            m_tags = new short[tables][1 << indexBits];
+            m_counters = new byte[tables][1 << indexBits];
+            m_useful = new byte[tables][1 << indexBits];
+            m_index = new int[tables];
+            m_tag = new int[tables];
+            reset();
+        }
+
+        @Override
+        public String getName()
+        {
+            return "tage";
+        }
+
+        @Override
+        public boolean predict(int addr, int offset)
+        {
+            m_provider = -1;
+            m_alternate = -1;
+            for (int t = 0; t < HISTORY_LENGTHS.length; ++t) {
+                long history = HISTORY_LENGTHS[t] >= 64 ? m_history : m_history & ((1L << HISTORY_LENGTHS[t]) - 1);
+                m_index[t] = (addr ^ fold(history, m_indexBits) ^ (t << 2)) & m_mask;
+                m_tag[t] = (addr ^ fold(history, TAG_BITS) * 3) & ((1 << TAG_BITS) - 1);
+                if (m_tags[t][m_index[t]] == m_tag[t]) {
+                    m_alternate = m_provider;
+                    m_provider = t;
+                }
+            }
+            boolean base = m_base.predict(addr, offset);
+            m_altPrediction = m_alternate < 0 ? base : m_counters[m_alternate][m_index[m_alternate]] >= 0;
+            m_prediction = m_provider < 0 ? base : m_counters[m_provider][m_index[m_provider]] >= 0;
+            return m_prediction;
+        }
+
+        @Override
+        public void update(int addr, boolean taken)
+        {
+            if (m_provider < 0)
+                m_base.update(addr, taken);
+            else {
+                int i = m_index[m_provider];
+                m_counters[m_provider][i] = saturate(m_counters[m_provider][i], taken, -4, 3);
+                if (m_prediction != m_altPrediction)
+                    m_useful[m_provider][i] = saturate(m_useful[m_provider][i], m_prediction == taken, 0, 3);
+            }
+
+            // Allocate in the first longer-history table with a free entry;
+            // if there is none, age the candidates instead
+            if (m_prediction != taken) {
+                boolean allocated = false;
+                for (int t = m_provider + 1; t < HISTORY_LENGTHS.length && !allocated; ++t) {
+                    int i = m_index[t];
+                    if (m_useful[t][i] == 0) {
+                        m_tags[t][i] = (short) m_tag[t];
+                        m_counters[t][i] = (byte) (taken ? 0 : -1);
+                        allocated = true;
+                    }
+                }
+                if (!allocated) {
+                    for (int t = m_provider + 1; t < HISTORY_LENGTHS.length; ++t)
+                        m_useful[t][m_index[t]] = saturate(m_useful[t][m_index[t]], false, 0, 3);
+                }
+            }
+            m_history = (m_history << 1) | (taken ? 1 : 0);
+        }
+
+        @Override
+        public void reset()
+        {
+            m_base.reset();
+            for (int t = 0; t < HISTORY_LENGTHS.length; ++t) {
+                Arrays.fill(m_tags[t], (short) -1);
+                Arrays.fill(m_counters[t], (byte) 0);
+                Arrays.fill(m_useful[t], (byte) 0);
+            }
+            m_history = 0;
+        }
+
+        /**
+         * Folds a history into the given number of bits by XORing its chunks
+         */
+        private static int fold(long history, int bits)
+        {
+            int folded = 0;
+            for (; history != 0; history >>>= bits)
+                folded ^= (int) (history & ((1L << bits) - 1));
+            return folded;
+        }
+    }
+
+    private static byte saturate(byte counter, boolean up, int min, int max)
+    {
+        if (up)
+            return counter < max ? (byte) (counter + 1) : counter;
+        return counter > min ? (byte) (counter - 1) : counter;
+    }
+}
@@ -0,0 +1,181 @@
+package Runtime.Machine;
+
+import Runtime.Machine.Interface.Bytecode;
+import Runtime.Machine.Interface.Opcodes;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a branch predictor model alongside the interpreter's instrumented loop
+ * and collects prediction statistics per branch site. Every misprediction is
+ * charged a fixed number of cycles, the pipeline refill a processor would
+ * pay, to estimate the cost of the script's branches.
+ *
+ * Statistics are updated by the executing thread without synchronization and
+ * should be read between runs.
+ * @author Joshua Boley
+ */
+public final class BranchSimulator
+{
+    public static final int DEFAULT_PENALTY = 15;   // Cycles, typical of a deep pipeline
+    private static final int MAX_SITES = 20;        // Sites listed in the report
+
+    private final BranchPredictor m_predictor;
+    private final int m_penalty;
+    private final Map<Bytecode, long[][]> m_sites;  // Executed and mispredicted count per address
+    private Bytecode m_lastProgram;                 // Program of the last recorded branch, skips the map lookup
+    private long[][] m_lastSites;
+
+    /**
+     * @param predictor Predictor model
+     * @param penalty   Cycles lost per misprediction
+     */
+    public BranchSimulator(BranchPredictor predictor, int penalty)
+    {
+        if (penalty < 0)
+            throw new IllegalArgumentException("Misprediction penalty must not be negative");
+        m_predictor = predictor;
+        m_penalty = penalty;
+        m_sites = new IdentityHashMap<>();
+        m_lastProgram = null;
+        m_lastSites = null;
+    }
+
+    public BranchPredictor getPredictor()
+    {
+        return m_predictor;
+    }
+
+    public int getPenalty()
+    {
+        return m_penalty;
+    }
+
+    /**
+     * Clears the statistics and the predictor's state
+     */
+    public void reset()
+    {
+        m_predictor.reset();
+        m_sites.clear();
+        m_lastProgram = null;
+        m_lastSites = null;
+    }
+
+    public long getBranchCount()
+    {
+        long total = 0;
+        for (long[][] sites : m_sites.values())
+            total += sum(sites[0]);
+        return total;
+    }
+
+    public long getMispredictions()
+    {
+        long total = 0;
+        for (long[][] sites : m_sites.values())
+            total += sum(sites[1]);
+        return total;
+    }
+
+    /**
+     * Returns the fraction of branches predicted correctly
+     * @return Accuracy between 0 and 1, 1 if no branch was executed
+     */
+    public double getAccuracy()
+    {
+        long branches = getBranchCount();
+        return branches == 0 ? 1.0 : 1.0 - (double) getMispredictions() / branches;
+    }
+
+    /**
+     * Returns the estimated cycles lost to mispredictions
+     * @return Cycle count
+     */
+    public long getPenaltyCycles()
+    {
+        return getMispredictions() * m_penalty;
+    }
+
+    /**
+     * Returns whether an opcode is a conditional jump, the only instructions
+     * predicted
+     * @param opcode Opcode
+     * @return True or false
+     */
+    static boolean isConditional(Opcodes opcode)
+    {
+        return opcode.compareTo(Opcodes.JL) >= 0 && opcode.compareTo(Opcodes.JNE) <= 0;
+    }
+
+    /**
+     * Predicts an executed conditional jump and records the outcome
+     * @param program Program being executed
+     * @param addr    Address of the jump
+     * @param offset  Relative jump offset
+     * @param taken   True if the jump was taken
+     */
+    void record(Bytecode program, int addr, int offset, boolean taken)
+    {
+        if (program != m_lastProgram) {
+            m_lastSites = m_sites.computeIfAbsent(program, (Bytecode key) -> new long[2][key.size()]);
+            m_lastProgram = program;
+        }
+        boolean predicted = m_predictor.predict(addr, offset);
+        m_predictor.update(addr, taken);
+        ++m_lastSites[0][addr];
+        if (predicted != taken)
+            ++m_lastSites[1][addr];
+    }
+
+    /**
+     * Formats the totals followed by the branch sites with the most
+     * mispredictions. Sites are listed by address and one-based source line.
+     * @return Report text
+     */
+    public String report()
+    {
+        List<long[]> sites = new ArrayList<>();     // Line, address, executed, mispredicted
+        m_sites.forEach((Bytecode program, long[][] counts) -> {
+            for (int addr = 0; addr < counts[0].length; ++addr) {
+                if (counts[0][addr] > 0)
+                    sites.add(new long[] { program.getLineTable().lineAt(addr), addr, counts[0][addr], counts[1][addr] });
+            }
+        });
+        sites.sort((long[] a, long[] b) -> Long.compare(b[3], a[3]));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(
+            "Predictor: %s%nBranches: %d, %d mispredicted, %.2f%% accuracy%nPenalty: %d cycles (%d per misprediction)",
+            m_predictor.getName(), getBranchCount(), getMispredictions(), 100.0 * getAccuracy(),
+            getPenaltyCycles(), m_penalty
+        ));
+        for (int i = 0; i < sites.size() && i < MAX_SITES; ++i) {
+            long[] site = sites.get(i);
+            sb.append(String.format(
+                "%n  line %-5s @%-6d %10d executed, %8d missed, %6.2f%% correct",
+                site[0] < 0 ? "?" : Long.toString(site[0] + 1), site[1], site[2], site[3],
+                100.0 - 100.0 * site[3] / site[2]
+            ));
+        }
+        if (sites.size() > MAX_SITES)
+            sb.append(String.format("%n  ... %d more sites", sites.size() - MAX_SITES));
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return report();
+    }
+
+    private static long sum(long[] counts)
+    {
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        return total;
+    }
+}
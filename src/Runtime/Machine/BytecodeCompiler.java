@@ -0,0 +1,980 @@
+package Runtime.Machine;
+
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import Runtime.Machine.Interface.Superinstructions;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static Runtime.Machine.ClassFileWriter.*;
+
+/**
+ * Translates a program into a JVM class with a single method, so that HotSpot
+ * compiles it to native code. General purpose registers and hardware stack
+ * slots become locals and the ZF/SF/OF flags become boolean locals; variable
+ * storage is accessed through the typed StaticMemory accessors.
+ *
+ * The type held by every register must be known statically at each
+ * instruction. Programs that read a register before writing it, merge
+ * differently typed values at a jump target or would fail a type check in
+ * the interpreter are rejected with an UnsupportedOperationException and are
+ * left to the interpreter, which reports the error at the faulting
+ * instruction.
+ *
+ * Superinstructions are expanded before compilation; HotSpot gains nothing
+ * from them and the expansion keeps the type and flag analyses per primitive
+ * instruction.
+ *
+ * Taken backward jumps pass through a stub that reports the back-edge to the
+ * CPU, which may stop or suspend the program there.
+ * @author Joshua Boley
+ */
+class BytecodeCompiler
+{
+    private enum Kind
+    {
+        UNKNOWN,    // Not written by the program
+        INT,        // Int4 value
+        STR,        // String literal
+        CONFLICT;   // Differently typed values merged at a jump target
+
+        Kind merge(Kind other)
+        {
+            return this == other ? this : CONFLICT;
+        }
+    }
+
+    private static final String CPU = "Runtime/Machine/VirtualCPU";
+    private static final String MEMORY = "Runtime/Machine/StaticMemory";
+    private static final int REG_COUNT = RegId.values().length;
+    private static final int MAX_STACK = 8;
+
+    // Flag bits, as in the VirtualCPU flag word
+    private static final int ZF = 1, SF = 2, OF = 4, ALL_FLAGS = 7;
+
+    // Fixed local variable slots; registers and stack slots follow
+    private static final int LOCAL_CPU = 1;
+    private static final int LOCAL_ZF = 2;
+    private static final int LOCAL_SF = 3;
+    private static final int LOCAL_OF = 4;
+    private static final int LOCAL_TMP1 = 5;
+    private static final int LOCAL_TMP2 = 6;
+    private static final int LOCAL_LTMP = 7;    // Two slots
+    private static final int LOCAL_SRC = 9;     // Immediate or variable source operand
+    private static final int LOCAL_REGS = 10;
+
+    private static final AtomicInteger nextClassId = new AtomicInteger();
+
+    private final List<Instruction> m_program;
+    private final int[] m_sourceAddr;   // Address of each instruction in the program as loaded
+    private final State[] m_states;     // Abstract state on entry to each instruction, null if unreachable
+    private final int[] m_liveFlags;    // Flags read after each instruction before being redefined
+    private final List<int[]> m_backEdges;  // Stub label, jump address and target of each backward jump
+    private int m_maxDepth;
+
+    BytecodeCompiler(List<Instruction> program)
+    {
+        m_program = new ArrayList<>();
+        m_sourceAddr = expand(program, m_program);
+        m_states = new State[m_program.size() + 1];
+        m_liveFlags = new int[m_program.size()];
+        m_backEdges = new ArrayList<>();
+        m_maxDepth = 0;
+    }
+
+    /**
+     * Expands superinstructions into their primitive instructions and
+     * rewrites relative jump offsets accordingly. Specialized opcodes are
+     * replaced by their generic forms, the compiler infers operand types
+     * itself.
+     * @return Address in the original program of each expanded instruction,
+     * including the exit address
+     */
+    private static int[] expand(List<Instruction> program, List<Instruction> expanded)
+    {
+        int size = program.size();
+        int[] newAddr = new int[size + 1];
+        for (int i = 0; i < size; ++i)
+            newAddr[i + 1] = newAddr[i] + (Superinstructions.isFused(program.get(i).getCode()) ? 2 : 1);
+        int[] sourceAddr = new int[newAddr[size] + 1];
+        for (int i = 0; i < size; ++i) {
+            Instruction instr = program.get(i);
+            if (Superinstructions.isFused(instr.getCode())) {
+                for (Instruction part : Superinstructions.expand(instr))
+                    expanded.add(generic(part));
+                sourceAddr[newAddr[i] + 1] = i;
+            }
+            else if (instr.getCode().isJump()) {
+                int target = i + instr.getJumpOffset();
+                if (target < 0 || target > size)
+                    throw new UnsupportedOperationException(instr.getCode() + ": Jump target out of range at " + i);
+                List<Operand> operands = new ArrayList<>();
+                operands.add(new Operand(newAddr[target] - newAddr[i]));
+                expanded.add(new Instruction(instr.getCode(), operands));
+            }
+            else
+                expanded.add(generic(instr));
+            sourceAddr[newAddr[i]] = i;
+        }
+        sourceAddr[newAddr[size]] = size;
+        return sourceAddr;
+    }
+
+    private static Instruction generic(Instruction instr)
+    {
+        Opcodes opcode = instr.getCode();
+        return opcode.isTyped() ? new Instruction(opcode.generic(), instr.getOperands()) : instr;
+    }
+
+    /**
+     * Compiles and loads the program
+     * @return Compiled program
+     * @throws UnsupportedOperationException if the program cannot be compiled
+     */
+    CompiledCode compile()
+    {
+        inferTypes();
+        computeFlagLiveness();
+
+        String name = "Runtime/Machine/CompiledProgram$" + nextClassId.incrementAndGet();
+        ClassFileWriter writer = new ClassFileWriter(name, "java/lang/Object", "Runtime/Machine/CompiledCode");
+
+        ClassFileWriter.Code init = writer.newCode();
+        init.local(ALOAD, 0);
+        init.invoke(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        init.op(RETURN);
+        writer.addMethod(ACC_PUBLIC, "<init>", "()V", init, 1, 1);
+
+        ClassFileWriter.Code run = writer.newCode();
+        emitProgram(run);
+        writer.addMethod(
+            ACC_PUBLIC, "run", "(L" + CPU + ";)V", run,
+            MAX_STACK, LOCAL_REGS + 2 * (REG_COUNT + m_maxDepth)
+        );
+
+        return define(writer.toByteArray(ACC_FINAL | ACC_SUPER), name.replace('/', '.'));
+    }
+
+    /**
+     * Propagates register and stack types along all control flow paths
+     */
+    private void inferTypes()
+    {
+        int size = m_program.size();
+        m_states[0] = new State();
+        Deque<Integer> worklist = new ArrayDeque<>();
+        worklist.push(0);
+        while (!worklist.isEmpty()) {
+            int addr = worklist.pop();
+            if (addr == size)
+                continue;
+            State state = m_states[addr].copy();
+            Instruction instr = m_program.get(addr);
+            apply(instr, state);
+            m_maxDepth = Math.max(m_maxDepth, state.stack.size());
+            for (int succ : successors(addr)) {
+                if (m_states[succ] == null) {
+                    m_states[succ] = state.copy();
+                    worklist.push(succ);
+                }
+                else if (m_states[succ].merge(state))
+                    worklist.push(succ);
+            }
+        }
+
+        // State is written back to the CPU on exit and before a division
+        // faults, so it must have a definite type at those points
+        for (int addr = 0; addr <= size; ++addr) {
+            if (m_states[addr] != null && (addr == size || m_program.get(addr).getCode() == Opcodes.DIV))
+                requireDefinite(m_states[addr]);
+        }
+    }
+
+    private static void requireDefinite(State state)
+    {
+        for (int reg = 0; reg < REG_COUNT; ++reg) {
+            if (state.regs[reg] == Kind.CONFLICT)
+                throw new UnsupportedOperationException("Type of " + RegId.values()[reg] + " is ambiguous");
+        }
+        for (Kind kind : state.stack) {
+            if (kind == Kind.CONFLICT)
+                throw new UnsupportedOperationException("Stack contents are ambiguous");
+        }
+    }
+
+    /**
+     * Applies the type effect of an instruction, rejecting anything the
+     * interpreter would not execute successfully
+     */
+    private void apply(Instruction instr, State state)
+    {
+        List<Operand> operands = instr.getOperands();
+        switch (instr.getCode()) {
+            case MOV:
+            {
+                Operand dst = operands.get(0), src = operands.get(1);
+                if (dst.getType() == DataType.Register) {
+                    int dstReg = register(dst);
+                    switch (src.getType()) {
+                        case Register:
+                            state.regs[dstReg] = read(state, register(src));
+                            break;
+                        case Imm_Int4:
+                            state.regs[dstReg] = Kind.INT;
+                            break;
+                        case Imm_Str:
+                            state.regs[dstReg] = Kind.STR;
+                            break;
+                        default:
+                            if (!src.isReference() || src.getType() != DataType.Int4)
+                                throw new UnsupportedOperationException("MOV: Unsupported source type " + src.getType());
+                            state.regs[dstReg] = Kind.INT;
+                    }
+                }
+                else {
+                    if (!dst.isReference() || dst.getType() != DataType.Int4 || src.getType() != DataType.Register)
+                        throw new UnsupportedOperationException("MOV: Unsupported store to " + dst.getType());
+                    requireInt(state, register(src));
+                }
+                break;
+            }
+            case ADD:
+            case SUB:
+            case MULT:
+            case EXP:
+                requireInt(state, register(operands.get(0)));
+                requireSource(state, instr);
+                break;
+            case DIV:
+                requireInt(state, register(operands.get(0)));
+                requireSource(state, instr);
+                state.regs[RegId.R4.ordinal()] = Kind.INT;
+                break;
+            case NEG:
+                requireInt(state, register(operands.get(0)));
+                break;
+            case CMP:
+                requireInt(state, register(operands.get(0)));
+                requireSource(state, instr);
+                break;
+            case TEST:
+            case OR:
+            case XOR:
+            case AND:
+                requireInt(state, register(operands.get(0)));
+                if (operands.get(1).getType() == DataType.Register)
+                    requireInt(state, register(operands.get(1)));
+                else if (operands.get(1).getType() != DataType.Imm_Int4)
+                    throw new UnsupportedOperationException(instr.getCode() + ": Unsupported operand type " + operands.get(1).getType());
+                break;
+            case PUSH:
+                state.stack.add(read(state, register(operands.get(0))));
+                break;
+            case POP:
+                if (state.stack.isEmpty())
+                    throw new UnsupportedOperationException("POP: Pops values pushed before the program started");
+                state.regs[register(operands.get(0))] = state.stack.remove(state.stack.size() - 1);
+                break;
+            case JMP:
+            case JL:
+            case JLE:
+            case JG:
+            case JGE:
+            case JE:
+            case JNE:
+                break;
+            case PRNT:
+                read(state, register(operands.get(0)));
+                break;
+            case CLR:
+                state.regs[RegId.R1.ordinal()] = Kind.STR;
+                break;
+            default:
+                throw new UnsupportedOperationException(instr.getCode() + ": Not supported by the bytecode compiler");
+        }
+    }
+
+    private List<Integer> successors(int addr)
+    {
+        Instruction instr = m_program.get(addr);
+        List<Integer> succs = new ArrayList<>(2);
+        if (instr.getCode().isJump()) {
+            int target = addr + instr.getJumpOffset();
+            if (target < 0 || target > m_program.size())
+                throw new UnsupportedOperationException(instr.getCode() + ": Jump target out of range at " + addr);
+            succs.add(target);
+        }
+        if (instr.getCode() != Opcodes.JMP)
+            succs.add(addr + 1);
+        return succs;
+    }
+
+    /**
+     * Backward liveness of the condition flags. All flags are live on exit,
+     * since they remain part of the CPU state.
+     */
+    private void computeFlagLiveness()
+    {
+        int size = m_program.size();
+        int[] liveIn = new int[size + 1];
+        liveIn[size] = ALL_FLAGS;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int addr = size - 1; addr >= 0; --addr) {
+                if (m_states[addr] == null)
+                    continue;
+                int liveOut = 0;
+                for (int succ : successors(addr))
+                    liveOut |= liveIn[succ];
+                m_liveFlags[addr] = liveOut;
+                Opcodes opcode = m_program.get(addr).getCode();
+                int in = (definesFlags(opcode) ? 0 : liveOut) | flagsRead(opcode);
+                if (in != liveIn[addr]) {
+                    liveIn[addr] = in;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private void emitProgram(ClassFileWriter.Code code)
+    {
+        int size = m_program.size();
+        int[] labels = new int[size + 1];
+        for (int i = 0; i <= size; ++i)
+            labels[i] = code.newLabel();
+
+        // Load flags from the CPU
+        int[] flagLocals = { LOCAL_ZF, LOCAL_SF, LOCAL_OF };
+        for (int flag = 0; flag < flagLocals.length; ++flag) {
+            code.local(ALOAD, LOCAL_CPU);
+            code.iconst(flag);
+            code.invoke(INVOKEVIRTUAL, CPU, "getFlag", "(I)Z");
+            code.local(ISTORE, flagLocals[flag]);
+        }
+
+        for (int addr = 0; addr < size; ++addr) {
+            if (m_states[addr] == null)
+                continue;
+            code.mark(labels[addr]);
+            emit(code, addr, labels);
+        }
+
+        if (m_states[size] != null) {
+            code.mark(labels[size]);
+            emitWriteBack(code, m_states[size], size);
+            code.op(RETURN);
+        }
+
+        // Back-edge stubs, charging the instructions jumped back over
+        for (int[] edge : m_backEdges) {
+            int addr = m_sourceAddr[edge[1]], target = m_sourceAddr[edge[2]];
+            code.mark(edge[0]);
+            code.local(ALOAD, LOCAL_CPU);
+            code.iconst(addr);
+            code.iconst(addr - target + 1);
+            code.invoke(INVOKEVIRTUAL, CPU, "backEdge", "(II)V");
+            code.branch(GOTO, labels[edge[2]]);
+        }
+    }
+
+    private void emit(ClassFileWriter.Code code, int addr, int[] labels)
+    {
+        Instruction instr = m_program.get(addr);
+        List<Operand> operands = instr.getOperands();
+        State state = m_states[addr];
+        int live = m_liveFlags[addr];
+        switch (instr.getCode()) {
+            case MOV:
+            {
+                Operand dst = operands.get(0), src = operands.get(1);
+                if (dst.getType() == DataType.Register) {
+                    int dstReg = register(dst);
+                    switch (src.getType()) {
+                        case Register:
+                        {
+                            int srcReg = register(src);
+                            if (state.regs[srcReg] == Kind.INT) {
+                                code.local(ILOAD, intLocal(srcReg));
+                                code.local(ISTORE, intLocal(dstReg));
+                            }
+                            else {
+                                code.local(ALOAD, refLocal(srcReg));
+                                code.local(ASTORE, refLocal(dstReg));
+                            }
+                            break;
+                        }
+                        case Imm_Int4:
+                            code.iconst((int) src.getEnclosed());
+                            code.local(ISTORE, intLocal(dstReg));
+                            break;
+                        case Imm_Str:
+                            code.sconst((String) src.getEnclosed());
+                            code.local(ASTORE, refLocal(dstReg));
+                            break;
+                        default:
+                            code.iconst((int) src.getEnclosed());
+                            code.invoke(INVOKESTATIC, MEMORY, "getInt", "(I)I");
+                            code.local(ISTORE, intLocal(dstReg));
+                    }
+                }
+                else {
+                    code.iconst((int) dst.getEnclosed());
+                    code.local(ILOAD, intLocal(register(src)));
+                    code.invoke(INVOKESTATIC, MEMORY, "putInt", "(II)V");
+                }
+                break;
+            }
+            case ADD:
+            case SUB:
+            {
+                int dst = register(operands.get(0)), src = sourceLocal(code, operands.get(1));
+                boolean add = instr.getCode() == Opcodes.ADD;
+                code.local(ILOAD, intLocal(dst));
+                code.local(ILOAD, src);
+                code.op(add ? IADD : ISUB);
+                code.local(ISTORE, LOCAL_TMP1);
+                if ((live & OF) != 0) {
+                    // Add: ((a ^ r) & (b ^ r)) < 0, subtract: ((a ^ b) & (a ^ r)) < 0
+                    code.local(ILOAD, intLocal(dst));
+                    code.local(ILOAD, add ? LOCAL_TMP1 : src);
+                    code.op(IXOR);
+                    code.local(ILOAD, add ? src : intLocal(dst));
+                    code.local(ILOAD, LOCAL_TMP1);
+                    code.op(IXOR);
+                    code.op(IAND);
+                    emitSign(code);
+                    code.local(ISTORE, LOCAL_OF);
+                }
+                emitResultFlags(code, LOCAL_TMP1, live);
+                code.local(ILOAD, LOCAL_TMP1);
+                code.local(ISTORE, intLocal(dst));
+                break;
+            }
+            case MULT:
+            {
+                int dst = register(operands.get(0)), src = sourceLocal(code, operands.get(1));
+                code.local(ILOAD, intLocal(dst));
+                code.op(I2L);
+                code.local(ILOAD, src);
+                code.op(I2L);
+                code.op(LMUL);
+                code.local(LSTORE, LOCAL_LTMP);
+                code.local(LLOAD, LOCAL_LTMP);
+                code.op(L2I);
+                code.local(ISTORE, LOCAL_TMP1);
+                if ((live & OF) != 0) {
+                    // Overflow if the full product differs from its truncation
+                    code.local(LLOAD, LOCAL_LTMP);
+                    code.local(ILOAD, LOCAL_TMP1);
+                    code.op(I2L);
+                    code.op(LCMP);
+                    emitBoolean(code, IFNE);
+                    code.local(ISTORE, LOCAL_OF);
+                }
+                emitResultFlags(code, LOCAL_TMP1, live);
+                code.local(ILOAD, LOCAL_TMP1);
+                code.local(ISTORE, intLocal(dst));
+                break;
+            }
+            case DIV:
+            {
+                int dst = register(operands.get(0)), src = sourceLocal(code, operands.get(1));
+                // On division by zero, leave the CPU as the interpreter would before faulting
+                int divide = code.newLabel();
+                code.local(ILOAD, src);
+                code.branch(IFNE, divide);
+                emitWriteBack(code, state, addr);
+                code.mark(divide);
+                code.local(ILOAD, intLocal(dst));
+                code.local(ILOAD, src);
+                code.op(IDIV);
+                code.local(ISTORE, LOCAL_TMP1);
+                code.local(ILOAD, intLocal(dst));
+                code.local(ILOAD, src);
+                code.op(IREM);
+                code.local(ISTORE, LOCAL_TMP2);
+                if ((live & OF) != 0) {
+                    code.iconst(0);
+                    code.local(ISTORE, LOCAL_OF);
+                }
+                emitResultFlags(code, LOCAL_TMP1, live);
+                // Quotient first, so that DIV R4 leaves the remainder as the interpreter does
+                code.local(ILOAD, LOCAL_TMP1);
+                code.local(ISTORE, intLocal(dst));
+                code.local(ILOAD, LOCAL_TMP2);
+                code.local(ISTORE, intLocal(RegId.R4.ordinal()));
+                break;
+            }
+            case EXP:
+            {
+                int dst = register(operands.get(0)), src = sourceLocal(code, operands.get(1));
+                code.local(ILOAD, intLocal(dst));
+                code.op(I2D);
+                code.local(ILOAD, src);
+                code.op(I2D);
+                code.invoke(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D");
+                code.op(D2I);
+                code.local(ISTORE, intLocal(dst));
+                break;
+            }
+            case NEG:
+            {
+                int dst = register(operands.get(0));
+                code.local(ILOAD, intLocal(dst));
+                code.op(INEG);
+                code.local(ISTORE, intLocal(dst));
+                break;
+            }
+            case CMP:
+            {
+                int lhs = register(operands.get(0)), rhs = sourceLocal(code, operands.get(1));
+                code.local(ILOAD, intLocal(lhs));
+                code.local(ILOAD, rhs);
+                code.op(ISUB);
+                code.local(ISTORE, LOCAL_TMP1);
+                if ((live & OF) != 0) {
+                    code.local(ILOAD, intLocal(lhs));
+                    code.local(ILOAD, rhs);
+                    code.op(IXOR);
+                    code.local(ILOAD, intLocal(lhs));
+                    code.local(ILOAD, LOCAL_TMP1);
+                    code.op(IXOR);
+                    code.op(IAND);
+                    emitSign(code);
+                    code.local(ISTORE, LOCAL_OF);
+                }
+                emitResultFlags(code, LOCAL_TMP1, live);
+                break;
+            }
+            case TEST:
+            case OR:
+            case XOR:
+            case AND:
+            {
+                int lhs = register(operands.get(0));
+                Operand rhs = operands.get(1);
+                code.local(ILOAD, intLocal(lhs));
+                if (rhs.getType() == DataType.Register)
+                    code.local(ILOAD, intLocal(register(rhs)));
+                else
+                    code.iconst((int) rhs.getEnclosed());
+                switch (instr.getCode()) {
+                    case OR:
+                        code.op(IOR);
+                        break;
+                    case XOR:
+                        code.op(IXOR);
+                        break;
+                    default:
+                        code.op(IAND);
+                }
+                code.local(ISTORE, LOCAL_TMP1);
+                if ((live & OF) != 0) {
+                    code.iconst(0);
+                    code.local(ISTORE, LOCAL_OF);
+                }
+                emitResultFlags(code, LOCAL_TMP1, live);
+                if (instr.getCode() != Opcodes.TEST) {
+                    code.local(ILOAD, LOCAL_TMP1);
+                    code.local(ISTORE, intLocal(lhs));
+                }
+                break;
+            }
+            case PUSH:
+            {
+                int src = register(operands.get(0));
+                int slot = state.stack.size();
+                if (state.regs[src] == Kind.INT) {
+                    code.local(ILOAD, intLocal(src));
+                    code.local(ISTORE, intLocal(REG_COUNT + slot));
+                }
+                else {
+                    code.local(ALOAD, refLocal(src));
+                    code.local(ASTORE, refLocal(REG_COUNT + slot));
+                }
+                break;
+            }
+            case POP:
+            {
+                int dst = register(operands.get(0));
+                int slot = state.stack.size() - 1;
+                if (state.stack.get(slot) == Kind.INT) {
+                    code.local(ILOAD, intLocal(REG_COUNT + slot));
+                    code.local(ISTORE, intLocal(dst));
+                }
+                else {
+                    code.local(ALOAD, refLocal(REG_COUNT + slot));
+                    code.local(ASTORE, refLocal(dst));
+                }
+                break;
+            }
+            case JMP:
+            case JL:
+            case JLE:
+            case JG:
+            case JGE:
+            case JE:
+            case JNE:
+            {
+                int target = addr + (int) operands.get(0).getEnclosed();
+                if (target <= addr) {
+                    int stub = code.newLabel();
+                    m_backEdges.add(new int[] { stub, addr, target });
+                    emitJump(code, instr.getCode(), stub);
+                }
+                else
+                    emitJump(code, instr.getCode(), labels[target]);
+                break;
+            }
+            case PRNT:
+            {
+                int src = register(operands.get(0));
+                code.local(ALOAD, LOCAL_CPU);
+                if (state.regs[src] == Kind.INT) {
+                    code.local(ILOAD, intLocal(src));
+                    code.invoke(INVOKEVIRTUAL, CPU, "print", "(I)V");
+                }
+                else {
+                    code.local(ALOAD, refLocal(src));
+                    code.invoke(INVOKEVIRTUAL, CPU, "print", "(Ljava/lang/String;)V");
+                }
+                break;
+            }
+            case CLR:
+                code.local(ALOAD, LOCAL_CPU);
+                code.invoke(INVOKEVIRTUAL, CPU, "clear", "()V");
+                code.sconst("");
+                code.local(ASTORE, refLocal(RegId.R1.ordinal()));
+                break;
+            default:
+                throw new IllegalStateException(instr.getCode() + ": Not supported by the bytecode compiler");
+        }
+    }
+
+    private void emitJump(ClassFileWriter.Code code, Opcodes opcode, int target)
+    {
+        switch (opcode) {
+            case JMP:
+                code.branch(GOTO, target);
+                break;
+            case JL:    // SF != OF
+                emitSignOverflow(code);
+                code.branch(IF_ICMPNE, target);
+                break;
+            case JLE:   // ZF = 1 or SF != OF
+                code.local(ILOAD, LOCAL_ZF);
+                code.branch(IFNE, target);
+                emitSignOverflow(code);
+                code.branch(IF_ICMPNE, target);
+                break;
+            case JG:    // ZF = 0 and SF = OF
+            {
+                int skip = code.newLabel();
+                code.local(ILOAD, LOCAL_ZF);
+                code.branch(IFNE, skip);
+                emitSignOverflow(code);
+                code.branch(IF_ICMPEQ, target);
+                code.mark(skip);
+                break;
+            }
+            case JGE:   // SF = OF
+                emitSignOverflow(code);
+                code.branch(IF_ICMPEQ, target);
+                break;
+            case JE:    // ZF = 1
+                code.local(ILOAD, LOCAL_ZF);
+                code.branch(IFNE, target);
+                break;
+            case JNE:   // ZF = 0
+                code.local(ILOAD, LOCAL_ZF);
+                code.branch(IFEQ, target);
+                break;
+            default:
+                throw new IllegalStateException(opcode + ": Not a jump");
+        }
+    }
+
+    /**
+     * Writes the instruction pointer, registers, pushed stack values and
+     * flags back to the CPU
+     */
+    private void emitWriteBack(ClassFileWriter.Code code, State state, int addr)
+    {
+        code.local(ALOAD, LOCAL_CPU);
+        code.iconst(m_sourceAddr[addr]);
+        code.invoke(INVOKEVIRTUAL, CPU, "setInstructionPointer", "(I)V");
+        for (int reg = 0; reg < REG_COUNT; ++reg) {
+            if (state.regs[reg] == Kind.UNKNOWN)
+                continue;
+            code.local(ALOAD, LOCAL_CPU);
+            code.iconst(reg);
+            if (state.regs[reg] == Kind.INT) {
+                code.local(ILOAD, intLocal(reg));
+                code.invoke(INVOKEVIRTUAL, CPU, "setIntRegister", "(II)V");
+            }
+            else {
+                code.local(ALOAD, refLocal(reg));
+                code.invoke(INVOKEVIRTUAL, CPU, "setStrRegister", "(ILjava/lang/String;)V");
+            }
+        }
+        for (int slot = 0; slot < state.stack.size(); ++slot) {
+            code.local(ALOAD, LOCAL_CPU);
+            if (state.stack.get(slot) == Kind.INT) {
+                code.local(ILOAD, intLocal(REG_COUNT + slot));
+                code.invoke(INVOKEVIRTUAL, CPU, "pushInt", "(I)V");
+            }
+            else {
+                code.local(ALOAD, refLocal(REG_COUNT + slot));
+                code.invoke(INVOKEVIRTUAL, CPU, "pushStr", "(Ljava/lang/String;)V");
+            }
+        }
+        code.local(ALOAD, LOCAL_CPU);
+        code.local(ILOAD, LOCAL_ZF);
+        code.local(ILOAD, LOCAL_SF);
+        code.local(ILOAD, LOCAL_OF);
+        code.invoke(INVOKEVIRTUAL, CPU, "setFlags", "(ZZZ)V");
+    }
+
+    /**
+     * Sets the live ZF and SF flags from the result held in a local
+     */
+    private void emitResultFlags(ClassFileWriter.Code code, int local, int live)
+    {
+        if ((live & ZF) != 0) {
+            code.local(ILOAD, local);
+            emitBoolean(code, IFEQ);
+            code.local(ISTORE, LOCAL_ZF);
+        }
+        if ((live & SF) != 0) {
+            code.local(ILOAD, local);
+            emitSign(code);
+            code.local(ISTORE, LOCAL_SF);
+        }
+    }
+
+    // Replaces the int on top of the stack with 1 if negative, 0 otherwise
+    private static void emitSign(ClassFileWriter.Code code)
+    {
+        code.iconst(31);
+        code.op(IUSHR);
+    }
+
+    // Replaces the int on top of the stack with 1 if the branch is taken, 0 otherwise
+    private static void emitBoolean(ClassFileWriter.Code code, int branchOpcode)
+    {
+        int isTrue = code.newLabel(), done = code.newLabel();
+        code.branch(branchOpcode, isTrue);
+        code.iconst(0);
+        code.branch(GOTO, done);
+        code.mark(isTrue);
+        code.iconst(1);
+        code.mark(done);
+    }
+
+    private static void emitSignOverflow(ClassFileWriter.Code code)
+    {
+        code.local(ILOAD, LOCAL_SF);
+        code.local(ILOAD, LOCAL_OF);
+    }
+
+    private static int intLocal(int slot)
+    {
+        return LOCAL_REGS + 2 * slot;
+    }
+
+    private static int refLocal(int slot)
+    {
+        return LOCAL_REGS + 2 * slot + 1;
+    }
+
+    /**
+     * Returns the ordinal of a general purpose register operand
+     */
+    private static int register(Operand op)
+    {
+        if (op.getType() != DataType.Register)
+            throw new UnsupportedOperationException("Operand does not name a register: " + op.getType());
+        RegId reg = (RegId) op.getEnclosed();
+        switch (reg) {
+            case SP:
+            case BP:
+            case IP:
+                throw new UnsupportedOperationException("Access to " + reg + " not supported by the bytecode compiler");
+            default:
+                return reg.ordinal();
+        }
+    }
+
+    private static Kind read(State state, int reg)
+    {
+        Kind kind = state.regs[reg];
+        if (kind != Kind.INT && kind != Kind.STR)
+            throw new UnsupportedOperationException("Type of " + RegId.values()[reg] + " is not known statically");
+        return kind;
+    }
+
+    private static void requireInt(State state, int reg)
+    {
+        if (read(state, reg) != Kind.INT)
+            throw new UnsupportedOperationException("Type mismatch, " + RegId.values()[reg] + " does not hold an integer");
+    }
+
+    /**
+     * Checks the source operand of an arithmetic or compare instruction: an
+     * integer register, an integer immediate or an integer variable
+     */
+    private static void requireSource(State state, Instruction instr)
+    {
+        Operand src = instr.getOperands().get(1);
+        if (src.getType() == DataType.Register)
+            requireInt(state, register(src));
+        else if (src.isReference() ? src.getType() != DataType.Int4 : src.getType() != DataType.Imm_Int4)
+            throw new UnsupportedOperationException(instr.getCode() + ": Unsupported operand type " + src.getType());
+    }
+
+    /**
+     * Returns the local holding the integer source operand, loading
+     * immediates and variables into LOCAL_SRC first
+     */
+    private static int sourceLocal(ClassFileWriter.Code code, Operand src)
+    {
+        if (src.getType() == DataType.Register)
+            return intLocal(register(src));
+        code.iconst((int) src.getEnclosed());
+        if (src.isReference())
+            code.invoke(INVOKESTATIC, MEMORY, "getInt", "(I)I");
+        code.local(ISTORE, LOCAL_SRC);
+        return LOCAL_SRC;
+    }
+
+    private static boolean definesFlags(Opcodes opcode)
+    {
+        switch (opcode) {
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case CMP:
+            case TEST:
+            case OR:
+            case XOR:
+            case AND:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int flagsRead(Opcodes opcode)
+    {
+        switch (opcode) {
+            case JL:
+            case JGE:
+                return SF | OF;
+            case JLE:
+            case JG:
+                return ALL_FLAGS;
+            case JE:
+            case JNE:
+                return ZF;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Defines the generated class. Hidden classes (Java 15+) are unloaded
+     * along with their last instance; older runtimes define a regular class
+     * through the compiler's class loader.
+     */
+    private static CompiledCode define(byte[] classFile, String name)
+    {
+        try {
+            Class<?> cls;
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                Class<?> optionType = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+                Object noOptions = Array.newInstance(optionType, 0);
+                Method defineHidden = MethodHandles.Lookup.class.getMethod(
+                    "defineHiddenClass", byte[].class, boolean.class, noOptions.getClass()
+                );
+                cls = ((MethodHandles.Lookup) defineHidden.invoke(lookup, classFile, true, noOptions)).lookupClass();
+            } catch (ClassNotFoundException | NoSuchMethodException ex) {
+                Method defineClass = ClassLoader.class.getDeclaredMethod(
+                    "defineClass", String.class, byte[].class, int.class, int.class
+                );
+                defineClass.setAccessible(true);
+                cls = (Class<?>) defineClass.invoke(
+                    BytecodeCompiler.class.getClassLoader(), name, classFile, 0, classFile.length
+                );
+            }
+            return (CompiledCode) cls.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Throwable cause = ex instanceof InvocationTargetException ? ex.getCause() : ex;
+            throw new UnsupportedOperationException("Unable to define compiled program class", cause);
+        }
+    }
+
+    /**
+     * Abstract machine state: the kind of value held by each register and
+     * each hardware stack slot pushed by the program
+     */
+    private static final class State
+    {
+        final Kind[] regs;
+        final List<Kind> stack;
+
+        State()
+        {
+            regs = new Kind[REG_COUNT];
+            Arrays.fill(regs, Kind.UNKNOWN);
+            stack = new ArrayList<>();
+        }
+
+        private State(State other)
+        {
+            regs = other.regs.clone();
+            stack = new ArrayList<>(other.stack);
+        }
+
+        State copy()
+        {
+            return new State(this);
+        }
+
+        /**
+         * Merges another state arriving at the same instruction
+         * @return True if this state changed
+         */
+        boolean merge(State other)
+        {
+            if (stack.size() != other.stack.size())
+                throw new UnsupportedOperationException("Stack depth differs between paths");
+            boolean changed = false;
+            for (int i = 0; i < regs.length; ++i) {
+                Kind merged = regs[i].merge(other.regs[i]);
+                changed |= merged != regs[i];
+                regs[i] = merged;
+            }
+            for (int i = 0; i < stack.size(); ++i) {
+                Kind merged = stack.get(i).merge(other.stack.get(i));
+                changed |= merged != stack.get(i);
+                stack.set(i, merged);
+            }
+            return changed;
+        }
+    }
+}
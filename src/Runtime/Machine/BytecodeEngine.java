@@ -0,0 +1,57 @@
+package Runtime.Machine;
+
+import Runtime.JIT.API.Instruction;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Execution engine that compiles each loaded program to JVM bytecode and runs
+ * it on the virtual CPU's state. Programs the bytecode compiler does not
+ * support are executed by the interpreter instead.
+ * @author Joshua Boley
+ */
+public class BytecodeEngine
+    implements ExecutionEngine
+{
+    private final VirtualCPU m_cpu;
+    private CompiledCode m_compiled;
+
+    public BytecodeEngine(VirtualCPU cpu)
+    {
+        m_cpu = cpu;
+        m_compiled = null;
+    }
+
+    @Override
+    public void load(List<Instruction> program)
+    {
+        m_cpu.load(program);
+        try {
+            m_compiled = new BytecodeCompiler(program).compile();
+        } catch (UnsupportedOperationException ex) {
+            Logger.getLogger(BytecodeEngine.class.getName()).log(
+                Level.FINE, "Program left to the interpreter: {0}", ex.getMessage()
+            );
+            m_compiled = null;
+        }
+    }
+
+    @Override
+    public void execute()
+    {
+        if (m_compiled != null)
+            m_compiled.run(m_cpu);
+        else
+            m_cpu.execute();
+    }
+
+    /**
+     * Returns whether or not the loaded program was compiled to bytecode
+     * @return True or false
+     */
+    public boolean isCompiled()
+    {
+        return m_compiled != null;
+    }
+}
@@ -0,0 +1,211 @@
+package Runtime.Machine;
+
+import java.util.Arrays;
+
+/**
+ * One level of a simulated set-associative cache. Only line addresses are
+ * tracked; no data is held.
+ * @author Joshua Boley
+ */
+public final class CacheLevel
+{
+    /**
+     * Victim selection within a set
+     */
+    public enum Replacement
+    {
+        LRU,    // Least recently used way
+        PLRU    // Tree pseudo-LRU, one bit per node of a binary tree over the ways
+    }
+
+    private static final long EMPTY = -1;
+
+    private final String m_name;
+    private final int m_size;
+    private final int m_lineSize;
+    private final int m_ways;
+    private final int m_sets;
+    private final Replacement m_replacement;
+    private final int m_latency;
+    private final long[] m_lines;       // Line address held by each way, set-major
+    private final long[] m_used;        // LRU: access stamp of each way
+    private final int[] m_tree;         // PLRU: node bits of each set, bit i for node i in heap order
+    private long m_clock;
+
+    /**
+     * @param name        Level name used in reports, e.g. L1
+     * @param size        Capacity in bytes
+     * @param lineSize    Line size in bytes, a power of two
+     * @param ways        Associativity; a power of two for PLRU
+     * @param replacement Replacement policy
+     * @param latency     Cycles to serve a hit
+     */
+    public CacheLevel(String name, int size, int lineSize, int ways, Replacement replacement, int latency)
+    {
+        if (lineSize <= 0 || Integer.bitCount(lineSize) != 1)
+            throw new IllegalArgumentException("Line size must be a power of two");
+        if (ways <= 0 || size % (lineSize * ways) != 0 || size == 0)
+            throw new IllegalArgumentException("Size must be a positive multiple of line size times associativity");
+        if (replacement == Replacement.PLRU && (Integer.bitCount(ways) != 1 || ways > 32))
+            throw new IllegalArgumentException("Pseudo-LRU needs a power of two of at most 32 ways");
+        m_name = name;
+        m_size = size;
+        m_lineSize = lineSize;
+        m_ways = ways;
+        m_sets = size / (lineSize * ways);
+        m_replacement = replacement;
+        m_latency = latency;
+        m_lines = new long[m_sets * ways];
+        m_used = new long[m_sets * ways];
+        m_tree = new int[m_sets];
+        reset();
+    }
+
+    public String getName()
+    {
+        return m_name;
+    }
+
+    public int getSize()
+    {
+        return m_size;
+    }
+
+    public int getLineSize()
+    {
+        return m_lineSize;
+    }
+
+    public int getWays()
+    {
+        return m_ways;
+    }
+
+    public Replacement getReplacement()
+    {
+        return m_replacement;
+    }
+
+    public int getLatency()
+    {
+        return m_latency;
+    }
+
+    /**
+     * Empties the cache
+     */
+    public void reset()
+    {
+        Arrays.fill(m_lines, EMPTY);
+        Arrays.fill(m_used, 0);
+        Arrays.fill(m_tree, 0);
+        m_clock = 0;
+    }
+
+    /**
+     * Looks up a line, marking it used on a hit
+     * @param line Line address, the byte address divided by the line size
+     * @return True on a hit
+     */
+    boolean lookup(long line)
+    {
+        int way = find(line);
+        if (way < 0)
+            return false;
+        touch(set(line), way);
+        return true;
+    }
+
+    /**
+     * Installs a line that missed, replacing an empty way or the victim chosen
+     * by the replacement policy
+     * @param line Line address
+     * @return Evicted line address, -1 if an empty way was filled
+     */
+    long insert(long line)
+    {
+        int set = set(line), base = set * m_ways;
+        int way = -1;
+        for (int w = 0; w < m_ways && way < 0; ++w) {
+            if (m_lines[base + w] == EMPTY)
+                way = w;
+        }
+        if (way < 0)
+            way = victim(set);
+        long evicted = m_lines[base + way];
+        m_lines[base + way] = line;
+        touch(set, way);
+        return evicted;
+    }
+
+    /**
+     * Removes a line, for back-invalidation or when an exclusive hierarchy
+     * moves it to another level
+     * @param line Line address
+     * @return True if the line was present
+     */
+    boolean remove(long line)
+    {
+        int way = find(line);
+        if (way < 0)
+            return false;
+        m_lines[set(line) * m_ways + way] = EMPTY;
+        return true;
+    }
+
+    private int set(long line)
+    {
+        return (int) (line % m_sets);
+    }
+
+    private int find(long line)
+    {
+        int base = set(line) * m_ways;
+        for (int w = 0; w < m_ways; ++w) {
+            if (m_lines[base + w] == line)
+                return w;
+        }
+        return -1;
+    }
+
+    private void touch(int set, int way)
+    {
+        if (m_replacement == Replacement.LRU) {
+            m_used[set * m_ways + way] = ++m_clock;
+            return;
+        }
+        // Point every node on the path to the way away from it
+        int bits = m_tree[set];
+        for (int node = 1, span = m_ways >> 1; span > 0; span >>= 1) {
+            boolean right = (way & span) != 0;
+            bits = right ? bits & ~(1 << node) : bits | (1 << node);
+            node = node * 2 + (right ? 1 : 0);
+        }
+        m_tree[set] = bits;
+    }
+
+    private int victim(int set)
+    {
+        if (m_replacement == Replacement.LRU) {
+            int base = set * m_ways, oldest = 0;
+            for (int w = 1; w < m_ways; ++w) {
+                if (m_used[base + w] < m_used[base + oldest])
+                    oldest = w;
+            }
+            return oldest;
+        }
+        int node = 1;
+        while (node < m_ways)
+            node = node * 2 + ((m_tree[set] >>> node) & 1);
+        return node - m_ways;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(
+            "%s: %d bytes, %d-byte lines, %d-way %s, %d cycles",
+            m_name, m_size, m_lineSize, m_ways, m_replacement, m_latency
+        );
+    }
+}
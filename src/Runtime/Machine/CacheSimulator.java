@@ -0,0 +1,243 @@
+package Runtime.Machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Cache hierarchy model fed with the variable accesses of the interpreter's
+ * instrumented loop. Each access is looked up level by level until a level
+ * holds its line, or memory serves it. Cycles beyond an L1 hit are counted as
+ * memory stalls, charged to the level that served the access and to the
+ * variable accessed.
+ *
+ * Statistics are updated by the executing thread without synchronization and
+ * should be read between runs.
+ * @author Joshua Boley
+ */
+public final class CacheSimulator
+{
+    /**
+     * Whether a line may be held by more than one level
+     */
+    public enum Inclusion
+    {
+        INCLUSIVE,  // Every line is also held by the levels below; evicting it there evicts it above
+        EXCLUSIVE   // Lines are held by one level only; L1 victims move down a level
+    }
+
+    private static final int READS = 0, WRITES = 1, L1_MISSES = 2, STALLS = 3;
+
+    private final CacheLevel[] m_levels;
+    private final Inclusion m_inclusion;
+    private final int m_memoryLatency;
+    private final int m_lineSize;
+    private final long[] m_hits;                // Per level, memory last
+    private final long[] m_misses;              // Per level
+    private final long[] m_stalls;              // Per level, memory last
+    private final Map<Integer, long[]> m_variables;  // Counters per variable offset
+
+    /**
+     * @param levels        Cache levels, L1 first; all must have the same line
+     *                      size
+     * @param inclusion     Inclusion policy
+     * @param memoryLatency Cycles for memory to serve an access missing every
+     *                      level
+     */
+    public CacheSimulator(List<CacheLevel> levels, Inclusion inclusion, int memoryLatency)
+    {
+        if (levels.isEmpty())
+            throw new IllegalArgumentException("Cache hierarchy needs at least one level");
+        m_levels = levels.toArray(new CacheLevel[levels.size()]);
+        m_lineSize = m_levels[0].getLineSize();
+        for (CacheLevel level : m_levels) {
+            if (level.getLineSize() != m_lineSize)
+                throw new IllegalArgumentException("Cache levels differ in line size");
+        }
+        m_inclusion = inclusion;
+        m_memoryLatency = memoryLatency;
+        m_hits = new long[m_levels.length + 1];
+        m_misses = new long[m_levels.length];
+        m_stalls = new long[m_levels.length + 1];
+        m_variables = new HashMap<>();
+    }
+
+    /**
+     * Creates a hierarchy resembling a desktop processor's: 32 KiB 8-way
+     * pseudo-LRU L1, 256 KiB 4-way L2 and 8 MiB 16-way L3, with 64-byte lines
+     * @param inclusion Inclusion policy
+     * @return Cache simulator
+     */
+    public static CacheSimulator createDefault(Inclusion inclusion)
+    {
+        List<CacheLevel> levels = new ArrayList<>();
+        levels.add(new CacheLevel("L1", 32 << 10, 64, 8, CacheLevel.Replacement.PLRU, 4));
+        levels.add(new CacheLevel("L2", 256 << 10, 64, 4, CacheLevel.Replacement.LRU, 12));
+        levels.add(new CacheLevel("L3", 8 << 20, 64, 16, CacheLevel.Replacement.LRU, 40));
+        return new CacheSimulator(levels, inclusion, 200);
+    }
+
+    public List<CacheLevel> getLevels()
+    {
+        return Arrays.asList(m_levels);
+    }
+
+    public Inclusion getInclusion()
+    {
+        return m_inclusion;
+    }
+
+    public int getMemoryLatency()
+    {
+        return m_memoryLatency;
+    }
+
+    /**
+     * Empties the caches and clears the statistics
+     */
+    public void reset()
+    {
+        for (CacheLevel level : m_levels)
+            level.reset();
+        Arrays.fill(m_hits, 0);
+        Arrays.fill(m_misses, 0);
+        Arrays.fill(m_stalls, 0);
+        m_variables.clear();
+    }
+
+    /**
+     * Returns the accesses a level served
+     * @param level Level index, L1 being 0; the level count for memory
+     * @return Hit count
+     */
+    public long getHits(int level)
+    {
+        return m_hits[level];
+    }
+
+    public long getMisses(int level)
+    {
+        return m_misses[level];
+    }
+
+    /**
+     * Returns the stall cycles of the accesses a level served
+     * @param level Level index, L1 being 0; the level count for memory
+     * @return Cycle count
+     */
+    public long getStallCycles(int level)
+    {
+        return m_stalls[level];
+    }
+
+    public long getStallCycles()
+    {
+        long total = 0;
+        for (long stalls : m_stalls)
+            total += stalls;
+        return total;
+    }
+
+    /**
+     * Simulates a variable access, which touches every line the variable
+     * overlaps. Writes allocate lines like reads.
+     * @param offset Variable storage offset
+     * @param size   Access size in bytes
+     * @param write  True for a store
+     */
+    void access(int offset, int size, boolean write)
+    {
+        long[] variable = m_variables.computeIfAbsent(offset, (Integer key) -> new long[4]);
+        ++variable[write ? WRITES : READS];
+        for (long line = offset / m_lineSize; line <= (offset + size - 1) / m_lineSize; ++line) {
+            int served = accessLine(line);
+            int stall = (served < m_levels.length ? m_levels[served].getLatency() : m_memoryLatency) -
+                        m_levels[0].getLatency();
+            if (served > 0)
+                ++variable[L1_MISSES];
+            variable[STALLS] += stall;
+            m_stalls[served] += stall;
+        }
+    }
+
+    /**
+     * Looks a line up and fills the levels that missed
+     * @return Index of the level that served the access, the level count for
+     *         memory
+     */
+    private int accessLine(long line)
+    {
+        int served = 0;
+        while (served < m_levels.length && !m_levels[served].lookup(line))
+            ++m_misses[served++];
+        ++m_hits[served];
+        if (served == 0)
+            return served;
+
+        if (m_inclusion == Inclusion.INCLUSIVE) {
+            // A line evicted from a level is invalidated in the levels above
+            // it, which must only hold lines the level holds
+            for (int n = served - 1; n >= 0; --n) {
+                long evicted = m_levels[n].insert(line);
+                for (int above = 0; evicted >= 0 && above < n; ++above)
+                    m_levels[above].remove(evicted);
+            }
+        }
+        else {
+            if (served < m_levels.length)
+                m_levels[served].remove(line);
+            long evicted = m_levels[0].insert(line);
+            for (int n = 1; evicted >= 0 && n < m_levels.length; ++n)
+                evicted = m_levels[n].insert(evicted);
+        }
+        return served;
+    }
+
+    /**
+     * Formats the statistics per level and per variable, variables with the
+     * most stall cycles first
+     * @param names Resolves a variable offset to the variable's name, may
+     *              return null
+     * @return Report text
+     */
+    public String report(IntFunction<String> names)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Hierarchy: %s, memory %d cycles", m_inclusion, m_memoryLatency));
+        for (int n = 0; n < m_levels.length; ++n) {
+            long accesses = m_hits[n] + m_misses[n];
+            sb.append(String.format(
+                "%n  %s%n    %10d hits %10d misses %7.2f%% miss ratio %12d stall cycles",
+                m_levels[n], m_hits[n], m_misses[n], accesses == 0 ? 0.0 : 100.0 * m_misses[n] / accesses, m_stalls[n]
+            ));
+        }
+        sb.append(String.format(
+            "%n  Memory: %d accesses, %d stall cycles%nStalls: %d cycles",
+            m_hits[m_levels.length], m_stalls[m_levels.length], getStallCycles()
+        ));
+
+        List<Map.Entry<Integer, long[]>> variables = new ArrayList<>(m_variables.entrySet());
+        variables.sort((Map.Entry<Integer, long[]> a, Map.Entry<Integer, long[]> b) -> {
+            int order = Long.compare(b.getValue()[STALLS], a.getValue()[STALLS]);
+            return order != 0 ? order : Integer.compare(a.getKey(), b.getKey());
+        });
+        for (Map.Entry<Integer, long[]> entry : variables) {
+            String name = names == null ? null : names.apply(entry.getKey());
+            long[] counts = entry.getValue();
+            sb.append(String.format(
+                "%n  %-12s @%-6d %10d reads %10d writes %8d L1 misses %10d stall cycles",
+                name == null ? "?" : name, entry.getKey(), counts[READS], counts[WRITES], counts[L1_MISSES], counts[STALLS]
+            ));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return report(null);
+    }
+}
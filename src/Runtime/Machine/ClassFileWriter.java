@@ -0,0 +1,389 @@
+package Runtime.Machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JVM class file writer used by the bytecode compiler. Writes class
+ * file version 49 so that no stack map frames need to be computed; the
+ * verifier infers local and operand stack types itself.
+ * @author Joshua Boley
+ */
+class ClassFileWriter
+{
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // Opcodes used by the compiler
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int LLOAD = 0x16;
+    static final int ALOAD = 0x19;
+    static final int ISTORE = 0x36;
+    static final int LSTORE = 0x37;
+    static final int ASTORE = 0x3A;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int LMUL = 0x69;
+    static final int IDIV = 0x6C;
+    static final int IREM = 0x70;
+    static final int INEG = 0x74;
+    static final int IUSHR = 0x7C;
+    static final int IAND = 0x7E;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int I2L = 0x85;
+    static final int L2I = 0x88;
+    static final int I2D = 0x87;
+    static final int D2I = 0x8E;
+    static final int LCMP = 0x94;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9A;
+    static final int IF_ICMPEQ = 0x9F;
+    static final int IF_ICMPNE = 0xA0;
+    static final int GOTO = 0xA7;
+    static final int RETURN = 0xB1;
+    static final int INVOKEVIRTUAL = 0xB6;
+    static final int INVOKESPECIAL = 0xB7;
+    static final int INVOKESTATIC = 0xB8;
+    static final int WIDE = 0xC4;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_NameAndType = 12;
+
+    private final ByteArrayOutputStream m_poolBytes;
+    private final DataOutputStream m_pool;
+    private final Map<String, Integer> m_poolIndex;     // Constant pool entry indices, keyed by tag and content
+    private int m_poolCount;
+    private final int m_thisClass;
+    private final int m_superClass;
+    private final List<Integer> m_interfaces;
+    private final List<byte[]> m_methods;
+
+    ClassFileWriter(String name, String superName, String... interfaces)
+    {
+        m_poolBytes = new ByteArrayOutputStream();
+        m_pool = new DataOutputStream(m_poolBytes);
+        m_poolIndex = new HashMap<>();
+        m_poolCount = 1;
+        m_methods = new ArrayList<>();
+        m_thisClass = classRef(name);
+        m_superClass = classRef(superName);
+        m_interfaces = new ArrayList<>();
+        for (String iface : interfaces)
+            m_interfaces.add(classRef(iface));
+    }
+
+    int utf8(String value)
+    {
+        Integer idx = m_poolIndex.get("U" + value);
+        if (idx != null)
+            return idx;
+        try {
+            m_pool.writeByte(CONSTANT_Utf8);
+            m_pool.writeUTF(value);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return register("U" + value);
+    }
+
+    int classRef(String internalName)
+    {
+        Integer idx = m_poolIndex.get("C" + internalName);
+        if (idx != null)
+            return idx;
+        int nameIdx = utf8(internalName);
+        writeEntry(CONSTANT_Class, nameIdx);
+        return register("C" + internalName);
+    }
+
+    int string(String value)
+    {
+        Integer idx = m_poolIndex.get("S" + value);
+        if (idx != null)
+            return idx;
+        int valueIdx = utf8(value);
+        writeEntry(CONSTANT_String, valueIdx);
+        return register("S" + value);
+    }
+
+    int integer(int value)
+    {
+        Integer idx = m_poolIndex.get("I" + value);
+        if (idx != null)
+            return idx;
+        try {
+            m_pool.writeByte(CONSTANT_Integer);
+            m_pool.writeInt(value);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return register("I" + value);
+    }
+
+    int methodRef(String owner, String name, String descriptor)
+    {
+        String key = "M" + owner + "." + name + descriptor;
+        Integer idx = m_poolIndex.get(key);
+        if (idx != null)
+            return idx;
+        int classIdx = classRef(owner);
+        int natIdx = nameAndType(name, descriptor);
+        writeEntry(CONSTANT_Methodref, classIdx, natIdx);
+        return register(key);
+    }
+
+    /**
+     * Returns a new, empty method body
+     * @return Code buffer
+     */
+    Code newCode()
+    {
+        return new Code();
+    }
+
+    /**
+     * Adds a method to the class
+     * @param access     Access flags
+     * @param name       Method name
+     * @param descriptor Method descriptor
+     * @param code       Method body
+     * @param maxStack   Maximum operand stack depth
+     * @param maxLocals  Number of local variable slots, including arguments
+     */
+    void addMethod(int access, String name, String descriptor, Code code, int maxStack, int maxLocals)
+    {
+        byte[] bytecode = code.toByteArray();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + bytecode.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(0);      // Exception table length
+            out.writeShort(0);      // Code attribute count
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        m_methods.add(bytes.toByteArray());
+    }
+
+    /**
+     * Returns the class file contents
+     * @param access Class access flags
+     * @return Class file
+     */
+    byte[] toByteArray(int access)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(m_poolCount);
+            m_pool.flush();
+            m_poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(m_thisClass);
+            out.writeShort(m_superClass);
+            out.writeShort(m_interfaces.size());
+            for (int iface : m_interfaces)
+                out.writeShort(iface);
+            out.writeShort(0);      // Field count
+            out.writeShort(m_methods.size());
+            for (byte[] method : m_methods)
+                out.write(method);
+            out.writeShort(0);      // Class attribute count
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int nameAndType(String name, String descriptor)
+    {
+        String key = "N" + name + ":" + descriptor;
+        Integer idx = m_poolIndex.get(key);
+        if (idx != null)
+            return idx;
+        int nameIdx = utf8(name);
+        int descIdx = utf8(descriptor);
+        writeEntry(CONSTANT_NameAndType, nameIdx, descIdx);
+        return register(key);
+    }
+
+    private void writeEntry(int tag, int... indices)
+    {
+        try {
+            m_pool.writeByte(tag);
+            for (int idx : indices)
+                m_pool.writeShort(idx);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private int register(String key)
+    {
+        int idx = m_poolCount;
+        ++m_poolCount;
+        if (m_poolCount > 0xFFFF)
+            throw new UnsupportedOperationException("Constant pool overflow");
+        m_poolIndex.put(key, idx);
+        return idx;
+    }
+
+    /**
+     * Method body under construction. Branches refer to labels, which are
+     * resolved to 16-bit relative offsets once the body is complete.
+     */
+    class Code
+    {
+        private byte[] m_code;
+        private int m_length;
+        private final List<Integer> m_labelPos;     // Code position of each label, -1 if not yet placed
+        private final List<int[]> m_fixups;         // {branch opcode position, label}
+
+        private Code()
+        {
+            m_code = new byte[256];
+            m_length = 0;
+            m_labelPos = new ArrayList<>();
+            m_fixups = new ArrayList<>();
+        }
+
+        int newLabel()
+        {
+            m_labelPos.add(-1);
+            return m_labelPos.size() - 1;
+        }
+
+        void mark(int label)
+        {
+            m_labelPos.set(label, m_length);
+        }
+
+        void op(int opcode)
+        {
+            put(opcode);
+        }
+
+        void branch(int opcode, int label)
+        {
+            m_fixups.add(new int[] { m_length, label });
+            put(opcode);
+            put(0);
+            put(0);
+        }
+
+        void local(int opcode, int idx)
+        {
+            if (idx < 256) {
+                put(opcode);
+                put(idx);
+            }
+            else {
+                put(WIDE);
+                put(opcode);
+                put(idx >> 8);
+                put(idx);
+            }
+        }
+
+        void iconst(int value)
+        {
+            if (value >= -1 && value <= 5)
+                put(ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                put(BIPUSH);
+                put(value);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                put(SIPUSH);
+                put(value >> 8);
+                put(value);
+            }
+            else
+                ldc(integer(value));
+        }
+
+        void sconst(String value)
+        {
+            ldc(string(value));
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor)
+        {
+            int idx = methodRef(owner, name, descriptor);
+            put(opcode);
+            put(idx >> 8);
+            put(idx);
+        }
+
+        private void ldc(int idx)
+        {
+            if (idx < 256) {
+                put(LDC);
+                put(idx);
+            }
+            else {
+                put(LDC_W);
+                put(idx >> 8);
+                put(idx);
+            }
+        }
+
+        private void put(int b)
+        {
+            if (m_length == m_code.length) {
+                byte[] grown = new byte[m_code.length * 2];
+                System.arraycopy(m_code, 0, grown, 0, m_length);
+                m_code = grown;
+            }
+            m_code[m_length++] = (byte) b;
+        }
+
+        private byte[] toByteArray()
+        {
+            if (m_length > 0xFFFF)
+                throw new UnsupportedOperationException("Method body exceeds the 64KB class file limit");
+            for (int[] fixup : m_fixups) {
+                int target = m_labelPos.get(fixup[1]);
+                if (target < 0)
+                    throw new IllegalStateException("Branch to unplaced label");
+                int offset = target - fixup[0];
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                    throw new UnsupportedOperationException("Branch offset out of range");
+                m_code[fixup[0] + 1] = (byte) (offset >> 8);
+                m_code[fixup[0] + 2] = (byte) offset;
+            }
+            byte[] bytes = new byte[m_length];
+            System.arraycopy(m_code, 0, bytes, 0, m_length);
+            return bytes;
+        }
+    }
+}
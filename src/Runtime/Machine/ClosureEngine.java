@@ -0,0 +1,589 @@
+package Runtime.Machine;
+
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import Runtime.Machine.Interface.Superinstructions;
+import java.util.List;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntSupplier;
+
+/**
+ * Execution engine that translates each instruction into a closure once, at
+ * load time. Closures are specialized by opcode and operand kinds and hold
+ * the register file indices they use, so execution does no opcode dispatch
+ * or operand list access. Register types are
+ * still checked when a closure runs, and faults are reported by the same
+ * exceptions as the interpreter.
+ * @author Joshua Boley
+ */
+public class ClosureEngine
+    implements ExecutionEngine
+{
+    private static final int R1 = RegId.R1.ordinal(),
+                             R4 = RegId.R4.ordinal();
+
+    /**
+     * Translated instruction; returns the address of the next instruction
+     */
+    private interface Op
+    {
+        int run(int addr);
+    }
+
+    /**
+     * Program translated to closures
+     */
+    static final class Program
+    {
+        private final Op[] m_ops;
+
+        private Program(Op[] ops)
+        {
+            m_ops = ops;
+        }
+    }
+
+    private final VirtualCPU m_cpu;
+    private final RegisterFile m_registers;
+    private Program m_program;
+    private long m_backEdges;
+
+    public ClosureEngine(VirtualCPU cpu)
+    {
+        m_cpu = cpu;
+        m_registers = cpu.getRegisters();
+        m_program = null;
+        m_backEdges = 0;
+    }
+
+    @Override
+    public void load(List<Instruction> program)
+    {
+        m_cpu.load(program);
+        m_program = translate(program);
+    }
+
+    @Override
+    public void execute()
+    {
+        run(m_program);
+    }
+
+    /**
+     * Translates a program for execution on this engine's CPU
+     * @param program Compiled program
+     * @return Translated program
+     */
+    Program translate(List<Instruction> program)
+    {
+        Op[] ops = new Op[program.size()];
+        for (int addr = 0; addr < ops.length; ++addr)
+            ops[addr] = translate(program.get(addr), addr);
+        return new Program(ops);
+    }
+
+    /**
+     * Runs a translated program to completion
+     * @param program Translated program
+     */
+    void run(Program program)
+    {
+        Op[] ops = program.m_ops;
+        int addr = 0;
+        m_backEdges = 0;
+        try {
+            while (addr < ops.length)
+                addr = ops[addr].run(addr);
+        } finally {
+            m_cpu.setInstructionPointer(addr);
+        }
+    }
+
+    /**
+     * Returns the number of backward jumps taken by the last run
+     * @return Back-edge count
+     */
+    long getBackEdgeCount()
+    {
+        return m_backEdges;
+    }
+
+    private Op translate(Instruction instr, int addr)
+    {
+        Opcodes opcode = instr.getCode();
+        List<Operand> operands = instr.getOperands();
+        switch (opcode) {
+            case MOV:
+                return mov(operands.get(0), operands.get(1));
+            case ADD:
+            case ADD_I4:
+                return arithmetic("ADD", operands, VirtualCPU.CC_ADD, (a, b) -> a + b, !opcode.isTyped());
+            case SUB:
+            case SUB_I4:
+                return arithmetic("SUBTRACT", operands, VirtualCPU.CC_SUB, (a, b) -> a - b, !opcode.isTyped());
+            case MULT:
+            case MULT_I4:
+                return mult(operands, !opcode.isTyped());
+            case DIV:
+            case DIV_I4:
+                return div(operands, !opcode.isTyped());
+            case EXP:
+            case EXP_I4:
+                return exp(operands, !opcode.isTyped());
+            case NEG:
+            case NEG_I4:
+                return neg(operands.get(0), !opcode.isTyped());
+            case SAR:
+                return shift("SAR", operands, (a, b) -> a >> b);
+            case SAL:
+                return shift("SAL", operands, (a, b) -> a << b);
+            case SLR:
+                return shift("SLR", operands, (a, b) -> a >>> b);
+            case SLL:
+                return shift("SLL", operands, (a, b) -> a << b);
+            case PUSH:
+                return push(register(operands.get(0)));
+            case POP:
+                return pop(register(operands.get(0)));
+            case CMP:
+            case CMP_I4:
+                if (!sourceOperands(operands))
+                    return fault(unsupportedOperands("CMP", operands));
+                return cmp(register(operands.get(0)), operands.get(1), !opcode.isTyped());
+            case TEST:
+                return logic(operands, (a, b) -> a & b, false);
+            case OR:
+                return logic(operands, (a, b) -> a | b, true);
+            case XOR:
+                return logic(operands, (a, b) -> a ^ b, true);
+            case AND:
+                return logic(operands, (a, b) -> a & b, true);
+            case JMP:
+            case JL:
+            case JLE:
+            case JG:
+            case JGE:
+            case JE:
+            case JNE:
+                return jump(opcode, addr, (int) operands.get(0).getEnclosed());
+            case PRNT:
+                return print(register(operands.get(0)));
+            case CLR:
+                return (int pc) -> {
+                    m_cpu.clear();
+                    m_registers.setStr(R1, "");
+                    return pc + 1;
+                };
+            case LDPRNT:
+            case MOVST:
+            case ADDST:
+            case SUBST:
+            case MULTST:
+            {
+                // Chain the closures of the expansion under one address
+                List<Instruction> parts = Superinstructions.expand(instr);
+                Op first = translate(parts.get(0), addr),
+                   second = translate(parts.get(1), addr);
+                return (int pc) -> {
+                    first.run(pc);
+                    return second.run(pc);
+                };
+            }
+            default:
+                // Conditional sets have no effect in the interpreter
+                return (int pc) -> pc + 1;
+        }
+    }
+
+    private Op mov(Operand dst, Operand src)
+    {
+        switch (dst.getType()) {
+            case Imm_Int4:
+            case Imm_Str:
+                return fault("MOV: Only moves to register or reference stored in a register supported");
+            case Register:
+            {
+                int dstReg = register(dst);
+                switch (src.getType()) {
+                    case Register:
+                    {
+                        int srcReg = register(src);
+                        return (int pc) -> {
+                            m_registers.copy(dstReg, srcReg);
+                            return pc + 1;
+                        };
+                    }
+                    case Imm_Int4:
+                    {
+                        int value = (int) src.getEnclosed();
+                        return (int pc) -> {
+                            m_registers.setInt(dstReg, value);
+                            return pc + 1;
+                        };
+                    }
+                    case Imm_Str:
+                    {
+                        String value = (String) src.getEnclosed();
+                        return (int pc) -> {
+                            m_registers.setStr(dstReg, value);
+                            return pc + 1;
+                        };
+                    }
+                    default:
+                    {
+                        if (!src.isReference())
+                            return fault("MOV: Attempting to move to register from unrecognized location type");
+                        if (src.getType() != DataType.Int4)
+                            return fault("MOV: Unsupported variable type " + src.getType());
+                        int offset = (int) src.getEnclosed();
+                        return (int pc) -> {
+                            m_registers.setInt(dstReg, StaticMemory.getInt(offset));
+                            return pc + 1;
+                        };
+                    }
+                }
+            }
+            default:
+            {
+                if (!dst.isReference())
+                    return fault("MOV: Attempted to move to an unknown location type");
+                switch (src.getType()) {
+                    case Register:
+                    {
+                        if (dst.getType() != DataType.Int4)
+                            return fault("MOV: Unsupported variable type " + dst.getType());
+                        int srcReg = register(src);
+                        int offset = (int) dst.getEnclosed();
+                        return (int pc) -> {
+                            if (!m_registers.isInt(srcReg))
+                                throw new UnsupportedOperationException("MOV: Type mismatch, conversion not supported");
+                            StaticMemory.putInt(offset, m_registers.getInt(srcReg));
+                            return pc + 1;
+                        };
+                    }
+                    case Imm_Int4:
+                    case Imm_Str:
+                        return fault("MOV: Moving a literal type directly to variable storage not supported");
+                    default:
+                        return fault("MOV: Direct memory-to-memory moves not supported");
+                }
+            }
+        }
+    }
+
+    /**
+     * Add or subtract; the flags are left for the CPU to evaluate lazily.
+     * Operand types are only checked for the generic opcodes.
+     */
+    private Op arithmetic(String name, List<Operand> operands, int ccOp, IntBinaryOperator op, boolean checked)
+    {
+        if (!sourceOperands(operands))
+            return fault(unsupportedOperands(name, operands));
+        int dstReg = register(operands.get(0)),
+            srcReg = sourceRegister(operands.get(1));
+        IntSupplier src = source(operands.get(1));
+        return (int pc) -> {
+            if (checked)
+                checkInt4(name, dstReg, srcReg);
+            int b = src.getAsInt(), res = op.applyAsInt(m_registers.getInt(dstReg), b);
+            m_cpu.setResult(ccOp, res, b);
+            m_registers.setInt(dstReg, res);
+            return pc + 1;
+        };
+    }
+
+    private Op mult(List<Operand> operands, boolean checked)
+    {
+        if (!sourceOperands(operands))
+            return fault(unsupportedOperands("MULTIPLY", operands));
+        int dstReg = register(operands.get(0)),
+            srcReg = sourceRegister(operands.get(1));
+        IntSupplier src = source(operands.get(1));
+        return (int pc) -> {
+            if (checked)
+                checkInt4("MULTIPLY", dstReg, srcReg);
+            long product = (long) m_registers.getInt(dstReg) * src.getAsInt();
+            int res = (int) product;
+            m_cpu.setResult(VirtualCPU.CC_MUL, res, res != product ? 1 : 0);
+            m_registers.setInt(dstReg, res);
+            return pc + 1;
+        };
+    }
+
+    private Op div(List<Operand> operands, boolean checked)
+    {
+        if (!sourceOperands(operands))
+            return fault(unsupportedOperands("DIVIDE", operands));
+        int dstReg = register(operands.get(0)),
+            srcReg = sourceRegister(operands.get(1));
+        IntSupplier src = source(operands.get(1));
+        return (int pc) -> {
+            if (checked)
+                checkInt4("DIVIDE", dstReg, srcReg);
+            int a = m_registers.getInt(dstReg), b = src.getAsInt();
+            int res = a / b;
+            m_cpu.setResult(VirtualCPU.CC_LOGIC, res, 0);
+            m_registers.setInt(dstReg, res);
+            m_registers.setInt(R4, a % b);
+            return pc + 1;
+        };
+    }
+
+    private Op exp(List<Operand> operands, boolean checked)
+    {
+        if (!sourceOperands(operands))
+            return fault(unsupportedOperands("EXP", operands));
+        int dstReg = register(operands.get(0)),
+            srcReg = sourceRegister(operands.get(1));
+        IntSupplier src = source(operands.get(1));
+        return (int pc) -> {
+            if (checked)
+                checkInt4("EXP", dstReg, srcReg);
+            m_registers.setInt(dstReg, (int) Math.pow(m_registers.getInt(dstReg), src.getAsInt()));
+            return pc + 1;
+        };
+    }
+
+    private Op neg(Operand op, boolean checked)
+    {
+        int opReg = register(op);
+        return (int pc) -> {
+            if (checked && !m_registers.isInt(opReg))
+                throw new UnsupportedOperationException("NEGATION: Unsupported type " + op.getType());
+            m_registers.setInt(opReg, -m_registers.getInt(opReg));
+            return pc + 1;
+        };
+    }
+
+    private Op shift(String name, List<Operand> operands, IntBinaryOperator op)
+    {
+        int dstReg = register(operands.get(0));
+        Operand mutator = operands.get(1);
+        return (int pc) -> {
+            byte shiftVal = (byte) mutator.getEnclosed();
+            if (!m_registers.isInt(dstReg))
+                throw new UnsupportedOperationException(name + ": Unsupported type " + operands.get(0).getType());
+            m_registers.setInt(dstReg, op.applyAsInt(m_registers.getInt(dstReg), shiftVal));
+            return pc + 1;
+        };
+    }
+
+    private Op push(int srcReg)
+    {
+        VHdwStack stack = m_cpu.getStack();
+        return (int pc) -> {
+            stack.push(m_registers, srcReg);
+            return pc + 1;
+        };
+    }
+
+    private Op pop(int dstReg)
+    {
+        VHdwStack stack = m_cpu.getStack();
+        return (int pc) -> {
+            stack.pop(m_registers, dstReg);
+            return pc + 1;
+        };
+    }
+
+    private Op cmp(int lhReg, Operand rhs, boolean checked)
+    {
+        int rhReg = sourceRegister(rhs);
+        IntSupplier src = source(rhs);
+        return (int pc) -> {
+            if (checked) {
+                DataType lhType = m_registers.getType(lhReg),
+                         rhType = sourceType(rhReg);
+                if (lhType != rhType)
+                    throw new UnsupportedOperationException(
+                        "CMP: Unsupported comparison between types: op1=" +
+                        lhType + ", op2=" + rhType
+                    );
+                if (lhType != DataType.Int4)
+                    throw new UnsupportedOperationException("CMP: Unsupported type " + lhType);
+            }
+            int b = src.getAsInt();
+            m_cpu.setResult(VirtualCPU.CC_SUB, m_registers.getInt(lhReg) - b, b);
+            return pc + 1;
+        };
+    }
+
+    /**
+     * TEST, OR, XOR and AND; the result is stored unless the operation is
+     * only a comparison
+     */
+    private Op logic(List<Operand> operands, IntBinaryOperator op, boolean store)
+    {
+        int lhReg = register(operands.get(0));
+        Operand rhs = operands.get(1);
+        switch (rhs.getType()) {
+            case Register:
+            {
+                int rhReg = register(rhs);
+                return (int pc) -> {
+                    checkLogicOperand(lhReg);
+                    if (!m_registers.isInt(rhReg))
+                        throw new UnsupportedOperationException("TEST: Unsupported right-hand operand type " + m_registers.getType(rhReg));
+                    int res = op.applyAsInt(m_registers.getInt(lhReg), m_registers.getInt(rhReg));
+                    m_cpu.setResult(VirtualCPU.CC_LOGIC, res, 0);
+                    if (store)
+                        m_registers.setInt(lhReg, res);
+                    return pc + 1;
+                };
+            }
+            case Imm_Int4:
+            {
+                int imm = (int) rhs.getEnclosed();
+                return (int pc) -> {
+                    checkLogicOperand(lhReg);
+                    int res = op.applyAsInt(m_registers.getInt(lhReg), imm);
+                    m_cpu.setResult(VirtualCPU.CC_LOGIC, res, 0);
+                    if (store)
+                        m_registers.setInt(lhReg, res);
+                    return pc + 1;
+                };
+            }
+            default:
+                return fault("TEST: Unsupported right-hand operand type " + rhs.getType());
+        }
+    }
+
+    private Op jump(Opcodes condition, int addr, int offset)
+    {
+        int target = addr + offset;
+        boolean backward = offset <= 0;
+        switch (condition) {
+            case JMP:
+                return (int pc) -> taken(pc, target, backward);
+            case JL:    // SF != OF
+                return (int pc) -> VirtualCPU.isLess(m_cpu.getFlags()) ? taken(pc, target, backward) : pc + 1;
+            case JLE:   // ZF = 1 or SF != OF
+                return (int pc) -> {
+                    int flags = m_cpu.getFlags();
+                    return VirtualCPU.isZero(flags) || VirtualCPU.isLess(flags) ? taken(pc, target, backward) : pc + 1;
+                };
+            case JG:    // ZF = 0 and SF = OF
+                return (int pc) -> {
+                    int flags = m_cpu.getFlags();
+                    return !VirtualCPU.isZero(flags) && !VirtualCPU.isLess(flags) ? taken(pc, target, backward) : pc + 1;
+                };
+            case JGE:   // SF = OF
+                return (int pc) -> !VirtualCPU.isLess(m_cpu.getFlags()) ? taken(pc, target, backward) : pc + 1;
+            case JE:    // ZF = 1
+                return (int pc) -> VirtualCPU.isZero(m_cpu.getFlags()) ? taken(pc, target, backward) : pc + 1;
+            default:    // JNE, ZF = 0
+                return (int pc) -> !VirtualCPU.isZero(m_cpu.getFlags()) ? taken(pc, target, backward) : pc + 1;
+        }
+    }
+
+    private int taken(int addr, int target, boolean backward)
+    {
+        if (backward) {
+            ++m_backEdges;
+            m_cpu.backEdge(addr, addr - target + 1);
+        }
+        return target;
+    }
+
+    private Op print(int srcReg)
+    {
+        return (int pc) -> {
+            switch (m_registers.getType(srcReg)) {
+                case Int4:
+                    m_cpu.print(m_registers.getInt(srcReg));
+                    break;
+                case Imm_Str:
+                    m_cpu.print(m_registers.getStr(srcReg));
+                    break;
+                default:
+                    throw new UnsupportedOperationException("PRINT: Not supported for type " + m_registers.getType(srcReg));
+            }
+            return pc + 1;
+        };
+    }
+
+    /**
+     * Returns an operation that raises the interpreter's error when reached
+     */
+    private static Op fault(String message)
+    {
+        return (int pc) -> {
+            throw new UnsupportedOperationException(message);
+        };
+    }
+
+    private static int register(Operand op)
+    {
+        return ((RegId) op.getEnclosed()).ordinal();
+    }
+
+    /**
+     * Returns the source operand of an arithmetic or compare instruction;
+     * immediates are captured and variables are read each time
+     */
+    private IntSupplier source(Operand op)
+    {
+        if (op.isReference()) {
+            int offset = (int) op.getEnclosed();
+            return () -> StaticMemory.getInt(offset);
+        }
+        if (op.getType() == DataType.Imm_Int4) {
+            int imm = (int) op.getEnclosed();
+            return () -> imm;
+        }
+        int reg = register(op);
+        return () -> m_registers.getInt(reg);
+    }
+
+    /**
+     * Returns the register a source operand names, or -1 for immediate and
+     * variable operands, which always hold Int4
+     */
+    private static int sourceRegister(Operand op)
+    {
+        return op.getType() == DataType.Register ? register(op) : -1;
+    }
+
+    private DataType sourceType(int srcReg)
+    {
+        return srcReg < 0 ? DataType.Int4 : m_registers.getType(srcReg);
+    }
+
+    private static boolean sourceOperands(List<Operand> operands)
+    {
+        Operand src = operands.get(1);
+        if (operands.get(0).getType() != DataType.Register)
+            return false;
+        if (src.isReference())
+            return src.getType() == DataType.Int4;
+        return src.getType() == DataType.Register || src.getType() == DataType.Imm_Int4;
+    }
+
+    private static String unsupportedOperands(String name, List<Operand> operands)
+    {
+        return name + ": Unsupported operand types; dst=" + operands.get(0).getType() +
+               ", src=" + operands.get(1).getType();
+    }
+
+    private void checkInt4(String name, int dstReg, int srcReg)
+    {
+        DataType dstType = m_registers.getType(dstReg),
+                 srcType = sourceType(srcReg);
+        if (dstType != srcType)
+            throw new UnsupportedOperationException(
+                name + ": Type mismatch, unable to convert from " + srcType +
+                " to " + dstType
+            );
+        if (dstType != DataType.Int4)
+            throw new UnsupportedOperationException(name + ": Unsupported type " + dstType);
+    }
+
+    private void checkLogicOperand(int lhReg)
+    {
+        if (!m_registers.isInt(lhReg))
+            throw new UnsupportedOperationException("TEST: Unsupported left-hand operand type " + m_registers.getType(lhReg));
+    }
+}
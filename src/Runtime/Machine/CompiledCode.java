@@ -0,0 +1,15 @@
+package Runtime.Machine;
+
+/**
+ * Program compiled to a JVM class by the bytecode compiler. Generated classes
+ * implement this interface and operate on the virtual CPU state directly.
+ * @author Joshua Boley
+ */
+interface CompiledCode
+{
+    /**
+     * Runs the program to completion
+     * @param cpu Virtual CPU holding the register, flag and stack state
+     */
+    void run(VirtualCPU cpu);
+}
@@ -0,0 +1,174 @@
+package Runtime.Machine;
+
+import Runtime.Machine.Interface.Opcodes;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Execution counters collected by the interpreter's instrumented loop:
+ * dispatches per opcode, stack pushes and pops, variable reads and writes,
+ * and conditional branches taken and not taken. Counts accumulate over every
+ * program run until reset.
+ * @author Joshua Boley
+ */
+public final class ExecutionCounters
+{
+    private static final Opcodes[] OPCODES = Opcodes.values();
+
+    private final long[] m_dispatches;      // Indexed by opcode ordinal
+    private long m_pushes;
+    private long m_pops;
+    private long m_memReads;
+    private long m_memWrites;
+    private long m_taken;
+    private long m_notTaken;
+
+    public ExecutionCounters()
+    {
+        m_dispatches = new long[OPCODES.length];
+    }
+
+    /**
+     * Clears all counters
+     */
+    public synchronized void reset()
+    {
+        Arrays.fill(m_dispatches, 0);
+        m_pushes = 0;
+        m_pops = 0;
+        m_memReads = 0;
+        m_memWrites = 0;
+        m_taken = 0;
+        m_notTaken = 0;
+    }
+
+    /**
+     * Returns the number of instructions dispatched with an opcode
+     * @param opcode Opcode
+     * @return Dispatch count
+     */
+    public synchronized long getDispatches(Opcodes opcode)
+    {
+        return m_dispatches[opcode.ordinal()];
+    }
+
+    /**
+     * Returns the total number of instructions dispatched
+     * @return Instruction count
+     */
+    public synchronized long getInstructionCount()
+    {
+        long total = 0;
+        for (long count : m_dispatches)
+            total += count;
+        return total;
+    }
+
+    public synchronized long getPushes()
+    {
+        return m_pushes;
+    }
+
+    public synchronized long getPops()
+    {
+        return m_pops;
+    }
+
+    /**
+     * Returns the number of variable reads from static memory
+     * @return Read count
+     */
+    public synchronized long getMemoryReads()
+    {
+        return m_memReads;
+    }
+
+    /**
+     * Returns the number of variable writes to static memory
+     * @return Write count
+     */
+    public synchronized long getMemoryWrites()
+    {
+        return m_memWrites;
+    }
+
+    /**
+     * Returns the number of conditional jumps taken. A jump to the next
+     * instruction is indistinguishable from falling through and counts as
+     * not taken.
+     * @return Taken branch count
+     */
+    public synchronized long getBranchesTaken()
+    {
+        return m_taken;
+    }
+
+    public synchronized long getBranchesNotTaken()
+    {
+        return m_notTaken;
+    }
+
+    /**
+     * Formats the instruction mix, most frequent opcode first, followed by
+     * the stack, memory and branch counts
+     */
+    @Override
+    public synchronized String toString()
+    {
+        long total = getInstructionCount();
+        Integer[] order = new Integer[OPCODES.length];
+        for (int op = 0; op < order.length; ++op)
+            order[op] = op;
+        Arrays.sort(order, Comparator.comparingLong((Integer op) -> -m_dispatches[op]));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d instructions%n", total));
+        for (int op : order) {
+            if (m_dispatches[op] == 0)
+                break;
+            sb.append(String.format(
+                "  %-8s %12d %6.2f%%%n",
+                OPCODES[op], m_dispatches[op], 100.0 * m_dispatches[op] / total
+            ));
+        }
+        sb.append(String.format("Stack:    %d pushes, %d pops%n", m_pushes, m_pops));
+        sb.append(String.format("Memory:   %d reads, %d writes%n", m_memReads, m_memWrites));
+        sb.append(String.format("Branches: %d taken, %d not taken", m_taken, m_notTaken));
+        return sb.toString();
+    }
+
+    /**
+     * Records an executed instruction
+     * @param opcode Opcode
+     * @param reads  Variables read
+     * @param writes Variables written
+     * @param taken  Whether a conditional jump was taken, ignored for other
+     *               opcodes
+     */
+    synchronized void record(Opcodes opcode, int reads, int writes, boolean taken)
+    {
+        ++m_dispatches[opcode.ordinal()];
+        m_memReads += reads;
+        m_memWrites += writes;
+        switch (opcode) {
+            case PUSH:
+                ++m_pushes;
+                break;
+            case POP:
+                ++m_pops;
+                break;
+            case JL:
+            case JLE:
+            case JG:
+            case JGE:
+            case JE:
+            case JNE:
+                if (taken)
+                    ++m_taken;
+                else
+                    ++m_notTaken;
+                break;
+            default:;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package Runtime.Machine;
+
+import Runtime.JIT.API.Instruction;
+import java.util.List;
+
+/**
+ * Executes compiled programs against the state of a virtual CPU.
+ * @author Joshua Boley
+ */
+public interface ExecutionEngine
+{
+    /**
+     * Loads a program for execution
+     * @param program Compiled program
+     */
+    void load(List<Instruction> program);
+
+    /**
+     * Executes the loaded program to completion
+     */
+    void execute();
+}
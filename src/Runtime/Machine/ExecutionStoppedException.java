@@ -0,0 +1,52 @@
+package Runtime.Machine;
+
+/**
+ * Thrown when a running program is stopped before completion, because it was
+ * cancelled or ran out of its instruction or time quota. Includes the address
+ * of the instruction it stopped at.
+ * @author Joshua Boley
+ */
+public class ExecutionStoppedException
+        extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason
+    {
+        CANCELLED("Cancelled"),
+        INSTRUCTION_QUOTA("Instruction quota exceeded"),
+        TIME_QUOTA("Time quota exceeded");
+
+        private final String m_description;
+
+        private Reason(String description)
+        {
+            m_description = description;
+        }
+
+        public String getDescription()
+        {
+            return m_description;
+        }
+    }
+
+    private final Reason m_reason;
+    private final int m_address;
+
+    public ExecutionStoppedException(Reason reason, int address)
+    {
+        super(reason.getDescription() + " (at instruction " + address + ")");
+        m_reason = reason;
+        m_address = address;
+    }
+
+    public Reason getReason()
+    {
+        return m_reason;
+    }
+
+    public int getAddress()
+    {
+        return m_address;
+    }
+}
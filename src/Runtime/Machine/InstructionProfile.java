@@ -0,0 +1,114 @@
+package Runtime.Machine;
+
+import Runtime.Machine.Interface.Bytecode;
+import Runtime.Machine.Interface.LineTable;
+import Runtime.Machine.Interface.ScopeTable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Execution counts of every instruction of the programs run on the
+ * interpreter's instrumented loop. Counts are folded into stacks of source
+ * scopes, statement first and innermost expression last, and exported in the
+ * collapsed-stack format read by flame graph tools: one line per stack, frames
+ * separated by semicolons, followed by a space and the instruction count.
+ *
+ * Counts are updated by the executing thread without synchronization and
+ * should be read between runs.
+ * @author Joshua Boley
+ */
+public final class InstructionProfile
+{
+    private static final String NO_SOURCE = "(no source)";
+    private static final int MAX_LABEL = 32;    // Longer labels, e.g. string literals, are shortened
+
+    // Keyed by identity; TieredEngine hands the interpreter one instance per
+    // distinct program
+    private final Map<Bytecode, long[]> m_counts;
+
+    public InstructionProfile()
+    {
+        m_counts = new IdentityHashMap<>();
+    }
+
+    public void reset()
+    {
+        m_counts.clear();
+    }
+
+    public boolean isEmpty()
+    {
+        return m_counts.isEmpty();
+    }
+
+    /**
+     * Folds the counts into source scope stacks
+     * @return Instruction count per stack, keyed by collapsed stack
+     */
+    public Map<String, Long> collapse()
+    {
+        Map<String, Long> stacks = new TreeMap<>();
+        m_counts.forEach((Bytecode program, long[] counts) -> {
+            LineTable lines = program.getLineTable();
+            ScopeTable scopes = program.getScopeTable();
+            String[] scopeStacks = new String[scopes.size()];
+            for (int addr = 0; addr < counts.length; ++addr) {
+                if (counts[addr] == 0)
+                    continue;
+                int scope = scopes.find(lines.lineAt(addr), lines.columnAt(addr));
+                String stack = scope < 0 ? NO_SOURCE : stackOf(scopes, scope, scopeStacks);
+                stacks.merge(stack, counts[addr], Long::sum);
+            }
+        });
+        return stacks;
+    }
+
+    /**
+     * Writes the counts in collapsed-stack format
+     * @param out Destination
+     * @throws IOException if writing fails
+     */
+    public void writeCollapsed(Writer out) throws IOException
+    {
+        for (Map.Entry<String, Long> stack : collapse().entrySet())
+            out.write(stack.getKey() + " " + stack.getValue() + "\n");
+    }
+
+    /**
+     * Returns the count array of a program, called by the interpreter before
+     * it runs the program
+     */
+    long[] countsFor(Bytecode program)
+    {
+        return m_counts.computeIfAbsent(program, (Bytecode key) -> new long[key.size()]);
+    }
+
+    private static String stackOf(ScopeTable scopes, int scope, String[] memo)
+    {
+        if (memo[scope] == null) {
+            String frame = frameName(scopes, scope);
+            int parent = scopes.getParent(scope);
+            memo[scope] = parent < 0 ? frame : stackOf(scopes, parent, memo) + ";" + frame;
+        }
+        return memo[scope];
+    }
+
+    /**
+     * Names a frame by its label and, for expressions, its one-based line and
+     * column. Semicolons and line breaks would split the frame and are
+     * replaced.
+     */
+    private static String frameName(ScopeTable scopes, int scope)
+    {
+        String label = scopes.getLabel(scope).replaceAll("[;\\s]+", " ").trim();
+        if (label.length() > MAX_LABEL)
+            label = label.substring(0, MAX_LABEL - 3) + "...";
+        int col = scopes.getColumn(scope);
+        if (col < 0)
+            return label;
+        return label + " (" + (scopes.getLine(scope) + 1) + ":" + (col + 1) + ")";
+    }
+}
@@ -0,0 +1,325 @@
+package Runtime.Machine.Interface;
+
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense encoding of a compiled program. Every instruction occupies WORDS
+ * consecutive ints: a header word followed by one word per operand slot.
+ *
+ * Header word layout:
+ *   bits 0-7    opcode (Opcodes ordinal)
+ *   bits 8-13   first operand descriptor
+ *   bits 14-19  second operand descriptor
+ *   bits 20-25  third operand descriptor
+ *
+ * Operand descriptor layout:
+ *   bits 0-3    data type (DataType ordinal)
+ *   bit 4       reference (variable storage offset) flag
+ *   bit 5       operand present flag
+ *
+ * Operand words hold the register index (RegId ordinal), the integer, byte or
+ * boolean immediate, the variable storage offset, or for string immediates
+ * an index into the program's constant pool. Since every instruction has
+ * the same width, relative jump offsets are still counted in instructions.
+ *
+ * Source positions are kept out of line in a LineTable, and the nesting of
+ * the statements and expressions they refer to in a ScopeTable; the
+ * execution engines consult neither.
+ * @author Joshua Boley
+ */
+public final class Bytecode
+{
+    public static final int WORDS = 4;              // Words per instruction
+    public static final int MAX_OPERANDS = WORDS - 1;
+
+    private static final int OPCODE_MASK = 0xFF;
+    private static final int DESC_SHIFT = 8;
+    private static final int DESC_BITS = 6;
+    private static final int DESC_MASK = 0x3F;
+    private static final int DESC_TYPE_MASK = 0xF;
+    private static final int DESC_REF = 0x10;
+    private static final int DESC_PRESENT = 0x20;
+
+    private static final Opcodes[] OPCODES = Opcodes.values();
+    private static final DataType[] TYPES = DataType.values();
+    private static final RegId[] REGISTERS = RegId.values();
+
+    private final int[] m_code;
+    private final String[] m_constants;
+    private final LineTable m_lines;
+    private final ScopeTable m_scopes;
+
+    /**
+     * Wraps encoded program data without source positions
+     * @param code      Instruction words
+     * @param constants String constant pool
+     */
+    public Bytecode(int[] code, String[] constants)
+    {
+        this(code, constants, LineTable.EMPTY, ScopeTable.EMPTY);
+    }
+
+    /**
+     * Wraps encoded program data, e.g. read back from storage
+     * @param code      Instruction words
+     * @param constants String constant pool
+     * @param lines     Source positions of the instructions
+     * @param scopes    Source constructs at those positions
+     */
+    public Bytecode(int[] code, String[] constants, LineTable lines, ScopeTable scopes)
+    {
+        if (code.length % WORDS != 0)
+            throw new IllegalArgumentException("Bytecode length is not a multiple of the instruction width");
+        m_code = code;
+        m_constants = constants;
+        m_lines = lines;
+        m_scopes = scopes;
+    }
+
+    /**
+     * Encodes a compiled program
+     * @param program Compiled program
+     * @return Encoded program
+     */
+    public static Bytecode encode(List<Instruction> program)
+    {
+        return encode(program, ScopeTable.EMPTY);
+    }
+
+    /**
+     * Encodes a compiled program along with the source scopes its
+     * instructions' positions refer to
+     * @param program Compiled program
+     * @param scopes  Source scopes
+     * @return Encoded program
+     */
+    public static Bytecode encode(List<Instruction> program, ScopeTable scopes)
+    {
+        int[] code = new int[program.size() * WORDS];
+        List<String> constants = new ArrayList<>();
+        Map<String, Integer> constantIdx = new HashMap<>();
+        List<Integer> starts = new ArrayList<>();
+        List<Integer> lines = new ArrayList<>();
+        List<Integer> cols = new ArrayList<>();
+        for (int i = 0, pc = 0; i < program.size(); ++i, pc += WORDS) {
+            Instruction instr = program.get(i);
+            int last = lines.size() - 1;
+            if (last < 0 || lines.get(last) != instr.getLine() || cols.get(last) != instr.getColumn()) {
+                starts.add(i);
+                lines.add(instr.getLine());
+                cols.add(instr.getColumn());
+            }
+            List<Operand> operands = instr.getOperands();
+            int header = instr.getCode().ordinal();
+            if (operands != null) {
+                if (operands.size() > MAX_OPERANDS)
+                    throw new IllegalArgumentException(instr.getCode() + ": Too many operands to encode");
+                for (int n = 0; n < operands.size(); ++n) {
+                    Operand op = operands.get(n);
+                    int desc = DESC_PRESENT | op.getType().ordinal() | (op.isReference() ? DESC_REF : 0);
+                    header |= desc << (DESC_SHIFT + n * DESC_BITS);
+                    code[pc + 1 + n] = encodeValue(op, constants, constantIdx);
+                }
+            }
+            code[pc] = header;
+        }
+        return new Bytecode(
+            code, constants.toArray(new String[constants.size()]),
+            new LineTable(toArray(starts), toArray(lines), toArray(cols)), scopes
+        );
+    }
+
+    private static int[] toArray(List<Integer> values)
+    {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; ++i)
+            array[i] = values.get(i);
+        return array;
+    }
+
+    private static int encodeValue(Operand op, List<String> constants, Map<String, Integer> constantIdx)
+    {
+        Object value = op.getEnclosed();
+        if (op.isReference())
+            return (int) value;
+        switch (op.getType()) {
+            case Register:
+                return ((RegId) value).ordinal();
+            case Imm_Str:
+            {
+                Integer idx = constantIdx.get((String) value);
+                if (idx == null) {
+                    idx = constants.size();
+                    constants.add((String) value);
+                    constantIdx.put((String) value, idx);
+                }
+                return idx;
+            }
+            case Imm_Bool:
+                return (boolean) value ? 1 : 0;
+            case Imm_Byte:
+                return (byte) value;
+            default:
+                return (int) value;
+        }
+    }
+
+    /**
+     * Decodes the program back to instruction objects
+     * @return Decoded program
+     */
+    public List<Instruction> decode()
+    {
+        List<Instruction> program = new ArrayList<>(size());
+        for (int pc = 0; pc < m_code.length; pc += WORDS) {
+            int header = m_code[pc];
+            List<Operand> operands = null;
+            for (int n = 0; n < MAX_OPERANDS && hasOperand(header, n); ++n) {
+                if (operands == null)
+                    operands = new ArrayList<>();
+                operands.add(decodeOperand(header, n, m_code[pc + 1 + n]));
+            }
+            program.add(new Instruction(opcode(header), operands));
+        }
+        return program;
+    }
+
+    private Operand decodeOperand(int header, int n, int value)
+    {
+        DataType type = operandType(header, n);
+        if (isReference(header, n))
+            return new Operand(type, value);
+        switch (type) {
+            case Register:
+                return new Operand(REGISTERS[value]);
+            case Imm_Str:
+                return new Operand(m_constants[value]);
+            case Imm_Bool:
+                return new Operand(value != 0);
+            case Imm_Byte:
+                return new Operand((byte) value);
+            default:
+                return new Operand(value);
+        }
+    }
+
+    /**
+     * Returns the number of instructions
+     * @return Instruction count
+     */
+    public int size()
+    {
+        return m_code.length / WORDS;
+    }
+
+    /**
+     * Returns the instruction words. The array is not copied and must not be
+     * modified.
+     * @return Instruction words
+     */
+    public int[] getCode()
+    {
+        return m_code;
+    }
+
+    /**
+     * Returns the string constant pool. The array is not copied and must not
+     * be modified.
+     * @return String constants
+     */
+    public String[] getConstants()
+    {
+        return m_constants;
+    }
+
+    /**
+     * Returns the source positions of the instructions
+     * @return Line table, empty if positions are unknown
+     */
+    public LineTable getLineTable()
+    {
+        return m_lines;
+    }
+
+    /**
+     * Returns the statements and expressions the line table positions refer
+     * to
+     * @return Scope table, empty if unknown
+     */
+    public ScopeTable getScopeTable()
+    {
+        return m_scopes;
+    }
+
+    /**
+     * Returns whether a header word names a known opcode and known operand
+     * types, with the operands present forming a prefix of the slots
+     * @param header Instruction header word
+     * @return True if the header can be decoded
+     */
+    public static boolean isWellFormed(int header)
+    {
+        if ((header & OPCODE_MASK) >= OPCODES.length || (header >>> (DESC_SHIFT + MAX_OPERANDS * DESC_BITS)) != 0)
+            return false;
+        boolean present = true;
+        for (int n = 0; n < MAX_OPERANDS; ++n) {
+            int desc = descriptor(header, n);
+            if ((desc & DESC_PRESENT) == 0) {
+                if (desc != 0)
+                    return false;
+                present = false;
+            }
+            else if (!present || (desc & DESC_TYPE_MASK) >= TYPES.length)
+                return false;
+        }
+        return true;
+    }
+
+    public static Opcodes opcode(int header)
+    {
+        return OPCODES[header & OPCODE_MASK];
+    }
+
+    public static boolean hasOperand(int header, int n)
+    {
+        return (descriptor(header, n) & DESC_PRESENT) != 0;
+    }
+
+    public static DataType operandType(int header, int n)
+    {
+        return TYPES[descriptor(header, n) & DESC_TYPE_MASK];
+    }
+
+    public static boolean isReference(int header, int n)
+    {
+        return (descriptor(header, n) & DESC_REF) != 0;
+    }
+
+    private static int descriptor(int header, int n)
+    {
+        return (header >>> (DESC_SHIFT + n * DESC_BITS)) & DESC_MASK;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof Bytecode))
+            return false;
+        Bytecode other = (Bytecode) obj;
+        return Arrays.equals(m_code, other.m_code) && Arrays.equals(m_constants, other.m_constants) &&
+               m_lines.equals(other.m_lines) && m_scopes.equals(other.m_scopes);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * Arrays.hashCode(m_code) + Arrays.hashCode(m_constants);
+    }
+}
@@ -0,0 +1,109 @@
+package Runtime.Machine.Interface;
+
+import java.util.Arrays;
+
+/**
+ * Maps instruction addresses of a program to the source positions they were
+ * compiled from. Positions are stored run-length encoded: one entry per run
+ * of consecutive instructions from the same statement. Line and column
+ * numbers are zero-based, as in tokens; -1 marks code with no known source
+ * position.
+ * @author Joshua Boley
+ */
+public final class LineTable
+{
+    public static final LineTable EMPTY = new LineTable(new int[0], new int[0], new int[0]);
+
+    private final int[] m_starts;   // Address of the first instruction of each entry, ascending
+    private final int[] m_lines;
+    private final int[] m_cols;
+
+    /**
+     * @param starts  Address each entry starts at, in ascending order
+     * @param lines   Source line of each entry
+     * @param columns Source column of each entry
+     */
+    public LineTable(int[] starts, int[] lines, int[] columns)
+    {
+        if (starts.length != lines.length || starts.length != columns.length)
+            throw new IllegalArgumentException("Line table arrays differ in length");
+        for (int i = 1; i < starts.length; ++i) {
+            if (starts[i] <= starts[i - 1])
+                throw new IllegalArgumentException("Line table addresses are not ascending");
+        }
+        m_starts = starts;
+        m_lines = lines;
+        m_cols = columns;
+    }
+
+    /**
+     * Returns the source line an instruction was compiled from
+     * @param addr Instruction address
+     * @return Line number, -1 if unknown
+     */
+    public int lineAt(int addr)
+    {
+        int i = entryAt(addr);
+        return i < 0 ? -1 : m_lines[i];
+    }
+
+    /**
+     * Returns the source column an instruction was compiled from
+     * @param addr Instruction address
+     * @return Column number, -1 if unknown
+     */
+    public int columnAt(int addr)
+    {
+        int i = entryAt(addr);
+        return i < 0 ? -1 : m_cols[i];
+    }
+
+    /*
+     * Raw entry access, for storing the table
+     */
+
+    public int getEntryCount()
+    {
+        return m_starts.length;
+    }
+
+    public int getStart(int entry)
+    {
+        return m_starts[entry];
+    }
+
+    public int getLine(int entry)
+    {
+        return m_lines[entry];
+    }
+
+    public int getColumn(int entry)
+    {
+        return m_cols[entry];
+    }
+
+    /**
+     * Returns the index of the entry covering an address, -1 if none does
+     */
+    private int entryAt(int addr)
+    {
+        int i = Arrays.binarySearch(m_starts, addr);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof LineTable))
+            return false;
+        LineTable other = (LineTable) obj;
+        return Arrays.equals(m_starts, other.m_starts) && Arrays.equals(m_lines, other.m_lines) &&
+               Arrays.equals(m_cols, other.m_cols);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(m_starts) + 31 * Arrays.hashCode(m_lines);
+    }
+}
@@ -43,5 +43,158 @@ public enum Opcodes
     SETNE,  // Set byte if not equal (ZF != 1)
     
     PRNT,   // Print contents of a register
-    CLR;    // Clear output console
+    CLR,    // Clear output console
+
+    // Superinstructions, see Superinstructions for their expansions
+    LDPRNT, // Load register and print it
+    MOVST,  // Load register and store it to a variable
+    ADDST,  // Addition, result stored to a variable
+    SUBST,  // Subtraction, result stored to a variable
+    MULTST, // Multiplication, result stored to a variable
+    // Int4-specialized arithmetic; register operands must be proven to hold
+    // integers, so no types are inspected at run time
+    ADD_I4,  // Integer addition
+    SUB_I4,  // Integer subtraction
+    MULT_I4, // Integer multiplication
+    DIV_I4,  // Integer division
+    EXP_I4,  // Integer exponentiation
+    NEG_I4,  // Integer negation
+    CMP_I4;  // Integer comparison
+
+    /**
+     * Returns whether the opcode is an Int4-specialized form
+     * @return True or false
+     */
+    public boolean isTyped()
+    {
+        return generic() != this;
+    }
+
+    /**
+     * Returns the generic opcode a specialized opcode is a form of
+     * @return Generic opcode, this opcode if it is not specialized
+     */
+    public Opcodes generic()
+    {
+        switch (this) {
+            case ADD_I4:
+                return ADD;
+            case SUB_I4:
+                return SUB;
+            case MULT_I4:
+                return MULT;
+            case DIV_I4:
+                return DIV;
+            case EXP_I4:
+                return EXP;
+            case NEG_I4:
+                return NEG;
+            case CMP_I4:
+                return CMP;
+            default:
+                return this;
+        }
+    }
+
+    /**
+     * Returns whether the opcode sets the flags
+     * @return True or false
+     */
+    public boolean setsFlags()
+    {
+        switch (generic()) {
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case CMP:
+            case TEST:
+            case OR:
+            case XOR:
+            case AND:
+            case ADDST:
+            case SUBST:
+            case MULTST:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns whether the opcode reads the flags: conditional jumps and sets
+     * @return True or false
+     */
+    public boolean readsFlags()
+    {
+        return compareTo(JL) >= 0 && compareTo(SETNE) <= 0;
+    }
+
+    /**
+     * Returns whether the opcode is a jump, conditional or not
+     * @return True or false
+     */
+    public boolean isJump()
+    {
+        return compareTo(JMP) >= 0 && compareTo(JNE) <= 0;
+    }
+
+    /**
+     * Returns whether a register first operand is written
+     * @return True or false
+     */
+    public boolean writesFirst()
+    {
+        switch (generic()) {
+            case CMP:
+            case TEST:
+            case PUSH:
+            case PRNT:
+            case CLR:
+                return false;
+            default:
+                return !isJump();
+        }
+    }
+
+    /**
+     * Returns whether a register first operand is read
+     * @return True or false
+     */
+    public boolean readsFirst()
+    {
+        switch (this) {
+            case MOV:
+            case POP:
+            case SETL:
+            case SETLE:
+            case SETG:
+            case SETGE:
+            case SETE:
+            case SETNE:
+            case CLR:
+            case LDPRNT:
+            case MOVST:
+                return false;
+            default:
+                return !isJump();
+        }
+    }
+
+    /**
+     * Returns the register the opcode writes besides its operands: R4 holds
+     * the remainder of a division and CLR empties R1
+     * @return Register, null if none
+     */
+    public RegId implicitResult()
+    {
+        switch (generic()) {
+            case DIV:
+                return RegId.R4;
+            case CLR:
+                return RegId.R1;
+            default:
+                return null;
+        }
+    }
 }
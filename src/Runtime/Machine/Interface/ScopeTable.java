@@ -0,0 +1,104 @@
+package Runtime.Machine.Interface;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Nesting of the source constructs a program was compiled from: statements,
+ * and within them the expression subtrees. Each scope is identified by its
+ * source position, the position instructions generated inside it carry in
+ * the line table, and names its enclosing scope. Statements are top-level
+ * scopes positioned at column -1 of their line.
+ * @author Joshua Boley
+ */
+public final class ScopeTable
+{
+    public static final ScopeTable EMPTY = new ScopeTable(new int[0], new int[0], new int[0], new String[0]);
+
+    private final int[] m_lines;
+    private final int[] m_cols;
+    private final int[] m_parents;      // Index of the enclosing scope, -1 for top-level scopes
+    private final String[] m_labels;
+    private final Map<Long, Integer> m_index;
+
+    /**
+     * @param lines   Source line of each scope
+     * @param columns Source column of each scope
+     * @param parents Index of each scope's enclosing scope, -1 if none
+     * @param labels  Display name of each scope
+     */
+    public ScopeTable(int[] lines, int[] columns, int[] parents, String[] labels)
+    {
+        if (lines.length != columns.length || lines.length != parents.length || lines.length != labels.length)
+            throw new IllegalArgumentException("Scope table arrays differ in length");
+        m_lines = lines;
+        m_cols = columns;
+        m_parents = parents;
+        m_labels = labels;
+        m_index = new HashMap<>();
+        for (int i = 0; i < lines.length; ++i) {
+            if (parents[i] < -1 || parents[i] >= i)
+                throw new IllegalArgumentException("Scope " + i + " does not follow its enclosing scope");
+            m_index.put(key(lines[i], columns[i]), i);
+        }
+    }
+
+    /**
+     * Returns the scope at a source position
+     * @param line Line number
+     * @param col  Column number
+     * @return Scope index, -1 if no scope is at the position
+     */
+    public int find(int line, int col)
+    {
+        Integer i = m_index.get(key(line, col));
+        return i == null ? -1 : i;
+    }
+
+    public int size()
+    {
+        return m_lines.length;
+    }
+
+    public int getLine(int scope)
+    {
+        return m_lines[scope];
+    }
+
+    public int getColumn(int scope)
+    {
+        return m_cols[scope];
+    }
+
+    public int getParent(int scope)
+    {
+        return m_parents[scope];
+    }
+
+    public String getLabel(int scope)
+    {
+        return m_labels[scope];
+    }
+
+    private static long key(int line, int col)
+    {
+        return ((long) line << 32) | (col & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof ScopeTable))
+            return false;
+        ScopeTable other = (ScopeTable) obj;
+        return Arrays.equals(m_lines, other.m_lines) && Arrays.equals(m_cols, other.m_cols) &&
+               Arrays.equals(m_parents, other.m_parents) && Arrays.equals(m_labels, other.m_labels);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(m_lines) + 31 * Arrays.hashCode(m_labels);
+    }
+}
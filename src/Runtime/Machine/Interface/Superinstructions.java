@@ -0,0 +1,140 @@
+package Runtime.Machine.Interface;
+
+import Runtime.JIT.API.DataType;
+import Runtime.JIT.API.Instruction;
+import Runtime.JIT.API.Operand;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Built-in table of superinstructions, fused opcodes standing for a pair of
+ * primitive instructions that the code generator emits back to back:
+ *
+ *   LDPRNT Rx, src         MOV Rx, src; PRNT Rx
+ *   MOVST  Rx, src, [m]    MOV Rx, src; MOV [m], Rx
+ *   ADDST  Rd, src, [m]    ADD_I4 Rd, src; MOV [m], Rd
+ *   SUBST  Rd, src, [m]    SUB_I4 Rd, src; MOV [m], Rd
+ *   MULTST Rd, src, [m]    MULT_I4 Rd, src; MOV [m], Rd
+ *
+ * A fused instruction has exactly the effect of its expansion, including the
+ * register written by the first half.
+ * @author Joshua Boley
+ */
+public final class Superinstructions
+{
+    private Superinstructions()
+    {
+    }
+
+    /**
+     * Returns whether the opcode is a superinstruction
+     * @param opcode Opcode
+     * @return True if fused
+     */
+    public static boolean isFused(Opcodes opcode)
+    {
+        switch (opcode) {
+            case LDPRNT:
+            case MOVST:
+            case ADDST:
+            case SUBST:
+            case MULTST:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the superinstruction equivalent to an adjacent instruction
+     * pair
+     * @param first  First instruction
+     * @param second Instruction following it
+     * @return Fused instruction, or null if the pair has no fused form
+     */
+    public static Instruction fuse(Instruction first, Instruction second)
+    {
+        List<Operand> a = first.getOperands(),
+                      b = second.getOperands();
+        switch (first.getCode()) {
+            case MOV:
+                if (!isRegister(a.get(0)))
+                    return null;
+                if (second.getCode() == Opcodes.PRNT && sameRegister(b.get(0), a.get(0)) && isLoadable(a.get(1), true))
+                    return new Instruction(Opcodes.LDPRNT, Arrays.asList(a.get(0), a.get(1)));
+                if (isStore(second, a.get(0)) && isLoadable(a.get(1), false))
+                    return new Instruction(Opcodes.MOVST, Arrays.asList(a.get(0), a.get(1), b.get(0)));
+                return null;
+            case ADD_I4:
+                return isStore(second, a.get(0)) ? new Instruction(Opcodes.ADDST, Arrays.asList(a.get(0), a.get(1), b.get(0))) : null;
+            case SUB_I4:
+                return isStore(second, a.get(0)) ? new Instruction(Opcodes.SUBST, Arrays.asList(a.get(0), a.get(1), b.get(0))) : null;
+            case MULT_I4:
+                return isStore(second, a.get(0)) ? new Instruction(Opcodes.MULTST, Arrays.asList(a.get(0), a.get(1), b.get(0))) : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the primitive instructions a superinstruction stands for
+     * @param fused Fused instruction
+     * @return Primitive instruction pair
+     */
+    public static List<Instruction> expand(Instruction fused)
+    {
+        List<Operand> ops = fused.getOperands();
+        List<Instruction> parts = new ArrayList<>(2);
+        switch (fused.getCode()) {
+            case LDPRNT:
+                parts.add(new Instruction(Opcodes.MOV, Arrays.asList(ops.get(0), ops.get(1))));
+                parts.add(new Instruction(Opcodes.PRNT, Arrays.asList(ops.get(0))));
+                break;
+            case MOVST:
+                parts.add(new Instruction(Opcodes.MOV, Arrays.asList(ops.get(0), ops.get(1))));
+                break;
+            case ADDST:
+                parts.add(new Instruction(Opcodes.ADD_I4, Arrays.asList(ops.get(0), ops.get(1))));
+                break;
+            case SUBST:
+                parts.add(new Instruction(Opcodes.SUB_I4, Arrays.asList(ops.get(0), ops.get(1))));
+                break;
+            case MULTST:
+                parts.add(new Instruction(Opcodes.MULT_I4, Arrays.asList(ops.get(0), ops.get(1))));
+                break;
+            default:
+                throw new IllegalArgumentException(fused.getCode() + ": Not a superinstruction");
+        }
+        if (parts.size() == 1)
+            parts.add(new Instruction(Opcodes.MOV, Arrays.asList(ops.get(2), ops.get(0))));
+        return parts;
+    }
+
+    private static boolean isRegister(Operand op)
+    {
+        return op.getType() == DataType.Register;
+    }
+
+    private static boolean sameRegister(Operand op, Operand reg)
+    {
+        return isRegister(op) && op.getEnclosed() == reg.getEnclosed();
+    }
+
+    // MOV [m], reg storing an integer variable
+    private static boolean isStore(Instruction instr, Operand reg)
+    {
+        if (instr.getCode() != Opcodes.MOV)
+            return false;
+        Operand dst = instr.getOperands().get(0);
+        return dst.isReference() && dst.getType() == DataType.Int4 && sameRegister(instr.getOperands().get(1), reg);
+    }
+
+    // Integer immediate or variable, and string immediates where allowed
+    private static boolean isLoadable(Operand src, boolean allowStr)
+    {
+        if (src.isReference())
+            return src.getType() == DataType.Int4;
+        return src.getType() == DataType.Imm_Int4 || (allowStr && src.getType() == DataType.Imm_Str);
+    }
+}
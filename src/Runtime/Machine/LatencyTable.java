@@ -0,0 +1,57 @@
+package Runtime.Machine;
+
+import Runtime.Machine.Interface.Opcodes;
+import java.util.Arrays;
+
+/**
+ * Execute-stage latency of every opcode, in cycles. Superinstructions take
+ * the latency of the operation they perform; typed opcodes default to the
+ * latency of their generic form.
+ * @author Joshua Boley
+ */
+public final class LatencyTable
+{
+    private final int[] m_cycles;       // Indexed by opcode ordinal
+
+    /**
+     * Creates a table with default latencies: one cycle, except for
+     * multiplication, division and exponentiation
+     */
+    public LatencyTable()
+    {
+        m_cycles = new int[Opcodes.values().length];
+        Arrays.fill(m_cycles, 1);
+        set(Opcodes.MULT, 3);
+        set(Opcodes.MULT_I4, 3);
+        set(Opcodes.MULTST, 3);
+        set(Opcodes.DIV, 12);
+        set(Opcodes.DIV_I4, 12);
+        set(Opcodes.EXP, 20);
+        set(Opcodes.EXP_I4, 20);
+    }
+
+    /**
+     * @param other Table to copy
+     */
+    public LatencyTable(LatencyTable other)
+    {
+        m_cycles = other.m_cycles.clone();
+    }
+
+    public int get(Opcodes opcode)
+    {
+        return m_cycles[opcode.ordinal()];
+    }
+
+    /**
+     * Sets the latency of an opcode
+     * @param opcode Opcode
+     * @param cycles Cycles spent in the execute stage, at least one
+     */
+    public void set(Opcodes opcode, int cycles)
+    {
+        if (cycles < 1)
+            throw new IllegalArgumentException("Latency must be at least one cycle");
+        m_cycles[opcode.ordinal()] = cycles;
+    }
+}
@@ -0,0 +1,293 @@
+package Runtime.Machine;
+
+import Runtime.JIT.API.DataType;
+import Runtime.Machine.Interface.Bytecode;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import java.util.Arrays;
+
+/**
+ * Timing model of a classic in-order 5-stage pipeline (fetch, decode,
+ * execute, memory, write-back) fed with the instructions executed on the
+ * interpreter's instrumented loop.
+ *
+ * Operations taking more than one cycle run in a separate, unpipelined
+ * long-latency unit, so independent instructions can proceed while, say, a
+ * division is computed, and its result is written back out of order. An
+ * instruction enters the execute stage one cycle after its predecessor unless
+ * a hazard holds it back:
+ *   data        a register or the flags are written by an instruction whose
+ *               result is not available yet
+ *   load-use    as above, the result depending on a variable or stack value
+ *               read from memory
+ *   structural  the long-latency unit is busy with an earlier operation
+ *   memory      the memory stage is busy with a slower memory access, which
+ *               holds the instructions behind it
+ *   control     a taken jump, resolved at the end of execute, flushes the two
+ *               instructions fetched after it
+ * With forwarding, results reach the execute stage as soon as they are
+ * computed, loaded values after the memory stage. Without it, they are read
+ * in decode after write-back. Stalls are charged to the hazard resolved last.
+ *
+ * Superinstructions are timed as one instruction. Variable operands and the
+ * stack are accessed in the memory stage; PUSH and POP also update SP.
+ *
+ * Statistics are updated by the executing thread without synchronization and
+ * should be read between runs.
+ * @author Joshua Boley
+ */
+public final class PipelineModel
+{
+    /**
+     * Causes of pipeline stalls
+     */
+    public enum Hazard
+    {
+        DATA,
+        LOAD_USE,
+        STRUCTURAL,
+        MEMORY,
+        CONTROL
+    }
+
+    public static final int DEFAULT_MEMORY_CYCLES = 2;
+    private static final int FLUSH_PENALTY = 2;             // Instructions fetched behind a taken jump
+    private static final int FIRST_EXECUTE = 2;             // Execute cycle of the first instruction
+    private static final int FLAGS = RegId.values().length; // Scoreboard slot of the flags
+    private static final int SP = RegId.SP.ordinal();
+
+    private final LatencyTable m_latencies;
+    private final int m_memoryCycles;
+    private final boolean m_forwarding;
+
+    // Scoreboard: first execute cycle each register's value can be consumed
+    // in, and whether it is loaded from memory
+    private final long[] m_ready;
+    private final boolean[] m_loaded;
+    private final int[] m_sources;      // Scoreboard slots read by the instruction being issued
+    private long m_nextExecute;         // Execute cycle of the next instruction if nothing stalls it
+    private long m_executeFree;         // First cycle the execute stage accepts an instruction
+    private long m_memoryFree;          // First cycle the memory stage accepts an instruction
+    private long m_unitFree;            // First cycle the long-latency unit accepts an operation
+    private long m_lastWriteBack;
+
+    private long m_instructions;
+    private final long[] m_stalls;      // Stall cycles per hazard
+    private final long[] m_events;      // Stalled instructions per hazard, flushes for control hazards
+
+    /**
+     * @param latencies    Execute-stage latency per opcode
+     * @param memoryCycles Cycles the memory stage takes for a variable or
+     *                     stack access
+     * @param forwarding   Forward results to the execute stage
+     */
+    public PipelineModel(LatencyTable latencies, int memoryCycles, boolean forwarding)
+    {
+        if (memoryCycles < 1)
+            throw new IllegalArgumentException("Memory access takes at least one cycle");
+        m_latencies = latencies;
+        m_memoryCycles = memoryCycles;
+        m_forwarding = forwarding;
+        m_ready = new long[FLAGS + 1];
+        m_loaded = new boolean[FLAGS + 1];
+        m_sources = new int[4];
+        m_stalls = new long[Hazard.values().length];
+        m_events = new long[Hazard.values().length];
+        reset();
+    }
+
+    public LatencyTable getLatencies()
+    {
+        return m_latencies;
+    }
+
+    public int getMemoryCycles()
+    {
+        return m_memoryCycles;
+    }
+
+    public boolean isForwarding()
+    {
+        return m_forwarding;
+    }
+
+    /**
+     * Drains the pipeline and clears the statistics
+     */
+    public void reset()
+    {
+        Arrays.fill(m_ready, 0);
+        Arrays.fill(m_loaded, false);
+        m_nextExecute = FIRST_EXECUTE;
+        m_executeFree = 0;
+        m_memoryFree = 0;
+        m_unitFree = 0;
+        m_lastWriteBack = -1;
+        m_instructions = 0;
+        Arrays.fill(m_stalls, 0);
+        Arrays.fill(m_events, 0);
+    }
+
+    public long getInstructionCount()
+    {
+        return m_instructions;
+    }
+
+    /**
+     * Returns the cycles from the first fetch to the last write-back
+     * @return Cycle count
+     */
+    public long getCycles()
+    {
+        return m_lastWriteBack + 1;
+    }
+
+    /**
+     * Returns the cycles per instruction
+     * @return CPI, 0 if no instruction was executed
+     */
+    public double getCPI()
+    {
+        return m_instructions == 0 ? 0.0 : (double) getCycles() / m_instructions;
+    }
+
+    public long getStallCycles(Hazard hazard)
+    {
+        return m_stalls[hazard.ordinal()];
+    }
+
+    public long getStallCount(Hazard hazard)
+    {
+        return m_events[hazard.ordinal()];
+    }
+
+    /**
+     * Times an executed instruction
+     * @param code  Program code
+     * @param pc    Index of the instruction's header word
+     * @param taken True if the instruction transferred control
+     */
+    void issue(int[] code, int pc, boolean taken)
+    {
+        int header = code[pc];
+        Opcodes opcode = Bytecode.opcode(header);
+
+        // Decode register and memory operands
+        int dst = -1, src0 = -1, src1 = -1;
+        boolean reads = opcode == Opcodes.POP, writes = opcode == Opcodes.PUSH;
+        for (int n = 0; n < Bytecode.MAX_OPERANDS && Bytecode.hasOperand(header, n); ++n) {
+            if (Bytecode.isReference(header, n)) {
+                if (n == 2 || (n == 0 && opcode == Opcodes.MOV))
+                    writes = true;
+                else
+                    reads = true;
+            }
+            else if (Bytecode.operandType(header, n) == DataType.Register) {
+                int reg = code[pc + 1 + n];
+                if (n == 1)
+                    src1 = reg;
+                else if (n == 0) {
+                    if (opcode.writesFirst())
+                        dst = reg;
+                    if (opcode.readsFirst())
+                        src0 = reg;
+                }
+            }
+        }
+        boolean stack = opcode == Opcodes.PUSH || opcode == Opcodes.POP;
+        m_sources[0] = src0;
+        m_sources[1] = src1;
+        m_sources[2] = stack ? SP : -1;
+        m_sources[3] = opcode.readsFlags() ? FLAGS : -1;
+
+        // Hold the instruction until its operands, the memory stage and, for
+        // a multi-cycle operation, the long-latency unit are available
+        long earliest = m_nextExecute, start = earliest;
+        Hazard cause = null;
+        for (int reg : m_sources) {
+            if (reg >= 0 && m_ready[reg] > start) {
+                start = m_ready[reg];
+                cause = m_loaded[reg] ? Hazard.LOAD_USE : Hazard.DATA;
+            }
+        }
+        if (m_executeFree > start) {
+            start = m_executeFree;
+            cause = Hazard.MEMORY;
+        }
+        int latency = m_latencies.get(opcode);
+        if (latency > 1 && m_unitFree > start) {
+            start = m_unitFree;
+            cause = Hazard.STRUCTURAL;
+        }
+        if (cause != null) {
+            m_stalls[cause.ordinal()] += start - earliest;
+            ++m_events[cause.ordinal()];
+        }
+
+        // An instruction waiting for the memory stage holds the execute stage.
+        // Operations on a variable are computed once it is loaded.
+        long memoryStart = Math.max(start + 1, m_memoryFree);
+        long memoryEnd = memoryStart + (reads || writes ? m_memoryCycles : 1) - 1;
+        long computed = (reads ? memoryEnd + 1 : start + 1) + latency - 1;
+        long writeBack = Math.max(memoryEnd + 1, computed);
+        m_memoryFree = memoryEnd + 1;
+        m_executeFree = memoryStart;
+        if (latency > 1)
+            m_unitFree = computed;
+        m_lastWriteBack = Math.max(m_lastWriteBack, writeBack);
+
+        // Publish results
+        long ready = m_forwarding ? computed : writeBack + 1;
+        if (dst >= 0)
+            publish(dst, ready, reads);
+        if (opcode.implicitResult() != null)
+            publish(opcode.implicitResult().ordinal(), ready, reads);
+        if (opcode.setsFlags())
+            publish(FLAGS, ready, reads);
+        if (stack)
+            publish(SP, m_forwarding ? start + 1 : writeBack + 1, false);
+
+        m_nextExecute = start + 1;
+        if (taken) {
+            m_nextExecute = start + 1 + FLUSH_PENALTY;
+            m_stalls[Hazard.CONTROL.ordinal()] += FLUSH_PENALTY;
+            ++m_events[Hazard.CONTROL.ordinal()];
+        }
+        ++m_instructions;
+    }
+
+    private void publish(int reg, long ready, boolean loaded)
+    {
+        m_ready[reg] = ready;
+        m_loaded[reg] = loaded;
+    }
+
+    /**
+     * Formats cycles, CPI and the stalls per hazard
+     * @return Report text
+     */
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(
+            "Pipeline: 5-stage in-order, %s forwarding, %d-cycle memory%n" +
+            "Cycles: %d for %d instructions, CPI %.3f",
+            m_forwarding ? "with" : "without", m_memoryCycles, getCycles(), m_instructions, getCPI()
+        ));
+        for (Hazard hazard : Hazard.values()) {
+            long cycles = m_stalls[hazard.ordinal()];
+            sb.append(String.format(
+                "%n  %-10s %10d stalls %12d cycles %6.2f%%",
+                hazard.name().toLowerCase().replace('_', '-'), m_events[hazard.ordinal()], cycles,
+                getCycles() == 0 ? 0.0 : 100.0 * cycles / getCycles()
+            ));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return report();
+    }
+}
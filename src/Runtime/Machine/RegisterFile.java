@@ -0,0 +1,99 @@
+package Runtime.Machine;
+
+import Runtime.JIT.API.DataType;
+
+/**
+ * Virtual register file, indexed by RegId ordinal. Each register has a
+ * primitive value slot, a reference slot used only by strings, and a type
+ * tag holding the DataType ordinal, so integer values are never boxed.
+ * @author Joshua Boley
+ */
+final class RegisterFile
+{
+    private static final DataType[] TYPES = DataType.values();
+    static final byte INT4 = (byte) DataType.Int4.ordinal(),
+                      STR = (byte) DataType.Imm_Str.ordinal();
+
+    private final long[] m_values;
+    private final byte[] m_tags;
+    private final String[] m_refs;
+
+    RegisterFile(int count)
+    {
+        m_values = new long[count];
+        m_tags = new byte[count];       // All registers start out Empty
+        m_refs = new String[count];
+    }
+
+    DataType getType(int reg)
+    {
+        return TYPES[m_tags[reg]];
+    }
+
+    boolean isInt(int reg)
+    {
+        return m_tags[reg] == INT4;
+    }
+
+    int getInt(int reg)
+    {
+        return (int) m_values[reg];
+    }
+
+    String getStr(int reg)
+    {
+        return m_refs[reg];
+    }
+
+    void setInt(int reg, int value)
+    {
+        m_values[reg] = value;
+        m_tags[reg] = INT4;
+        m_refs[reg] = null;
+    }
+
+    void setStr(int reg, String value)
+    {
+        m_refs[reg] = value;
+        m_tags[reg] = STR;
+    }
+
+    /**
+     * Sets an integer value of a type other than Int4, e.g. the Imm_Int4
+     * stack and base pointers
+     */
+    void set(int reg, int value, DataType type)
+    {
+        m_values[reg] = value;
+        m_tags[reg] = (byte) type.ordinal();
+        m_refs[reg] = null;
+    }
+
+    void copy(int dst, int src)
+    {
+        m_values[dst] = m_values[src];
+        m_tags[dst] = m_tags[src];
+        m_refs[dst] = m_refs[src];
+    }
+
+    /*
+     * Raw access to register contents, for saving registers on the stack
+     */
+
+    long getValue(int reg)
+    {
+        return m_values[reg];
+    }
+
+    byte getTag(int reg)
+    {
+        return m_tags[reg];
+    }
+
+    void load(int reg, long value, byte tag, String ref)
+    {
+        m_values[reg] = value;
+        m_tags[reg] = tag;
+        m_refs[reg] = ref;
+    }
+}
@@ -0,0 +1,157 @@
+package Runtime.Machine;
+
+import Runtime.Machine.Interface.Bytecode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sampling profiler attributing interpreter time to script lines. While
+ * active, a background thread periodically reads the address the virtual CPU
+ * is executing and looks up its source line in the program's line table.
+ * Programs are kept on the interpreter's instrumented loop while sampling.
+ * @author Joshua Boley
+ */
+public final class SamplingProfiler
+{
+    private static final int UNKNOWN = -1;      // Line of code without a source position
+
+    private final VirtualCPU m_cpu;
+    private final long m_intervalNanos;
+    private final Map<Integer, Long> m_samples;  // Samples per zero-based line
+    private long m_total;
+    private Thread m_sampler;
+
+    /**
+     * @param cpu            Virtual CPU to sample
+     * @param intervalMicros Sampling interval
+     */
+    public SamplingProfiler(VirtualCPU cpu, long intervalMicros)
+    {
+        if (intervalMicros <= 0)
+            throw new IllegalArgumentException("Sampling interval must be positive");
+        m_cpu = cpu;
+        m_intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+        m_samples = new TreeMap<>();
+        m_total = 0;
+        m_sampler = null;
+    }
+
+    /**
+     * Starts sampling; has no effect if already started
+     */
+    public synchronized void start()
+    {
+        if (m_sampler != null)
+            return;
+        m_cpu.setSampled(true);
+        m_sampler = new Thread(this::sample, "Sampling profiler");
+        m_sampler.setDaemon(true);
+        m_sampler.start();
+    }
+
+    /**
+     * Stops sampling, keeping the samples taken so far
+     */
+    public void stop()
+    {
+        Thread sampler;
+        synchronized (this) {
+            sampler = m_sampler;
+            if (sampler == null)
+                return;
+            m_sampler = null;
+            m_cpu.setSampled(false);
+        }
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized boolean isActive()
+    {
+        return m_sampler != null;
+    }
+
+    public synchronized void reset()
+    {
+        m_samples.clear();
+        m_total = 0;
+    }
+
+    /**
+     * Returns the number of samples taken while a program was executing
+     * @return Sample count
+     */
+    public synchronized long getSampleCount()
+    {
+        return m_total;
+    }
+
+    /**
+     * Returns the number of samples attributed to a source line
+     * @param line Zero-based line number
+     * @return Sample count
+     */
+    public synchronized long getSamples(int line)
+    {
+        Long count = m_samples.get(line);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Formats the hot spots, most sampled line first. Lines are numbered from
+     * one, as in the editor.
+     * @param source Source of the profiled script, used to show the text of
+     *               each line; may be null
+     * @return Report text
+     */
+    public synchronized String report(String source)
+    {
+        String[] text = source == null ? new String[0] : source.split("\r?\n", -1);
+        List<Map.Entry<Integer, Long>> lines = new ArrayList<>(m_samples.entrySet());
+        lines.sort((Map.Entry<Integer, Long> a, Map.Entry<Integer, Long> b) -> Long.compare(b.getValue(), a.getValue()));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d samples", m_total));
+        for (Map.Entry<Integer, Long> entry : lines) {
+            int line = entry.getKey();
+            sb.append(String.format(
+                "%n  %-8s %8d %6.2f%%",
+                line == UNKNOWN ? "?" : Integer.toString(line + 1),
+                entry.getValue(), 100.0 * entry.getValue() / m_total
+            ));
+            if (line >= 0 && line < text.length)
+                sb.append("  ").append(text[line].trim());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return report(null);
+    }
+
+    private void sample()
+    {
+        while (!Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(m_intervalNanos);
+            Bytecode program = m_cpu.getSampleProgram();
+            int addr = m_cpu.getSampleAddress();
+            if (program == null || addr < 0)
+                continue;
+            int line = program.getLineTable().lineAt(addr);
+            synchronized (this) {
+                m_samples.merge(line, 1L, Long::sum);
+                ++m_total;
+            }
+        }
+    }
+}
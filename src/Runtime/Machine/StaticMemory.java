@@ -2,15 +2,11 @@ package Runtime.Machine;
 
 import Runtime.JIT.API.DataType;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.nio.ByteOrder;
 
 /**
- * Encapsulates variable storage array
+ * Encapsulates variable storage array. Variables are stored in a growable
+ * direct buffer, so loads and stores are single typed accesses.
  * @author Joshua Boley
  */
 public class StaticMemory
@@ -52,107 +48,84 @@ public class StaticMemory
     {
         return storage.fetch(type, offset);
     }
+    
+    /**
+     * Reads a 32-bit integer directly
+     * @param offset Relative storage location
+     * @return Stored integer
+     */
+    public static int getInt(int offset)
+    {
+        return storage.fetchInt(offset);
+    }
+    
+    /**
+     * Writes a 32-bit integer directly
+     * @param offset Relative storage location
+     * @param value  Integer to store
+     */
+    public static void putInt(int offset, int value)
+    {
+        storage.storeInt(offset, value);
+    }
+
+    private static final int INITIAL_CAPACITY = 256;   // Bytes reserved up front
 
-    private final Map<String, ByteStorCodec> m_codecMap;
+    private ByteBuffer m_varstore;      // Direct buffer in native byte order
     private int m_nextAddr;
-    private final List<Byte> m_varstore;
     
     private StaticMemory()
     {
-        m_codecMap = new HashMap<>();
+        m_varstore = newBuffer(INITIAL_CAPACITY);
         m_nextAddr = 0;
-        m_varstore = new ArrayList<>();
-        
-        initCodecMap();
     }
 
-    private void initCodecMap()
+    private static ByteBuffer newBuffer(int capacity)
     {
-        ByteStorCodec codec;
-        
-        // Create 32-bit integer codec
-        codec = new ByteStorCodec(
-            DataType.Int4,
-            (Object dataObj, ByteBuffer stream) -> {
-                        stream.putInt((int) dataObj);
-                        byte[] byteSequence = new byte[DataType.Int4.size()];
-                        stream.rewind();
-                        stream.get(byteSequence);
-                        return byteSequence;
-            },
-            (ByteBuffer stream) -> stream.getInt()
-        );
-        m_codecMap.put(DataType.Int4.toString(), codec);
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
     }
         
     private int allocateStorage(DataType type)
     {
-        for (int i = 0; i < type.size(); ++i)
-            m_varstore.add((byte) 0x0);
         int offset = m_nextAddr;
         m_nextAddr += type.size();
+        if (m_nextAddr > m_varstore.capacity()) {
+            // Grow geometrically; new storage is zero-filled
+            ByteBuffer grown = newBuffer(Math.max(m_nextAddr, m_varstore.capacity() * 2));
+            grown.put((ByteBuffer) m_varstore.duplicate().clear());
+            m_varstore = grown;
+        }
         return offset;
     }
     
     private void store (Object dataObj, DataType type, int offset)
     {
-        ByteStorCodec codec = m_codecMap.get(type.toString());
-        codec.encode(dataObj, offset, m_varstore);
+        switch (type) {
+            case Int4:
+                m_varstore.putInt(offset, (int) dataObj);
+                break;
+            default:
+                throw new UnsupportedOperationException("No variable storage support for type " + type);
+        }
     }
     
     private Object fetch (DataType type, int offset)
     {
-        ByteStorCodec codec = m_codecMap.get(type.toString());
-        return codec.decode(m_varstore, offset);
-    }
-}
-
-class ByteStorCodec
-{
-    private final DataType m_dataType;
-    private final ByteBuffer m_buff;
-    private final BiFunction<Object, ByteBuffer, byte[]> m_encoder;
-    private final Function<ByteBuffer, Object> m_decoder;
-
-    ByteStorCodec(
-        DataType type,
-        BiFunction<Object, ByteBuffer, byte[]> encoderFunc,
-        Function<ByteBuffer, Object> decoderFunc
-        )
-    {
-        m_dataType = type;
-        m_buff = ByteBuffer.allocate(type.size());
-        m_encoder = encoderFunc;
-        m_decoder = decoderFunc;
-    }
-    
-    void encode(Object dataObj, int offset, List<Byte> variableStorage)
-    {
-        // Encode data object as byte sequence
-        m_buff.clear();
-        byte[] byteSequence = m_encoder.apply(dataObj, m_buff);
-        
-        // Place byte sequence in storage
-        for (int i = 0, j = offset; i < byteSequence.length; ++i, ++j)
-            variableStorage.set(j, byteSequence[i]);
+        switch (type) {
+            case Int4:
+                return m_varstore.getInt(offset);
+            default:
+                throw new UnsupportedOperationException("No variable storage support for type " + type);
+        }
     }
     
-    Object decode(List<Byte> variableStorage, int offset)
+    private int fetchInt(int offset)
     {
-        // Retrieve byte sequence from storage
-        byte[] byteSequence = new byte[m_dataType.size()];
-        for (int i = 0, j = offset; i < m_dataType.size(); ++i, ++j)
-            byteSequence[i] = variableStorage.get(j);
-        
-        // Buffer and decode
-        m_buff.clear();
-        m_buff.put(byteSequence);
-        m_buff.rewind();
-        return m_decoder.apply(m_buff);
+        return m_varstore.getInt(offset);
     }
     
-    DataType getSupportedType()
+    private void storeInt(int offset, int value)
     {
-        return m_dataType;
+        m_varstore.putInt(offset, value);
     }
 }
@@ -0,0 +1,283 @@
+package Runtime.Machine;
+
+import Runtime.JIT.API.Instruction;
+import Runtime.Machine.Interface.Bytecode;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tiered execution engine. Programs start out on the interpreter; each
+ * distinct program is profiled by execution count and by the number of
+ * backward jumps taken. Programs that run again are translated to closures,
+ * which is cheap enough to do in line, and programs that become hot are
+ * compiled to bytecode on a background thread. The compiled version takes
+ * over at the next program entry once it is ready.
+ * @author Joshua Boley
+ */
+public class TieredEngine
+    implements ExecutionEngine
+{
+    public enum Tier
+    {
+        INTERPRETED,    // Running on the interpreter, profiling
+        CLOSURES,       // Running as translated closures, profiling
+        COMPILING,      // Queued for or undergoing compilation
+        COMPILED,       // Running as compiled bytecode
+        REJECTED        // Not supported by the compiler, stays on closures
+    }
+
+    private static final int CLOSURE_THRESHOLD = 2;         // Executions before translation to closures
+    private static final int EXEC_THRESHOLD = 8;            // Executions before promotion
+    private static final long BACK_EDGE_THRESHOLD = 10000;  // Backward jumps before promotion
+    private static final int MAX_PROFILES = 256;            // Least recently run profiles are dropped beyond this
+
+    private final VirtualCPU m_cpu;
+    private final ClosureEngine m_closures;
+    private final Map<Bytecode, Profile> m_profiles;
+    private final ExecutorService m_compileQueue;
+    private Profile m_current;
+    private long m_promotions;
+    private long m_rejections;
+
+    public TieredEngine(VirtualCPU cpu)
+    {
+        m_cpu = cpu;
+        m_closures = new ClosureEngine(cpu);
+        m_profiles = new LinkedHashMap<Bytecode, Profile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Bytecode, Profile> eldest)
+            {
+                return size() > MAX_PROFILES;
+            }
+        };
+        m_compileQueue = Executors.newSingleThreadExecutor((Runnable task) -> {
+            Thread thread = new Thread(task, "Tiered compilation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_current = null;
+        m_promotions = 0;
+        m_rejections = 0;
+    }
+
+    @Override
+    public void load(List<Instruction> program)
+    {
+        load(Bytecode.encode(program));
+    }
+    
+    /**
+     * Loads an encoded program for execution
+     * @param bytecode Encoded program
+     */
+    public void load(Bytecode bytecode)
+    {
+        // Profiles are kept in encoded form, which also identifies the program
+        // when the same source is compiled again
+        synchronized (m_profiles) {
+            m_current = m_profiles.get(bytecode);
+            if (m_current == null) {
+                m_current = new Profile(bytecode);
+                m_profiles.put(bytecode, m_current);
+            }
+        }
+        m_cpu.load(m_current.program);
+    }
+
+    @Override
+    public void execute()
+    {
+        // Instrumented runs stay on the interpreter, which does the counting
+        // and sampling
+        if (m_cpu.isInstrumented()) {
+            m_cpu.execute();
+            return;
+        }
+
+        Profile profile = m_current;
+        ++profile.executions;
+        CompiledCode code = profile.code;
+        if (code != null)
+            code.run(m_cpu);
+        else {
+            if (profile.closures == null && profile.executions >= CLOSURE_THRESHOLD) {
+                profile.closures = m_closures.translate(profile.program.decode());
+                if (profile.tier == Tier.INTERPRETED)
+                    profile.tier = Tier.CLOSURES;
+            }
+            // Runs that fault or are stopped still count towards promotion
+            boolean closures = profile.closures != null;
+            try {
+                if (closures)
+                    m_closures.run(profile.closures);
+                else
+                    m_cpu.execute();
+            } finally {
+                profile.backEdges += closures ? m_closures.getBackEdgeCount() : m_cpu.getBackEdgeCount();
+                if ((profile.tier == Tier.INTERPRETED || profile.tier == Tier.CLOSURES) &&
+                    (profile.executions >= EXEC_THRESHOLD || profile.backEdges >= BACK_EDGE_THRESHOLD))
+                    promote(profile);
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the profiles of recently executed programs, most
+     * recently run last
+     * @return Program statistics
+     */
+    public List<ProgramStats> getProgramStats()
+    {
+        List<ProgramStats> stats = new ArrayList<>();
+        synchronized (m_profiles) {
+            for (Profile profile : m_profiles.values())
+                stats.add(new ProgramStats(profile));
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the number of programs promoted to the compiled tier
+     * @return Promotion count
+     */
+    public synchronized long getPromotionCount()
+    {
+        return m_promotions;
+    }
+
+    /**
+     * Returns the number of hot programs the compiler could not handle
+     * @return Rejection count
+     */
+    public synchronized long getRejectionCount()
+    {
+        return m_rejections;
+    }
+
+    private void promote(Profile profile)
+    {
+        profile.tier = Tier.COMPILING;
+        m_compileQueue.execute(() -> {
+            try {
+                profile.code = new BytecodeCompiler(profile.program.decode()).compile();
+                profile.tier = Tier.COMPILED;
+                Logger.getLogger(TieredEngine.class.getName()).log(
+                    Level.FINE, "Promoted program after {0} executions", profile.executions
+                );
+                synchronized (this) {
+                    ++m_promotions;
+                }
+            } catch (UnsupportedOperationException ex) {
+                Logger.getLogger(TieredEngine.class.getName()).log(
+                    Level.FINE, "Hot program left to the interpreter: {0}", ex.getMessage()
+                );
+                reject(profile);
+            } catch (RuntimeException | LinkageError ex) {
+                // A compiler failure; the program keeps running as it was
+                Logger.getLogger(TieredEngine.class.getName()).log(
+                    Level.WARNING, "Compilation of a hot program failed", ex
+                );
+                reject(profile);
+            }
+        });
+    }
+
+    private synchronized void reject(Profile profile)
+    {
+        profile.tier = Tier.REJECTED;
+        ++m_rejections;
+    }
+
+    /**
+     * Execution profile of a single program. Counters and closures are only
+     * updated by the executing thread; the compilation thread publishes the
+     * tier and compiled code.
+     */
+    private static final class Profile
+    {
+        final Bytecode program;
+        volatile long executions;
+        volatile long backEdges;
+        volatile Tier tier;
+        ClosureEngine.Program closures;
+        volatile CompiledCode code;
+
+        Profile(Bytecode program)
+        {
+            this.program = program;
+            executions = 0;
+            backEdges = 0;
+            tier = Tier.INTERPRETED;
+            closures = null;
+            code = null;
+        }
+    }
+
+    /**
+     * Snapshot of a program's execution profile
+     */
+    public static final class ProgramStats
+    {
+        private final int m_size;
+        private final long m_executions;
+        private final long m_backEdges;
+        private final Tier m_tier;
+
+        private ProgramStats(Profile profile)
+        {
+            m_size = profile.program.size();
+            m_executions = profile.executions;
+            m_backEdges = profile.backEdges;
+            m_tier = profile.tier;
+        }
+
+        /**
+         * Returns the program length in instructions
+         * @return Instruction count
+         */
+        public int getSize()
+        {
+            return m_size;
+        }
+
+        /**
+         * Returns the number of times the program was executed
+         * @return Execution count
+         */
+        public long getExecutions()
+        {
+            return m_executions;
+        }
+
+        /**
+         * Returns the number of backward jumps taken before compilation
+         * @return Back-edge count
+         */
+        public long getBackEdges()
+        {
+            return m_backEdges;
+        }
+
+        /**
+         * Returns the tier the program currently runs on
+         * @return Execution tier
+         */
+        public Tier getTier()
+        {
+            return m_tier;
+        }
+
+        @Override
+        public String toString()
+        {
+            return m_tier + ": " + m_size + " instructions, " + m_executions +
+                   " executions, " + m_backEdges + " back-edges";
+        }
+    }
+}
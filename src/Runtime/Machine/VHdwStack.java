@@ -1,8 +1,6 @@
 package Runtime.Machine;
 
-import Runtime.JIT.API.DataType;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Implements a virtual hardware stack for the machine. This object emulates
@@ -10,66 +8,110 @@ import java.util.List;
  * as large objects stored on the stack do not need to be fragmented to 8-byte
  * chunks and there are no inherent memory alignment considerations. Stack also grows
  * upwards, not downwards through its address space.
+ *
+ * Entries are stored like registers in the register file: primitive values
+ * with type tags, and string references only in the entries holding strings.
+ * Storage doubles as needed up to a fixed limit, beyond which a push faults.
  * @author Joshua Boley
  */
 class VHdwStack
 {
-    private static final int ALLOC_SZ = 10;     // Number of slots to allocate when growing the stack
-    private final List<Register> m_stack;
-    private final Register m_stackPointer;
-    
-    VHdwStack(Register basePointer, Register stackPointer)
+    private static final int INITIAL_SZ = 16;   // Number of slots allocated up front
+    private long[] m_values;
+    private byte[] m_tags;
+    private String[] m_refs;
+    private int m_stackPointer;                 // Index of the top entry, -1 when empty
+    private final int m_limit;
+
+    /**
+     * @param limit Maximum number of entries
+     */
+    VHdwStack(int limit)
     {
-        // Initialize base pointer, stack pointer
-        basePointer.set(-1, DataType.Imm_Int4);
-        stackPointer.set(-1, DataType.Imm_Int4);
-        m_stackPointer = stackPointer;
-        
-        // Initialize stack storage
-        m_stack = new ArrayList<>();
-        for (int i = 0; i < ALLOC_SZ; ++i)
-            m_stack.add(new Register(0, DataType.Imm_Int4));
+        if (limit < 1)
+            throw new IllegalArgumentException("Stack limit must be positive");
+        m_limit = limit;
+        int size = Math.min(INITIAL_SZ, limit);
+        m_values = new long[size];
+        m_tags = new byte[size];
+        m_refs = new String[size];
+        m_stackPointer = -1;
     }
-    
+
     /**
-     * Pushes an object to the stack at the current stack pointer location.
-     * Stack pointer is incremented. Additional storage is automatically allocated
-     * as needed.
-     * @param obj Object to store
+     * Pushes a copy of a register to the stack at the current stack pointer
+     * location. Stack pointer is incremented. Additional storage is
+     * automatically allocated as needed.
+     * @param registers Register file
+     * @param reg       Register to push
      */
-    void push(Register obj)
+    void push(RegisterFile registers, int reg)
     {
-        int stackAddr = (int) m_stackPointer.getValue();
-        
-        // Grow stack if more storage needed
-        if (stackAddr >= m_stack.size() - 1) {
-            for (int i = 0; i < ALLOC_SZ; ++i)
-                m_stack.add(new Register(0, DataType.Imm_Int4));
-        }
-        
-        // Increment stack pointer and add object to stack
-        m_stackPointer.set(++stackAddr, DataType.Imm_Int4);
-        if (stackAddr >= m_stack.size()) {
-            boolean breakHere = true;
-        }
-        m_stack.set(stackAddr, obj);
+        int stackAddr = reserve();
+        m_values[stackAddr] = registers.getValue(reg);
+        m_tags[stackAddr] = registers.getTag(reg);
+        m_refs[stackAddr] = registers.getStr(reg);
+        m_stackPointer = stackAddr;
+    }
+
+    void pushInt(int value)
+    {
+        int stackAddr = reserve();
+        m_values[stackAddr] = value;
+        m_tags[stackAddr] = RegisterFile.INT4;
+        m_refs[stackAddr] = null;
+        m_stackPointer = stackAddr;
+    }
+
+    void pushStr(String value)
+    {
+        int stackAddr = reserve();
+        m_tags[stackAddr] = RegisterFile.STR;
+        m_refs[stackAddr] = value;
+        m_stackPointer = stackAddr;
     }
 
     /**
-     * Pops the stored object at the current stack pointer index. Decrements the
-     * stack pointer. Allocated stack size does not change.
-     * @return Object referenced by stack pointer
+     * Pops the entry at the current stack pointer index into a register.
+     * Decrements the stack pointer. Allocated stack size does not change.
+     * @param registers Register file
+     * @param reg       Register to pop into
      */
-    Register pop()
+    void pop(RegisterFile registers, int reg)
     {
-        int stackAddr = (int) m_stackPointer.getValue();
+        int stackAddr = m_stackPointer;
         if (stackAddr < 0)
             throw new RuntimeException("Stack underflow");
 
-        // Get object from stack and decrement stack pointer
-        Register popped = m_stack.get(stackAddr);
-        m_stackPointer.set(stackAddr - 1, DataType.Imm_Int4);
-        
-        return popped;
+        // Move entry to the register, releasing its string reference
+        registers.load(reg, m_values[stackAddr], m_tags[stackAddr], m_refs[stackAddr]);
+        m_refs[stackAddr] = null;
+        m_stackPointer = stackAddr - 1;
+    }
+
+    /**
+     * Returns the index of the top entry
+     * @return Stack pointer, -1 when the stack is empty
+     */
+    int getPointer()
+    {
+        return m_stackPointer;
+    }
+
+    /**
+     * Returns the index the next push stores to, growing storage if needed
+     */
+    private int reserve()
+    {
+        int stackAddr = m_stackPointer + 1;
+        if (stackAddr == m_values.length) {
+            if (stackAddr == m_limit)
+                throw new RuntimeException("Stack overflow, limit of " + m_limit + " entries reached");
+            int size = (int) Math.min((long) stackAddr * 2, m_limit);
+            m_values = Arrays.copyOf(m_values, size);
+            m_tags = Arrays.copyOf(m_tags, size);
+            m_refs = Arrays.copyOf(m_refs, size);
+        }
+        return stackAddr;
     }
 }
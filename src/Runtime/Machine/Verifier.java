@@ -0,0 +1,519 @@
+package Runtime.Machine;
+
+import Runtime.JIT.API.DataType;
+import Runtime.Machine.Interface.Bytecode;
+import Runtime.Machine.Interface.Opcodes;
+import Runtime.Machine.Interface.RegId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Load-time verifier for encoded programs. A program is checked once, before
+ * it runs, for:
+ *
+ *  - the operand count and operand kinds of each instruction, register
+ *    numbers, string constant indices and jump targets;
+ *  - hardware stack balance: the stack depth must agree on every path
+ *    reaching an instruction, and the program may not pop values it did not
+ *    push;
+ *  - register types, propagated along all control flow paths by abstract
+ *    interpretation.
+ *
+ * Register contents on program entry are not known statically. A program
+ * whose instructions depend on them, or on a register holding different
+ * types on different paths, is accepted but not type safe, and the
+ * interpreter keeps its run-time type checks for it.
+ * @author Joshua Boley
+ */
+final class Verifier
+{
+    private static final RegId[] REGISTERS = RegId.values();
+    private static final int WORDS = Bytecode.WORDS;
+
+    /**
+     * Statically known type of a register or stack slot
+     */
+    private enum Kind
+    {
+        UNKNOWN,    // Not known statically
+        INT,        // Int4
+        STR;        // Imm_Str
+
+        Kind merge(Kind other)
+        {
+            return this == other ? this : UNKNOWN;
+        }
+    }
+
+    private final Bytecode m_program;
+    private final int[] m_code;
+    private final State[] m_states;     // Abstract state on entry to each instruction, null if unreachable
+    private boolean m_typeSafe;
+
+    // Instruction being verified
+    private int m_addr;
+    private int m_header;
+    private Opcodes m_opcode;
+
+    Verifier(Bytecode program)
+    {
+        m_program = program;
+        m_code = program.getCode();
+        m_states = new State[program.size() + 1];
+        m_typeSafe = true;
+    }
+
+    /**
+     * Verifies the program
+     * @throws VerifyException if the program is malformed, or an instruction
+     * is reached with operands of the wrong type
+     */
+    void run()
+    {
+        int size = m_program.size();
+        for (int addr = 0; addr < size; ++addr) {
+            select(addr);
+            checkOperands();
+        }
+
+        m_states[0] = new State();
+        Deque<Integer> worklist = new ArrayDeque<>();
+        worklist.push(0);
+        while (!worklist.isEmpty()) {
+            int addr = worklist.pop();
+            if (addr == size)
+                continue;
+            select(addr);
+            State state = m_states[addr].copy();
+            apply(state);
+            if (m_opcode.isJump())
+                propagate(addr + value(0), state, worklist);
+            if (m_opcode != Opcodes.JMP)
+                propagate(addr + 1, state, worklist);
+        }
+    }
+
+    /**
+     * Returns whether the types of all instruction operands were proven by
+     * the last run
+     * @return True if run-time type checks are unnecessary
+     */
+    boolean isTypeSafe()
+    {
+        return m_typeSafe;
+    }
+
+    private void select(int addr)
+    {
+        m_addr = addr;
+        m_header = m_code[addr * WORDS];
+        m_opcode = Bytecode.isWellFormed(m_header) ? Bytecode.opcode(m_header) : null;
+    }
+
+    private void propagate(int succ, State state, Deque<Integer> worklist)
+    {
+        if (m_states[succ] == null) {
+            m_states[succ] = state.copy();
+            worklist.push(succ);
+        }
+        else {
+            if (m_states[succ].stack.size() != state.stack.size())
+                throw new VerifyException(succ, null, "Stack depth differs between paths reaching the instruction");
+            if (m_states[succ].merge(state))
+                worklist.push(succ);
+        }
+    }
+
+    /**
+     * Checks the operand count and kinds of the selected instruction
+     */
+    private void checkOperands()
+    {
+        if (m_opcode == null)
+            throw new VerifyException(m_addr, null, "Malformed instruction header " + Integer.toHexString(m_header));
+        switch (m_opcode) {
+            case MOV:
+                requireCount(2);
+                if (Bytecode.isReference(m_header, 0))
+                    requireRegister(1);
+                else {
+                    requireRegister(0);
+                    requireLoadable(1);
+                }
+                break;
+            case LDPRNT:
+                requireCount(2);
+                requireRegister(0);
+                requireLoadable(1);
+                break;
+            case MOVST:
+                requireCount(3);
+                requireRegister(0);
+                requireLoadable(1);
+                requireVariable(2);
+                break;
+            case ADD:
+            case SUB:
+            case MULT:
+            case DIV:
+            case EXP:
+            case CMP:
+            case ADD_I4:
+            case SUB_I4:
+            case MULT_I4:
+            case DIV_I4:
+            case EXP_I4:
+            case CMP_I4:
+                requireCount(2);
+                requireRegister(0);
+                requireSource(1);
+                break;
+            case ADDST:
+            case SUBST:
+            case MULTST:
+                requireCount(3);
+                requireRegister(0);
+                requireSource(1);
+                requireVariable(2);
+                break;
+            case NEG:
+            case NEG_I4:
+            case PUSH:
+            case POP:
+            case PRNT:
+                requireCount(1);
+                requireRegister(0);
+                break;
+            case SAR:
+            case SAL:
+            case SLR:
+            case SLL:
+                requireCount(2);
+                requireRegister(0);
+                if (!isImmediate(1, DataType.Imm_Byte) && !isImmediate(1, DataType.Imm_Int4))
+                    fail("Shift count must be an immediate");
+                break;
+            case TEST:
+            case OR:
+            case XOR:
+            case AND:
+                requireCount(2);
+                requireRegister(0);
+                if (!isImmediate(1, DataType.Imm_Int4))
+                    requireRegister(1);
+                break;
+            case JMP:
+            case JL:
+            case JLE:
+            case JG:
+            case JGE:
+            case JE:
+            case JNE:
+            {
+                requireCount(1);
+                if (!isImmediate(0, DataType.Imm_Int4))
+                    fail("Jump offset must be an integer immediate");
+                int target = m_addr + value(0);
+                if (target < 0 || target > m_program.size())
+                    fail("Jump target " + target + " out of range");
+                break;
+            }
+            case CLR:
+                requireCount(0);
+                break;
+            default:
+                // Conditional sets have no effect in the interpreter
+                break;
+        }
+    }
+
+    /**
+     * Applies the type effect of the selected instruction
+     */
+    private void apply(State state)
+    {
+        switch (m_opcode) {
+            case MOV:
+            case LDPRNT:
+            case MOVST:
+                if (Bytecode.isReference(m_header, 0)) {
+                    requireStored(state, value(1), 0);
+                    break;
+                }
+                state.regs[value(0)] = sourceKind(state, 1);
+                if (m_opcode == Opcodes.LDPRNT)
+                    requirePrintable(state, value(0));
+                else if (m_opcode == Opcodes.MOVST)
+                    requireStored(state, value(0), 2);
+                break;
+            case ADD:
+            case SUB:
+            case MULT:
+            case EXP:
+            case CMP:
+            case ADD_I4:
+            case SUB_I4:
+            case MULT_I4:
+            case EXP_I4:
+            case CMP_I4:
+            case ADDST:
+            case SUBST:
+            case MULTST:
+                requireInt(state, value(0));
+                if (isRegister(1))
+                    requireInt(state, value(1));
+                if (Bytecode.hasOperand(m_header, 2))
+                    requireStored(state, value(0), 2);
+                break;
+            case DIV:
+            case DIV_I4:
+                requireInt(state, value(0));
+                if (isRegister(1))
+                    requireInt(state, value(1));
+                state.regs[RegId.R4.ordinal()] = Kind.INT;
+                break;
+            case NEG_I4:
+                requireInt(state, value(0));
+                break;
+            case NEG:
+            case SAR:
+            case SAL:
+            case SLR:
+            case SLL:
+                requireKind(state, value(0), Kind.INT);
+                break;
+            case TEST:
+            case OR:
+            case XOR:
+            case AND:
+                requireKind(state, value(0), Kind.INT);
+                if (isRegister(1))
+                    requireKind(state, value(1), Kind.INT);
+                break;
+            case PUSH:
+                state.stack.add(state.regs[value(0)]);
+                break;
+            case POP:
+                if (state.stack.isEmpty())
+                    fail("Pops a value the program did not push");
+                state.regs[value(0)] = state.stack.remove(state.stack.size() - 1);
+                break;
+            case PRNT:
+                requirePrintable(state, value(0));
+                break;
+            case CLR:
+                state.regs[RegId.R1.ordinal()] = Kind.STR;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void requireCount(int count)
+    {
+        int present = 0;
+        while (present < Bytecode.MAX_OPERANDS && Bytecode.hasOperand(m_header, present))
+            ++present;
+        if (present != count)
+            fail("Expected " + count + " operand(s), found " + present);
+    }
+
+    private void requireRegister(int n)
+    {
+        if (!isRegister(n))
+            fail("Operand " + (n + 1) + " does not name a register");
+        if (value(n) < 0 || value(n) >= REGISTERS.length)
+            fail("Invalid register number " + value(n));
+    }
+
+    /**
+     * Register, immediate or variable the interpreter can load a register from
+     */
+    private void requireLoadable(int n)
+    {
+        if (isRegister(n))
+            requireRegister(n);
+        else if (isImmediate(n, DataType.Imm_Str)) {
+            if (value(n) < 0 || value(n) >= m_program.getConstants().length)
+                fail("Invalid string constant index " + value(n));
+        }
+        else if (!isImmediate(n, DataType.Imm_Int4))
+            requireVariable(n);
+    }
+
+    /**
+     * Source operand of an arithmetic or compare instruction
+     */
+    private void requireSource(int n)
+    {
+        if (isRegister(n))
+            requireRegister(n);
+        else if (!isImmediate(n, DataType.Imm_Int4)) {
+            if (!Bytecode.isReference(m_header, n) || Bytecode.operandType(m_header, n) != DataType.Int4)
+                fail("Unsupported source operand type " + Bytecode.operandType(m_header, n));
+            requireVariable(n);
+        }
+    }
+
+    private void requireVariable(int n)
+    {
+        if (!Bytecode.isReference(m_header, n))
+            fail("Operand " + (n + 1) + " does not name a variable");
+        if (value(n) < 0)
+            fail("Invalid variable offset " + value(n));
+    }
+
+    /**
+     * Requires a register to hold a value of the given kind. Registers of
+     * unknown kind are left to the interpreter's run-time checks; execution
+     * only continues past the instruction if they pass, so the register's
+     * kind is known from here on.
+     */
+    private void requireKind(State state, int reg, Kind expected)
+    {
+        Kind kind = state.regs[reg];
+        if (kind == Kind.UNKNOWN) {
+            m_typeSafe = false;
+            state.regs[reg] = expected;
+        }
+        else if (kind != expected)
+            fail("Type mismatch, " + REGISTERS[reg] + " holds " + describe(kind) + ", expected " + describe(expected));
+    }
+
+    /**
+     * Requires a register to hold an integer. Specialized instructions do not
+     * check types at run time, so for them the type must be proven.
+     */
+    private void requireInt(State state, int reg)
+    {
+        if (isSpecialized(m_opcode) && state.regs[reg] == Kind.UNKNOWN)
+            fail(REGISTERS[reg] + " is not proven to hold " + DataType.Int4 + " as the specialized instruction requires");
+        requireKind(state, reg, Kind.INT);
+    }
+
+    private void requireStored(State state, int reg, int n)
+    {
+        Kind expected = kindOf(Bytecode.operandType(m_header, n));
+        if (expected == Kind.UNKNOWN)
+            m_typeSafe = false;
+        else
+            requireKind(state, reg, expected);
+    }
+
+    private void requirePrintable(State state, int reg)
+    {
+        if (state.regs[reg] == Kind.UNKNOWN)
+            m_typeSafe = false;
+    }
+
+    private Kind sourceKind(State state, int n)
+    {
+        if (isRegister(n))
+            return state.regs[value(n)];
+        if (isImmediate(n, DataType.Imm_Int4))
+            return Kind.INT;
+        if (isImmediate(n, DataType.Imm_Str))
+            return Kind.STR;
+        return kindOf(Bytecode.operandType(m_header, n));
+    }
+
+    private static Kind kindOf(DataType type)
+    {
+        switch (type) {
+            case Int4:
+                return Kind.INT;
+            case Imm_Str:
+                return Kind.STR;
+            default:
+                return Kind.UNKNOWN;
+        }
+    }
+
+    private static String describe(Kind kind)
+    {
+        return kind == Kind.INT ? DataType.Int4.toString() : DataType.Imm_Str.toString();
+    }
+
+    private boolean isRegister(int n)
+    {
+        return isImmediate(n, DataType.Register);
+    }
+
+    private boolean isImmediate(int n, DataType type)
+    {
+        return !Bytecode.isReference(m_header, n) && Bytecode.operandType(m_header, n) == type;
+    }
+
+    private int value(int n)
+    {
+        return m_code[m_addr * WORDS + 1 + n];
+    }
+
+    private void fail(String message)
+    {
+        throw new VerifyException(m_addr, m_opcode, message);
+    }
+
+    private static boolean isSpecialized(Opcodes opcode)
+    {
+        switch (opcode) {
+            case ADDST:
+            case SUBST:
+            case MULTST:
+                return true;
+            default:
+                return opcode.isTyped();
+        }
+    }
+
+    /**
+     * Abstract machine state: the kind of value held by each register and
+     * each hardware stack slot pushed by the program
+     */
+    private static final class State
+    {
+        final Kind[] regs;
+        final List<Kind> stack;
+
+        State()
+        {
+            regs = new Kind[REGISTERS.length];
+            Arrays.fill(regs, Kind.UNKNOWN);
+            stack = new ArrayList<>();
+        }
+
+        private State(State other)
+        {
+            regs = other.regs.clone();
+            stack = new ArrayList<>(other.stack);
+        }
+
+        State copy()
+        {
+            return new State(this);
+        }
+
+        /**
+         * Merges another state of the same stack depth
+         * @return True if this state changed
+         */
+        boolean merge(State other)
+        {
+            boolean changed = false;
+            for (int i = 0; i < regs.length; ++i) {
+                Kind merged = regs[i].merge(other.regs[i]);
+                changed |= merged != regs[i];
+                regs[i] = merged;
+            }
+            for (int i = 0; i < stack.size(); ++i) {
+                Kind merged = stack.get(i).merge(other.stack.get(i));
+                changed |= merged != stack.get(i);
+                stack.set(i, merged);
+            }
+            return changed;
+        }
+    }
+}
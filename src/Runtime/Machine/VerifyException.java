@@ -0,0 +1,27 @@
+package Runtime.Machine;
+
+import Runtime.Machine.Interface.Opcodes;
+
+/**
+ * Verification exception class, thrown when a program is rejected at load
+ * time. Includes the address of the offending instruction.
+ * @author Joshua Boley
+ */
+public class VerifyException
+        extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int m_address;
+    
+    public VerifyException(int address, Opcodes opcode, String message)
+    {
+        super((opcode != null ? opcode + ": " : "") + message + " (at instruction " + address + ")");
+        m_address = address;
+    }
+    
+    public int getAddress()
+    {
+        return m_address;
+    }
+}
@@ -1,869 +1,927 @@
 package Runtime.Machine;
 
+import Runtime.Machine.Interface.Bytecode;
 import Runtime.Machine.Interface.RegId;
 import Runtime.Machine.Interface.Opcodes;
 import Runtime.JIT.API.DataType;
 import Runtime.JIT.API.Instruction;
-import Runtime.JIT.API.Operand;
 import Runtime.IO.OutputChannel;
-import java.util.EnumMap;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Virtual machine on which instructions are executed
+ * Virtual machine on which instructions are executed. Registers are held in
+ * a primitive register file, so integer arithmetic executes without
+ * allocating.
+ *
+ * Flags are evaluated lazily: a flag-setting instruction only records the
+ * kind of operation, its result and one source operand, and ZF, SF and OF
+ * are derived from these when a conditional jump reads them.
+ *
+ * Each opcode is executed by its own small handler method. Loading a program
+ * binds every instruction to its handler, so the interpreter loop dispatches
+ * through an array without decoding opcodes.
+ *
+ * When execution counters or an instruction profile are attached, or a
+ * sampling profiler is active, programs run on a separate instrumented loop instead, so the regular loop
+ * carries no counting or sampling code.
+ *
+ * Runs are cancelled, suspended and held to their quotas at taken backward
+ * jumps, in every execution tier. Each charges the instructions it jumps back
+ * over against the instruction quota; loop-free code is never interrupted.
  * @author Joshua Boley
  */
 public class VirtualCPU
+    implements ExecutionEngine
 {
-    enum Flag {
-        ZF,     // Zero flag
-        SF,     // Sign flag
-        OF      // Overflow flag
+    /**
+     * Instruction handler; returns the address of the next instruction
+     */
+    private interface Handler
+    {
+        int execute(int addr, int header, int op1, int op2, int op3);
     }
 
-    private static final boolean DEBUG = true;
+    // Flag word bits
+    static final int ZF = 1,    // Zero flag
+                     SF = 2,    // Sign flag
+                     OF = 4;    // Overflow flag
+
+    // Last flag-setting operation
+    static final int CC_LOGIC = 0,  // OF clear; result only
+                     CC_ADD = 1,    // Source is the addend
+                     CC_SUB = 2,    // Source is the subtrahend
+                     CC_MUL = 3,    // Source is nonzero on overflow
+                     CC_FLAGS = 4;  // Source is the flag word itself
 
-    private final EnumMap<Flag, Boolean> m_eflags;
-    private final EnumMap<RegId, Register> m_registers;
+    // Stack entries allowed unless the labomath.stack.limit system property
+    // says otherwise
+    private static final int DEFAULT_STACK_LIMIT = 1 << 20;
+
+    // Instructions charged between checks of the clock under a time quota
+    private static final long CHECK_INTERVAL = 1 << 16;
+
+    private static final RegId[] REGISTERS = RegId.values();
+    private static final int IP = RegId.IP.ordinal(),
+                             SP = RegId.SP.ordinal(),
+                             BP = RegId.BP.ordinal(),
+                             R1 = RegId.R1.ordinal(),
+                             R4 = RegId.R4.ordinal();
+
+    private final RegisterFile m_registers;
     private final VHdwStack m_vstack;
-    private List<Instruction> m_instructionCache;
+    private final Handler[] m_handlers;         // Indexed by opcode ordinal
+    private int m_ccOp;                         // Lazy flag state
+    private int m_ccRes;
+    private int m_ccSrc;
+    private Bytecode m_program;
+    private String[] m_constants;
+    private Handler[] m_dispatch;               // Handler bound to each instruction of the program
+    private boolean m_checked;                  // Operand types are checked at run time, not proven by the verifier
     private OutputChannel m_outChannel;
-    
+    private long m_backEdges;                   // Backward jumps taken since the program was loaded
+    private long m_charge;                      // Instructions that may be charged before the next checkpoint
+    private long m_quotaLeft;                   // Instruction quota left beyond m_charge
+    private long m_deadline;                    // System.nanoTime() the time quota expires at, 0 for none
+    private final Object m_control;             // Guards m_suspended, notified on resumption and cancellation
+    private boolean m_suspended;
+    private volatile boolean m_cancelled;
+    private volatile boolean m_interrupt;       // Cancellation or suspension pending, seen at the next back-edge
+    private volatile ExecutionCounters m_counters;  // Null unless execution is counted
+    private volatile InstructionProfile m_profile;  // Null unless instructions are counted by address
+    private volatile BranchSimulator m_branches;    // Null unless branch prediction is simulated
+    private volatile CacheSimulator m_caches;       // Null unless variable accesses are simulated
+    private volatile PipelineModel m_pipeline;      // Null unless execution is timed
+    private volatile boolean m_sampled;         // Executing address is published for the sampling profiler
+    private volatile Bytecode m_sampleProgram;  // Program being sampled, null when idle
+    private final AtomicInteger m_sampleAddr;   // Address being executed, -1 when idle
+
     public VirtualCPU()
     {
-        m_eflags = new EnumMap<>(Flag.class);
-        m_eflags.put(Flag.ZF, false);
-        m_eflags.put(Flag.SF, false);
-        m_eflags.put(Flag.OF, false);
-        m_registers = new EnumMap<>(RegId.class);
+        this(Integer.getInteger("labomath.stack.limit", DEFAULT_STACK_LIMIT));
+    }
+
+    /**
+     * @param stackLimit Maximum number of entries on the virtual stack
+     */
+    public VirtualCPU(int stackLimit)
+    {
+        m_registers = new RegisterFile(REGISTERS.length);
+        m_ccOp = CC_FLAGS;
+        m_ccRes = 0;
+        m_ccSrc = 0;
+        m_checked = true;
         m_outChannel = null;
-        
-        // Initialize registers
-        for (RegId reg : RegId.values())
-            m_registers.put(reg, new Register());
-        
-        // Initialize instruction, stack and base pointers
-        m_registers.get(RegId.IP).set(0, DataType.Imm_Int4);
-
-        // Initialize virtual stack (base and stack pointer initialization handled
-        // in VHdwStack constructor
-        m_vstack = new VHdwStack(m_registers.get(RegId.BP), m_registers.get(RegId.SP));
-    }
-    
+        m_backEdges = 0;
+        m_control = new Object();
+        m_suspended = false;
+        m_cancelled = false;
+        m_interrupt = false;
+        setQuotas(0, 0);
+        m_counters = null;
+        m_profile = null;
+        m_branches = null;
+        m_caches = null;
+        m_pipeline = null;
+        m_sampled = false;
+        m_sampleProgram = null;
+        m_sampleAddr = new AtomicInteger(-1);
+
+        // Initialize instruction, stack and base pointers. The stack pointer
+        // is held by the stack and only copied to SP when execution stops.
+        m_registers.set(IP, 0, DataType.Imm_Int4);
+        m_registers.set(SP, -1, DataType.Imm_Int4);
+        m_registers.set(BP, -1, DataType.Imm_Int4);
+        m_vstack = new VHdwStack(stackLimit);
+        m_handlers = bindHandlers();
+    }
+
     public void initializeIO(OutputChannel out)
     {
         m_outChannel = out;
     }
-    
+
+    @Override
     public void load(List<Instruction> instructions)
     {
-        m_instructionCache = instructions;
-        m_registers
-            .get(RegId.IP)
-            .set(0);
+        load(Bytecode.encode(instructions));
+    }
+
+    /**
+     * Verifies and loads an encoded program for execution. Verification is
+     * skipped when the program is already loaded.
+     * @param program Encoded program
+     * @throws VerifyException if the program is malformed
+     */
+    public void load(Bytecode program)
+    {
+        if (program != m_program) {
+            Verifier verifier = new Verifier(program);
+            verifier.run();
+            m_checked = !verifier.isTypeSafe();
+            int[] code = program.getCode();
+            m_dispatch = new Handler[program.size()];
+            for (int addr = 0; addr < m_dispatch.length; ++addr)
+                m_dispatch[addr] = handlerFor(code[addr * Bytecode.WORDS]);
+            m_constants = program.getConstants();
+        }
+        m_program = program;
+        m_backEdges = 0;
+        m_registers.set(IP, 0, DataType.Imm_Int4);
+    }
+
+    /**
+     * Attaches execution counters, which every subsequent execution updates
+     * @param counters Counters, null to run uninstrumented
+     */
+    public void setCounters(ExecutionCounters counters)
+    {
+        m_counters = counters;
+    }
+
+    /**
+     * Returns the attached execution counters
+     * @return Counters, null when execution is not instrumented
+     */
+    public ExecutionCounters getCounters()
+    {
+        return m_counters;
+    }
+
+    /**
+     * Attaches an instruction profile, which every subsequent execution
+     * updates
+     * @param profile Profile, null to stop profiling
+     */
+    public void setInstructionProfile(InstructionProfile profile)
+    {
+        m_profile = profile;
+    }
+
+    public InstructionProfile getInstructionProfile()
+    {
+        return m_profile;
+    }
+
+    /**
+     * Attaches a branch simulator, which predicts the conditional jumps of
+     * every subsequent execution
+     * @param branches Simulator, null to stop simulating
+     */
+    public void setBranchSimulator(BranchSimulator branches)
+    {
+        m_branches = branches;
+    }
+
+    public BranchSimulator getBranchSimulator()
+    {
+        return m_branches;
+    }
+
+    /**
+     * Attaches a cache simulator, which every variable access of subsequent
+     * executions goes through
+     * @param caches Simulator, null to stop simulating
+     */
+    public void setCacheSimulator(CacheSimulator caches)
+    {
+        m_caches = caches;
+    }
+
+    public CacheSimulator getCacheSimulator()
+    {
+        return m_caches;
+    }
+
+    /**
+     * Attaches a pipeline timing model, which times every instruction of
+     * subsequent executions
+     * @param pipeline Timing model, null to stop timing
+     */
+    public void setPipelineModel(PipelineModel pipeline)
+    {
+        m_pipeline = pipeline;
+    }
+
+    public PipelineModel getPipelineModel()
+    {
+        return m_pipeline;
+    }
+
+    /**
+     * Starts a run's quotas. While execution is suspended, waits for it to
+     * resume.
+     * @param instructions Instruction quota, 0 for none
+     * @param timeMillis   Time quota in milliseconds, suspension excluded; 0
+     *                     for none
+     * @throws ExecutionStoppedException if the run was cancelled before it
+     *         started or while suspended
+     */
+    public void startRun(long instructions, long timeMillis)
+    {
+        synchronized (m_control) {
+            m_interrupt = m_suspended || m_cancelled;
+        }
+        setQuotas(instructions, timeMillis);
+        if (m_interrupt)
+            checkpoint(m_registers.getInt(IP));
+    }
+
+    /**
+     * Ends a run, clearing its cancellation so that it does not carry over
+     * to the next run
+     */
+    public void endRun()
+    {
+        synchronized (m_control) {
+            m_cancelled = false;
+            m_interrupt = m_suspended;
+        }
+    }
+
+    /**
+     * Requests the current run to stop at its next taken backward jump, with
+     * an ExecutionStoppedException. A run cancelled before startRun stops as
+     * soon as it starts. Stays in effect until endRun.
+     */
+    public void cancel()
+    {
+        synchronized (m_control) {
+            m_cancelled = true;
+            m_interrupt = true;
+            m_control.notifyAll();
+        }
+    }
+
+    /**
+     * Suspends execution at the running program's next taken backward jump,
+     * or before the next run starts
+     */
+    public void suspend()
+    {
+        synchronized (m_control) {
+            m_suspended = true;
+            m_interrupt = true;
+        }
+    }
+
+    public void resume()
+    {
+        synchronized (m_control) {
+            m_suspended = false;
+            m_control.notifyAll();
+        }
+    }
+
+    public boolean isSuspended()
+    {
+        synchronized (m_control) {
+            return m_suspended;
+        }
     }
-    
+
+    /**
+     * Returns whether programs run on the instrumented loop, which only the
+     * interpreter provides
+     * @return True when counting, sampling or simulating
+     */
+    boolean isInstrumented()
+    {
+        return m_counters != null || m_profile != null || m_branches != null || m_caches != null ||
+               m_pipeline != null || m_sampled;
+    }
+
+    @Override
     public void execute()
     {
-        int instrAddr;
-        boolean jumped = false;
-        while ((instrAddr = (int) m_registers.get(RegId.IP).getValue()) < m_instructionCache.size()) {
-            Instruction instr = m_instructionCache.get(instrAddr);
-            Opcodes opcode = instr.getCode();
-            List<Operand> operands = instr.getOperands();
-            
-            switch (opcode) {
-                // Move data between virtual registers and/or memory
-                case MOV:
-                {
-                    Operand dst = operands.get(0),
-                            src = operands.get(1);
-                    if (DEBUG) {
-                        if (dst.getType() == DataType.Imm_Int4 || dst.getType() == DataType.Imm_Str)
-                            throw new UnsupportedOperationException("MOV: Only moves to register or reference stored in a register supported");
-                    }
-                    switch (dst.getType()) {
-                        case Register:
-                            switch (src.getType()) {
-                                case Register:
-                                {
-                                    RegId srcRegId = (RegId) src.getEnclosed();
-                                    RegId dstRegId = (RegId) dst.getEnclosed();
-                                    Register srcReg = m_registers.get(srcRegId);
-                                    Register dstReg = m_registers.get(dstRegId);
-                                    dstReg.set(srcReg.getValue(), srcReg.getType());
-                                    break;
-                                }
-                                case Imm_Int4:
-                                {
-                                    RegId dstRegId = (RegId) dst.getEnclosed();
-                                    Register dstReg = m_registers.get(dstRegId);
-                                    dstReg.set(src.getEnclosed(), DataType.Int4);
-                                    break;
-                                }
-                                case Imm_Str:
-                                {
-                                    RegId dstRegId = (RegId) dst.getEnclosed();
-                                    Register dstReg = m_registers.get(dstRegId);
-                                    dstReg.set(src.getEnclosed(), DataType.Imm_Str);
-                                    break;
-                                }
-                                default:
-                                {
-                                    if (DEBUG) {
-                                        if (!src.isReference())
-                                            throw new UnsupportedOperationException("MOV: Attempting to move to register from unrecognized location type");
-                                    }
-                                    RegId dstRegId = (RegId) dst.getEnclosed();
-                                    Register dstReg = m_registers.get(dstRegId);
-                                    dstReg.set(
-                                        StaticMemory.retrieve(
-                                            src.getType(),
-                                            (int) src.getEnclosed()
-                                        ),
-                                        src.getType()
-                                    );
-                                }
-                            }
-                            break;
-                        default:
-                            // Moving to variable storage
-                            if (DEBUG) {
-                                if (!dst.isReference())
-                                    throw new RuntimeException("MOV: Attempted to move to an unknown location type");
-                            }
-                            switch (src.getType()) {
-                                case Register:
-                                {
-                                    RegId srcRegId = (RegId) src.getEnclosed();
-                                    Register srcReg = m_registers.get(srcRegId);
-                                    // Perform type check
-                                    if (DEBUG) {
-                                        if (srcReg.getType() != dst.getType())
-                                            throw new UnsupportedOperationException("MOV: Type mismatch, conversion not supported");
-                                    }
-                                    StaticMemory.assign(srcReg.getValue(), dst.getType(), (int) dst.getEnclosed());
-                                    break;
-                                }
-                                case Imm_Int4:
-                                case Imm_Str:
-                                    throw new UnsupportedOperationException("MOV: Moving a literal type directly to variable storage not supported");
-                                default:
-                                    throw new UnsupportedOperationException("MOV: Direct memory-to-memory moves not supported");
-                            }
-                    }
-                    break;
-                }
-                // Addition operation
-                case ADD:
-                {
-                    // Get register references and perform type check
-                    Operand dst = operands.get(0),
-                            src = operands.get(1);
-
-                    if (DEBUG) {
-                        if (dst.getType() != DataType.Register || src.getType() != DataType.Register)
-                            throw new UnsupportedOperationException(
-                                "ADD: An operand does not name a register; dst=" + dst.getType().toString() +
-                                ", src=" + src.getType().toString()
-                            );
-                    }
-                    
-                    RegId dstRegId = (RegId) dst.getEnclosed(),
-                          srcRegId = (RegId) src.getEnclosed();
-                    Register dstReg = m_registers.get(dstRegId);
-                    Register srcReg = m_registers.get(srcRegId);
-
-                    if (DEBUG) {
-                        if (dstReg.getType() != srcReg.getType())
-                            throw new UnsupportedOperationException(
-                                "ADD: Type mismatch, unable to convert from " + srcReg.getType().toString() +
-                                " to " + dstReg.getType().toString()
-                            );
-                    }
-                    
-                    // Perform addition op and set result to dst operand
-                    Object result;
-                    switch (dstReg.getType()) {
-                        case Int4:
-                        {
-                            int res;
-                            try {
-                                res = Math.addExact((int) dstReg.getValue(), (int) srcReg.getValue());
-                                m_eflags.put(Flag.OF, false);
-                            }
-                            catch (ArithmeticException ex) {
-                                m_eflags.put(Flag.OF, true);
-                                res = (int) dstReg.getValue() + (int) srcReg.getValue();
-                            }
-                            m_eflags.put(Flag.ZF, res == 0);
-                            m_eflags.put(Flag.SF, res < 0);
-                            result = res;
-                            break;
-                        }
-                        default:
-                            throw new UnsupportedOperationException("ADD: Unsupported type " + dst.getType().toString());
-                    }
-                    dstReg.set(result);
-                    break;
-                }
-                // Subtraction operation
-                case SUB:
-                {
-                    // Get register references and perform type check
-                    Operand dst = operands.get(0),
-                            src = operands.get(1);
-                    
-                    if (DEBUG) {
-                        if (dst.getType() != DataType.Register || src.getType() != DataType.Register)
-                            throw new UnsupportedOperationException(
-                                "SUBTRACT: An operand does not name a register; dst=" + dst.getType().toString() +
-                                ", src=" + src.getType().toString()
-                            );
-                    }
-                    
-                    RegId dstRegId = (RegId) dst.getEnclosed(),
-                          srcRegId = (RegId) src.getEnclosed();
-                    Register dstReg = m_registers.get(dstRegId);
-                    Register srcReg = m_registers.get(srcRegId);
-                    
-                    if (DEBUG) {
-                        if (dstReg.getType() != srcReg.getType())
-                            throw new UnsupportedOperationException(
-                                "SUBTRACT: Type mismatch, unable to convert from " + srcReg.getType().toString() +
-                                " to " + dstReg.getType().toString()
-                            );
-                    }
-                    
-                    // Perform addition op and set result to dst register
-                    Object result;
-                    switch (dstReg.getType()) {
-                        case Int4:
-                            int res;
-                            try {
-                                res = Math.subtractExact((int) dstReg.getValue(), (int) srcReg.getValue());
-                                m_eflags.put(Flag.OF, false);
-                            }
-                            catch (ArithmeticException ex) {
-                                m_eflags.put(Flag.OF, true);
-                                res = (int) dstReg.getValue() - (int) srcReg.getValue();
-                            }
-                            m_eflags.put(Flag.ZF, res == 0);
-                            m_eflags.put(Flag.SF, res < 0);
-                            result = res;
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("SUBTRACT: Unsupported type " + dst.getType().toString());
-                    }
-                    dstReg.set(result);
-                    break;
-                }
-                // Multiplication operation
-                case MULT:
-                {
-                    // Get register references and perform type check
-                    Operand dst = operands.get(0),
-                            src = operands.get(1);
-
-                    if (DEBUG) {
-                        if (dst.getType() != DataType.Register || src.getType() != DataType.Register)
-                            throw new UnsupportedOperationException(
-                                "MULTIPLY: An operand does not name a register; dst=" + dst.getType().toString() +
-                                ", src=" + src.getType().toString()
-                            );
-                    }
-                    
-                    RegId dstRegId = (RegId) dst.getEnclosed(),
-                          srcRegId = (RegId) src.getEnclosed();
-                    Register dstReg = m_registers.get(dstRegId),
-                             srcReg = m_registers.get(srcRegId);
-                    
-                    if (DEBUG) {
-                        if (dstReg.getType() != srcReg.getType())
-                            throw new UnsupportedOperationException(
-                                "MULTIPLY: Type mismatch, unable to convert from " + srcReg.getType().toString() +
-                                " to " + dstReg.getType().toString()
-                            );
-                    }
-                    
-                    // Perform multiplication op and set result to dst register
-                    Object result;
-                    switch (dstReg.getType()) {
-                        case Int4:
-                            int res;
-                            try {
-                                res = Math.multiplyExact((int) dstReg.getValue(), (int) srcReg.getValue());
-                                m_eflags.put(Flag.OF, false);
-                            }
-                            catch (ArithmeticException ex) {
-                                m_eflags.put(Flag.OF, true);
-                                res = (int) dstReg.getValue() * (int) srcReg.getValue();
-                            }
-                            m_eflags.put(Flag.ZF, res == 0);
-                            m_eflags.put(Flag.SF, res < 0);
-                            result = res;
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("MULTIPLY: Unsupported type " + dst.getType().toString());
-                    }
-                    dstReg.set(result);
-                    break;
-                }
-                // Division operation
-                case DIV:
-                {
-                    // Get register references and perform type check
-                    Operand dst = operands.get(0),
-                            src = operands.get(1);
-
-                    if (DEBUG) {
-                        if (dst.getType() != DataType.Register || src.getType() != DataType.Register)
-                            throw new UnsupportedOperationException(
-                                "DIVIDE: An operand does not name a register; dst=" + dst.getType().toString() +
-                                ", src=" + src.getType().toString()
-                            );
-                    }
-                    
-                    RegId dstRegId = (RegId) dst.getEnclosed(),
-                          srcRegId = (RegId) src.getEnclosed(),
-                          modRegId = RegId.R4;
-                    Register dstReg = m_registers.get(dstRegId),
-                             srcReg = m_registers.get(srcRegId),
-                             modReg = m_registers.get(modRegId);
-
-                    if (DEBUG) {
-                        if (dstReg.getType() != srcReg.getType())
-                            throw new UnsupportedOperationException(
-                                "DIVIDE: Type mismatch, unable to convert from " + srcReg.getType().toString() +
-                                " to " + dstReg.getType().toString()
-                            );
-                    }
-                    
-                    // Perform div/mod op and set results to dst, R4 (mod) register
-                    Object divResult,
-                           modResult;
-                    switch (dstReg.getType()) {
-                        case Int4:
-                            int res = (int) dstReg.getValue() / (int) srcReg.getValue();
-                            modResult = (int) dstReg.getValue() % (int) srcReg.getValue();
-                            m_eflags.put(Flag.OF, false);
-                            m_eflags.put(Flag.ZF, res == 0);
-                            m_eflags.put(Flag.SF, res < 0);
-                            divResult = res;
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("DIVIDE: Unsupported type " + dst.getType().toString());
-                    }
-                    dstReg.set(divResult);
-                    modReg.set(modResult);
-                    break;
-                }
-                // Exponentiation operation (x^y)
-                case EXP:
-                {
-                    Operand dst = operands.get(0),
-                            src = operands.get(1);
-                    
-                    if (DEBUG) {
-                        if (dst.getType() != DataType.Register || src.getType() != DataType.Register)
-                            throw new UnsupportedOperationException(
-                                "EXP: An operand does not name a register; dst=" + dst.getType().toString() +
-                                ", src=" + src.getType().toString()
-                            );
-                    }
-                    
-                    Register dstReg = m_registers.get(
-                            ((RegId) dst.getEnclosed())
-                    );
-                    Register srcReg = m_registers.get(
-                            ((RegId) src.getEnclosed())
-                    );
-                    
-                    if (DEBUG) {
-                        if (dstReg.getType() != srcReg.getType())
-                            throw new UnsupportedOperationException(
-                                "EXP: Type mismatch, unable to convert from " + srcReg.getType().toString() +
-                                " to " + dstReg.getType().toString()
-                            );
-                    }
-
-                    Object expResult;
-                    switch (dstReg.getType()) {
-                        case Int4:
-                            expResult = (int) Math.pow(
-                                (int) dstReg.getValue(),
-                                (int) srcReg.getValue()
-                            );
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("EXP: Unsupported type " + dst.getType().toString());
-                    }
-                    dstReg.set(expResult);
-                    break;
-                }
-                // Negation operation
-                case NEG:
-                {
-                    Operand op = operands.get(0);
-                    Register opReg = m_registers.get(
-                        ((RegId) op.getEnclosed()) 
-                    );
-                    Object negResult;
-                    switch (opReg.getType()) {
-                        case Int4:
-                            negResult = -((int) opReg.getValue());
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("NEGATION: Unsupported type " + op.getType().toString());
-                    }
-                    opReg.set(negResult);
-                }
-                // Arithmetic right-shift
-                case SAR:
-                {
-                    Operand dst = operands.get(0),
-                            mutator = operands.get(1);
-                    Register dstReg = m_registers.get(
-                        ((RegId) dst.getEnclosed())
-                    );
-                    byte shiftVal = (byte) mutator.getEnclosed();
-                    Object shiftResult;
-                    switch (dstReg.getType()) {
-                        case Int4:
-                            shiftResult = (int) dstReg.getValue() >> shiftVal;
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("SAR: Unsupproted type " + dst.getType().toString());
-                    }
-                    dstReg.set(shiftResult);
-                }
-                // Arithmetic left-shift
-                case SAL:
-                {
-                    Operand dst = operands.get(0),
-                            mutator = operands.get(1);
-                    Register dstReg = m_registers.get(
-                        ((RegId) dst.getEnclosed())
-                    );
-                    byte shiftVal = (byte) mutator.getEnclosed();
-                    Object shiftResult;
-                    switch (dstReg.getType()) {
-                        case Int4:
-                            shiftResult = (int) dstReg.getValue() << shiftVal;
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("SAL: Unsupported type " + dst.getType().toString());
-                    }
-                    dstReg.set(shiftResult);
-                }
-                // Logical (bitwise) right-shift
-                case SLR:
-                {
-                    Operand dst = operands.get(0),
-                            mutator = operands.get(1);
-                    Register dstReg = m_registers.get(
-                        ((RegId) dst.getEnclosed())
-                    );
-                    byte shiftVal = (byte) mutator.getEnclosed();
-                    Object shiftResult;
-                    switch (dstReg.getType()) {
-                        case Int4:
-                            shiftResult = (int) dstReg.getValue() >>> shiftVal;
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("SLR: Unsupported type " + dst.getType());
-                    }
-                    dstReg.set(shiftResult);
-                }
-                // Logical (bitwise) left-shift
-                case SLL:
-                {
-                    Operand dst = operands.get(0),
-                            mutator = operands.get(1);
-                    Register dstReg = m_registers.get(
-                        ((RegId) dst.getEnclosed())
-                    );
-                    byte shiftVal = (byte) mutator.getEnclosed();
-                    Object shiftResult;
-                    switch (dstReg.getType()) {
-                        case Int4:
-                            shiftResult = (int) dstReg.getValue() << shiftVal;
-                            break;
-                        default:
-                            throw new UnsupportedOperationException("SAL: Unsupported type " + dst.getType().toString());
-                    }
-                    dstReg.set(shiftResult);
-                }
-                // Push to virtual hardware stack
-                case PUSH:
-                {
-                    Operand src = operands.get(0);
-                    RegId srcRegId = (RegId) src.getEnclosed();
-                    Register srcReg = m_registers.get(srcRegId);
-                    m_vstack.push(new Register(srcReg.getValue(), srcReg.getType()));
-                    break;
-                }
-                // Pop from virtual hardware stack
-                case POP:
-                {
-                    Operand dst = operands.get(0);
-                    RegId dstRegId = (RegId) dst.getEnclosed();
-                    Register dstReg = m_registers.get(dstRegId );
-                    Register temp = (Register) m_vstack.pop();
-                    dstReg.set(temp.getValue(), temp.getType());
-                    break;
-                }
-                // Arithmetic comparison
-                case CMP:
-                {
-                    Register
-                            lhReg = m_registers.get(
-                                (RegId) operands.get(0).getEnclosed()
-                            ),
-                            rhReg = m_registers.get(
-                                (RegId) operands.get(1).getEnclosed()
-                            );
-                    
-                    if (DEBUG) {
-                        if (lhReg.getType() != rhReg.getType())
-                            throw new UnsupportedOperationException(
-                                "CMP: Unsupported comparison between types: op1=" +
-                                lhReg.getType() + ", op2=" + rhReg.getType()
-                            );
-                    }
-                    
-                    switch (lhReg.getType()) {
-                        case Int4:
-                            int res;
-                            try {
-                                res = Math.subtractExact((int) lhReg.getValue(), (int) rhReg.getValue());
-                                m_eflags.put(Flag.OF, false);
-                            }
-                            catch (ArithmeticException ex) {
-                                m_eflags.put(Flag.OF, true);
-                                res = (int) lhReg.getValue() - (int) rhReg.getValue();
-                            }
-                            m_eflags.put(Flag.ZF, res == 0);
-                            m_eflags.put(Flag.SF, res < 0);
-                            break;
-                        default:
-                            throw new UnsupportedOperationException(
-                                "CMP: Unsupported type " + lhReg.getType()
-                            );
-                    }
-                }
-                // Logical comparison
-                case TEST:
-                {
-                    Register lhReg = m_registers.get(
-                        (RegId) operands.get(0).getEnclosed()
-                    );
-                    if (DEBUG) {
-                        if (lhReg.getType() != DataType.Int4)
-                            throw new UnsupportedOperationException(
-                                "TEST: Unsupported left-hand operand type " +
-                                lhReg.getType()
-                            );
-                    }
-                    switch (operands.get(1).getType()) {
-                        case Register:
-                        {
-                            Register rhReg = m_registers.get(
-                                (RegId) operands.get(1).getEnclosed()
-                            );
-                            switch (rhReg.getType()) {
-                                case Int4:
-                                    int tmp = (int) lhReg.getValue() & (int) rhReg.getValue();
-                                    m_eflags.put(Flag.ZF, tmp == 0);
-                                    m_eflags.put(Flag.SF, tmp < 0);
-                                    break;
-                                default:
-                                    throw new UnsupportedOperationException(
-                                        "TEST: Unsupported right-hand operand type " +
-                                        rhReg.getType()
-                                    );
-                            }
-                            break;
-                        }
-                        case Imm_Int4:
-                            int tmp = (int) lhReg.getValue() & (int) operands.get(1).getEnclosed();
-                            m_eflags.put(Flag.ZF, tmp == 0);
-                            m_eflags.put(Flag.SF, tmp < 0);
-                            break;
-                        default:
-                            throw new UnsupportedOperationException(
-                                "TEST: Unsupported right-hand operand type " +
-                                operands.get(1).getType()
-                            );
-                    }
-                    m_eflags.put(Flag.OF, false);
-                }
-                // Logical OR
-                case OR:
-                {
-                    Register lhReg = m_registers.get(
-                        (RegId) operands.get(0).getEnclosed()
-                    );
-                    if (DEBUG) {
-                        if (lhReg.getType() != DataType.Int4)
-                            throw new UnsupportedOperationException(
-                                "TEST: Unsupported left-hand operand type " +
-                                lhReg.getType()
-                            );
-                    }
-                    switch (operands.get(1).getType()) {
-                        case Register:
-                        {
-                            Register rhReg = m_registers.get(
-                                (RegId) operands.get(1).getEnclosed()
-                            );
-                            switch (rhReg.getType()) {
-                                case Int4:
-                                    int tmp = (int) lhReg.getValue() | (int) rhReg.getValue();
-                                    m_eflags.put(Flag.ZF, tmp == 0);
-                                    m_eflags.put(Flag.SF, tmp < 0);
-                                    lhReg.set(tmp);
-                                    break;
-                                default:
-                                    throw new UnsupportedOperationException(
-                                        "TEST: Unsupported right-hand operand type " +
-                                        rhReg.getType()
-                                    );
-                            }
-                            break;
-                        }
-                        case Imm_Int4:
-                            int tmp = (int) lhReg.getValue() | (int) operands.get(1).getEnclosed();
-                            m_eflags.put(Flag.ZF, tmp == 0);
-                            m_eflags.put(Flag.SF, tmp < 0);
-                            lhReg.set(tmp);
-                            break;
-                        default:
-                            throw new UnsupportedOperationException(
-                                "TEST: Unsupported right-hand operand type " +
-                                operands.get(1).getType()
-                            );
-                    }
-                    m_eflags.put(Flag.OF, false);
-                }
-                // Logical XOR
-                case XOR:
-                {
-                    Register lhReg = m_registers.get(
-                        (RegId) operands.get(0).getEnclosed()
-                    );
-                    if (DEBUG) {
-                        if (lhReg.getType() != DataType.Int4)
-                            throw new UnsupportedOperationException(
-                                "TEST: Unsupported left-hand operand type " +
-                                lhReg.getType()
-                            );
-                    }
-                    switch (operands.get(1).getType()) {
-                        case Register:
-                        {
-                            Register rhReg = m_registers.get(
-                                (RegId) operands.get(1).getEnclosed()
-                            );
-                            switch (rhReg.getType()) {
-                                case Int4:
-                                    int tmp = (int) lhReg.getValue() ^ (int) rhReg.getValue();
-                                    m_eflags.put(Flag.ZF, tmp == 0);
-                                    m_eflags.put(Flag.SF, tmp < 0);
-                                    lhReg.set(tmp);
-                                    break;
-                                default:
-                                    throw new UnsupportedOperationException(
-                                        "TEST: Unsupported right-hand operand type " +
-                                        rhReg.getType()
-                                    );
-                            }
-                            break;
-                        }
-                        case Imm_Int4:
-                            int tmp = (int) lhReg.getValue() ^ (int) operands.get(1).getEnclosed();
-                            m_eflags.put(Flag.ZF, tmp == 0);
-                            m_eflags.put(Flag.SF, tmp < 0);
-                            lhReg.set(tmp);
-                            break;
-                        default:
-                            throw new UnsupportedOperationException(
-                                "TEST: Unsupported right-hand operand type " +
-                                operands.get(1).getType()
-                            );
-                    }
-                    m_eflags.put(Flag.OF, false);
-                }
-                // Logical AND
-                case AND:
-                {
-                    Register lhReg = m_registers.get(
-                        (RegId) operands.get(0).getEnclosed()
-                    );
-                    if (DEBUG) {
-                        if (lhReg.getType() != DataType.Int4)
-                            throw new UnsupportedOperationException(
-                                "TEST: Unsupported left-hand operand type " +
-                                lhReg.getType()
-                            );
-                    }
-                    switch (operands.get(1).getType()) {
-                        case Register:
-                        {
-                            Register rhReg = m_registers.get(
-                                (RegId) operands.get(1).getEnclosed()
-                            );
-                            switch (rhReg.getType()) {
-                                case Int4:
-                                    int tmp = (int) lhReg.getValue() & (int) rhReg.getValue();
-                                    m_eflags.put(Flag.ZF, tmp == 0);
-                                    m_eflags.put(Flag.SF, tmp < 0);
-                                    lhReg.set(tmp);
-                                    break;
-                                default:
-                                    throw new UnsupportedOperationException(
-                                        "TEST: Unsupported right-hand operand type " +
-                                        rhReg.getType()
-                                    );
-                            }
-                            break;
-                        }
-                        case Imm_Int4:
-                            int tmp = (int) lhReg.getValue() & (int) operands.get(1).getEnclosed();
-                            m_eflags.put(Flag.ZF, tmp == 0);
-                            m_eflags.put(Flag.SF, tmp < 0);
-                            lhReg.set(tmp);
-                            break;
-                        default:
-                            throw new UnsupportedOperationException(
-                                "TEST: Unsupported right-hand operand type " +
-                                operands.get(1).getType()
-                            );
-                    }
-                    m_eflags.put(Flag.OF, false);
-                }
-                // Jump to instruction (absolute)
-                case JMP:
-                {
-                    Register iptr = m_registers.get(RegId.IP);
-                    int offset = (int) operands
-                                    .get(0)
-                                    .getEnclosed();
-                    iptr.set(instrAddr + offset);
-                    jumped = true;
-                }
-                // Jump if less (SF != OF)
-                case JL:
-                {
-                    if (m_eflags.get(Flag.SF) != m_eflags.get(Flag.OF)) {
-                        Register iptr = m_registers.get(RegId.IP);
-                        int offset = (int) operands
-                                        .get(0)
-                                        .getEnclosed();
-                        iptr.set(instrAddr + offset);
-                        jumped = true;
-                    }
-                }
-                // Jump if less or equal (ZF = 1 or SF != OF)
-                case JLE:
-                {
-                    if (m_eflags.get(Flag.ZF) || m_eflags.get(Flag.SF) != m_eflags.get(Flag.OF)) {
-                        Register iptr = m_registers.get(RegId.IP);
-                        int offset = (int) operands
-                                        .get(0)
-                                        .getEnclosed();
-                        iptr.set(instrAddr + offset);
-                        jumped = true;
-                    }
-                }
-                // Jump if greater (ZF = 0 and SF = OF)
-                case JG:
-                {
-                    if (!m_eflags.get(Flag.ZF) && m_eflags.get(Flag.SF) == m_eflags.get(Flag.OF)) {
-                        Register iptr = m_registers.get(RegId.IP);
-                        int offset = (int) operands
-                                        .get(0)
-                                        .getEnclosed();
-                        iptr.set(instrAddr + offset);
-                        jumped = true;
-                    }
-                }
-                // Jump if greater or equal (SF = OF)
-                case JGE:
-                {
-                    if (m_eflags.get(Flag.SF) == m_eflags.get(Flag.OF)) {
-                        Register iptr = m_registers.get(RegId.IP);
-                        int offset = (int) operands
-                                        .get(0)
-                                        .getEnclosed();
-                        iptr.set(instrAddr + offset);
-                        jumped = true;
-                    }
-                }
-                // Jump if equal (ZF = 1)
-                case JE:
-                {
-                    if (m_eflags.get(Flag.ZF)) {
-                        Register iptr = m_registers.get(RegId.IP);
-                        int offset = (int) operands
-                                        .get(0)
-                                        .getEnclosed();
-                        iptr.set(instrAddr + offset);
-                        jumped = true;
-                    }
-                }
-                // Jump if not equal (ZF = 0)
-                case JNE:
-                {
-                    if (!m_eflags.get(Flag.ZF)) {
-                        Register iptr = m_registers.get(RegId.IP);
-                        int offset = (int) operands
-                                        .get(0)
-                                        .getEnclosed();
-                        iptr.set(instrAddr + offset);
-                        jumped = true;
-                    }
-                }
-                // Set byte if less (SF != OF)
-                case SETL:
-                {
-                    if (m_eflags.get(Flag.SF) != m_eflags.get(Flag.OF)) {
-                        Register dstReg = m_registers.get(
-                            (RegId) operands
-                                    .get(0)
-                                    .getEnclosed()
-                        );
-                        byte imm = (byte) operands.get(1).getEnclosed();
-                        
-                    }
-                }
-                case PRNT:
-                {
-                    Operand src = operands.get(0);
-                    sendToOutChannel((RegId) src.getEnclosed());
-                    break;
-                }
-                case CLR:
-                {
-                    // Clears console, also sets accumulator to 0
-                    m_outChannel.sendClear();
-                    Register accum = m_registers.get(RegId.R1);
-                    accum.set("", DataType.Imm_Str);
-                    break;
-                }
+        ExecutionCounters counters = m_counters;
+        InstructionProfile profile = m_profile;
+        BranchSimulator branches = m_branches;
+        CacheSimulator caches = m_caches;
+        PipelineModel pipeline = m_pipeline;
+        boolean sampled = m_sampled;
+        if (counters != null || profile != null || branches != null || caches != null || pipeline != null || sampled) {
+            long[] hits = profile == null ? null : profile.countsFor(m_program);
+            executeInstrumented(counters, hits, branches, caches, pipeline, sampled);
+            return;
+        }
+
+        Handler[] dispatch = m_dispatch;
+        int[] code = m_program.getCode();
+        int addr = m_registers.getInt(IP);
+        try {
+            while (addr < dispatch.length) {
+                int pc = addr * Bytecode.WORDS;
+                addr = dispatch[addr].execute(addr, code[pc], code[pc + 1], code[pc + 2], code[pc + 3]);
+            }
+        } finally {
+            // Leaves the faulting instruction's address on error
+            setInstructionPointer(addr);
+        }
+    }
+
+    /**
+     * Execution loop that publishes the address of each instruction for the
+     * sampling profiler and updates the counters after it has executed.
+     * @param counters Counters, may be null
+     * @param hits     Execution count per instruction, may be null
+     * @param branches Branch simulator, may be null
+     * @param caches   Cache simulator, may be null
+     * @param pipeline Pipeline timing model, may be null
+     * @param sampled  Publish the executing address
+     */
+    private void executeInstrumented(ExecutionCounters counters, long[] hits, BranchSimulator branches,
+                                     CacheSimulator caches, PipelineModel pipeline, boolean sampled)
+    {
+        Handler[] dispatch = m_dispatch;
+        int[] code = m_program.getCode();
+        int addr = m_registers.getInt(IP);
+        if (sampled)
+            m_sampleProgram = m_program;
+        try {
+            while (addr < dispatch.length) {
+                if (sampled)
+                    m_sampleAddr.lazySet(addr);
+                int pc = addr * Bytecode.WORDS, header = code[pc];
+                int next = dispatch[addr].execute(addr, header, code[pc + 1], code[pc + 2], code[pc + 3]);
+                if (counters != null)
+                    count(counters, header, next != addr + 1);
+                if (hits != null)
+                    ++hits[addr];
+                if (branches != null && BranchSimulator.isConditional(Bytecode.opcode(header)))
+                    branches.record(m_program, addr, code[pc + 1], next != addr + 1);
+                if (caches != null)
+                    simulateAccesses(caches, code, pc);
+                if (pipeline != null)
+                    pipeline.issue(code, pc, next != addr + 1);
+                addr = next;
+            }
+        } finally {
+            if (sampled) {
+                m_sampleAddr.set(-1);
+                m_sampleProgram = null;
             }
-            
-            // Increment instruction pointer if a jump was not executed
-            if (!jumped)
-                m_registers
-                    .get(RegId.IP)
-                    .set(++instrAddr);
+            setInstructionPointer(addr);
+        }
+    }
+
+    /**
+     * Counts an executed instruction, with its variable accesses read off the
+     * operand descriptors
+     */
+    private static void count(ExecutionCounters counters, int header, boolean taken)
+    {
+        Opcodes opcode = Bytecode.opcode(header);
+        int reads = 0, writes = 0;
+        for (int n = 0; n < Bytecode.MAX_OPERANDS; ++n) {
+            if (!Bytecode.isReference(header, n))
+                continue;
+            if (isWrite(opcode, n))
+                ++writes;
             else
-                // Reset jump flag
-                jumped = false;
+                ++reads;
         }
+        counters.record(opcode, reads, writes, taken);
     }
-    
+
+    /**
+     * Passes the variable accesses of an executed instruction to the cache
+     * simulator
+     */
+    private static void simulateAccesses(CacheSimulator caches, int[] code, int pc)
+    {
+        int header = code[pc];
+        Opcodes opcode = Bytecode.opcode(header);
+        for (int n = 0; n < Bytecode.MAX_OPERANDS; ++n) {
+            if (Bytecode.isReference(header, n))
+                caches.access(code[pc + 1 + n], Bytecode.operandType(header, n).size(), isWrite(opcode, n));
+        }
+    }
+
+    /**
+     * Returns whether a referenced operand is written: the destination of MOV
+     * and the third operand of a store superinstruction are, any other
+     * referenced operand is read
+     */
+    private static boolean isWrite(Opcodes opcode, int n)
+    {
+        return n == 2 || (n == 0 && opcode == Opcodes.MOV);
+    }
+
+    /*
+     * Sampling profiler interface; the profiler reads the executing address
+     * from its own thread
+     */
+
+    void setSampled(boolean sampled)
+    {
+        m_sampled = sampled;
+    }
+
+    Bytecode getSampleProgram()
+    {
+        return m_sampleProgram;
+    }
+
+    int getSampleAddress()
+    {
+        return m_sampleAddr.get();
+    }
+
+    /**
+     * Builds the handler table, indexed by opcode ordinal
+     */
+    private Handler[] bindHandlers()
+    {
+        Handler[] handlers = new Handler[Opcodes.values().length];
+
+        // Conditional sets have no effect
+        Handler nop = (int addr, int header, int op1, int op2, int op3) -> addr + 1;
+        Arrays.fill(handlers, nop);
+
+        handlers[Opcodes.MOV.ordinal()] = this::mov;
+        handlers[Opcodes.LDPRNT.ordinal()] = this::ldprnt;
+        handlers[Opcodes.MOVST.ordinal()] = this::movst;
+        handlers[Opcodes.ADD.ordinal()] = this::add;
+        handlers[Opcodes.ADD_I4.ordinal()] = this::addI4;
+        handlers[Opcodes.ADDST.ordinal()] = this::addst;
+        handlers[Opcodes.SUB.ordinal()] = this::sub;
+        handlers[Opcodes.SUB_I4.ordinal()] = this::subI4;
+        handlers[Opcodes.SUBST.ordinal()] = this::subst;
+        handlers[Opcodes.MULT.ordinal()] = this::mult;
+        handlers[Opcodes.MULT_I4.ordinal()] = this::multI4;
+        handlers[Opcodes.MULTST.ordinal()] = this::multst;
+        handlers[Opcodes.DIV.ordinal()] = this::div;
+        handlers[Opcodes.DIV_I4.ordinal()] = this::divI4;
+        handlers[Opcodes.EXP.ordinal()] = this::exp;
+        handlers[Opcodes.EXP_I4.ordinal()] = this::expI4;
+        handlers[Opcodes.NEG.ordinal()] = this::neg;
+        handlers[Opcodes.NEG_I4.ordinal()] = this::negI4;
+        handlers[Opcodes.CMP.ordinal()] = this::cmp;
+        handlers[Opcodes.CMP_I4.ordinal()] = this::cmpI4;
+        handlers[Opcodes.SAR.ordinal()] = this::sar;
+        handlers[Opcodes.SAL.ordinal()] = this::sal;
+        handlers[Opcodes.SLR.ordinal()] = this::slr;
+        handlers[Opcodes.SLL.ordinal()] = this::sll;
+        handlers[Opcodes.PUSH.ordinal()] = this::push;
+        handlers[Opcodes.POP.ordinal()] = this::pop;
+        handlers[Opcodes.TEST.ordinal()] = this::test;
+        handlers[Opcodes.OR.ordinal()] = this::or;
+        handlers[Opcodes.XOR.ordinal()] = this::xor;
+        handlers[Opcodes.AND.ordinal()] = this::and;
+        handlers[Opcodes.JMP.ordinal()] = this::jmp;
+        handlers[Opcodes.JL.ordinal()] = this::jl;
+        handlers[Opcodes.JLE.ordinal()] = this::jle;
+        handlers[Opcodes.JG.ordinal()] = this::jg;
+        handlers[Opcodes.JGE.ordinal()] = this::jge;
+        handlers[Opcodes.JE.ordinal()] = this::je;
+        handlers[Opcodes.JNE.ordinal()] = this::jne;
+        handlers[Opcodes.PRNT.ordinal()] = this::prnt;
+        handlers[Opcodes.CLR.ordinal()] = this::clr;
+        return handlers;
+    }
+
+    /**
+     * Returns the handler for an instruction. The common forms of MOV have
+     * handlers of their own that do not inspect operand types.
+     */
+    private Handler handlerFor(int header)
+    {
+        Opcodes opcode = Bytecode.opcode(header);
+        if (opcode == Opcodes.MOV) {
+            DataType dstType = Bytecode.operandType(header, 0),
+                     srcType = Bytecode.operandType(header, 1);
+            boolean srcVariable = Bytecode.isReference(header, 1);
+            if (dstType == DataType.Register) {
+                if (srcType == DataType.Register)
+                    return this::movReg;
+                if (srcType == DataType.Imm_Int4)
+                    return this::movImm;
+                if (srcVariable && srcType == DataType.Int4)
+                    return this::movLoad;
+            }
+            else if (Bytecode.isReference(header, 0) && dstType == DataType.Int4 && srcType == DataType.Register && !srcVariable)
+                return this::movStore;
+        }
+        return m_handlers[opcode.ordinal()];
+    }
+
+    /*
+     * Instruction handlers. Each takes the instruction's address, header and
+     * operand words and returns the address of the next instruction.
+     */
+
+    // Move data between virtual registers and/or memory
+    private int mov(int addr, int header, int op1, int op2, int op3)
+    {
+        DataType dstType = Bytecode.operandType(header, 0),
+                 srcType = Bytecode.operandType(header, 1);
+        switch (dstType) {
+            case Register:
+                switch (srcType) {
+                    case Register:
+                        m_registers.copy(op1, op2);
+                        break;
+                    case Imm_Int4:
+                        m_registers.setInt(op1, op2);
+                        break;
+                    case Imm_Str:
+                        m_registers.setStr(op1, m_constants[op2]);
+                        break;
+                    default:
+                        if (srcType != DataType.Int4)
+                            throw new UnsupportedOperationException("MOV: Unsupported variable type " + srcType);
+                        m_registers.setInt(op1, StaticMemory.getInt(op2));
+                }
+                break;
+            default:
+                // Moving to variable storage
+                switch (srcType) {
+                    case Register:
+                        storeRegister(op2, dstType, op1);
+                        break;
+                    case Imm_Int4:
+                    case Imm_Str:
+                        throw new UnsupportedOperationException("MOV: Moving a literal type directly to variable storage not supported");
+                    default:
+                        throw new UnsupportedOperationException("MOV: Direct memory-to-memory moves not supported");
+                }
+        }
+        return addr + 1;
+    }
+
+    private int movReg(int addr, int header, int op1, int op2, int op3)
+    {
+        m_registers.copy(op1, op2);
+        return addr + 1;
+    }
+
+    private int movImm(int addr, int header, int op1, int op2, int op3)
+    {
+        m_registers.setInt(op1, op2);
+        return addr + 1;
+    }
+
+    private int movLoad(int addr, int header, int op1, int op2, int op3)
+    {
+        m_registers.setInt(op1, StaticMemory.getInt(op2));
+        return addr + 1;
+    }
+
+    private int movStore(int addr, int header, int op1, int op2, int op3)
+    {
+        storeRegister(op2, DataType.Int4, op1);
+        return addr + 1;
+    }
+
+    // Load and print superinstruction
+    private int ldprnt(int addr, int header, int op1, int op2, int op3)
+    {
+        mov(addr, header, op1, op2, op3);
+        sendToOutChannel(op1);
+        return addr + 1;
+    }
+
+    // Load and store superinstruction
+    private int movst(int addr, int header, int op1, int op2, int op3)
+    {
+        mov(addr, header, op1, op2, op3);
+        storeRegister(op1, Bytecode.operandType(header, 2), op3);
+        return addr + 1;
+    }
+
+    // Integer arithmetic. The generic opcodes check their operand types and
+    // share the Int4-specialized implementation, as do the
+    // arithmetic-and-store superinstructions.
+
+    private int add(int addr, int header, int op1, int op2, int op3)
+    {
+        checkArithmetic("ADD", header, op1, op2);
+        return addI4(addr, header, op1, op2, op3);
+    }
+
+    private int addI4(int addr, int header, int op1, int op2, int op3)
+    {
+        int b = sourceInt(header, op2), res = m_registers.getInt(op1) + b;
+        m_ccOp = CC_ADD;
+        m_ccRes = res;
+        m_ccSrc = b;
+        m_registers.setInt(op1, res);
+        return addr + 1;
+    }
+
+    private int addst(int addr, int header, int op1, int op2, int op3)
+    {
+        addI4(addr, header, op1, op2, op3);
+        storeRegister(op1, Bytecode.operandType(header, 2), op3);
+        return addr + 1;
+    }
+
+    private int sub(int addr, int header, int op1, int op2, int op3)
+    {
+        checkArithmetic("SUBTRACT", header, op1, op2);
+        return subI4(addr, header, op1, op2, op3);
+    }
+
+    private int subI4(int addr, int header, int op1, int op2, int op3)
+    {
+        int b = sourceInt(header, op2), res = m_registers.getInt(op1) - b;
+        m_ccOp = CC_SUB;
+        m_ccRes = res;
+        m_ccSrc = b;
+        m_registers.setInt(op1, res);
+        return addr + 1;
+    }
+
+    private int subst(int addr, int header, int op1, int op2, int op3)
+    {
+        subI4(addr, header, op1, op2, op3);
+        storeRegister(op1, Bytecode.operandType(header, 2), op3);
+        return addr + 1;
+    }
+
+    private int mult(int addr, int header, int op1, int op2, int op3)
+    {
+        checkArithmetic("MULTIPLY", header, op1, op2);
+        return multI4(addr, header, op1, op2, op3);
+    }
+
+    private int multI4(int addr, int header, int op1, int op2, int op3)
+    {
+        long product = (long) m_registers.getInt(op1) * sourceInt(header, op2);
+        int res = (int) product;
+        m_ccOp = CC_MUL;
+        m_ccRes = res;
+        m_ccSrc = res != product ? 1 : 0;
+        m_registers.setInt(op1, res);
+        return addr + 1;
+    }
+
+    private int multst(int addr, int header, int op1, int op2, int op3)
+    {
+        multI4(addr, header, op1, op2, op3);
+        storeRegister(op1, Bytecode.operandType(header, 2), op3);
+        return addr + 1;
+    }
+
+    // Division; the remainder is placed in R4
+    private int div(int addr, int header, int op1, int op2, int op3)
+    {
+        checkArithmetic("DIVIDE", header, op1, op2);
+        return divI4(addr, header, op1, op2, op3);
+    }
+
+    private int divI4(int addr, int header, int op1, int op2, int op3)
+    {
+        int a = m_registers.getInt(op1), b = sourceInt(header, op2), res = a / b;
+        m_ccOp = CC_LOGIC;
+        m_ccRes = res;
+        m_registers.setInt(op1, res);
+        m_registers.setInt(R4, a % b);
+        return addr + 1;
+    }
+
+    // Exponentiation operation (x^y)
+    private int exp(int addr, int header, int op1, int op2, int op3)
+    {
+        checkArithmetic("EXP", header, op1, op2);
+        return expI4(addr, header, op1, op2, op3);
+    }
+
+    private int expI4(int addr, int header, int op1, int op2, int op3)
+    {
+        m_registers.setInt(op1, (int) Math.pow(m_registers.getInt(op1), sourceInt(header, op2)));
+        return addr + 1;
+    }
+
+    // Negation operation
+    private int neg(int addr, int header, int op1, int op2, int op3)
+    {
+        if (!m_registers.isInt(op1))
+            throw new UnsupportedOperationException("NEGATION: Unsupported type " + Bytecode.operandType(header, 0));
+        return negI4(addr, header, op1, op2, op3);
+    }
+
+    private int negI4(int addr, int header, int op1, int op2, int op3)
+    {
+        m_registers.setInt(op1, -m_registers.getInt(op1));
+        return addr + 1;
+    }
+
+    // Arithmetic comparison
+    private int cmp(int addr, int header, int op1, int op2, int op3)
+    {
+        DataType lhType = m_registers.getType(op1),
+                 rhType = sourceType(header, op2);
+        if (m_checked) {
+            if (lhType != rhType)
+                throw new UnsupportedOperationException(
+                    "CMP: Unsupported comparison between types: op1=" +
+                    lhType + ", op2=" + rhType
+                );
+        }
+        if (lhType != DataType.Int4)
+            throw new UnsupportedOperationException("CMP: Unsupported type " + lhType);
+        return cmpI4(addr, header, op1, op2, op3);
+    }
+
+    private int cmpI4(int addr, int header, int op1, int op2, int op3)
+    {
+        int b = sourceInt(header, op2);
+        m_ccOp = CC_SUB;
+        m_ccRes = m_registers.getInt(op1) - b;
+        m_ccSrc = b;
+        return addr + 1;
+    }
+
+    // Arithmetic right-shift
+    private int sar(int addr, int header, int op1, int op2, int op3)
+    {
+        if (!m_registers.isInt(op1))
+            throw new UnsupportedOperationException("SAR: Unsupproted type " + Bytecode.operandType(header, 0));
+        m_registers.setInt(op1, m_registers.getInt(op1) >> (byte) op2);
+        return addr + 1;
+    }
+
+    // Arithmetic left-shift
+    private int sal(int addr, int header, int op1, int op2, int op3)
+    {
+        if (!m_registers.isInt(op1))
+            throw new UnsupportedOperationException("SAL: Unsupported type " + Bytecode.operandType(header, 0));
+        m_registers.setInt(op1, m_registers.getInt(op1) << (byte) op2);
+        return addr + 1;
+    }
+
+    // Logical (bitwise) right-shift
+    private int slr(int addr, int header, int op1, int op2, int op3)
+    {
+        if (!m_registers.isInt(op1))
+            throw new UnsupportedOperationException("SLR: Unsupported type " + Bytecode.operandType(header, 0));
+        m_registers.setInt(op1, m_registers.getInt(op1) >>> (byte) op2);
+        return addr + 1;
+    }
+
+    // Logical (bitwise) left-shift
+    private int sll(int addr, int header, int op1, int op2, int op3)
+    {
+        if (!m_registers.isInt(op1))
+            throw new UnsupportedOperationException("SAL: Unsupported type " + Bytecode.operandType(header, 0));
+        m_registers.setInt(op1, m_registers.getInt(op1) << (byte) op2);
+        return addr + 1;
+    }
+
+    // Push to virtual hardware stack
+    private int push(int addr, int header, int op1, int op2, int op3)
+    {
+        m_vstack.push(m_registers, op1);
+        return addr + 1;
+    }
+
+    // Pop from virtual hardware stack
+    private int pop(int addr, int header, int op1, int op2, int op3)
+    {
+        m_vstack.pop(m_registers, op1);
+        return addr + 1;
+    }
+
+    // Logical comparison
+    private int test(int addr, int header, int op1, int op2, int op3)
+    {
+        m_ccOp = CC_LOGIC;
+        m_ccRes = m_registers.getInt(op1) & logicOperand(header, op1, op2);
+        return addr + 1;
+    }
+
+    // Logical OR
+    private int or(int addr, int header, int op1, int op2, int op3)
+    {
+        int res = m_registers.getInt(op1) | logicOperand(header, op1, op2);
+        m_ccOp = CC_LOGIC;
+        m_ccRes = res;
+        m_registers.setInt(op1, res);
+        return addr + 1;
+    }
+
+    // Logical XOR
+    private int xor(int addr, int header, int op1, int op2, int op3)
+    {
+        int res = m_registers.getInt(op1) ^ logicOperand(header, op1, op2);
+        m_ccOp = CC_LOGIC;
+        m_ccRes = res;
+        m_registers.setInt(op1, res);
+        return addr + 1;
+    }
+
+    // Logical AND
+    private int and(int addr, int header, int op1, int op2, int op3)
+    {
+        int res = m_registers.getInt(op1) & logicOperand(header, op1, op2);
+        m_ccOp = CC_LOGIC;
+        m_ccRes = res;
+        m_registers.setInt(op1, res);
+        return addr + 1;
+    }
+
+    // Jump to instruction (relative)
+    private int jmp(int addr, int header, int op1, int op2, int op3)
+    {
+        return branch(addr, op1);
+    }
+
+    // Jump if less (SF != OF)
+    private int jl(int addr, int header, int op1, int op2, int op3)
+    {
+        return isLess(flags()) ? branch(addr, op1) : addr + 1;
+    }
+
+    // Jump if less or equal (ZF = 1 or SF != OF)
+    private int jle(int addr, int header, int op1, int op2, int op3)
+    {
+        int flags = flags();
+        return isZero(flags) || isLess(flags) ? branch(addr, op1) : addr + 1;
+    }
+
+    // Jump if greater (ZF = 0 and SF = OF)
+    private int jg(int addr, int header, int op1, int op2, int op3)
+    {
+        int flags = flags();
+        return !isZero(flags) && !isLess(flags) ? branch(addr, op1) : addr + 1;
+    }
+
+    // Jump if greater or equal (SF = OF)
+    private int jge(int addr, int header, int op1, int op2, int op3)
+    {
+        return !isLess(flags()) ? branch(addr, op1) : addr + 1;
+    }
+
+    // Jump if equal (ZF = 1)
+    private int je(int addr, int header, int op1, int op2, int op3)
+    {
+        return isZero(flags()) ? branch(addr, op1) : addr + 1;
+    }
+
+    // Jump if not equal (ZF = 0)
+    private int jne(int addr, int header, int op1, int op2, int op3)
+    {
+        return !isZero(flags()) ? branch(addr, op1) : addr + 1;
+    }
+
+    private int prnt(int addr, int header, int op1, int op2, int op3)
+    {
+        sendToOutChannel(op1);
+        return addr + 1;
+    }
+
+    // Clears console, also sets accumulator to an empty string
+    private int clr(int addr, int header, int op1, int op2, int op3)
+    {
+        m_outChannel.sendClear();
+        m_registers.setStr(R1, "");
+        return addr + 1;
+    }
+
     /**
      * Returns value in the accumulator (register R1) in the supplied StringBuilder
      * object.
@@ -871,32 +929,357 @@ public class VirtualCPU
      */
     public void getAccumulatorValue(StringBuilder sb)
     {
-        Register accumulator = m_registers.get(RegId.R1);
-        switch (accumulator.getType()) {
-            case Int4:
-                sb.append((int) accumulator.getValue());
-            default:;
+        if (m_registers.isInt(R1))
+            sb.append(m_registers.getInt(R1));
+    }
+
+    /**
+     * Returns the address of the next instruction to execute; after a run
+     * fails, the address of the instruction that faulted
+     * @return Instruction address
+     */
+    public int getInstructionPointer()
+    {
+        return m_registers.getInt(IP);
+    }
+
+    /**
+     * Returns the number of backward jumps taken since the program was loaded
+     * @return Back-edge count
+     */
+    long getBackEdgeCount()
+    {
+        return m_backEdges;
+    }
+
+    /*
+     * Flag word helpers, shared with ClosureEngine
+     */
+
+    static boolean isZero(int flags)
+    {
+        return (flags & ZF) != 0;
+    }
+
+    // SF != OF
+    static boolean isLess(int flags)
+    {
+        return ((flags & SF) != 0) != ((flags & OF) != 0);
+    }
+
+    /*
+     * State accessors for ClosureEngine, which operates on the registers and
+     * stack directly.
+     */
+
+    RegisterFile getRegisters()
+    {
+        return m_registers;
+    }
+
+    VHdwStack getStack()
+    {
+        return m_vstack;
+    }
+
+    int getFlags()
+    {
+        return flags();
+    }
+
+    /**
+     * Records a flag-setting operation for lazy evaluation
+     * @param ccOp Operation kind, one of the CC_ constants
+     * @param res  Result
+     * @param src  Source operand, as the operation kind defines it
+     */
+    void setResult(int ccOp, int res, int src)
+    {
+        m_ccOp = ccOp;
+        m_ccRes = res;
+        m_ccSrc = src;
+    }
+
+    /*
+     * State accessors for programs compiled by BytecodeCompiler. Registers are
+     * identified by RegId ordinal and flags by bit index in the flag word.
+     */
+
+    void setIntRegister(int reg, int value)
+    {
+        m_registers.setInt(reg, value);
+    }
+
+    void setStrRegister(int reg, String value)
+    {
+        m_registers.setStr(reg, value);
+    }
+
+    void setInstructionPointer(int addr)
+    {
+        m_registers.set(IP, addr, DataType.Imm_Int4);
+        m_registers.set(SP, m_vstack.getPointer(), DataType.Imm_Int4);
+    }
+
+    boolean getFlag(int flag)
+    {
+        return (flags() & (1 << flag)) != 0;
+    }
+
+    void setFlags(boolean zf, boolean sf, boolean of)
+    {
+        m_ccOp = CC_FLAGS;
+        m_ccSrc = (zf ? ZF : 0) | (sf ? SF : 0) | (of ? OF : 0);
+    }
+
+    void pushInt(int value)
+    {
+        m_vstack.pushInt(value);
+        m_registers.set(SP, m_vstack.getPointer(), DataType.Imm_Int4);
+    }
+
+    void pushStr(String value)
+    {
+        m_vstack.pushStr(value);
+        m_registers.set(SP, m_vstack.getPointer(), DataType.Imm_Int4);
+    }
+
+    void print(int value)
+    {
+        m_outChannel.send(OutputChannel.Type.StdOut, Integer.toString(value));
+    }
+
+    void print(String value)
+    {
+        m_outChannel.send(OutputChannel.Type.StdOut, value);
+    }
+
+    void clear()
+    {
+        m_outChannel.sendClear();
+    }
+
+    /**
+     * Materializes the flag word from the last flag-setting operation. The
+     * first operand of an addition or subtraction is recovered from the
+     * result and the source operand.
+     */
+    private int flags()
+    {
+        int res = m_ccRes, src = m_ccSrc;
+        switch (m_ccOp) {
+            case CC_ADD:
+            {
+                int a = res - src;
+                return resultFlags(res, ((a ^ res) & (src ^ res)) < 0);
+            }
+            case CC_SUB:
+            {
+                int a = res + src;
+                return resultFlags(res, ((a ^ src) & (a ^ res)) < 0);
+            }
+            case CC_MUL:
+                return resultFlags(res, src != 0);
+            case CC_FLAGS:
+                return src;
+            default:
+                return resultFlags(res, false);
         }
     }
-    
-    private void sendToOutChannel(RegId src)
+
+    private static int resultFlags(int res, boolean overflow)
+    {
+        return (res == 0 ? ZF : 0) | (res < 0 ? SF : 0) | (overflow ? OF : 0);
+    }
+
+    private int branch(int addr, int offset)
+    {
+        if (offset <= 0) {
+            ++m_backEdges;
+            backEdge(addr, 1 - offset);
+        }
+        return addr + offset;
+    }
+
+    /**
+     * Charges a taken backward jump, stopping or suspending the program if
+     * requested. Called by every execution tier.
+     * @param addr   Address of the jump
+     * @param length Instructions jumped back over, the jump included
+     * @throws ExecutionStoppedException if the program must stop
+     */
+    void backEdge(int addr, int length)
+    {
+        if ((m_charge -= length) < 0 || m_interrupt)
+            checkpoint(addr);
+    }
+
+    private void setQuotas(long instructions, long timeMillis)
+    {
+        m_quotaLeft = instructions > 0 ? instructions : Long.MAX_VALUE;
+        m_deadline = timeMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeMillis) : 0;
+        m_charge = 0;
+        refill();
+    }
+
+    /**
+     * Moves instructions from the quota to the charge. Under a time quota,
+     * the charge is limited so that the clock is checked regularly.
+     */
+    private void refill()
+    {
+        long charge = m_deadline != 0 ? Math.min(m_quotaLeft, CHECK_INTERVAL) : m_quotaLeft;
+        m_quotaLeft -= charge;
+        m_charge += charge;
+    }
+
+    private void checkpoint(int addr)
+    {
+        synchronized (m_control) {
+            while (m_suspended && !m_cancelled) {
+                long suspendedAt = System.nanoTime();
+                try {
+                    m_control.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    m_cancelled = true;
+                }
+                if (m_deadline != 0)
+                    m_deadline += System.nanoTime() - suspendedAt;
+            }
+            m_interrupt = m_cancelled;
+        }
+        if (m_cancelled)
+            stop(ExecutionStoppedException.Reason.CANCELLED, addr);
+        if (m_charge < 0) {
+            if (m_quotaLeft + m_charge < 0)
+                stop(ExecutionStoppedException.Reason.INSTRUCTION_QUOTA, addr);
+            refill();
+        }
+        if (m_deadline != 0 && System.nanoTime() - m_deadline >= 0)
+            stop(ExecutionStoppedException.Reason.TIME_QUOTA, addr);
+    }
+
+    private void stop(ExecutionStoppedException.Reason reason, int addr)
+    {
+        setInstructionPointer(addr);
+        throw new ExecutionStoppedException(reason, addr);
+    }
+
+    /**
+     * Checks the operand types of a generic arithmetic instruction, which is
+     * only implemented for Int4
+     */
+    private void checkArithmetic(String name, int header, int dst, int src)
+    {
+        DataType dstType = m_registers.getType(dst);
+        if (m_checked) {
+            DataType srcType = sourceType(header, src);
+            if (dstType != srcType)
+                throw new UnsupportedOperationException(
+                    name + ": Type mismatch, unable to convert from " + srcType +
+                    " to " + dstType
+                );
+        }
+        if (dstType != DataType.Int4)
+            throw new UnsupportedOperationException(name + ": Unsupported type " + Bytecode.operandType(header, 0));
+    }
+
+    /**
+     * Returns the type of the source operand of an arithmetic or compare
+     * instruction. Immediates and variables hold Int4.
+     */
+    private DataType sourceType(int header, int value)
+    {
+        if (Bytecode.isReference(header, 1))
+            return DataType.Int4;
+        switch (Bytecode.operandType(header, 1)) {
+            case Register:
+                return m_registers.getType(value);
+            case Imm_Int4:
+                return DataType.Int4;
+            default:
+                throw new UnsupportedOperationException(
+                    Bytecode.opcode(header) + ": Unsupported source operand type " + Bytecode.operandType(header, 1)
+                );
+        }
+    }
+
+    /**
+     * Returns the integer source operand of an arithmetic or compare
+     * instruction
+     */
+    private int sourceInt(int header, int value)
+    {
+        if (Bytecode.isReference(header, 1))
+            return StaticMemory.getInt(value);
+        if (Bytecode.operandType(header, 1) == DataType.Register)
+            return m_registers.getInt(value);
+        return value;
+    }
+
+    /**
+     * Returns the right-hand operand of TEST, OR, XOR and AND, checking both
+     * operands hold integers
+     */
+    private int logicOperand(int header, int lhs, int rhs)
+    {
+        if (m_checked) {
+            if (!m_registers.isInt(lhs))
+                throw new UnsupportedOperationException(
+                    "TEST: Unsupported left-hand operand type " +
+                    m_registers.getType(lhs)
+                );
+        }
+        switch (Bytecode.operandType(header, 1)) {
+            case Register:
+                if (!m_registers.isInt(rhs))
+                    throw new UnsupportedOperationException(
+                        "TEST: Unsupported right-hand operand type " +
+                        m_registers.getType(rhs)
+                    );
+                return m_registers.getInt(rhs);
+            case Imm_Int4:
+                return rhs;
+            default:
+                throw new UnsupportedOperationException(
+                    "TEST: Unsupported right-hand operand type " +
+                    Bytecode.operandType(header, 1)
+                );
+        }
+    }
+
+    /**
+     * Stores a register to variable storage, as MOV [offset], src does
+     */
+    private void storeRegister(int src, DataType type, int offset)
+    {
+        if (m_checked) {
+            if (m_registers.getType(src) != type)
+                throw new UnsupportedOperationException("MOV: Type mismatch, conversion not supported");
+        }
+        if (type != DataType.Int4)
+            throw new UnsupportedOperationException("MOV: Unsupported variable type " + type);
+        StaticMemory.putInt(offset, m_registers.getInt(src));
+    }
+
+    private void sendToOutChannel(int src)
     {
-        Register srcReg = m_registers.get(src);
-        switch (srcReg.getType()) {
+        switch (m_registers.getType(src)) {
             case Int4:
                 m_outChannel.send(
                     OutputChannel.Type.StdOut,
-                    Integer.toString((int) srcReg.getValue())
+                    Integer.toString(m_registers.getInt(src))
                 );
                 break;
             case Imm_Str:
                 m_outChannel.send(
                     OutputChannel.Type.StdOut,
-                    (String) srcReg.getValue()
+                    m_registers.getStr(src)
                 );
                 break;
             default:
-                throw new UnsupportedOperationException("PRINT: Not supported for type " + srcReg.getType().toString());
+                throw new UnsupportedOperationException("PRINT: Not supported for type " + m_registers.getType(src));
         }
     }
 }
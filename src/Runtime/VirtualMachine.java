@@ -8,15 +8,44 @@ import Runtime.IO.OutputChannel;
 import Runtime.IO.OutputChannel.Type;
 import Runtime.IONode.SinkType;
 import Runtime.IONode.SourceType;
-import Runtime.JIT.API.Instruction;
 import Runtime.JIT.Compiler;
+import Runtime.JIT.ProgramCache;
+import Runtime.JIT.SymbolTable;
+import Runtime.Machine.BranchPredictor;
+import Runtime.Machine.BranchPredictors;
+import Runtime.Machine.BranchSimulator;
+import Runtime.Machine.CacheSimulator;
+import Runtime.Machine.ExecutionCounters;
+import Runtime.Machine.ExecutionStoppedException;
+import Runtime.Machine.InstructionProfile;
+import Runtime.Machine.LatencyTable;
+import Runtime.Machine.Interface.Bytecode;
+import Runtime.Machine.PipelineModel;
+import Runtime.Machine.SamplingProfiler;
+import Runtime.Machine.TieredEngine;
+import Runtime.Machine.TieredEngine.ProgramStats;
 import Runtime.Machine.VirtualCPU;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JTextArea;
@@ -24,7 +53,9 @@ import javax.swing.JTextField;
 import javax.swing.JTextPane;
 
 /**
- * Implements the JIT compilation and code execution environment.
+ * Implements the JIT compilation and code execution environment. Input is
+ * compiled and run on a thread of the virtual machine's own, one request at
+ * a time, as the compiler, symbol table and emulated CPU are not thread-safe.
  * @author Joshua Boley
  */
 public class VirtualMachine
@@ -36,13 +67,33 @@ public class VirtualMachine
         out;
     }
 
+    private static final long PROFILER_INTERVAL_US = 1000;
+
     private static int nextCMID;                        // Next available CMID
     private final Compiler m_compiler;                  // JIT compiler
     private final VirtualCPU m_vCpu;                    // Emulated CPU
+    private final TieredEngine m_engine;                // Executes and profiles programs on the emulated CPU
+    private final ExecutionCounters m_counters;         // Instruction mix, collected while instrumentation is enabled
+    private final SamplingProfiler m_profiler;          // Per-line hot spots of scripts
+    private String m_profiledSource;                    // Last script run while profiling, for the hot spot report
+    private final InstructionProfile m_flameProfile;    // Instruction counts of the current script run
+    private Path m_flameDir;                            // Collapsed-stack profile directory, null if not recording
+    private int m_flameRuns;                            // Profiles written, numbers the files
+    private BranchSimulator m_branches;                 // Last branch simulator attached, null if none
+    private CacheSimulator m_caches;                    // Last cache simulator attached, null if none
+    private PipelineModel m_pipeline;                   // Last pipeline model attached, null if none
+    private volatile long m_instructionQuota;           // Instructions allowed per run, 0 for no limit
+    private volatile long m_timeQuota;                  // Milliseconds allowed per run, 0 for no limit
     private final List<InputChannel> m_inputSources;    // Input sources
     private final List<OutputChannel> m_outputSinks;    // Output sinks
     private final Map<Integer, EnumMap<IOType, List<IONode>>> m_IOMap;
                                                         // Client IONode map
+    private final ExecutorService m_executor;           // VM thread, runs the requests of all clients
+    private final Map<Integer, Deque<Runnable>> m_queues;
+                                                        // Requests per client, the one running first
+    private CompletableFuture<?> m_running;             // Request running on the VM thread, null if none
+    private final Map<CompletableFuture<?>, CompletableFuture<Void>> m_ended;
+                                                        // End of each request queued or running
 
     static {
         nextCMID = 0;
@@ -50,11 +101,31 @@ public class VirtualMachine
     
     public VirtualMachine()
     {
-        m_compiler = new Compiler();
+        m_compiler = new Compiler(ProgramCache.openDefault());
         m_vCpu = new VirtualCPU();
+        m_engine = new TieredEngine(m_vCpu);
+        m_counters = new ExecutionCounters();
+        m_profiler = new SamplingProfiler(m_vCpu, PROFILER_INTERVAL_US);
+        m_profiledSource = null;
+        m_flameProfile = new InstructionProfile();
+        m_flameDir = null;
+        m_flameRuns = 0;
+        m_branches = null;
+        m_caches = null;
+        m_pipeline = null;
+        m_instructionQuota = Long.getLong("labomath.quota.instructions", 0);
+        m_timeQuota = Long.getLong("labomath.quota.time", 0);
         m_inputSources = new ArrayList<>();
         m_outputSinks = new ArrayList<>();
         m_IOMap = new HashMap<>();
+        m_executor = Executors.newSingleThreadExecutor((Runnable task) -> {
+            Thread thread = new Thread(task, "LabOMath VM");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_queues = new HashMap<>();
+        m_running = null;
+        m_ended = new HashMap<>();
     }
         
     /**
@@ -174,85 +245,643 @@ public class VirtualMachine
         );
     }
 
-//    @Override
-    public void run()
+    /**
+     * Returns execution statistics of recently run programs, including the
+     * execution tier each program has reached
+     * @return Program statistics
+     */
+    public List<ProgramStats> getProgramStats()
+    {
+        return m_engine.getProgramStats();
+    }
+    
+    /**
+     * Enables or disables execution counting. While enabled, programs run on
+     * the interpreter's instrumented loop rather than on a faster tier.
+     * @param enabled True to count executed instructions
+     */
+    public void setCountersEnabled(boolean enabled)
+    {
+        m_vCpu.setCounters(enabled ? m_counters : null);
+    }
+
+    public boolean isCountersEnabled()
+    {
+        return m_vCpu.getCounters() != null;
+    }
+
+    /**
+     * Returns the execution counters, which keep their values while counting
+     * is disabled
+     * @return Execution counters
+     */
+    public ExecutionCounters getExecutionCounters()
+    {
+        return m_counters;
+    }
+
+    /**
+     * Starts or stops the sampling profiler. While it runs, programs execute
+     * on the interpreter's instrumented loop.
+     * @param enabled True to sample executing scripts
+     */
+    public void setProfilingEnabled(boolean enabled)
+    {
+        if (enabled)
+            m_profiler.start();
+        else
+            m_profiler.stop();
+    }
+
+    public SamplingProfiler getProfiler()
+    {
+        return m_profiler;
+    }
+
+    /**
+     * Returns the per-line hot spots of the scripts run while profiling, with
+     * the text of each line taken from the last script run
+     * @return Report text
+     */
+    public String getProfileReport()
+    {
+        return m_profiler.report(m_profiledSource);
+    }
+
+    /**
+     * Starts or stops recording a flame graph profile of every script run.
+     * Each run's instruction counts are written to a file of their own in
+     * collapsed-stack format, with statements and expression subtrees as
+     * frames. Recording keeps scripts on the interpreter.
+     * @param dir Directory to write profiles to, null to stop recording
+     */
+    public void setFlameGraphDirectory(Path dir)
+    {
+        m_flameDir = dir;
+        m_flameProfile.reset();
+        m_vCpu.setInstructionProfile(dir == null ? null : m_flameProfile);
+    }
+
+    /**
+     * Returns the directory flame graph profiles are written to
+     * @return Profile directory, null if not recording
+     */
+    public Path getFlameGraphDirectory()
+    {
+        return m_flameDir;
+    }
+
+    /**
+     * Starts simulating a branch predictor, or stops the simulation. Each call
+     * with a predictor starts over with fresh statistics. While simulating,
+     * programs execute on the interpreter's instrumented loop.
+     * @param predictor Predictor model, null to stop simulating
+     */
+    public void setBranchPredictor(BranchPredictor predictor)
+    {
+        if (predictor != null)
+            m_branches = new BranchSimulator(predictor, BranchSimulator.DEFAULT_PENALTY);
+        m_vCpu.setBranchSimulator(predictor == null ? null : m_branches);
+    }
+
+    /**
+     * Returns the last branch simulator started, which keeps its statistics
+     * after the simulation is stopped
+     * @return Branch simulator, null if none was started
+     */
+    public BranchSimulator getBranchSimulator()
+    {
+        return m_branches;
+    }
+
+    /**
+     * Attaches a cache hierarchy model that every variable access goes
+     * through, or detaches it. While simulating, programs execute on the
+     * interpreter's instrumented loop.
+     * @param caches Cache simulator, null to stop simulating
+     */
+    public void setCacheSimulator(CacheSimulator caches)
+    {
+        if (caches != null)
+            m_caches = caches;
+        m_vCpu.setCacheSimulator(caches);
+    }
+
+    /**
+     * Returns the last cache simulator attached, which keeps its statistics
+     * after the simulation is stopped
+     * @return Cache simulator, null if none was attached
+     */
+    public CacheSimulator getCacheSimulator()
+    {
+        return m_caches;
+    }
+
+    /**
+     * Formats the cache statistics with variables named after their symbols
+     * @return Report text
+     */
+    public String getCacheReport()
+    {
+        return m_caches == null ? "No cache simulator" : m_caches.report(SymbolTable::getVariableName);
+    }
+
+    /**
+     * Attaches a pipeline timing model or detaches it. The model is reset
+     * before every run, so it reports the last run. While timing, programs
+     * execute on the interpreter's instrumented loop.
+     * @param pipeline Timing model, null to stop timing
+     */
+    public void setPipelineModel(PipelineModel pipeline)
+    {
+        if (pipeline != null)
+            m_pipeline = pipeline;
+        m_vCpu.setPipelineModel(pipeline);
+    }
+
+    /**
+     * Returns the last pipeline model attached, which keeps the statistics of
+     * the last run timed after timing is stopped
+     * @return Pipeline model, null if none was attached
+     */
+    public PipelineModel getPipelineModel()
+    {
+        return m_pipeline;
+    }
+
+    /**
+     * Sets the number of instructions a run may execute before it is stopped.
+     * Only loops are charged: each jump back charges the length of the loop
+     * body, which overestimates bodies with forward branches. Defaults to the
+     * labomath.quota.instructions system property.
+     * @param instructions Instruction quota, 0 for no limit
+     */
+    public void setInstructionQuota(long instructions)
+    {
+        m_instructionQuota = instructions;
+    }
+
+    public long getInstructionQuota()
+    {
+        return m_instructionQuota;
+    }
+
+    /**
+     * Sets the time a run may take before it is stopped, not counting time
+     * spent suspended. Defaults to the labomath.quota.time system property.
+     * @param millis Time quota in milliseconds, 0 for no limit
+     */
+    public void setTimeQuota(long millis)
+    {
+        m_timeQuota = millis;
+    }
+
+    public long getTimeQuota()
+    {
+        return m_timeQuota;
+    }
+
+    /**
+     * Suspends the run in progress at its next loop iteration, or the next
+     * run before it starts, until resumed
+     */
+    public void suspend()
+    {
+        m_vCpu.suspend();
+    }
+
+    public void resume()
+    {
+        m_vCpu.resume();
+    }
+
+    public boolean isSuspended()
+    {
+        return m_vCpu.isSuspended();
+    }
+
+    /**
+     * Runs a console directive, entered on the command line with a leading
+     * colon:
+     *   counters [on|off|reset]  Prints, enables, disables or clears the
+     *                            execution counters
+     *   profile [on|off|reset]   Prints the script hot spots, or starts,
+     *                            stops or clears the sampling profiler
+     *   flamegraph [on|off]      Prints where flame graph profiles are
+     *                            written, or starts or stops recording them
+     *   branches [static|bimodal|gshare|tage|off|reset]
+     *                            Prints the branch prediction statistics,
+     *                            starts simulating a predictor, or stops or
+     *                            clears the simulation
+     *   cache [inclusive|exclusive|off|reset]
+     *                            Prints the cache statistics, starts
+     *                            simulating the default cache hierarchy, or
+     *                            stops or clears the simulation
+     *   pipeline [on|noforward|off]
+     *                            Prints the timing of the last run, or starts
+     *                            timing runs with or without forwarding, or
+     *                            stops timing them
+     * @param directive Directive without the colon
+     * @return Text to display on the console
+     */
+    public String runDirective(String directive)
     {
-        m_IOMap.forEach((Integer clientId, EnumMap<IOType, List<IONode>> clientChannels) -> {
-            // Check input channels
-            InputChannel in = null;
-            IONode srcNode = null;
-            for (IONode channel : clientChannels.get(IOType.in)) {
-                for (InputChannel candidate : m_inputSources) {
-                    if (candidate.getChannelMapping() == channel.getCMID() && candidate.isReady()) {
-                        candidate.reset();
-                        in = candidate;
-                        srcNode = channel;
-                        break;
+        String[] words = directive.trim().split("\\s+");
+        if (words.length > 2)
+            return "Unknown directive: " + directive.trim();
+        switch (words[0]) {
+            case "counters":
+                if (words.length == 1)
+                    return (isCountersEnabled() ? "" : "Counting disabled\n") + m_counters;
+                switch (words[1]) {
+                    case "on":
+                        setCountersEnabled(true);
+                        return "Counting enabled";
+                    case "off":
+                        setCountersEnabled(false);
+                        return "Counting disabled";
+                    case "reset":
+                        m_counters.reset();
+                        return "Counters cleared";
+                    default:
+                        return "Usage: counters [on|off|reset]";
+                }
+            case "profile":
+                if (words.length == 1)
+                    return (m_profiler.isActive() ? "" : "Profiler stopped\n") + getProfileReport();
+                switch (words[1]) {
+                    case "on":
+                        setProfilingEnabled(true);
+                        return "Profiler started";
+                    case "off":
+                        setProfilingEnabled(false);
+                        return "Profiler stopped";
+                    case "reset":
+                        m_profiler.reset();
+                        return "Profile cleared";
+                    default:
+                        return "Usage: profile [on|off|reset]";
+                }
+            case "flamegraph":
+                if (words.length == 1)
+                    return m_flameDir == null ? "Not recording" : "Recording to " + m_flameDir;
+                switch (words[1]) {
+                    case "on":
+                        setFlameGraphDirectory(Paths.get(System.getProperty(
+                            "labomath.profiles",
+                            Paths.get(System.getProperty("user.home"), ".labomath", "profiles").toString()
+                        )));
+                        return "Recording to " + m_flameDir;
+                    case "off":
+                        setFlameGraphDirectory(null);
+                        return "Not recording";
+                    default:
+                        return "Usage: flamegraph [on|off]";
+                }
+            case "branches":
+                if (words.length == 1) {
+                    if (m_branches == null)
+                        return "No branch predictor";
+                    return (m_vCpu.getBranchSimulator() == null ? "Simulation stopped\n" : "") + m_branches;
+                }
+                switch (words[1]) {
+                    case "off":
+                        setBranchPredictor(null);
+                        return "Simulation stopped";
+                    case "reset":
+                        if (m_branches != null)
+                            m_branches.reset();
+                        return "Branch statistics cleared";
+                    default:
+                        BranchPredictor predictor = BranchPredictors.create(words[1]);
+                        if (predictor == null)
+                            return "Usage: branches [static|bimodal|gshare|tage|off|reset]";
+                        setBranchPredictor(predictor);
+                        return "Simulating " + predictor.getName() + " predictor";
+                }
+            case "cache":
+                if (words.length == 1)
+                    return (m_caches != null && m_vCpu.getCacheSimulator() == null ? "Simulation stopped\n" : "") + getCacheReport();
+                switch (words[1]) {
+                    case "inclusive":
+                        setCacheSimulator(CacheSimulator.createDefault(CacheSimulator.Inclusion.INCLUSIVE));
+                        return "Simulating inclusive caches";
+                    case "exclusive":
+                        setCacheSimulator(CacheSimulator.createDefault(CacheSimulator.Inclusion.EXCLUSIVE));
+                        return "Simulating exclusive caches";
+                    case "off":
+                        setCacheSimulator(null);
+                        return "Simulation stopped";
+                    case "reset":
+                        if (m_caches != null)
+                            m_caches.reset();
+                        return "Cache statistics cleared";
+                    default:
+                        return "Usage: cache [inclusive|exclusive|off|reset]";
+                }
+            case "pipeline":
+                if (words.length == 1) {
+                    if (m_pipeline == null)
+                        return "No pipeline model";
+                    return (m_vCpu.getPipelineModel() == null ? "Timing stopped\n" : "") + m_pipeline;
+                }
+                switch (words[1]) {
+                    case "on":
+                    case "noforward":
+                        setPipelineModel(new PipelineModel(
+                            new LatencyTable(), PipelineModel.DEFAULT_MEMORY_CYCLES, words[1].equals("on")
+                        ));
+                        return "Timing runs";
+                    case "off":
+                        setPipelineModel(null);
+                        return "Timing stopped";
+                    default:
+                        return "Usage: pipeline [on|noforward|off]";
+                }
+            default:
+                return "Unknown directive: " + directive.trim();
+        }
+    }
+
+    /**
+     * Queues the input of an input channel to be read, compiled and run on the
+     * VM thread. Only the channel's input stream is obtained before returning;
+     * text components are captured as they are at submission, so they may
+     * change right away. A client's requests run in submission order, and
+     * clients with queued requests take turns.
+     * Cancelling the returned future cancels this request only: if it is
+     * still queued it is dropped, and if it is running it stops at its next
+     * loop iteration, with the client's console reporting where. The future
+     * completes as soon as it is cancelled; whenEnded tells when the request
+     * has actually left the VM thread.
+     * @param in Input channel, as returned by initLocalInputChannel
+     * @return Future completing once the input has run, exceptionally if the
+     *         VM failed
+     */
+    public synchronized CompletableFuture<Void> submit(InputChannel in)
+    {
+        int clientId = findClient(in);
+        EnumMap<IOType, List<IONode>> clientChannels = m_IOMap.get(clientId);
+        in.reset();
+
+        // Get corresponding output channels (local/remote console, local/remote GUI update)
+        ConsoleOutputChannel consoleOut = null;
+        OutputChannel guiOut = null;
+        for (IONode channel : clientChannels.getOrDefault(IOType.out, Collections.emptyList())) {
+            for (OutputChannel candidate : m_outputSinks) {
+                if (candidate.getChannelMapping() == channel.getCMID()) {
+                    switch (channel.getTarget()) {
+                        case console:
+                        case remote_console:
+                            consoleOut = (ConsoleOutputChannel) candidate;
+                            break;
+                        case gui:
+                        case remote_gui:
+                            guiOut = candidate;
                     }
                 }
             }
-            if (in == null)
-                return;
-            
-            // Get corresponding output channels (local/remote console, local/remote GUI update)
-            ConsoleOutputChannel consoleOut = null;
-            OutputChannel guiOut = null;
-            for (IONode channel : clientChannels.get(IOType.out)) {
-                for (OutputChannel candidate : m_outputSinks) {
-                    if (candidate.getChannelMapping() == channel.getCMID()) {
-                        switch (channel.getTarget()) {
-                            case console:
-                            case remote_console:
-                                consoleOut = (ConsoleOutputChannel) candidate;
-                                break;
-                            case gui:
-                            case remote_gui:
-                                guiOut = candidate;
-                        }
-                    }
+        }
+        if (consoleOut == null)
+            return CompletableFuture.completedFuture(null);
+
+        boolean isCommand = false;
+        for (IONode channel : clientChannels.get(IOType.in)) {
+            if (channel.getCMID() == in.getChannelMapping()) {
+                switch (channel.getSource()) {
+                    case console:
+                    case remote_console:
+                        isCommand = true;
+                    default:;   // Do nothing
                 }
             }
-            if (consoleOut == null)
-                return;
-            
-            // Initialize compiler and VCPU
-            m_compiler.setInputChannel(in);
-            m_compiler.setOutputChannel(consoleOut);
-            boolean isCommand = false;
-            switch (srcNode.getSource()) {
-                case console:
-                case remote_console:
-                    isCommand = true;
-                default:;   // Do nothing
+        }
+
+        InputStream source = in.getInputStream();
+        boolean command = isCommand;
+        ConsoleOutputChannel out = consoleOut;
+        return enqueue(clientId, () -> {
+            execute(source, command, out);
+            return null;
+        });
+    }
+
+    /**
+     * Queues a console directive behind the requests the input channel's
+     * client has submitted
+     * @param in        Input channel the directive was entered on
+     * @param directive Directive without the colon
+     * @return Future of the text to display on the console
+     * @see #runDirective(String)
+     */
+    public synchronized CompletableFuture<String> submitDirective(InputChannel in, String directive)
+    {
+        return enqueue(findClient(in), () -> runDirective(directive));
+    }
+
+    /**
+     * Returns a future completing once a submitted request has finished, has
+     * been stopped, or has been dropped from the queue. Unlike the request's
+     * own future, it is not completed by cancelling the request.
+     * @param request Future returned by submit or submitDirective
+     * @return Future of the request's end, already completed if it has ended
+     */
+    public synchronized CompletableFuture<Void> whenEnded(CompletableFuture<?> request)
+    {
+        return m_ended.getOrDefault(request, CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Runs the input of every ready input channel, waiting for the runs to
+     * finish. Must not be called on the VM thread.
+     */
+    public void run()
+    {
+        List<CompletableFuture<Void>> runs = new ArrayList<>();
+        synchronized (this) {
+            for (InputChannel in : m_inputSources) {
+                if (in.isReady())
+                    runs.add(submit(in));
+            }
+        }
+        // Failures are logged on the VM thread
+        CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[runs.size()]))
+            .handle((Void result, Throwable ex) -> null)
+            .join();
+    }
+
+    private int findClient(InputChannel in)
+    {
+        for (Map.Entry<Integer, EnumMap<IOType, List<IONode>>> client : m_IOMap.entrySet()) {
+            for (IONode channel : client.getValue().getOrDefault(IOType.in, Collections.emptyList())) {
+                if (channel.getCMID() == in.getChannelMapping())
+                    return client.getKey();
+            }
+        }
+        throw new IllegalArgumentException("Input channel is not registered");
+    }
+
+    /**
+     * Appends a request to a client's queue, handing it to the VM thread if
+     * the client has no request pending. A request whose future is cancelled
+     * while queued is dropped, and stopped if it is running.
+     */
+    private <T> CompletableFuture<T> enqueue(int clientId, Supplier<T> request)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<Void> ended = new CompletableFuture<>();
+        m_ended.put(result, ended);
+        Deque<Runnable> queue = m_queues.computeIfAbsent(clientId, (Integer key) -> new ArrayDeque<>());
+        queue.add(() -> {
+            synchronized (this) {
+                if (result.isCancelled()) {
+                    m_ended.remove(result);
+                    ended.complete(null);
+                    return;
+                }
+                m_running = result;
             }
-            
-            // Compile program from source
-            List<Instruction> program;
             try {
-                program = m_compiler.run(isCommand);
-            } catch (IOException ex) {
+                result.complete(request.get());
+            } catch (Throwable ex) {
                 Logger.getLogger(VirtualMachine.class.getName()).log(Level.SEVERE, null, ex);
-                consoleOut.send(Type.StdErr, ex.getMessage());
-                return;
-            }            
-            if (program == null)
-                return;
-            
-            // Execute program on VCPU
-            m_vCpu.initializeIO(consoleOut);
-            m_vCpu.load(program);
-            m_vCpu.execute();
-        
-            // If command entered on command line then grab result in the virtual
-            // machine's accumulator and send to client's console
-            if (isCommand) {
-                StringBuilder out = new StringBuilder();
-                m_vCpu.getAccumulatorValue(out);
-                out.append("\n");
-                consoleOut.send(
-                    OutputChannel.Type.StdOut, out.toString()
-                );
+                result.completeExceptionally(ex);
+            } finally {
+                synchronized (this) {
+                    m_running = null;
+                    m_vCpu.endRun();
+                    m_ended.remove(result);
+                }
+                ended.complete(null);
             }
         });
+        result.whenComplete((T value, Throwable ex) -> {
+            if (result.isCancelled())
+                stop(result);
+        });
+        if (queue.size() == 1)
+            m_executor.execute(() -> runNext(clientId));
+        return result;
+    }
+
+    /**
+     * Stops a cancelled request if it is the one running. The VCPU keeps the
+     * cancellation until the request ends, so it also takes effect if the
+     * request is still compiling.
+     */
+    private synchronized void stop(CompletableFuture<?> request)
+    {
+        if (m_running == request)
+            m_vCpu.cancel();
+    }
+
+    /**
+     * Runs a client's oldest request on the VM thread, then hands its next
+     * request to the back of the VM thread's queue
+     */
+    private void runNext(int clientId)
+    {
+        Runnable request;
+        synchronized (this) {
+            request = m_queues.get(clientId).peek();
+        }
+        request.run();
+        synchronized (this) {
+            Deque<Runnable> queue = m_queues.get(clientId);
+            queue.poll();
+            if (!queue.isEmpty())
+                m_executor.execute(() -> runNext(clientId));
+        }
+    }
+
+    /**
+     * Reads, compiles and runs a client's input on the VM thread
+     */
+    private void execute(InputStream input, boolean isCommand, ConsoleOutputChannel consoleOut)
+    {
+        // Compile program from source
+        m_compiler.setOutputChannel(consoleOut);
+        byte[] source;
+        Bytecode program;
+        try {
+            source = InputChannel.readAll(input);
+            program = m_compiler.run(source, isCommand);
+        } catch (IOException ex) {
+            Logger.getLogger(VirtualMachine.class.getName()).log(Level.SEVERE, null, ex);
+            consoleOut.send(Type.StdErr, ex.getMessage());
+            return;
+        }
+        if (program == null)
+            return;
+
+        // Keep the script text for the profiler's hot spot report
+        if (!isCommand && m_profiler.isActive())
+            m_profiledSource = new String(source);
+
+        // Execute program on VCPU
+        m_vCpu.initializeIO(consoleOut);
+        m_flameProfile.reset();
+        PipelineModel pipeline = m_vCpu.getPipelineModel();
+        if (pipeline != null)
+            pipeline.reset();
+        m_engine.load(program);
+        try {
+            m_vCpu.startRun(m_instructionQuota, m_timeQuota);
+            m_engine.execute();
+        } catch (ExecutionStoppedException ex) {
+            reportError(consoleOut, program, ex.getReason().getDescription(), ex.getAddress());
+            return;
+        } catch (RuntimeException ex) {
+            // Script errors are reported to the client rather than failing
+            // the request, which the GUI does not display
+            String error = ex instanceof ArithmeticException ? "Division by zero" : ex.getMessage();
+            reportError(consoleOut, program, error == null ? ex.toString() : error, m_vCpu.getInstructionPointer());
+            return;
+        }
+        if (!isCommand && m_flameDir != null)
+            writeFlameGraphProfile(consoleOut);
+
+        // If command entered on command line then grab result in the virtual
+        // machine's accumulator and send to client's console
+        if (isCommand) {
+            StringBuilder out = new StringBuilder();
+            m_vCpu.getAccumulatorValue(out);
+            out.append("\n");
+            consoleOut.send(
+                OutputChannel.Type.StdOut, out.toString()
+            );
+        }
+    }
+
+    /**
+     * Sends a run-time error to the client's console with the address and
+     * source line where it occurred
+     */
+    private static void reportError(ConsoleOutputChannel consoleOut, Bytecode program, String error, int addr)
+    {
+        int line = program.getLineTable().lineAt(addr);
+        consoleOut.send(Type.StdErr, String.format(
+            "%s at instruction %d%s%n", error, addr, line < 0 ? "" : ", line " + (line + 1)
+        ));
+    }
+
+    /**
+     * Writes the instruction counts of the script just run to a new file in
+     * the profile directory
+     */
+    private void writeFlameGraphProfile(OutputChannel consoleOut)
+    {
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        Path file = m_flameDir.resolve("run-" + stamp + "-" + (++m_flameRuns) + ".folded");
+        try {
+            Files.createDirectories(m_flameDir);
+            try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                m_flameProfile.writeCollapsed(out);
+            }
+            consoleOut.send(Type.StdOut, "Profile written to " + file + "\n");
+        } catch (IOException ex) {
+            Logger.getLogger(VirtualMachine.class.getName()).log(Level.WARNING, null, ex);
+            consoleOut.send(Type.StdErr, "Unable to write profile " + file + ": " + ex.getMessage() + "\n");
+        }
     }
 }